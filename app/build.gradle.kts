@@ -1,5 +1,8 @@
+import com.android.build.api.variant.BuildConfigField
+
 plugins {
     alias(libs.plugins.android.application)
+    alias(libs.plugins.baselineprofile)
 }
 
 android {
@@ -14,11 +17,17 @@ android {
         versionName = "1.0"
 
         testInstrumentationRunner = "androidx.test.runner.AndroidJUnitRunner"
+        buildConfigField("boolean", "SIMULATED_GATE", "false")
+    }
+
+    buildFeatures {
+        buildConfig = true
     }
 
     buildTypes {
         release {
-            isMinifyEnabled = false
+            isMinifyEnabled = true
+            isShrinkResources = true
             proguardFiles(
                 getDefaultProguardFile("proguard-android-optimize.txt"),
                 "proguard-rules.pro"
@@ -31,11 +40,27 @@ android {
     }
 }
 
+androidComponents {
+    // Builds the macrobenchmarks install may talk to a simulated gate, see BluetoothLeService.EXTRA_SIMULATED_GATE.
+    onVariants { variant ->
+        if (variant.buildType == "benchmarkRelease" || variant.buildType == "nonMinifiedRelease") {
+            variant.buildConfigFields.put("SIMULATED_GATE", BuildConfigField("boolean", "true", null))
+        }
+    }
+}
+
 dependencies {
 
+    implementation(project(":gate-core"))
+    implementation(libs.profileinstaller)
+    implementation(libs.tracing)
     implementation(libs.appcompat)
     implementation(libs.material)
     testImplementation(libs.junit)
     androidTestImplementation(libs.ext.junit)
     androidTestImplementation(libs.espresso.core)
+    // src/main/baseline-prof.txt holds hand-maintained startup rules; keep it in step with
+    // renamed classes. :app:generateBaselineProfile writes its output to
+    // src/release/generated/baselineProfiles, and both are merged into the release build.
+    baselineProfile(project(":macrobenchmark"))
 }
\ No newline at end of file
@@ -0,0 +1,97 @@
+package cz.janvanura.gate_bt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+
+/**
+ * {@link BleScanner} over {@link BluetoothLeScanner} with a hardware filter on the service UUID.
+ */
+public class AndroidBleScanner implements BleScanner {
+
+    private final BluetoothAdapter mBluetoothAdapter;
+    private BluetoothLeScanner mScanner;
+    private ScanCallback mScanCallback;
+
+
+    public AndroidBleScanner(BluetoothAdapter adapter) {
+        mBluetoothAdapter = adapter;
+    }
+
+    @Override
+    public boolean start(UUID serviceUuid, boolean lowLatency, final Callback callback) {
+        mScanner = mBluetoothAdapter.getBluetoothLeScanner();
+        if (mScanner == null) {
+            // Bluetooth is off.
+            return false;
+        }
+        List<ScanFilter> filters = Collections.singletonList(new ScanFilter.Builder()
+                .setServiceUuid(new ParcelUuid(serviceUuid))
+                .build());
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(lowLatency ? ScanSettings.SCAN_MODE_LOW_LATENCY : ScanSettings.SCAN_MODE_LOW_POWER)
+                .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+                .setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE)
+                .setNumOfMatches(ScanSettings.MATCH_NUM_FEW_ADVERTISEMENT)
+                .setReportDelay(0)
+                .build();
+        mScanCallback = new ScanCallback() {
+            @Override
+            public void onScanResult(int callbackType, ScanResult result) {
+                deliver(result, callback);
+            }
+
+            @Override
+            public void onBatchScanResults(List<ScanResult> results) {
+                for (ScanResult result : results) {
+                    deliver(result, callback);
+                }
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                callback.onFailed(errorCode);
+            }
+        };
+        mScanner.startScan(filters, settings, mScanCallback);
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        if (mScanner != null && mScanCallback != null && mBluetoothAdapter.isEnabled()) {
+            mScanner.stopScan(mScanCallback);
+        }
+        mScanCallback = null;
+        mScanner = null;
+    }
+
+
+    private static void deliver(ScanResult result, Callback callback) {
+        ScanRecord record = result.getScanRecord();
+        List<UUID> uuids = null;
+        String name = null;
+        if (record != null) {
+            name = record.getDeviceName();
+            List<ParcelUuid> parcelUuids = record.getServiceUuids();
+            if (parcelUuids != null) {
+                uuids = new ArrayList<>(parcelUuids.size());
+                for (ParcelUuid uuid : parcelUuids) {
+                    uuids.add(uuid.getUuid());
+                }
+            }
+        }
+        callback.onResult(result.getDevice().getAddress(), name, result.getRssi(), uuids);
+    }
+}
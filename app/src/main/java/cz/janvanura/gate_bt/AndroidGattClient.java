@@ -0,0 +1,277 @@
+package cz.janvanura.gate_bt;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.UUID;
+
+
+/**
+ * {@link GattClient} over a {@link BluetoothGatt} connection. Characteristics are looked up
+ * in a {@link GattAttributeCache} filled when services are discovered.
+ *
+ * Every callback is delivered on the looper of the handler passed to {@link #open}, values
+ * are copied before they leave the binder thread.
+ */
+public class AndroidGattClient implements GattClient {
+
+    private final static String TAG = GattAttributes.NAME;
+
+    private final String mAddress;
+    private final GattClient.Callback mCallback;
+    private final Handler mHandler;
+    private final GattAttributeCache<BluetoothGattCharacteristic> mAttributeCache = new GattAttributeCache<>();
+    private BluetoothGatt mBluetoothGatt;
+
+
+    // Translates the framework callback and keeps the attribute cache up to date.
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, final int status, final int newState) {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onConnectionStateChange(status, newState);
+                }
+            });
+        }
+
+        @Override
+        public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        mAttributeCache.reset(mAddress);
+                        for (BluetoothGattService service : gatt.getServices()) {
+                            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                                mAttributeCache.put(service.getUuid(), characteristic.getUuid(), characteristic);
+                            }
+                        }
+                    }
+                    mCallback.onServicesDiscovered(status);
+                }
+            });
+        }
+
+        @Override
+        public void onServiceChanged(BluetoothGatt gatt) {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    mAttributeCache.invalidate();
+                    mCallback.onServiceChanged();
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic,
+                                         final int status) {
+            final UUID uuid = characteristic.getUuid();
+            final byte[] value = copy(characteristic.getValue());
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    markStaleOnFailure(status);
+                    mCallback.onCharacteristicRead(uuid, value, status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic,
+                                          final int status) {
+            final UUID uuid = characteristic.getUuid();
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    markStaleOnFailure(status);
+                    mCallback.onCharacteristicWrite(uuid, status);
+                }
+            });
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, final int status) {
+            final UUID uuid = descriptor.getCharacteristic().getUuid();
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    markStaleOnFailure(status);
+                    mCallback.onDescriptorWrite(uuid, status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            // The framework reuses the value array for the next notification.
+            final UUID uuid = characteristic.getUuid();
+            final byte[] value = copy(characteristic.getValue());
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onCharacteristicChanged(uuid, value);
+                }
+            });
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, final int mtu, final int status) {
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onMtuChanged(mtu, status);
+                }
+            });
+        }
+    };
+
+
+    private AndroidGattClient(String address, Handler handler, GattClient.Callback callback) {
+        mAddress = address;
+        mHandler = handler;
+        mCallback = callback;
+    }
+
+    /**
+     * Connects to {@code device} over LE, see {@link GattConnector#open(String, boolean, Callback)}.
+     *
+     * @param handler Handler of the thread that owns the connection, {@code callback} runs on it.
+     */
+    public static AndroidGattClient open(Context context, BluetoothDevice device, boolean autoConnect,
+                                         Handler handler, GattClient.Callback callback) {
+        AndroidGattClient client = new AndroidGattClient(device.getAddress(), handler, callback);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // Callbacks arrive on the handler directly, without a hop through the binder thread.
+            client.mBluetoothGatt = device.connectGatt(context, autoConnect, client.mGattCallback,
+                    BluetoothDevice.TRANSPORT_LE, BluetoothDevice.PHY_LE_1M_MASK, handler);
+        } else {
+            client.mBluetoothGatt = device.connectGatt(context, autoConnect, client.mGattCallback,
+                    BluetoothDevice.TRANSPORT_LE);
+        }
+        return client.mBluetoothGatt == null ? null : client;
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public boolean connect() {
+        return mBluetoothGatt.connect();
+    }
+
+    @Override
+    public void disconnect() {
+        mBluetoothGatt.disconnect();
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        return mBluetoothGatt.requestConnectionPriority(priority);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        return mBluetoothGatt.requestMtu(mtu);
+    }
+
+    @Override
+    public void close() {
+        // Cached characteristics belong to the closed BluetoothGatt.
+        mAttributeCache.invalidate();
+        mBluetoothGatt.close();
+    }
+
+    @Override
+    public boolean hasCachedServices() {
+        return mAttributeCache.isValidFor(mAddress);
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return mBluetoothGatt.discoverServices();
+    }
+
+    @Override
+    public int getProperties(UUID uuid) {
+        BluetoothGattCharacteristic characteristic = mAttributeCache.get(uuid);
+        return characteristic == null ? 0 : characteristic.getProperties();
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID uuid) {
+        BluetoothGattCharacteristic characteristic = mAttributeCache.get(uuid);
+        if (characteristic == null) {
+            Log.w(TAG, "Could not find characteristic");
+            return false;
+        }
+        return mBluetoothGatt.readCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID uuid, byte[] value, int writeType) {
+        BluetoothGattCharacteristic characteristic = mAttributeCache.get(uuid);
+        if (characteristic == null) {
+            Log.w(TAG, "Could not find characteristic");
+            return false;
+        }
+        characteristic.setWriteType(writeType);
+        characteristic.setValue(value);
+        return mBluetoothGatt.writeCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(UUID uuid, boolean enable) {
+        BluetoothGattCharacteristic characteristic = mAttributeCache.get(uuid);
+        if (characteristic == null) {
+            Log.w(TAG, "Could not find characteristic");
+            return false;
+        }
+        if (!mBluetoothGatt.setCharacteristicNotification(characteristic, enable)) {
+            return false;
+        }
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(GattAttributes.UUID_CLIENT_CONFIG);
+        if (descriptor == null) {
+            Log.w(TAG, "Could not find client characteristic configuration");
+            return false;
+        }
+        descriptor.setValue(enable
+                ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        return mBluetoothGatt.writeDescriptor(descriptor);
+    }
+
+
+    private void deliver(Runnable callback) {
+        if (Looper.myLooper() == mHandler.getLooper()) {
+            callback.run();
+        } else {
+            mHandler.post(callback);
+        }
+    }
+
+    private static byte[] copy(byte[] value) {
+        return value == null ? null : value.clone();
+    }
+
+    // The cached characteristic may be stale, look it up again on next connect. The live link
+    // keeps using it, a write with response after a failed one included.
+    private void markStaleOnFailure(int status) {
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            mAttributeCache.markStale();
+        }
+    }
+}
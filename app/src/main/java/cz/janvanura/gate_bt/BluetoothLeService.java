@@ -16,155 +16,460 @@
 
 package cz.janvanura.gate_bt;
 
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanResult;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
-
-import java.util.UUID;
+import android.widget.Toast;
+
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.ServiceCompat;
+import androidx.core.content.ContextCompat;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
 
 
 /**
- * Service for managing connection and data communication with a GATT server hosted on a
- * given Bluetooth LE device.
+ * Service for managing connections and data communication with GATT servers hosted on
+ * Bluetooth LE gates. Every gate has its own {@link GateConnection}, several of them can be
+ * connected at the same time.
+ *
+ * In proximity mode the service runs in the foreground, watches for the gate's advertisement
+ * and connects as soon as the gate is near, so opening it takes a single write.
+ *
+ * The Quick Settings tile and the widget start it with {@link #ACTION_QUICK_COMMAND}. It then
+ * runs in the foreground until the gate answered, see {@link QuickCommand}.
+ *
+ * The activity starts the service as well as binding it, so connections outlive the activity.
+ * They are closed {@link #IDLE_TIMEOUT} after the last client left, a rotated or reopened
+ * activity finds them still up and discovered.
+ *
+ * Connections live on a dedicated GATT thread: framework callbacks, timeouts and every call
+ * made through the public methods run there, one at a time. Other threads only hand work over
+ * and read {@link ConnectionSnapshot}s, events reach them through {@link GattEventBus}.
  */
 public class BluetoothLeService extends Service {
 
     private final static String TAG = GattAttributes.NAME;
 
-    private BluetoothManager mBluetoothManager;
-    private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private Handler mHandler = new Handler();
-    private final IBinder mBinder = new LocalBinder();
-
-    private int mConnectionState = STATE_DISCONNECTED;
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
-    private static final int SCAN_PERIOD = 10000;
-
-    public final static String ACTION_GATT_CONNECTED = "cz.janvanura.gate-bt.ACTION_GATT_CONNECTED";
-    public final static String ACTION_GATT_CONNECTING = "cz.janvanura.gate-bt.ACTION_GATT_CONNECTING";
-    public final static String ACTION_GATT_DISCONNECTED = "cz.janvanura.gate-bt.ACTION_GATT_DISCONNECTED";
-    public final static String ACTION_GATT_NOTHING_FOUND = "cz.janvanura.gate-bt.ACTION_GATT_NOTHING_FOUND";
-    public final static String ACTION_GATT_WRITE = "cz.janvanura.gate-bt.ACTION_GATT_WRITE";
-    public final static String ACTION_DATA_AVAILABLE = "cz.janvanura.gate-bt.ACTION_DATA_AVAILABLE";
-    public final static String EXTRA_DATA = "cz.janvanura.gate-bt.EXTRA_DATA";
-
-
+    /**
+     * Boolean extra of the binding intent, connects to a simulated gate instead of Bluetooth.
+     * Honoured only by the benchmark builds.
+     */
+    public static final String EXTRA_SIMULATED_GATE = "cz.janvanura.gate_bt.SIMULATED_GATE";
 
+    /**
+     * Sends a motion command without the activity, see {@link #quickCommandIntent(Context, String, boolean)}.
+     */
+    public static final String ACTION_QUICK_COMMAND = "cz.janvanura.gate_bt.action.QUICK_COMMAND";
+    public static final String EXTRA_ADDRESS = "cz.janvanura.gate_bt.ADDRESS";
+    public static final String EXTRA_OPEN = "cz.janvanura.gate_bt.OPEN";
+    /** {@link SystemClock#uptimeMillis()} of the tap, the start of the tap latency. */
+    public static final String EXTRA_TAPPED_AT = "cz.janvanura.gate_bt.TAPPED_AT";
 
+    /** Shorter than the minute Android lets a started service run after the app went away. */
+    static final long IDLE_TIMEOUT = 30000;
 
-    // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    private BluetoothManager mBluetoothManager;
+    private BluetoothAdapter mBluetoothAdapter;
+    private HandlerThread mGattThread;
+    private Handler mGattHandler;
+    private Scheduler mScheduler;
+    private final ExecutorService mCallbackExecutor = Executors.newSingleThreadExecutor();
+    // Disk work of the audit journal and the key store, never runs on the GATT thread.
+    private final ExecutorService mIoExecutor = Executors.newSingleThreadExecutor();
+    private final IBinder mBinder = new LocalBinder();
+    private final ScanResultCache mScanResultCache = new ScanResultCache();
+    private GateScanner mGateScanner;
+    private ProximityWatcher mProximityWatcher;
+
+    private static final String NOTIFICATION_CHANNEL = "proximity";
+    private static final String QUICK_COMMAND_CHANNEL = "quick_command";
+    private static final int NOTIFICATION_ID = 1;
+
+    private final GattEventBus mEventBus = new GattEventBus();
+    private final GattMetrics mMetrics = new GattMetrics();
+    private final GateProfileCache mProfiles = new GateProfileCache();
+    private AuditJournal mJournal;
+    private GateKeyStore mKeyStore;
+    private GattTrace mTrace;
+
+    private static final int TRACE_FRAMES = 64;
+    private static final int TRACE_FRAME_SIZE = 20;
+    private static final int DUMP_JOURNAL_ENTRIES = 20;
+    // Preferences the activity kept the key of the default gate in.
+    private static final String LEGACY_KEY_PREFERENCES = "DeviceControlActivity";
+    private static final String LEGACY_KEY = "secureKey";
+
+
+    private final GattConnector mBluetoothConnector = new GattConnector() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
-            Log.i(TAG, "status " + String.valueOf(newState));
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" + mBluetoothGatt.discoverServices());
-            } else if (newState == BluetoothProfile.STATE_CONNECTING) {
-                intentAction = ACTION_GATT_CONNECTING;
-                mConnectionState = STATE_CONNECTING;
-                Log.i(TAG, "Connecting to GATT server.");
-                broadcastUpdate(intentAction);
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
+        public GattClient open(String address, boolean autoConnect, GattClient.Callback callback) {
+            final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+            if (device == null) {
+                Log.w(TAG, "Device not found. Unable to connect.");
+                return null;
             }
+            return AndroidGattClient.open(BluetoothLeService.this, device, autoConnect, mGattHandler, callback);
         }
+    };
+    private volatile GattConnector mConnector = mBluetoothConnector;
+    private boolean mSimulatedGate;
 
+    private final GattConnectionPool mConnectionPool = new GattConnectionPool(new GattConnectionPool.Factory() {
         @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_WRITE);
-            } else {
-                Log.w(TAG, "Write Failed: " + status);
-            }
+        public GateConnection create(String address) {
+            GateConnection connection = new GateConnection(address, mConnector, mScheduler, mCallbackExecutor,
+                    mEventBus, mTrace, mMetrics, mProfiles);
+            connection.setJournal(mJournal);
+            connection.setKeyStore(mKeyStore);
+            return connection;
         }
+    }, GattConnectionPool.DEFAULT_MAX_CONNECTIONS);
 
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean mBound;
+    // Quick commands waiting for the gate, touched on the main thread only.
+    private int mQuickCommands;
+    private QuickCommand mQuickCommand;
+
+    // Runs on the main thread once nobody used the service for IDLE_TIMEOUT.
+    private final Runnable mIdleStop = new Runnable() {
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        public void run() {
+            if (mBound || isProximityMode() || mQuickCommands > 0) {
+                return;
             }
+            Log.d(TAG, "Idle, closing connections");
+            // After using a given device, you should make sure that BluetoothGatt.close() is called
+            // such that resources are cleaned up properly.
+            close();
+            stopSelf();
+        }
+    };
+
+
+    // Warms the connection up while the user walks to the gate.
+    private final ProximityWatcher.Listener mProximityListener = new ProximityWatcher.Listener() {
+        @Override
+        public void onNear(String address) {
+            connect(address);
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        public void onAway(String address) {
+            disconnect(address);
         }
     };
 
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
+
+    public class LocalBinder extends Binder {
+        BluetoothLeService getService() {
+            return BluetoothLeService.this;
+        }
+
+        /**
+         * Connection and data events of the service, delivered in process.
+         */
+        GattEventBus getEventBus() {
+            return mEventBus;
+        }
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        if (BuildConfig.SIMULATED_GATE && intent.getBooleanExtra(EXTRA_SIMULATED_GATE, false)) {
+            useSimulatedGate();
+        }
+        mBound = true;
+        mMainHandler.removeCallbacks(mIdleStop);
+        return mBinder;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        mBound = true;
+        mMainHandler.removeCallbacks(mIdleStop);
+    }
+
+    // Stops the service after IDLE_TIMEOUT unless it is used again meanwhile.
+    private void scheduleIdleStop() {
+        mMainHandler.removeCallbacks(mIdleStop);
+        mMainHandler.postDelayed(mIdleStop, IDLE_TIMEOUT);
+    }
+
+    /**
+     * @return Intent for {@code startForegroundService()}, sending {@code open} or close to the
+     *         gate at {@code address}.
+     */
+    public static Intent quickCommandIntent(Context context, String address, boolean open) {
+        return new Intent(context, BluetoothLeService.class)
+                .setAction(ACTION_QUICK_COMMAND)
+                .putExtra(EXTRA_ADDRESS, address)
+                .putExtra(EXTRA_OPEN, open);
+    }
+
+    /**
+     * @return Return true if the app may connect to gates, without it the service cannot run
+     *         in the foreground for a quick command.
+     */
+    public static boolean canConnect(Context context) {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.S
+                || ContextCompat.checkSelfPermission(context, android.Manifest.permission.BLUETOOTH_CONNECT)
+                == PackageManager.PERMISSION_GRANTED;
+    }
+
+    /**
+     * @return Return true if the app may scan for gates, with the location permission before
+     *         Android 12. Without it scans start but find nothing.
+     */
+    public static boolean canScan(Context context) {
+        String permission = Build.VERSION.SDK_INT >= Build.VERSION_CODES.S
+                ? android.Manifest.permission.BLUETOOTH_SCAN : android.Manifest.permission.ACCESS_FINE_LOCATION;
+        return ContextCompat.checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED;
     }
 
-    private void broadcastUpdate(final String action, final BluetoothGattCharacteristic characteristic) {
+    // Macrobenchmarks run on emulators without Bluetooth, a simulated gate answers like the sketch.
+    private void useSimulatedGate() {
+        if (!mSimulatedGate) {
+            mSimulatedGate = true;
+            mConnector = new GateSimulator(mScheduler, new Random()).connector();
+        }
+    }
 
-        final Intent intent = new Intent(action);
-        final byte[] data = characteristic.getValue();
+    // Connections are possible with an adapter or with the simulated gate.
+    private boolean isAdapterReady() {
+        return mSimulatedGate || mBluetoothAdapter != null;
+    }
 
-        Log.d(TAG, "data.length: " + data.length);
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_QUICK_COMMAND.equals(intent.getAction())) {
+            quickCommand(intent);
+        }
+        // Started by the activity, for proximity mode, which the user has to turn on again after a
+        // crash, and for quick commands, which are not repeated.
+        return START_NOT_STICKY;
+    }
 
-        if (data.length > 0) {
-            final StringBuilder stringBuilder = new StringBuilder(data.length);
-            for(byte byteChar : data) {
-                stringBuilder.append(String.format("%02X ", byteChar));
+    // Runs on the main thread, the service stays in the foreground until the gate answered.
+    private void quickCommand(Intent intent) {
+        final long tappedAt = intent.getLongExtra(EXTRA_TAPPED_AT, SystemClock.uptimeMillis());
+        String address = intent.getStringExtra(EXTRA_ADDRESS);
+        final String gate = address == null ? GattAttributes.MAC_ADDRESS : address;
+        final boolean open = intent.getBooleanExtra(EXTRA_OPEN, true);
+        if (!isProximityMode()) {
+            ServiceCompat.startForeground(this, NOTIFICATION_ID, buildNotification(QUICK_COMMAND_CHANNEL,
+                    R.string.quick_command_channel, open ? R.string.label_opening : R.string.label_closing, 0),
+                    ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE);
+        }
+        mQuickCommands++;
+        if (!initialize()) {
+            finishQuickCommand(R.string.error_bluetooth_not_supported);
+            return;
+        }
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                mQuickCommand.send(gate, open, tappedAt).whenComplete(new BiConsumer<GateResponse, Throwable>() {
+                    @Override
+                    public void accept(GateResponse response, Throwable error) {
+                        final int message = quickCommandMessage(response, error);
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                finishQuickCommand(message);
+                            }
+                        });
+                    }
+                });
             }
-            String dataString = new String(data);
-            Log.d(TAG, "Reading: " + dataString);
-            intent.putExtra(EXTRA_DATA, dataString);
+        });
+    }
+
+    private static int quickCommandMessage(GateResponse response, Throwable error) {
+        if (error instanceof CompletionException) {
+            error = error.getCause();
+        }
+        if (response == null) {
+            return error instanceof TimeoutException ? R.string.flesh_err_no_answer : R.string.quick_err_unreachable;
+        }
+        switch (response.getAnswer()) {
+            case GateCommandCodec.ANSWER_OK_OPEN:
+                return R.string.flesh_opening;
+            case GateCommandCodec.ANSWER_OK_CLOSE:
+                return R.string.flesh_closing;
+            case GateCommandCodec.ANSWER_ERR_SECURE:
+                return R.string.flesh_err_secure;
+            case GateCommandCodec.ANSWER_ERR_BUSY:
+                return R.string.flesh_err_busy;
+            case GateCommandCodec.ANSWER_ERR_SESSION:
+                return R.string.flesh_err_session;
+            default:
+                return R.string.flesh_err_no_answer;
         }
-        sendBroadcast(intent);
     }
 
+    private void finishQuickCommand(int message) {
+        Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+        if (--mQuickCommands > 0 || isProximityMode()) {
+            return;
+        }
+        ServiceCompat.stopForeground(this, ServiceCompat.STOP_FOREGROUND_REMOVE);
+        if (!mBound) {
+            scheduleIdleStop();
+        }
+    }
 
-    public class LocalBinder extends Binder {
-        BluetoothLeService getService() {
-            return BluetoothLeService.this;
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        mGattThread = new HandlerThread("GattThread");
+        mGattThread.start();
+        mGattHandler = new Handler(mGattThread.getLooper());
+        mScheduler = new HandlerScheduler(mGattHandler);
+
+        // Release builds trace nothing, debuggable ones log everything and keep recent frames.
+        boolean debuggable = (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        mTrace = new GattTrace(
+                debuggable ? GattTrace.LEVEL_DEBUG : GattTrace.LEVEL_NONE,
+                new GattTrace.Sink() {
+                    @Override
+                    public void log(int level, String message) {
+                        if (level == GattTrace.LEVEL_WARN) {
+                            Log.w(TAG, message);
+                        } else if (level == GattTrace.LEVEL_INFO) {
+                            Log.i(TAG, message);
+                        } else {
+                            Log.d(TAG, message);
+                        }
+                    }
+                },
+                debuggable ? new FrameRingBuffer(TRACE_FRAMES, TRACE_FRAME_SIZE) : null,
+                mScheduler);
+
+        try {
+            mJournal = new AuditJournal(new File(getFilesDir(), "audit"), mScheduler, mIoExecutor);
+        } catch (IOException e) {
+            // Commands work without it.
+            Log.w(TAG, "Audit journal unavailable", e);
+        }
+
+        mKeyStore = new GateKeyStore(new File(getFilesDir(), "keys.properties"), GattAttributes.SECURE_KEY,
+                mScheduler, mIoExecutor);
+        mKeyStore.load().thenRunAsync(new Runnable() {
+            @Override
+            public void run() {
+                migrateLegacyKey();
+            }
+        }, mIoExecutor);
+
+        mQuickCommand = new QuickCommand(mConnectionPool, mKeyStore, mMetrics, mScheduler, new BooleanSupplier() {
+            @Override
+            public boolean getAsBoolean() {
+                return mBound || isProximityMode();
+            }
+        });
+    }
+
+    // Moves the single key the activity used to keep in its own preferences, runs on the I/O executor.
+    private void migrateLegacyKey() {
+        SharedPreferences preferences = getSharedPreferences(LEGACY_KEY_PREFERENCES, MODE_PRIVATE);
+        String key = preferences.getString(LEGACY_KEY, null);
+        if (key == null) {
+            return;
+        }
+        if (!mKeyStore.contains(GattAttributes.MAC_ADDRESS)) {
+            mKeyStore.put(GattAttributes.MAC_ADDRESS, key);
         }
+        preferences.edit().remove(LEGACY_KEY).apply();
     }
 
+    /**
+     * Dumps connections, latency metrics and recently exchanged frames, {@code adb shell
+     * dumpsys activity service cz.janvanura.gate_bt/.BluetoothLeService}.
+     */
     @Override
-    public IBinder onBind(Intent intent) {
-        return mBinder;
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        StringBuilder out = new StringBuilder();
+        for (GateConnection connection : mConnectionPool.connections()) {
+            out.append(connection.snapshot()).append('\n');
+        }
+        for (ScanResultCache.Entry entry : mScanResultCache.entries(mScheduler.now())) {
+            out.append("seen ").append(entry).append('\n');
+        }
+        mMetrics.toJson(out);
+        out.append('\n');
+        mTrace.dumpFrames(out);
+        if (mJournal != null) {
+            for (AuditJournal.Entry entry : mJournal.page(Long.MAX_VALUE, DUMP_JOURNAL_ENTRIES)) {
+                out.append("audit ").append(entry).append('\n');
+            }
+        }
+        writer.print(out);
     }
 
     @Override
-    public boolean onUnbind(Intent intent) {
-        // After using a given device, you should make sure that BluetoothGatt.close() is called
-        // such that resources are cleaned up properly.  In this particular example, close() is
-        // invoked when the UI is disconnected from the Service.
+    public void onDestroy() {
+        mMainHandler.removeCallbacks(mIdleStop);
+        if (mProximityWatcher != null) {
+            mProximityWatcher.stop();
+        }
+        stopScan();
         close();
-        return super.onUnbind(intent);
+        // Lets the close run before the thread ends.
+        mGattThread.quitSafely();
+        mCallbackExecutor.shutdown();
+        if (mJournal != null) {
+            mJournal.close();
+        }
+        mKeyStore.flush();
+        // Runs the final flushes before the thread ends.
+        mIoExecutor.shutdown();
+        super.onDestroy();
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        // Connections are kept for a while, the activity may only be recreated. Proximity mode
+        // keeps them for good.
+        mBound = false;
+        if (!isProximityMode()) {
+            scheduleIdleStop();
+        }
+        // Later bindings go through onRebind(), which marks the service bound again.
+        return true;
     }
 
 
@@ -175,6 +480,9 @@ public class BluetoothLeService extends Service {
      * @return Return true if the initialization is successful.
      */
     public boolean initialize() {
+        if (mSimulatedGate) {
+            return true;
+        }
         // For API level 18 and above, get a reference to BluetoothAdapter through
         // BluetoothManager.
         if (mBluetoothManager == null) {
@@ -191,6 +499,13 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
+        if (mGateScanner == null) {
+            mGateScanner = new GateScanner(new AndroidBleScanner(mBluetoothAdapter), mScheduler, mScanResultCache,
+                    mEventBus, mTrace);
+            mProximityWatcher = new ProximityWatcher(new AndroidBleScanner(mBluetoothAdapter), mScheduler,
+                    new ProximityDetector(), mProximityListener, mTrace);
+        }
+
         return true;
     }
 
@@ -198,130 +513,337 @@ public class BluetoothLeService extends Service {
 
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects to the GATT server hosted on the Bluetooth LE device. Connections to other gates
+     * are kept.
      *
      * @param address The device address of the destination device.
      *
-     * @return Return true if the connection is initiated successfully. The connection result
-     *         is reported asynchronously through the
-     *         {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     *         callback.
+     * @return Return true if the connection request was handed to the GATT thread. The
+     *         connection result, failure included, is reported asynchronously through
+     *         {@link GattEventBus}.
      */
     public boolean connect(final String address) {
 
-        if (mBluetoothAdapter == null || address == null) {
+        if (!isAdapterReady() || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
 
-
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress) && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                broadcastUpdate(ACTION_GATT_CONNECTING);
-                return true;
-            } else {
-                return false;
+        return runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!mConnectionPool.obtain(address).connect()) {
+                        mEventBus.dispatchDisconnected(address);
+                    }
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "Unable to connect to " + address, e);
+                    mEventBus.dispatchDisconnected(address);
+                }
             }
-        }
+        });
+    }
+
 
 
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found. Unable to connect.");
+    /**
+     * Starts watching for the gate at {@code address} in the foreground and connects whenever
+     * it comes near, also while no activity is bound.
+     *
+     * @return Return false if the watching scan could not be started, also without the
+     *         permission to scan, see {@link #canScan(Context)}.
+     */
+    public boolean startProximityMode(String address) {
+        if (mProximityWatcher == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return false;
+        }
+        if (!canScan(this)) {
+            Log.w(TAG, "No permission to scan, proximity mode not started");
             return false;
         }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        broadcastUpdate(ACTION_GATT_CONNECTING);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
+        mProximityWatcher.watch(address);
+        if (!mProximityWatcher.start()) {
+            return false;
+        }
+        ContextCompat.startForegroundService(this, new Intent(this, BluetoothLeService.class));
+        ServiceCompat.startForeground(this, NOTIFICATION_ID, buildNotification(NOTIFICATION_CHANNEL,
+                R.string.proximity_channel, R.string.proximity_notification_title,
+                R.string.proximity_notification_text), ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE);
         return true;
     }
 
+    public void stopProximityMode() {
+        if (mProximityWatcher == null || !mProximityWatcher.isWatching()) {
+            return;
+        }
+        mProximityWatcher.stop();
+        ServiceCompat.stopForeground(this, ServiceCompat.STOP_FOREGROUND_REMOVE);
+        if (!mBound) {
+            scheduleIdleStop();
+        }
+    }
 
+    public boolean isProximityMode() {
+        return mProximityWatcher != null && mProximityWatcher.isWatching();
+    }
 
     /**
-     * Disconnects an existing connection or cancel a pending connection. The disconnection result
-     * is reported asynchronously through the
-     * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     * callback.
+     * @return Current state of the connection to {@code address}, callable from any thread.
      */
-    public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
-        }
-        mBluetoothGatt.disconnect();
+    public ConnectionSnapshot getConnectionSnapshot(String address) {
+        GateConnection connection = mConnectionPool.get(address);
+        return connection == null
+                ? ConnectionSnapshot.disconnected(address, mScheduler.now())
+                : connection.snapshot();
     }
 
+
     /**
-     * After using a given BLE device, the app must call this method to ensure resources are
-     * released properly.
+     * @return Status last pushed by the gate at {@code address}, or null when none is known.
+     *         Kept in memory, reading it costs no round trip.
      */
-    public void close() {
-        if (mBluetoothGatt == null) {
-            return;
-        }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+    public GateStatus getGateStatus(String address) {
+        GateConnection connection = mConnectionPool.get(address);
+        return connection == null ? null : connection.getStatus();
+    }
+
+    /**
+     * @return Secure keys of all gates, read from disk in the background when the service starts.
+     *         Reading a key never blocks.
+     */
+    public GateKeyStore getKeyStore() {
+        return mKeyStore;
+    }
+
+    /**
+     * @return Record of every command and its outcome, or null when it could not be opened.
+     *         See {@link AuditJournal#history(long)} for paging back through it.
+     */
+    public AuditJournal getJournal() {
+        return mJournal;
+    }
+
+    /**
+     * @return Latencies and failures of all connections since the service started, see
+     *         {@link GattMetrics#toJson(StringBuilder)} and {@link GattMetrics#toCsv(StringBuilder)}.
+     */
+    public GattMetrics getMetrics() {
+        return mMetrics;
     }
 
 
-    public void readCharacteristic() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+    /**
+     * Connects to the strongest gate seen by a recent scan, without scanning again.
+     *
+     * @return Return false if no gate was seen recently, {@link #scan()} first.
+     */
+    public boolean connectNearest() {
+        ScanResultCache.Entry nearest = mScanResultCache.strongest(mScheduler.now());
+        return nearest != null && connect(nearest.getAddress());
+    }
+
+
+    /**
+     * Scans for nearby gates for a while. Found gates are reported through
+     * {@link GattEventBus.Listener#onGateFound(String, int)} and kept in the scan cache, a scan
+     * finding nothing ends with {@link GattEventBus.Listener#onNothingFound(String)}.
+     *
+     * @return Return false if the scan could not be started.
+     */
+    public boolean scan() {
+        if (mGateScanner == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+            return false;
         }
+        if (!canScan(this)) {
+            Log.w(TAG, "No permission to scan");
+            return false;
+        }
+        return mGateScanner.start();
+    }
 
-        BluetoothGattCharacteristic characteristic = findCharacteristic(GattAttributes.UUID_CHAR);
-
-        if (characteristic == null) {
-            Log.w(TAG, "Could not find characteristic");
-            return;
+    public void stopScan() {
+        if (mGateScanner != null) {
+            mGateScanner.stop();
         }
+    }
 
-        mBluetoothGatt.readCharacteristic(characteristic);
+    /**
+     * @return Gates seen by recent scans, strongest first.
+     */
+    public List<ScanResultCache.Entry> getScanResults() {
+        return mScanResultCache.entries(mScheduler.now());
     }
 
 
-    public void writeCharacteristic(String data) {
+    /**
+     * Keeps a connection to the gate waiting in the background, so it is ready by the time the
+     * user reaches the gate. Unlike {@link #connect(String)} it never gives up.
+     */
+    public boolean connectInBackground(final String address) {
 
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+        if (!isAdapterReady() || address == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
+            return false;
         }
 
-        BluetoothGattCharacteristic characteristic = findCharacteristic(GattAttributes.UUID_CHAR);
+        return runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!mConnectionPool.obtain(address).connectInBackground()) {
+                        Log.w(TAG, "Unable to wait for " + address);
+                    }
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "Unable to connect to " + address, e);
+                }
+            }
+        });
+    }
+
 
-        if (characteristic == null) {
-            Log.w(TAG, "Could not find characteristic");
+    /**
+     * Disconnects an existing connection or cancel a pending connection. The disconnection result
+     * is reported asynchronously through {@link GattEventBus}.
+     */
+    public void disconnect(final String address) {
+        if (!isAdapterReady()) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, true);
-        Log.i(TAG, "characteristic " + characteristic.toString());
-        Log.i(TAG, "data " + data);
-        characteristic.setValue(data);
-        mBluetoothGatt.writeCharacteristic(characteristic);
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                GateConnection connection = mConnectionPool.get(address);
+                if (connection != null) {
+                    connection.disconnect();
+                }
+            }
+        });
     }
 
+    /**
+     * Disconnects from every gate.
+     */
+    public void disconnect() {
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                for (GateConnection connection : mConnectionPool.connections()) {
+                    connection.disconnect();
+                }
+            }
+        });
+    }
 
-    public BluetoothGattCharacteristic findCharacteristic(final UUID uuid) {
+    /**
+     * After using a given BLE device, the app must call this method to ensure resources are
+     * released properly.
+     */
+    public void close() {
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                mConnectionPool.closeAll();
+            }
+        });
+    }
 
-        if (mBluetoothGatt == null) {
-            return null;
-        }
-        for (BluetoothGattService service : mBluetoothGatt.getServices()) {
-            BluetoothGattCharacteristic characteristic = service.getCharacteristic(uuid);
-            if (characteristic != null) {
-                return characteristic;
+
+    public void readCharacteristic(final String address) {
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                GateConnection connection = mConnectionPool.get(address);
+                if (!isAdapterReady() || connection == null || !connection.read()) {
+                    Log.w(TAG, "BluetoothAdapter not initialized");
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Queues an encoded command, see {@link GateCommandCodec}. Commands issued while connecting
+     * or discovering services are sent once the connection is ready.
+     */
+    public void writeCharacteristic(final String address, final byte[] data) {
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                GateConnection connection = mConnectionPool.get(address);
+                if (!isAdapterReady() || connection == null || !connection.write(data)) {
+                    Log.w(TAG, "BluetoothAdapter not initialized");
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Sends a command to the gate at {@code address}.
+     *
+     * @return Future completed with the answer of the gate on a background thread. It fails
+     *         with {@link java.util.concurrent.TimeoutException} when the gate does not answer
+     *         in time and with {@link java.io.IOException} when the command could not be delivered.
+     */
+    public CompletableFuture<GateResponse> send(final String address, final GateCommand command) {
+        final CompletableFuture<GateResponse> future = new CompletableFuture<>();
+        boolean handedOver = isAdapterReady() && runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                GateConnection connection = mConnectionPool.get(address);
+                if (connection == null) {
+                    future.completeExceptionally(new IllegalStateException("Not connected to " + address));
+                    return;
+                }
+                connection.send(command).whenComplete(new BiConsumer<GateResponse, Throwable>() {
+                    @Override
+                    public void accept(GateResponse response, Throwable error) {
+                        if (error == null) {
+                            future.complete(response);
+                        } else {
+                            future.completeExceptionally(error);
+                        }
+                    }
+                });
             }
+        });
+        if (!handedOver) {
+            future.completeExceptionally(new IllegalStateException("Not connected to " + address));
         }
-        return null;
+        return future;
     }
 
+
+    // Runs inline when already on the GATT thread, so callbacks of the connection keep their order.
+    private boolean runOnGattThread(Runnable task) {
+        if (Looper.myLooper() == mGattHandler.getLooper()) {
+            task.run();
+            return true;
+        }
+        return mGattHandler.post(task);
+    }
+
+
+    // A text of 0 leaves the notification with a title only.
+    private Notification buildNotification(String channelId, int channelName, int title, int text) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(channelId,
+                    getString(channelName), NotificationManager.IMPORTANCE_LOW);
+            getSystemService(NotificationManager.class).createNotificationChannel(channel);
+        }
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, DeviceControlActivity.class), PendingIntent.FLAG_IMMUTABLE);
+        return new NotificationCompat.Builder(this, channelId)
+                .setSmallIcon(android.R.drawable.stat_sys_data_bluetooth)
+                .setContentTitle(getString(title))
+                .setContentText(text == 0 ? null : getString(text))
+                .setContentIntent(contentIntent)
+                .setCategory(NotificationCompat.CATEGORY_SERVICE)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setOngoing(true)
+                .build();
+    }
 }
@@ -20,13 +20,11 @@ import android.Manifest;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothManager;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
-import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
@@ -47,20 +45,35 @@ import androidx.appcompat.widget.Toolbar;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.fragment.app.FragmentManager;
+import androidx.tracing.Trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
 
 public class DeviceControlActivity extends AppCompatActivity implements ChangeKeyFragment.NoticeDialogListener, ResetKeyFragment.NoticeDialogListener {
 
     private final static String TAG = GattAttributes.NAME;
-    public static final String SECURE_KEY_TAG = "secureKey";
+    // Async trace section from onCreate() until the gate is connected, measured by the macrobenchmarks.
+    public static final String TRACE_TIME_TO_CONNECTED = "timeToConnected";
+    private static final int TRACE_COOKIE = 1;
 
     private TextView mConnectionState;
+    private TextView mGateStatus;
     private BluetoothLeService mBluetoothLeService;
+    private GattEventBus mEventBus;
     private BluetoothAdapter mBluetoothAdapter;
     private boolean mConnected = false;
+    private boolean mSimulatedGate;
+    private boolean mConnectTraced;
+    private String mGateAddress = GattAttributes.MAC_ADDRESS;
     private static final int REQUEST_ENABLE_BT = 1;
-    private String mSecureKey = GattAttributes.SECURE_KEY;
+    private static final int REQUEST_PERMISSIONS = 2;
     private MenuItem mMenuItemResetKey;
+    private MenuItem mMenuItemProximity;
     private Button mBtnOpen, mBtnClose, mBtnConnect, mBtnDisconnect;
 
 
@@ -69,71 +82,148 @@ public class DeviceControlActivity extends AppCompatActivity implements ChangeKe
 
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder service) {
-            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+            BluetoothLeService.LocalBinder binder = (BluetoothLeService.LocalBinder) service;
+            mBluetoothLeService = binder.getService();
+            mEventBus = binder.getEventBus();
+            mEventBus.register(mGattListener, ContextCompat.getMainExecutor(DeviceControlActivity.this));
             if (!mBluetoothLeService.initialize()) {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
+            // The connection may already be up in proximity mode.
+            mConnected = mBluetoothLeService.getConnectionSnapshot(mGateAddress).isConnected();
+            if (mConnected) {
+                updateConnectionState(R.string.connected);
+                endConnectTrace();
+            }
+            updateGateStatus(mBluetoothLeService.getGateStatus(mGateAddress));
+            enableDisableButtons();
+            invalidateOptionsMenu();
             // Automatically connects to the device upon successful start-up initialization.
-            if (mBluetoothAdapter.isEnabled()){
-                mBluetoothLeService.connect(GattAttributes.MAC_ADDRESS);
+            if (isBluetoothEnabled()){
+                mBluetoothLeService.connect(mGateAddress);
             }
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
+            mEventBus.unregister(mGattListener);
+            mEventBus = null;
             mBluetoothLeService = null;
         }
     };
 
 
 
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
+    // Delivered on the main thread.
+    private final GattEventBus.Listener mGattListener = new GattEventBus.Listener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
+        public void onConnected(String address) {
+            if (!mGateAddress.equals(address)) return;
+            mConnected = true;
+            updateConnectionState(R.string.connected);
+            enableDisableButtons();
+            endConnectTrace();
+        }
 
-            final String action = intent.getAction();
-            if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
-                mConnected = true;
-                updateConnectionState(R.string.connected);
-                enableDisableButtons();
-            }
-            else if (BluetoothLeService.ACTION_GATT_CONNECTING.equals(action)) {
-                mConnected = false;
-                updateConnectionState(R.string.connecting);
-                animateConnecting();
-            }
-            else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
-                mConnected = false;
-                updateConnectionState(R.string.disconnected);
-                enableDisableButtons();
-            } else if (BluetoothLeService.ACTION_GATT_WRITE.equals(action)) {
-                // write
-            } else if (BluetoothLeService.ACTION_GATT_NOTHING_FOUND.equals(action)) {
-                updateConnectionState(R.string.disconnected);
-                enableDisableButtons();
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                String answer = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
-                resolveDataAvailable(answer);
-            }
+        @Override
+        public void onConnecting(String address) {
+            if (!mGateAddress.equals(address)) return;
+            mConnected = false;
+            updateConnectionState(R.string.connecting);
+            animateConnecting();
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+            if (!mGateAddress.equals(address)) return;
+            mConnected = false;
+            updateConnectionState(R.string.disconnected);
+            enableDisableButtons();
+        }
+
+        @Override
+        public void onNothingFound(String address) {
+            if (!mGateAddress.equals(address)) return;
+            updateConnectionState(R.string.disconnected);
+            enableDisableButtons();
+        }
+
+        @Override
+        public void onStatusChanged(String address, GateStatus status) {
+            if (!mGateAddress.equals(address)) return;
+            updateGateStatus(status);
+        }
+
+        @Override
+        public void onCommandAcknowledged(String address, GateCommand command) {
+            if (!mGateAddress.equals(address)) return;
+            // The gate started moving, the answer only follows after the relay pulse.
+            Toast.makeText(DeviceControlActivity.this, command.isOpen() ? R.string.flesh_opening
+                    : R.string.flesh_closing, Toast.LENGTH_SHORT).show();
         }
     };
 
 
-    private void resolveDataAvailable(String answer) {
+    // Answers arrive on a background thread.
+    private final BiConsumer<GateResponse, Throwable> mResponseHandler = new BiConsumer<GateResponse, Throwable>() {
+        @Override
+        public void accept(final GateResponse response, final Throwable error) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (response != null) {
+                        resolveResponse(response);
+                    } else {
+                        resolveError(error);
+                    }
+                }
+            });
+        }
+    };
 
-        if (answer.equals("ok:m:1")) {
-            Toast.makeText(DeviceControlActivity.this, R.string.flesh_opening, Toast.LENGTH_SHORT).show();
-        } else if (answer.equals("ok:m:0")) {
-            Toast.makeText(DeviceControlActivity.this, R.string.flesh_closing, Toast.LENGTH_SHORT).show();
-        } else if (answer.contains("ok:c")) {
-            String key = answer.split(":")[2];
-            changeSecureKey(key);
-            Toast.makeText(DeviceControlActivity.this, R.string.flesh_reset_key, Toast.LENGTH_SHORT).show();
-        } else if (answer.equals("err:secure")) {
-            Toast.makeText(DeviceControlActivity.this, R.string.flesh_err_secure, Toast.LENGTH_SHORT).show();
-        } else if (answer.equals("err:master")) {
-            Toast.makeText(DeviceControlActivity.this, R.string.flesh_err_master, Toast.LENGTH_SHORT).show();
+
+    private void resolveResponse(GateResponse response) {
+
+        Log.d(TAG, "Answer " + response + " in " + response.getLatencyMillis() + " ms");
+        switch (response.getAnswer()) {
+            case GateCommandCodec.ANSWER_OK_OPEN:
+                if (!response.wasAcknowledged()) {
+                    Toast.makeText(DeviceControlActivity.this, R.string.flesh_opening, Toast.LENGTH_SHORT).show();
+                }
+                break;
+            case GateCommandCodec.ANSWER_OK_CLOSE:
+                if (!response.wasAcknowledged()) {
+                    Toast.makeText(DeviceControlActivity.this, R.string.flesh_closing, Toast.LENGTH_SHORT).show();
+                }
+                break;
+            case GateCommandCodec.ANSWER_OK_CHANGE:
+                changeSecureKey(response.getValue());
+                Toast.makeText(DeviceControlActivity.this, R.string.flesh_reset_key, Toast.LENGTH_SHORT).show();
+                break;
+            case GateCommandCodec.ANSWER_ERR_SECURE:
+                Toast.makeText(DeviceControlActivity.this, R.string.flesh_err_secure, Toast.LENGTH_SHORT).show();
+                break;
+            case GateCommandCodec.ANSWER_ERR_MASTER:
+                Toast.makeText(DeviceControlActivity.this, R.string.flesh_err_master, Toast.LENGTH_SHORT).show();
+                break;
+            case GateCommandCodec.ANSWER_ERR_BUSY:
+                Toast.makeText(DeviceControlActivity.this, R.string.flesh_err_busy, Toast.LENGTH_SHORT).show();
+                break;
+            case GateCommandCodec.ANSWER_ERR_SESSION:
+                Toast.makeText(DeviceControlActivity.this, R.string.flesh_err_session, Toast.LENGTH_SHORT).show();
+                break;
+        }
+    }
+
+    private void resolveError(Throwable error) {
+
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        Log.w(TAG, "Command failed", error);
+        if (error instanceof TimeoutException) {
+            Toast.makeText(DeviceControlActivity.this, R.string.flesh_err_no_answer, Toast.LENGTH_SHORT).show();
         }
     }
 
@@ -157,18 +247,25 @@ public class DeviceControlActivity extends AppCompatActivity implements ChangeKe
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        Trace.beginAsyncSection(TRACE_TIME_TO_CONNECTED, TRACE_COOKIE);
         setContentView(R.layout.activity_device_control_with_toolbar);
+        mSimulatedGate = BuildConfig.SIMULATED_GATE
+                && getIntent().getBooleanExtra(BluetoothLeService.EXTRA_SIMULATED_GATE, false);
 
         // Use this check to determine whether BLE is supported on the device.  Then you can
         // selectively disable BLE-related features.
-        if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
+        if (!mSimulatedGate && !getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
             Toast.makeText(this, R.string.ble_not_supported, Toast.LENGTH_SHORT).show();
             finish();
         }
 
-        if (ContextCompat.checkSelfPermission(this, android.Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_DENIED) {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                ActivityCompat.requestPermissions(this, new String[]{android.Manifest.permission.BLUETOOTH_CONNECT}, 2);
+        if (!mSimulatedGate) {
+            String[] missing = missingPermissions();
+            if (missing.length > 0) {
+                ActivityCompat.requestPermissions(this, missing, REQUEST_PERMISSIONS);
+            }
+            // Nothing works without connecting, scanning and the notification only limit features.
+            if (!BluetoothLeService.canConnect(this)) {
                 return;
             }
         }
@@ -176,10 +273,10 @@ public class DeviceControlActivity extends AppCompatActivity implements ChangeKe
         // Initializes a Bluetooth adapter.  For API level 18 and above, get a reference to
         // BluetoothAdapter through BluetoothManager.
         final BluetoothManager bluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
-        mBluetoothAdapter = bluetoothManager.getAdapter();
+        mBluetoothAdapter = bluetoothManager == null ? null : bluetoothManager.getAdapter();
 
         // Checks if Bluetooth is supported on the device.
-        if (mBluetoothAdapter == null) {
+        if (mBluetoothAdapter == null && !mSimulatedGate) {
             Toast.makeText(this, R.string.error_bluetooth_not_supported, Toast.LENGTH_SHORT).show();
             finish();
             return;
@@ -190,13 +287,12 @@ public class DeviceControlActivity extends AppCompatActivity implements ChangeKe
 
         // Sets up UI references.
         mConnectionState = (TextView) findViewById(R.id.connection_state);
+        mGateStatus = (TextView) findViewById(R.id.gate_status);
 
-        // Load secure key from storage
-        SharedPreferences sharedPreferences = getPreferences(MODE_PRIVATE);
-        mSecureKey = sharedPreferences.getString(SECURE_KEY_TAG, GattAttributes.SECURE_KEY);
-
-        // Bind service
-        Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
+        // Start and bind service, started it keeps the connection while the activity is recreated
+        Intent gattServiceIntent = new Intent(this, BluetoothLeService.class)
+                .putExtra(BluetoothLeService.EXTRA_SIMULATED_GATE, mSimulatedGate);
+        startService(gattServiceIntent);
         bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
 
         // Init buttons
@@ -208,14 +304,14 @@ public class DeviceControlActivity extends AppCompatActivity implements ChangeKe
         mBtnConnect.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                mBluetoothLeService.connect(GattAttributes.MAC_ADDRESS);
+                mBluetoothLeService.connect(mGateAddress);
             }
         });
 
         mBtnDisconnect.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                mBluetoothLeService.disconnect();
+                mBluetoothLeService.disconnect(mGateAddress);
             }
         });
 
@@ -223,7 +319,7 @@ public class DeviceControlActivity extends AppCompatActivity implements ChangeKe
             @Override
             public void onClick(View v) {
                 if (mConnected){
-                    mBluetoothLeService.writeCharacteristic(concatStrings(GattAttributes.CMD_MOTION, mSecureKey, GattAttributes.VALUE_OPEN));
+                    mBluetoothLeService.send(mGateAddress, GateCommand.open(secureKey())).whenComplete(mResponseHandler);
                     Log.d(TAG, "Writing data: " + GattAttributes.VALUE_OPEN);
                 }
             }
@@ -233,17 +329,13 @@ public class DeviceControlActivity extends AppCompatActivity implements ChangeKe
             @Override
             public void onClick(View v) {
                 if (mConnected) {
-                    mBluetoothLeService.writeCharacteristic(concatStrings(GattAttributes.CMD_MOTION, mSecureKey, GattAttributes.VALUE_CLOSE));
+                    mBluetoothLeService.send(mGateAddress, GateCommand.close(secureKey())).whenComplete(mResponseHandler);
                     Log.d(TAG, "Writing data: " + GattAttributes.VALUE_CLOSE);
                 }
             }
         });
     }
 
-    private String concatStrings(String cmd, String key, String value) {
-        return cmd + ":" + key + ":" + value;
-    }
-
 
     @Override
     public void onChangeKey(String key) {
@@ -259,12 +351,15 @@ public class DeviceControlActivity extends AppCompatActivity implements ChangeKe
         Toast.makeText(this, R.string.flesh_change_key, Toast.LENGTH_SHORT).show();
     }
 
+    // Written to disk in the background, the next command already uses it.
     private void changeSecureKey(String key) {
-        SharedPreferences sharedPreferences = getPreferences(Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-        editor.putString(SECURE_KEY_TAG, key);
-        editor.apply();
-        mSecureKey = key;
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.getKeyStore().put(mGateAddress, key);
+        }
+    }
+
+    private String secureKey() {
+        return mBluetoothLeService.getKeyStore().get(mGateAddress);
     }
 
 
@@ -279,30 +374,68 @@ public class DeviceControlActivity extends AppCompatActivity implements ChangeKe
             return;
         }
 
-        mBluetoothLeService.writeCharacteristic(concatStrings(GattAttributes.CMD_CHANGE, masterKey, secureKey));
+        mBluetoothLeService.send(mGateAddress, GateCommand.changeKey(masterKey, secureKey)).whenComplete(mResponseHandler);
+    }
+
+    // Scanning needs the location before Android 12, the notification of the foreground service
+    // its own permission since Android 13.
+    private String[] missingPermissions() {
+        List<String> wanted = new ArrayList<>();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            wanted.add(Manifest.permission.BLUETOOTH_CONNECT);
+            wanted.add(Manifest.permission.BLUETOOTH_SCAN);
+        } else {
+            wanted.add(Manifest.permission.ACCESS_FINE_LOCATION);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            wanted.add(Manifest.permission.POST_NOTIFICATIONS);
+        }
+        List<String> missing = new ArrayList<>();
+        for (String permission : wanted) {
+            if (ContextCompat.checkSelfPermission(this, permission) != PackageManager.PERMISSION_GRANTED) {
+                missing.add(permission);
+            }
+        }
+        return missing.toArray(new String[0]);
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        // The widget sends commands itself once Bluetooth may be used.
+        GateWidgetProvider.updateAll(this);
     }
 
     @Override
     protected void onResume() {
         super.onResume();
 
-        registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter(), Context.RECEIVER_EXPORTED);
-
         // Ensures Bluetooth is enabled on the device.  If Bluetooth is not currently enabled,
         // fire an intent to display a dialog asking the user to grant permission to enable it.
-        if (this.mBluetoothAdapter == null || !this.mBluetoothAdapter.isEnabled()) {
+        if (!isBluetoothEnabled()) {
             Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
             startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
         }
 
-        if (mBluetoothLeService != null && mBluetoothAdapter.isEnabled()) {
-            mBluetoothLeService.connect(GattAttributes.MAC_ADDRESS);
+        if (mBluetoothLeService != null && isBluetoothEnabled()) {
+            mBluetoothLeService.connect(mGateAddress);
         }
 
         enableDisableButtons();
     }
 
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+
+        // Keeps waiting for the gate while the app is in the background.
+        if (mBluetoothLeService != null && !mConnected && isBluetoothEnabled()) {
+            mBluetoothLeService.connectInBackground(mGateAddress);
+        }
+    }
+
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         // User chose not to enable Bluetooth.
@@ -313,21 +446,31 @@ public class DeviceControlActivity extends AppCompatActivity implements ChangeKe
         super.onActivityResult(requestCode, resultCode, data);
     }
 
-    @Override
-    protected void onPause() {
-        super.onPause();
-        unregisterReceiver(mGattUpdateReceiver);
-    }
-
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mEventBus != null) {
+            mEventBus.unregister(mGattListener);
+            mEventBus = null;
+        }
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
     }
 
 
 
+    private boolean isBluetoothEnabled() {
+        return mSimulatedGate || (mBluetoothAdapter != null && mBluetoothAdapter.isEnabled());
+    }
+
+    private void endConnectTrace() {
+        if (!mConnectTraced) {
+            mConnectTraced = true;
+            Trace.endAsyncSection(TRACE_TIME_TO_CONNECTED, TRACE_COOKIE);
+        }
+    }
+
+
     private void updateConnectionState(final int resourceId) {
         runOnUiThread(new Runnable() {
             @Override
@@ -339,6 +482,23 @@ public class DeviceControlActivity extends AppCompatActivity implements ChangeKe
     }
 
 
+    // Rendered from the status the gate pushed last, never asked for.
+    private void updateGateStatus(GateStatus status) {
+        if (status == null) {
+            mGateStatus.setText(R.string.gate_unknown);
+        } else if (status.getRelay() == GateStatus.RELAY_OPEN) {
+            mGateStatus.setText(R.string.gate_opening);
+        } else if (status.getRelay() == GateStatus.RELAY_CLOSE) {
+            mGateStatus.setText(R.string.gate_closing);
+        } else if (status.getLast() == GateStatus.LAST_OPEN) {
+            mGateStatus.setText(R.string.gate_opened);
+        } else if (status.getLast() == GateStatus.LAST_CLOSE) {
+            mGateStatus.setText(R.string.gate_closed);
+        } else {
+            mGateStatus.setText(R.string.gate_idle);
+        }
+    }
+
     private void animateConnecting() {
         runOnUiThread(new Runnable() {
             @Override
@@ -352,24 +512,16 @@ public class DeviceControlActivity extends AppCompatActivity implements ChangeKe
     }
 
 
-    private static IntentFilter makeGattUpdateIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTING);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_WRITE);
-        intentFilter.addAction(BluetoothLeService.ACTION_GATT_NOTHING_FOUND);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        return intentFilter;
-    }
-
-
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
 
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.gatt_services, menu);
         mMenuItemResetKey = menu.findItem(R.id.menu_reset_key);
+        mMenuItemProximity = menu.findItem(R.id.menu_proximity);
+        mMenuItemProximity.setChecked(mBluetoothLeService != null && mBluetoothLeService.isProximityMode());
+        boolean debuggable = (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        menu.findItem(R.id.menu_diagnostics).setVisible(debuggable);
         if (mConnected) {
             mMenuItemResetKey.setEnabled(true);
         } else {
@@ -391,8 +543,38 @@ public class DeviceControlActivity extends AppCompatActivity implements ChangeKe
         } else if (itemId == R.id.menu_reset_key) {
             ResetKeyFragment resetKeyFragment = new ResetKeyFragment();
             resetKeyFragment.show(fragmentManager, "reset");
+        } else if (itemId == R.id.menu_proximity && mBluetoothLeService != null) {
+            if (mBluetoothLeService.isProximityMode()) {
+                mBluetoothLeService.stopProximityMode();
+            } else if (!BluetoothLeService.canScan(this)) {
+                // Otherwise the watching scan would never see the gate.
+                Toast.makeText(this, R.string.proximity_err_permission, Toast.LENGTH_LONG).show();
+                ActivityCompat.requestPermissions(this, missingPermissions(), REQUEST_PERMISSIONS);
+            } else if (!mBluetoothLeService.startProximityMode(mGateAddress)) {
+                Toast.makeText(this, R.string.proximity_err_scan, Toast.LENGTH_SHORT).show();
+            }
+            item.setChecked(mBluetoothLeService.isProximityMode());
+        } else if ((itemId == R.id.menu_export_json || itemId == R.id.menu_export_csv) && mBluetoothLeService != null) {
+            exportMetrics(itemId == R.id.menu_export_json);
         }
 
         return super.onOptionsItemSelected(item);
     }
+
+
+    // Shares the latency metrics of the service, e.g. to mail them from the field.
+    private void exportMetrics(boolean json) {
+        StringBuilder out = new StringBuilder();
+        if (json) {
+            mBluetoothLeService.getMetrics().toJson(out);
+        } else {
+            mBluetoothLeService.getMetrics().toCsv(out);
+        }
+        String subject = "Gate BT " + Build.MANUFACTURER + " " + Build.MODEL + " " + mGateAddress;
+        Intent intent = new Intent(Intent.ACTION_SEND)
+                .setType(json ? "application/json" : "text/csv")
+                .putExtra(Intent.EXTRA_SUBJECT, subject)
+                .putExtra(Intent.EXTRA_TEXT, out.toString());
+        startActivity(Intent.createChooser(intent, getString(R.string.menu_diagnostics)));
+    }
 }
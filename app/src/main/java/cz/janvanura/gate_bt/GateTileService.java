@@ -0,0 +1,67 @@
+package cz.janvanura.gate_bt;
+
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.graphics.drawable.Icon;
+import android.os.Build;
+import android.os.SystemClock;
+import android.service.quicksettings.Tile;
+import android.service.quicksettings.TileService;
+
+import androidx.core.content.ContextCompat;
+
+
+/**
+ * Quick Settings tile opening the default gate, through {@link BluetoothLeService} without
+ * showing the activity. A locked phone has to be unlocked first, the activity opens instead
+ * while the app may not use Bluetooth.
+ */
+public class GateTileService extends TileService {
+
+    @Override
+    public void onStartListening() {
+        Tile tile = getQsTile();
+        if (tile == null) {
+            return;
+        }
+        tile.setIcon(Icon.createWithResource(this, android.R.drawable.stat_sys_data_bluetooth));
+        tile.setLabel(getString(R.string.btn_open));
+        tile.setState(Tile.STATE_INACTIVE);
+        tile.updateTile();
+    }
+
+    @Override
+    public void onClick() {
+        final long tappedAt = SystemClock.uptimeMillis();
+        if (!BluetoothLeService.canConnect(this)) {
+            openActivity();
+            return;
+        }
+        if (isLocked()) {
+            unlockAndRun(new Runnable() {
+                @Override
+                public void run() {
+                    open(tappedAt);
+                }
+            });
+        } else {
+            open(tappedAt);
+        }
+    }
+
+
+    private void open(long tappedAt) {
+        Intent intent = BluetoothLeService.quickCommandIntent(this, GattAttributes.MAC_ADDRESS, true)
+                .putExtra(BluetoothLeService.EXTRA_TAPPED_AT, tappedAt);
+        ContextCompat.startForegroundService(this, intent);
+    }
+
+    private void openActivity() {
+        Intent intent = new Intent(this, DeviceControlActivity.class).addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+            startActivityAndCollapse(PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_IMMUTABLE));
+        } else {
+            startActivityAndCollapse(intent);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package cz.janvanura.gate_bt;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.widget.RemoteViews;
+
+
+/**
+ * Home screen widget opening and closing the default gate through {@link BluetoothLeService},
+ * without showing the activity. The buttons open the activity instead while the app may not
+ * use Bluetooth, {@link #updateAll(Context)} switches them once it may.
+ */
+public class GateWidgetProvider extends AppWidgetProvider {
+
+    private static final int REQUEST_OPEN = 0;
+    private static final int REQUEST_CLOSE = 1;
+
+
+    @Override
+    public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+        RemoteViews views = buildViews(context);
+        for (int appWidgetId : appWidgetIds) {
+            appWidgetManager.updateAppWidget(appWidgetId, views);
+        }
+    }
+
+    /**
+     * Rebuilds every widget, e.g. after the user allowed Bluetooth.
+     */
+    public static void updateAll(Context context) {
+        AppWidgetManager manager = AppWidgetManager.getInstance(context);
+        int[] ids = manager.getAppWidgetIds(new ComponentName(context, GateWidgetProvider.class));
+        if (ids.length > 0) {
+            manager.updateAppWidget(ids, buildViews(context));
+        }
+    }
+
+
+    private static RemoteViews buildViews(Context context) {
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_gate);
+        views.setOnClickPendingIntent(R.id.widget_open, commandIntent(context, REQUEST_OPEN, true));
+        views.setOnClickPendingIntent(R.id.widget_close, commandIntent(context, REQUEST_CLOSE, false));
+        return views;
+    }
+
+    // The tap time is taken when the service receives the command, a pending intent is built ahead.
+    private static PendingIntent commandIntent(Context context, int requestCode, boolean open) {
+        int flags = PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT;
+        if (!BluetoothLeService.canConnect(context)) {
+            return PendingIntent.getActivity(context, requestCode, new Intent(context, DeviceControlActivity.class),
+                    flags);
+        }
+        Intent intent = BluetoothLeService.quickCommandIntent(context, GattAttributes.MAC_ADDRESS, open);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            return PendingIntent.getForegroundService(context, requestCode, intent, flags);
+        }
+        return PendingIntent.getService(context, requestCode, intent, flags);
+    }
+}
@@ -0,0 +1,34 @@
+package cz.janvanura.gate_bt;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+
+/**
+ * {@link Scheduler} running tasks on the looper of a {@link Handler}.
+ */
+public class HandlerScheduler implements Scheduler {
+
+    private final Handler mHandler;
+
+
+    public HandlerScheduler(Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public long now() {
+        return SystemClock.uptimeMillis();
+    }
+
+    @Override
+    public Cancellable schedule(final Runnable task, long delayMillis) {
+        mHandler.postDelayed(task, delayMillis);
+        return new Cancellable() {
+            @Override
+            public void cancel() {
+                mHandler.removeCallbacks(task);
+            }
+        };
+    }
+}
@@ -1,16 +1,50 @@
 #include <SoftwareSerial.h>
 #include <EEPROM.h>
+// Crypto library by Rhys Weatherley
+#include <SHA256.h>
 
 /*
  * Gate BT
  * -------
  * 
  * App for manipulating electric gate via ble (Bluetooth Low Energy)
+ *
+ * Wiring:
+ *  pin 4, 5                         -> open and close relay, active low
+ *  pin 8, 9                         -> HM-10 TXD and RXD
+ *  pin 7                            -> HM-10 STATE, high while a central is connected. The
+ *                                      session of protocol v3 ends when it goes low. Left
+ *                                      unconnected the pull-up keeps it high, sessions then
+ *                                      only end on the next h, a wrong command or a restart.
+ *  A0                               -> left floating, its noise seeds the gate nonces
  * 
  * Commands:
  *  m:secure_key:1                   -> open gate
  *  m:secure_key:0                   -> close gate
  *  c:master_key:new_secure_key      -> change secure key
+ *  v                                -> protocol version
+ *  s                                -> push the status now
+ *  h:client_nonce                   -> start a session
+ *  t:counter_tag:1                  -> open gate within a session
+ *  t:counter_tag:0                  -> close gate within a session
+ *
+ * Protocol v2 sends every command as a frame: 0x02 command 0x03. The frame is handled as soon
+ * as 0x03 arrives and answered by a frame. Bare commands of protocol v1 are still handled, once
+ * no byte came for LEGACY_TIMEOUT ms, and answered bare.
+ *
+ * The relays are switched by millis(), commands are read while the gate moves. A motion
+ * command moving the same way as the last pulse in line joins it, otherwise it gets its own
+ * pulse, at most MAX_PULSES wait. A framed motion command is acknowledged at once, every
+ * motion command is answered when its pulse is done.
+ *
+ * Protocol v3 adds sessions so the secure key is not sent with every command. The app sends
+ * NONCE_SIZE random bytes in hex, the gate answers its own, hashed from ADC noise of the boot,
+ * a boot count in EEPROM and the handshakes since. Both take the first KEY_SIZE
+ * bytes of HMAC-SHA256(secure_key, "gate-bt" client_nonce gate_nonce) as the session key.
+ * A motion command then carries a counter, COUNTER_SIZE bytes growing with every command,
+ * and the first TAG_SIZE bytes of HMAC-SHA256(session_key, counter value), both in hex. Each
+ * counter is taken once, so a recorded command cannot be sent again. A wrong tag or a used
+ * counter ends the session, as do the next h, the end of the link and a restart.
  *  
  * Answers:
  *  ok:m:1                           -> open gate ok
@@ -20,6 +54,16 @@
  *  err:secure                       -> wrong secure key
  *  err:master                       -> wrong master key
  *  err:length                       -> length of secure key is equal to 0 or greater than 10
+ *  ok:v:3                           -> protocol version
+ *  ack:m:1                          -> open gate accepted, ok:m:1 follows (framed only)
+ *  ack:m:0                          -> close gate accepted, ok:m:0 follows (framed only)
+ *  err:busy                         -> too many pulses waiting
+ *  ok:h:gate_nonce                  -> session started
+ *  err:session                      -> no session, wrong tag or used counter, start a new one
+ *
+ * Status, pushed as a frame whenever a relay is switched or a pulse is queued, and for s:
+ *  s:relay:queued:last:uptime       -> relay o/c/i(dle), pulses waiting, last pulse 1/0/-,
+ *                                      seconds since start, e.g. s:o:1:0:3605
  */
 
 // Security
@@ -32,11 +76,76 @@ const String CMD_MOTION = "m";
 const String CMD_CHANGE = "c";
 const String VALUE_OPEN = "1";
 const String VALUE_CLOSE = "0";
+const String CMD_VERSION = "v";
+const String CMD_STATUS = "s";
+const String CMD_HELLO = "h";
+const String CMD_TOKEN = "t";
+const String PROTOCOL_VERSION = "3";
+
+// Protocol v3 sessions, the framed ok:h:gate_nonce fits one notification
+const byte NONCE_SIZE = 6;
+const byte KEY_SIZE = 16;
+const byte COUNTER_SIZE = 2;
+const byte TAG_SIZE = 4;
+const char SESSION_LABEL[] = "gate-bt";
+// Boots so far, after the secure key in EEPROM, no gate nonce input is used twice
+const int BOOT_COUNT_ADDRESS = MAX_SECURE_KEY_SIZE;
+// ADC readings whose noise seeds the gate nonces
+const int ENTROPY_SAMPLES = 512;
+
+// Protocol v2 framing
+const byte FRAME_START = 0x02;
+const byte FRAME_END = 0x03;
+// Bare text of protocol v1 is complete once the line was quiet this long
+const unsigned long LEGACY_TIMEOUT = 100;
+// Longer input is dropped
+const int MAX_INPUT_SIZE = 32;
+
+// Parser states
+const byte PARSER_WAIT = 0;
+const byte PARSER_TEXT = 1;
+const byte PARSER_FRAME = 2;
+const byte PARSER_SKIP = 3;
+
+// Relay timing
+const unsigned long RELAY_PULSE = 2000;
+// Pause between two pulses, the relay contacts settle
+const unsigned long PULSE_GAP = 250;
+const byte MAX_PULSES = 4;
+
+char input[MAX_INPUT_SIZE + 1];
+byte inputLength = 0;
+byte parserState = PARSER_WAIT;
+unsigned long lastByteTime = 0;
+
+// Ring of pulses in line, the first one runs while relayOn
+boolean pulseOpen[MAX_PULSES];
+// Commands waiting for each pulse, answered framed or bare
+byte pulseFramed[MAX_PULSES];
+byte pulseBare[MAX_PULSES];
+byte pulseHead = 0;
+byte pulseCount = 0;
+boolean relayOn = false;
+// Start of the running pulse or end of the last one
+unsigned long relayChangedAt = 0;
+// Direction of the last pulse for the status, '-' before the first one
+char lastPulse = '-';
+
+byte sessionKey[KEY_SIZE];
+unsigned int lastCounter = 0;
+boolean sessionOpen = false;
+// Hash of ADC noise taken at boot, the boot count and the handshakes since feed each gate nonce
+byte entropy[32];
+unsigned long bootCount = 0;
+unsigned long handshakes = 0;
 
 // GATE_OPEN & GATE_CLOSE pin 4 and 5
 const int GATE_OPEN = 4;
 const int GATE_CLOSE = 5;
 
+// STATE of the HM-10, high while a central is connected, see Wiring
+const int BT_STATE = 7;
+
 // Create serial port pin 2 and 3 under name Bluetooth
 SoftwareSerial Bluetooth =  SoftwareSerial(8, 9);
 
@@ -45,6 +154,8 @@ void setup() {
   // Set pins to output
   pinMode(GATE_OPEN, OUTPUT);
   pinMode(GATE_CLOSE, OUTPUT);
+  // The module drives STATE, the pull-up only keeps an unconnected pin from floating
+  pinMode(BT_STATE, INPUT_PULLUP);
 
   // Turn off relay (reverse logic)
   digitalWrite(GATE_OPEN, HIGH);  
@@ -60,52 +171,282 @@ void setup() {
 
   // Load/store SECURE_KEY from EEPROM
   loadSecureKey();
+
+  collectEntropy();
 }
  
 void loop() {
-  if (Bluetooth.available()) {
-    // Read input string sent by connected device
-    String input = Bluetooth.readString();
-
-    // Split input into 3 parts
-    String cmd = split(input, ':', 0);
-    String key = split(input, ':', 1);
-    String value = split(input, ':', 2);
-
-    // If cmd part is 'c' -> change secure key
-    if(cmd == CMD_CHANGE) {
-      if(key == MASTER_KEY) {
-        
-        boolean result = changeSecureKey(value);
-        if(result){
-          Bluetooth.print("ok:c:" + value);
-        } else {
-          Bluetooth.print("err:length");
-        }
-      } else {
-        Bluetooth.print("err:master");
-      }
+  // A session belongs to one link, the next central has to shake hands again
+  if (sessionOpen && digitalRead(BT_STATE) == LOW) {
+    sessionOpen = false;
+  }
+
+  // Only what already arrived is read, a command never waits for the line to go quiet
+  while (Bluetooth.available()) {
+    parse(Bluetooth.read());
+  }
+
+  // Bare text has no end marker, a quiet line ends it
+  if ((parserState == PARSER_TEXT || parserState == PARSER_SKIP) && millis() - lastByteTime >= LEGACY_TIMEOUT) {
+    if (parserState == PARSER_TEXT) {
+      input[inputLength] = '\0';
+      handleCommand(input, false);
     }
-    
-    // If cmd part is 'm' -> open/close gate
-    if(cmd == CMD_MOTION) {
-      if (key != SECURE_KEY) {
-        Bluetooth.print("err:secure");
+    resetParser();
+  }
 
-        return;
-      }
+  updateRelay();
+}
+
+void parse(int b) {
+  lastByteTime = millis();
+
+  // A new frame drops whatever was not finished
+  if (b == FRAME_START) {
+    parserState = PARSER_FRAME;
+    inputLength = 0;
+    return;
+  }
+
+  if (parserState == PARSER_FRAME && b == FRAME_END) {
+    input[inputLength] = '\0';
+    handleCommand(input, true);
+    resetParser();
+    return;
+  }
+
+  if (parserState == PARSER_SKIP) {
+    return;
+  }
+
+  if (parserState == PARSER_WAIT) {
+    parserState = PARSER_TEXT;
+  }
+
+  if (inputLength >= MAX_INPUT_SIZE) {
+    parserState = PARSER_SKIP;
+    inputLength = 0;
+    return;
+  }
+  input[inputLength++] = b;
+}
+
+void resetParser() {
+  parserState = PARSER_WAIT;
+  inputLength = 0;
+}
+
+void handleCommand(char *command, boolean framed) {
+  // Split command into 3 parts in place
+  char *cmd = command;
+  char *key = nextField(cmd);
+  char *value = nextField(key);
+
+  // If cmd part is 'c' -> change secure key
+  if (CMD_CHANGE == cmd) {
+    if (MASTER_KEY == key) {
       
-      if (value == VALUE_OPEN) {
-        openGate(2000);
-        Bluetooth.print("ok:m:" + value);
-      } else if (value == VALUE_CLOSE) {  
-        closeGate(2000);
-        Bluetooth.print("ok:m:" + value);
+      boolean result = changeSecureKey(value);
+      if (result) {
+        answer("ok:c:", value, framed);
       } else {
-        Bluetooth.print("err:m:" + value);
+        answer("err:length", "", framed);
+      }
+    } else {
+      answer("err:master", "", framed);
+    }
+  }
+
+  // If cmd part is 'h' -> start a session
+  if (CMD_HELLO == cmd) {
+    startSession(key, framed);
+  }
+
+  // If cmd part is 'm' or 't' -> open/close gate
+  boolean session = CMD_TOKEN == cmd;
+  if (CMD_MOTION == cmd || session) {
+    if (session && !checkMotion(key, VALUE_OPEN == value)) {
+      sessionOpen = false;
+      answer("err:session", "", framed);
+
+      return;
+    }
+
+    if (!session && SECURE_KEY != key) {
+      answer("err:secure", "", framed);
+
+      return;
+    }
+
+    if (VALUE_OPEN == value || VALUE_CLOSE == value) {
+      if (!requestPulse(VALUE_OPEN == value, framed)) {
+        answer("err:busy", "", framed);
+      } else if (framed) {
+        answer("ack:m:", value, framed);
       }
+    } else {
+      answer("err:m:", value, framed);
+    }
+  }
+
+  // If cmd part is 'v' -> protocol version
+  if (CMD_VERSION == cmd) {
+    answer("ok:v:", PROTOCOL_VERSION.c_str(), framed);
+  }
+
+  // If cmd part is 's' -> status
+  if (CMD_STATUS == cmd) {
+    pushStatus();
+  }
+}
+
+// Ends the field at the next ':' and returns the following one, the last field takes the rest
+char *nextField(char *field) {
+  char *separator = strchr(field, ':');
+  if (separator == NULL) {
+    return field + strlen(field);
+  }
+  *separator = '\0';
+  return separator + 1;
+}
+
+// Printed at once, so the module sends it in as few notifications as possible
+void answer(const char *text, const char *value, boolean framed) {
+  char out[MAX_INPUT_SIZE + 8];
+  byte length = 0;
+  if (framed) {
+    out[length++] = FRAME_START;
+  }
+  for (const char *c = text; *c != '\0' && length < sizeof(out) - 2; c++) {
+    out[length++] = *c;
+  }
+  for (const char *c = value; *c != '\0' && length < sizeof(out) - 2; c++) {
+    out[length++] = *c;
+  }
+  if (framed) {
+    out[length++] = FRAME_END;
+  }
+  Bluetooth.write((const uint8_t *) out, length);
+}
+
+// A new handshake ends the old session whether it succeeds or not
+void startSession(const char *clientHex, boolean framed) {
+  sessionOpen = false;
+  byte clientNonce[NONCE_SIZE];
+  if (!parseHex(clientHex, clientNonce, NONCE_SIZE)) {
+    answer("err:session", "", framed);
+    return;
+  }
+
+  byte gateNonce[NONCE_SIZE];
+  newGateNonce(clientNonce, gateNonce);
+
+  SHA256 sha;
+  sha.resetHMAC(SECURE_KEY.c_str(), SECURE_KEY.length());
+  sha.update(SESSION_LABEL, strlen(SESSION_LABEL));
+  sha.update(clientNonce, NONCE_SIZE);
+  sha.update(gateNonce, NONCE_SIZE);
+  sha.finalizeHMAC(SECURE_KEY.c_str(), SECURE_KEY.length(), sessionKey, KEY_SIZE);
+  lastCounter = 0;
+  sessionOpen = true;
+
+  char gateHex[2 * NONCE_SIZE + 1];
+  toHex(gateNonce, NONCE_SIZE, gateHex);
+  answer("ok:h:", gateHex, framed);
+}
+
+// A recorded handshake must never meet the same gate nonce again. The boot count and the
+// handshakes since make every input unique even if the ADC noise repeats, the noise keeps the
+// nonce from being guessed ahead.
+void newGateNonce(const byte *clientNonce, byte *gateNonce) {
+  handshakes++;
+  unsigned long now = micros();
+  SHA256 sha;
+  sha.update(entropy, sizeof(entropy));
+  sha.update(&bootCount, sizeof(bootCount));
+  sha.update(&handshakes, sizeof(handshakes));
+  sha.update(&now, sizeof(now));
+  sha.update(clientNonce, NONCE_SIZE);
+  sha.finalize(gateNonce, NONCE_SIZE);
+}
+
+// Hashes the low bits of many readings of a floating pin with their timing, and counts the
+// boot in EEPROM
+void collectEntropy() {
+  EEPROM.get(BOOT_COUNT_ADDRESS, bootCount);
+  bootCount++;
+  EEPROM.put(BOOT_COUNT_ADDRESS, bootCount);
+
+  SHA256 sha;
+  for (int i = 0; i < ENTROPY_SAMPLES; i++) {
+    int sample = analogRead(A0);
+    unsigned long now = micros();
+    sha.update(&sample, sizeof(sample));
+    sha.update(&now, sizeof(now));
+  }
+  sha.finalize(entropy, sizeof(entropy));
+}
+
+// Takes each counter once and compares every byte of the tag, so the time taken does not
+// tell where a wrong one differs
+boolean checkMotion(const char *hex, boolean open) {
+  byte field[COUNTER_SIZE + TAG_SIZE];
+  if (!sessionOpen || !parseHex(hex, field, COUNTER_SIZE + TAG_SIZE)) {
+    return false;
+  }
+  unsigned int counter = (unsigned int) field[0] << 8 | field[1];
+  if (counter <= lastCounter) {
+    return false;
+  }
+
+  byte value = open ? '1' : '0';
+  byte tag[TAG_SIZE];
+  SHA256 sha;
+  sha.resetHMAC(sessionKey, KEY_SIZE);
+  sha.update(field, COUNTER_SIZE);
+  sha.update(&value, 1);
+  sha.finalizeHMAC(sessionKey, KEY_SIZE, tag, TAG_SIZE);
+
+  byte diff = 0;
+  for (byte i = 0; i < TAG_SIZE; i++) {
+    diff |= tag[i] ^ field[COUNTER_SIZE + i];
+  }
+  if (diff != 0) {
+    return false;
+  }
+  lastCounter = counter;
+  return true;
+}
+
+// Exactly size bytes in hex, either case
+boolean parseHex(const char *hex, byte *out, byte size) {
+  if (strlen(hex) != 2 * size) {
+    return false;
+  }
+  for (byte i = 0; i < 2 * size; i++) {
+    char c = hex[i];
+    byte digit;
+    if (c >= '0' && c <= '9') {
+      digit = c - '0';
+    } else if (c >= 'a' && c <= 'f') {
+      digit = c - 'a' + 10;
+    } else if (c >= 'A' && c <= 'F') {
+      digit = c - 'A' + 10;
+    } else {
+      return false;
     }
+    out[i / 2] = (i % 2 == 0) ? digit << 4 : out[i / 2] | digit;
+  }
+  return true;
+}
+
+void toHex(const byte *bytes, byte size, char *out) {
+  const char digits[] = "0123456789abcdef";
+  for (byte i = 0; i < size; i++) {
+    out[2 * i] = digits[bytes[i] >> 4];
+    out[2 * i + 1] = digits[bytes[i] & 0x0F];
   }
+  out[2 * size] = '\0';
 }
 
 void loadSecureKey() {
@@ -126,37 +467,93 @@ boolean changeSecureKey(String key) {
   }
 
   writeStringToEEPROM(0, key);
-  
+  // Used at once, the app shakes hands with the new key as soon as it sees ok:c
+  SECURE_KEY = key;
+
+  return true;
+}
+
+// Joins the last pulse in line when it moves the same way, returns false when the line is full
+boolean requestPulse(boolean open, boolean framed) {
+  byte slot;
+  if (pulseCount > 0 && pulseOpen[(pulseHead + pulseCount - 1) % MAX_PULSES] == open) {
+    slot = (pulseHead + pulseCount - 1) % MAX_PULSES;
+  } else if (pulseCount < MAX_PULSES) {
+    slot = (pulseHead + pulseCount) % MAX_PULSES;
+    pulseOpen[slot] = open;
+    pulseFramed[slot] = 0;
+    pulseBare[slot] = 0;
+    pulseCount++;
+    if (pulseCount > 1 || !updateRelay()) {
+      pushStatus();
+    }
+  } else {
+    return false;
+  }
+
+  if (framed && pulseFramed[slot] < 255) {
+    pulseFramed[slot]++;
+  } else if (!framed && pulseBare[slot] < 255) {
+    pulseBare[slot]++;
+  }
+
   return true;
 }
 
-void openGate(int delayTime) {
-  digitalWrite(GATE_CLOSE, HIGH);
-  digitalWrite(GATE_OPEN, LOW);
-  delay(delayTime);
-  digitalWrite(GATE_OPEN, HIGH);
+// Ends the running pulse after RELAY_PULSE, starts the next one after PULSE_GAP, returns true
+// when a relay was switched
+boolean updateRelay() {
+  unsigned long now = millis();
+  if (relayOn) {
+    if (now - relayChangedAt >= RELAY_PULSE) {
+      switchRelay(pulseOpen[pulseHead], false);
+      relayOn = false;
+      relayChangedAt = now;
+      byte done = pulseHead;
+      pulseHead = (pulseHead + 1) % MAX_PULSES;
+      pulseCount--;
+      pushStatus();
+      answerPulse(done);
+      return true;
+    }
+  } else if (pulseCount > 0 && now - relayChangedAt >= PULSE_GAP) {
+    switchRelay(pulseOpen[pulseHead], true);
+    relayOn = true;
+    relayChangedAt = now;
+    lastPulse = pulseOpen[pulseHead] ? '1' : '0';
+    pushStatus();
+    return true;
+  }
+  return false;
 }
 
-void closeGate(int delayTime) {
-  digitalWrite(GATE_OPEN, HIGH);
-  digitalWrite(GATE_CLOSE, LOW);
-  delay(delayTime);
-  digitalWrite(GATE_CLOSE, HIGH);
+// Reverse logic, the other relay is always off first
+void switchRelay(boolean open, boolean on) {
+  digitalWrite(open ? GATE_CLOSE : GATE_OPEN, HIGH);
+  digitalWrite(open ? GATE_OPEN : GATE_CLOSE, on ? LOW : HIGH);
 }
 
-String split(String data, char separator, int index){
-    int found = 0;
-    int strIndex[] = { 0, -1 };
-    int maxIndex = data.length() - 1;
+// s:relay:queued:last:uptime, always framed
+void pushStatus() {
+  char status[24] = "s:i:0:-:";
+  if (relayOn) {
+    status[2] = pulseOpen[pulseHead] ? 'o' : 'c';
+  }
+  status[4] = '0' + (relayOn ? pulseCount - 1 : pulseCount);
+  status[6] = lastPulse;
+  ultoa(millis() / 1000, status + 8, 10);
+  answer(status, "", true);
+}
 
-    for (int i = 0; i <= maxIndex && found <= index; i++) {
-        if (data.charAt(i) == separator || i == maxIndex) {
-            found++;
-            strIndex[0] = strIndex[1] + 1;
-            strIndex[1] = (i == maxIndex) ? i+1 : i;
-        }
-    }
-    return found > index ? data.substring(strIndex[0], strIndex[1]) : "";
+// Everyone who asked for the pulse learns it is done
+void answerPulse(byte slot) {
+  const char *value = pulseOpen[slot] ? VALUE_OPEN.c_str() : VALUE_CLOSE.c_str();
+  for (byte i = 0; i < pulseFramed[slot]; i++) {
+    answer("ok:m:", value, true);
+  }
+  for (byte i = 0; i < pulseBare[slot]; i++) {
+    answer("ok:m:", value, false);
+  }
 }
 
 void writeStringToEEPROM(int addrOffset, const String &strToWrite){
@@ -0,0 +1,87 @@
+import groovy.json.JsonSlurper
+
+// JMH benchmarks of the protocol and client hot paths.
+//
+//   ./gradlew :benchmark:jmh                  run, results in build/results/jmh/results.json
+//   ./gradlew :benchmark:jmhSaveBaseline      keep the last results as baselines/baseline.json
+//   ./gradlew :benchmark:jmhCompare           compare the last results with the baseline
+plugins {
+    java
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+dependencies {
+    jmh(project(":gate-core"))
+    jmh(libs.jmh.core)
+    jmhAnnotationProcessor(libs.jmh.generator.annprocess)
+}
+
+val jmhResults = layout.buildDirectory.file("results/jmh/results.json")
+val jmhBaseline = layout.projectDirectory.file("baselines/baseline.json")
+
+jmh {
+    jmhVersion.set(libs.versions.jmh)
+    warmupIterations.set(3)
+    iterations.set(5)
+    fork.set(1)
+    // Allocation rate next to throughput, gc.alloc.rate.norm is bytes per operation.
+    profilers.add("gc")
+    resultFormat.set("JSON")
+    resultsFile.set(jmhResults)
+}
+
+tasks.register<Copy>("jmhSaveBaseline") {
+    description = "Keeps the last JMH results as the baseline to compare against."
+    from(jmhResults)
+    into(jmhBaseline.asFile.parentFile)
+    rename { jmhBaseline.asFile.name }
+}
+
+tasks.register("jmhCompare") {
+    description = "Compares the last JMH results with the baseline, fails on regressions " +
+            "larger than -Pjmh.threshold percent (default 10)."
+    doLast {
+        val threshold = (project.findProperty("jmh.threshold") as String?)?.toDouble() ?: 10.0
+
+        @Suppress("UNCHECKED_CAST")
+        fun load(file: File): Map<String, Map<String, Any>> =
+            (JsonSlurper().parse(file) as List<Map<String, Any>>).associateBy { run ->
+                val params = (run["params"] as Map<String, Any>?)?.entries?.joinToString(",") { "${it.key}=${it.value}" }
+                if (params == null) run["benchmark"] as String else "${run["benchmark"]}[$params]"
+            }
+
+        @Suppress("UNCHECKED_CAST")
+        fun score(run: Map<String, Any>, metric: String?): Double? {
+            val result = if (metric == null) run["primaryMetric"] else (run["secondaryMetrics"] as Map<String, Any>)[metric]
+            return ((result as Map<String, Any>?)?.get("score") as Number?)?.toDouble()
+        }
+
+        val baseline = load(jmhBaseline.asFile)
+        val current = load(jmhResults.get().asFile)
+        val regressions = mutableListOf<String>()
+        for ((name, run) in current) {
+            val base = baseline[name] ?: continue
+            val throughput = score(run, null)!!
+            val baseThroughput = score(base, null)!!
+            val throughputChange = (throughput - baseThroughput) / baseThroughput * 100
+            val allocation = score(run, "gc.alloc.rate.norm") ?: 0.0
+            val baseAllocation = score(base, "gc.alloc.rate.norm") ?: 0.0
+            println(String.format("%-90s %+7.1f%% ops/ms %8.1f -> %8.1f B/op", name, throughputChange,
+                baseAllocation, allocation))
+            if (throughputChange < -threshold) {
+                regressions.add("$name throughput ${String.format("%.1f", throughputChange)}%")
+            }
+            if (allocation > baseAllocation * (1 + threshold / 100) + 1) {
+                regressions.add("$name allocates $allocation B/op, was $baseAllocation")
+            }
+        }
+        if (regressions.isNotEmpty()) {
+            throw GradleException("Benchmark regressions:\n" + regressions.joinToString("\n"))
+        }
+    }
+}
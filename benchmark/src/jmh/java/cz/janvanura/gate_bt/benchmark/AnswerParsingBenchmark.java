@@ -0,0 +1,65 @@
+package cz.janvanura.gate_bt.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import cz.janvanura.gate_bt.GateCommandCodec;
+
+
+/**
+ * Recognising an answer of the gate, the string comparisons of the first version against
+ * {@link GateCommandCodec#decodeAnswer(byte[])}. Both start from the bytes of the notification.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AnswerParsingBenchmark {
+
+    @Param({"ok:m:1", "ok:c:new-secure-key", "err:master", "garbage"})
+    public String answer;
+
+    private byte[] mData;
+
+
+    @Setup
+    public void setUp() {
+        mData = answer.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void legacyStrings(Blackhole bh) {
+        String answer = new String(mData);
+        if (answer.equals("ok:m:1")) {
+            bh.consume(1);
+        } else if (answer.equals("ok:m:0")) {
+            bh.consume(2);
+        } else if (answer.contains("ok:c")) {
+            bh.consume(answer.split(":")[2]);
+        } else if (answer.equals("err:secure")) {
+            bh.consume(5);
+        } else if (answer.equals("err:master")) {
+            bh.consume(6);
+        }
+    }
+
+    @Benchmark
+    public void codec(Blackhole bh) {
+        int code = GateCommandCodec.decodeAnswer(mData);
+        bh.consume(code);
+        if (code == GateCommandCodec.ANSWER_OK_CHANGE) {
+            // The new key is still materialised, the activity stores it.
+            int offset = GateCommandCodec.answerValueOffset(code);
+            bh.consume(new String(mData, offset, mData.length - offset, StandardCharsets.UTF_8));
+        }
+    }
+}
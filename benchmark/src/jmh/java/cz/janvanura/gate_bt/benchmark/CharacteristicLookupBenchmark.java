@@ -0,0 +1,77 @@
+package cz.janvanura.gate_bt.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import cz.janvanura.gate_bt.GattAttributeCache;
+import cz.janvanura.gate_bt.GattAttributes;
+
+
+/**
+ * Finding the gate characteristic before a write, the scan over every discovered service of
+ * the first version against {@link GattAttributeCache}. Services are modelled as maps, the
+ * way {@code BluetoothGattService} keeps its characteristics.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CharacteristicLookupBenchmark {
+
+    /** Services discovered in front of the gate service, Generic Access and Attribute at least. */
+    @Param({"2", "6"})
+    public int servicesBefore;
+
+    private final List<Map<UUID, Object>> mServices = new ArrayList<>();
+    private final GattAttributeCache<Object> mCache = new GattAttributeCache<>();
+
+
+    @Setup
+    public void setUp() {
+        mServices.clear();
+        mCache.reset("00:11:22:33:44:55");
+        for (int i = 0; i <= servicesBefore; i++) {
+            boolean gate = i == servicesBefore;
+            UUID serviceUuid = gate ? GattAttributes.UUID_SERVICE : UUID.randomUUID();
+            Map<UUID, Object> service = new LinkedHashMap<>();
+            for (int c = 0; c < 3; c++) {
+                service.put(UUID.randomUUID(), new Object());
+            }
+            if (gate) {
+                service.put(GattAttributes.UUID_CHAR, new Object());
+            }
+            mServices.add(service);
+            for (Map.Entry<UUID, Object> characteristic : service.entrySet()) {
+                mCache.put(serviceUuid, characteristic.getKey(), characteristic.getValue());
+            }
+        }
+    }
+
+    @Benchmark
+    public Object legacyScan() {
+        for (Map<UUID, Object> service : mServices) {
+            Object characteristic = service.get(GattAttributes.UUID_CHAR);
+            if (characteristic != null) {
+                return characteristic;
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public Object cache() {
+        return mCache.get(GattAttributes.UUID_CHAR);
+    }
+}
@@ -0,0 +1,58 @@
+package cz.janvanura.gate_bt.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import cz.janvanura.gate_bt.GateCommandCodec;
+
+
+/**
+ * Encoding of a motion command, the string concatenation the activity used to do against
+ * {@link GateCommandCodec} in both protocols.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CommandEncodingBenchmark {
+
+    @Param({"secret", "a-much-longer-secure-key-0123456789"})
+    public String secureKey;
+
+    private final GateCommandCodec mCodec = new GateCommandCodec();
+    private final GateCommandCodec mFramingCodec = new GateCommandCodec();
+    private final byte[] mBuffer = new byte[GateCommandCodec.MAX_FRAME_SIZE];
+
+
+    @Setup
+    public void setUp() {
+        mFramingCodec.setProtocol(GateCommandCodec.PROTOCOL_V2);
+    }
+
+    @Benchmark
+    public byte[] legacyConcat() {
+        return ("m" + ":" + secureKey + ":" + "1").getBytes();
+    }
+
+    @Benchmark
+    public byte[] codecFrame() {
+        return mCodec.encodeMotion(secureKey, true);
+    }
+
+    @Benchmark
+    public byte[] codecFrameV2() {
+        return mFramingCodec.encodeMotion(secureKey, true);
+    }
+
+    @Benchmark
+    public int codecIntoBuffer() {
+        return GateCommandCodec.encodeMotion(mBuffer, 0, secureKey, true);
+    }
+}
@@ -0,0 +1,83 @@
+package cz.janvanura.gate_bt.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import cz.janvanura.gate_bt.FrameRingBuffer;
+import cz.janvanura.gate_bt.GattTrace;
+import cz.janvanura.gate_bt.Scheduler;
+
+
+/**
+ * Per notification logging, the unconditional {@code String.format} hex dump of the first
+ * version against {@link GattTrace} in the release configuration and with frame recording.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NotificationFormattingBenchmark {
+
+    private static final GattTrace.Sink DROP = new GattTrace.Sink() {
+        @Override
+        public void log(int level, String message) {
+        }
+    };
+
+    private static final Scheduler CLOCK = new Scheduler() {
+        @Override
+        public long now() {
+            return System.nanoTime() / 1000000;
+        }
+
+        @Override
+        public Cancellable schedule(Runnable task, long delayMillis) {
+            // Nothing measured here schedules, a task would be dropped.
+            return new Cancellable() {
+                @Override
+                public void cancel() {
+                }
+            };
+        }
+    };
+
+    private final byte[] mData = "ok:c:new-secure-key".getBytes(StandardCharsets.UTF_8);
+    private final GattTrace mRelease = new GattTrace(GattTrace.LEVEL_WARN, DROP, null, CLOCK);
+    private final GattTrace mRecording = new GattTrace(GattTrace.LEVEL_WARN, DROP,
+            new FrameRingBuffer(32, 64), CLOCK);
+    private final GattTrace mDebug = new GattTrace(GattTrace.LEVEL_DEBUG, DROP, null, CLOCK);
+
+
+    @Benchmark
+    public void legacyFormat(Blackhole bh) {
+        final StringBuilder stringBuilder = new StringBuilder(mData.length);
+        for (byte byteChar : mData) {
+            stringBuilder.append(String.format("%02X ", byteChar));
+        }
+        String dataString = new String(mData);
+        bh.consume("Reading: " + dataString);
+        bh.consume(stringBuilder);
+    }
+
+    @Benchmark
+    public void traceRelease() {
+        mRelease.frame(FrameRingBuffer.DIRECTION_RX, mData);
+    }
+
+    @Benchmark
+    public void traceRecording() {
+        mRecording.frame(FrameRingBuffer.DIRECTION_RX, mData);
+    }
+
+    @Benchmark
+    public void traceDebug() {
+        mDebug.frame(FrameRingBuffer.DIRECTION_RX, mData);
+    }
+}
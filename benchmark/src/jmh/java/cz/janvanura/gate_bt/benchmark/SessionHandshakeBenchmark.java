@@ -0,0 +1,90 @@
+package cz.janvanura.gate_bt.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import cz.janvanura.gate_bt.GateCommandCodec;
+import cz.janvanura.gate_bt.GateSession;
+import cz.janvanura.gate_bt.GateSimulator;
+import cz.janvanura.gate_bt.Scheduler;
+
+
+/**
+ * The session handshake against the simulator, both sides of it, paid once per connection, and
+ * what a tap costs afterwards, a motion frame with the key against one with a counter and tag.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SessionHandshakeBenchmark {
+
+    @Param({"0000", "123456789"})
+    public String secureKey;
+
+    private final Random mRandom = new Random(11);
+    private final GateCommandCodec mKeyCodec = new GateCommandCodec();
+    private final GateCommandCodec mSessionCodec = new GateCommandCodec();
+    private GateSimulator mGate;
+    private byte[] mSessionKey;
+
+
+    @Setup
+    public void setUp() {
+        // The handshake never schedules anything, a task would just be dropped.
+        mGate = new GateSimulator(new Scheduler() {
+            @Override
+            public long now() {
+                return 0;
+            }
+
+            @Override
+            public Cancellable schedule(Runnable task, long delayMillis) {
+                return new Cancellable() {
+                    @Override
+                    public void cancel() {
+                    }
+                };
+            }
+        }, mRandom);
+        if (!mGate.process("c:12345:" + secureKey).startsWith("ok:c:")) {
+            throw new IllegalStateException("Key not accepted: " + secureKey);
+        }
+        mGate.restart();
+
+        mKeyCodec.setProtocol(GateCommandCodec.PROTOCOL_V3);
+        mSessionCodec.setProtocol(GateCommandCodec.PROTOCOL_V3);
+        mSessionKey = handshake();
+        mSessionCodec.setSessionKey(mSessionKey);
+    }
+
+    @Benchmark
+    public byte[] handshake() {
+        byte[] clientNonce = GateSession.newNonce(mRandom);
+        String answer = mGate.process("h:" + GateSession.toHex(clientNonce));
+        byte[] gateNonce = GateSession.parseHex(answer.substring("ok:h:".length()), GateSession.NONCE_SIZE);
+        return GateSession.sessionKey(secureKey, clientNonce, gateNonce);
+    }
+
+    @Benchmark
+    public byte[] motionWithKey() {
+        return mKeyCodec.encodeMotion(secureKey, true);
+    }
+
+    @Benchmark
+    public byte[] motionWithTag() {
+        // A new session once the counter ran out, every 65535 frames.
+        if (!mSessionCodec.hasSession()) {
+            mSessionCodec.setSessionKey(mSessionKey);
+        }
+        return mSessionCodec.encodeMotion(secureKey, true);
+    }
+}
@@ -0,0 +1,13 @@
+// Protocol, connection and scanning logic in plain Java, shared by the app and the benchmarks.
+plugins {
+    `java-library`
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+dependencies {
+    testImplementation(libs.junit)
+}
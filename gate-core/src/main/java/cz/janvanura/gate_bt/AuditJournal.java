@@ -0,0 +1,581 @@
+package cz.janvanura.gate_bt;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.function.LongSupplier;
+
+/**
+ * Append-only audit trail of every command, acknowledgement, answer and failure, kept on disk.
+ *
+ * Records have a fixed size and go into segment files mapped into memory, appending writes
+ * {@link #RECORD_SIZE} bytes into the mapping under a short lock and touches no file. Dirty
+ * segments are forced to disk every {@link #FLUSH_INTERVAL}. The next segment is mapped ahead
+ * of time, full ones are expired and the last one is trimmed on close, all on the I/O
+ * executor. Segments are dropped once there are more than {@code maxSegments} or their newest
+ * record is older than {@code maxAge}.
+ *
+ * The kind of a record is written last, a record torn by a crash reads as the end of the
+ * journal. A journal that failed to map a segment stops recording, commands never fail
+ * because of it.
+ */
+public class AuditJournal implements Closeable {
+
+    public static final int RECORD_SIZE = 32;
+    public static final int DEFAULT_SEGMENT_RECORDS = 4096;
+    public static final int DEFAULT_MAX_SEGMENTS = 16;
+    public static final long DEFAULT_MAX_AGE = 90L * 24 * 60 * 60 * 1000;
+    public static final long FLUSH_INTERVAL = 5000;
+
+    public static final byte KIND_COMMAND = 1;
+    public static final byte KIND_ACK = 2;
+    public static final byte KIND_ANSWER = 3;
+    public static final byte KIND_ERROR = 4;
+
+    public static final int ERROR_TIMEOUT = 1;
+    public static final int ERROR_IO = 2;
+    public static final int ERROR_OTHER = 3;
+
+    private static final String PREFIX = "audit-";
+    private static final String SUFFIX = ".seg";
+
+    // Layout of a record.
+    private static final int SEQUENCE = 0;
+    private static final int TIME = 8;
+    private static final int ADDRESS = 16;
+    private static final int LATENCY = 24;
+    private static final int VALUE = 28;
+    private static final int COMMAND = 30;
+    private static final int KIND = 31;
+
+    private final File mDirectory;
+    private final int mSegmentRecords;
+    private final int mMaxSegments;
+    private final long mMaxAge;
+    private final Scheduler mScheduler;
+    private final Executor mIoExecutor;
+    private final LongSupplier mClock;
+
+    // First sequence of every segment, oldest first, the active one last.
+    private final ArrayDeque<Long> mSegments = new ArrayDeque<>();
+    private final List<MappedByteBuffer> mUnflushed = new ArrayList<>();
+    private MappedByteBuffer mActive;
+    private long mActiveFirst;
+    private int mPosition;
+    private long mNextSequence;
+    private MappedByteBuffer mPrepared;
+    private long mPreparedFirst = -1;
+    private boolean mDirty;
+    private boolean mClosed;
+    private Scheduler.Cancellable mFlushTask;
+
+    private final Runnable mFlushTrigger = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (AuditJournal.this) {
+                if (mClosed) {
+                    return;
+                }
+                mFlushTask = mScheduler.schedule(this, FLUSH_INTERVAL);
+            }
+            mIoExecutor.execute(mFlush);
+        }
+    };
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+
+    public AuditJournal(File directory, Scheduler scheduler, Executor ioExecutor) throws IOException {
+        this(directory, DEFAULT_SEGMENT_RECORDS, DEFAULT_MAX_SEGMENTS, DEFAULT_MAX_AGE, scheduler, ioExecutor,
+                new LongSupplier() {
+                    @Override
+                    public long getAsLong() {
+                        return System.currentTimeMillis();
+                    }
+                });
+    }
+
+    /**
+     * Opens the journal in {@code directory}, continuing after its last complete record.
+     *
+     * @param clock Wall clock the records are stamped with and their age is measured by.
+     */
+    public AuditJournal(File directory, int segmentRecords, int maxSegments, long maxAge, Scheduler scheduler,
+                        Executor ioExecutor, LongSupplier clock) throws IOException {
+        mDirectory = directory;
+        mSegmentRecords = segmentRecords;
+        mMaxSegments = Math.max(1, maxSegments);
+        mMaxAge = maxAge;
+        mScheduler = scheduler;
+        mIoExecutor = ioExecutor;
+        mClock = clock;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        for (long first : listSegments()) {
+            mSegments.addLast(first);
+        }
+        recover();
+        mFlushTask = scheduler.schedule(mFlushTrigger, FLUSH_INTERVAL);
+    }
+
+    /**
+     * Packs a MAC address into a long once, so appending never parses it.
+     *
+     * @return The address in the low 48 bits, 0 when it is not a MAC address.
+     */
+    public static long address(String mac) {
+        if (mac == null || mac.length() != 17) {
+            return 0;
+        }
+        long packed = 0;
+        for (int i = 0; i < 6; i++) {
+            int high = Character.digit(mac.charAt(i * 3), 16);
+            int low = Character.digit(mac.charAt(i * 3 + 1), 16);
+            if (high < 0 || low < 0 || (i < 5 && mac.charAt(i * 3 + 2) != ':')) {
+                return 0;
+            }
+            packed = (packed << 8) | (high << 4) | low;
+        }
+        return packed;
+    }
+
+    /**
+     * Appends one record. Never blocks on I/O.
+     *
+     * @param kind One of the {@code KIND_*} constants.
+     * @param address See {@link #address(String)}.
+     * @param command {@link GateCommand#getType()} of the command.
+     * @param value Direction of a motion command, the answer code or one of the {@code ERROR_*}
+     *              constants, depending on {@code kind}.
+     * @param latencyMillis Time since the command was sent, 0 for the command itself.
+     */
+    public void append(byte kind, long address, int command, int value, long latencyMillis) {
+        long time = mClock.getAsLong();
+        synchronized (this) {
+            if (mActive == null) {
+                return;
+            }
+            MappedByteBuffer buffer = mActive;
+            int base = mPosition * RECORD_SIZE;
+            buffer.putLong(base + SEQUENCE, mNextSequence);
+            buffer.putLong(base + TIME, time);
+            buffer.putLong(base + ADDRESS, address);
+            buffer.putInt(base + LATENCY, (int) Math.min(Integer.MAX_VALUE, latencyMillis));
+            buffer.putShort(base + VALUE, (short) value);
+            buffer.put(base + COMMAND, (byte) command);
+            buffer.put(base + KIND, kind);
+            mPosition++;
+            mNextSequence++;
+            mDirty = true;
+            if (mPosition == mSegmentRecords) {
+                rotate();
+            }
+        }
+    }
+
+    /**
+     * @return Sequence the next record gets, every record before it was appended already.
+     */
+    public synchronized long getNextSequence() {
+        return mNextSequence;
+    }
+
+    /**
+     * @return Return true while records are kept, false once closed or after an I/O failure.
+     */
+    public synchronized boolean isOpen() {
+        return mActive != null;
+    }
+
+    /**
+     * Reads up to {@code limit} records older than {@code beforeSequence}, newest first. Pass
+     * the sequence of the last record of a page to get the next one.
+     */
+    public List<Entry> page(long beforeSequence, int limit) {
+        Long[] segments;
+        long next;
+        synchronized (this) {
+            segments = mSegments.toArray(new Long[0]);
+            next = mNextSequence;
+        }
+        List<Entry> entries = new ArrayList<>(Math.min(limit, 256));
+        long sequence = Math.min(beforeSequence, next) - 1;
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        for (int s = segments.length - 1; s >= 0 && sequence >= 0 && entries.size() < limit; s--) {
+            long first = segments[s];
+            if (sequence < first) {
+                continue;
+            }
+            try (RandomAccessFile file = new RandomAccessFile(segmentFile(first), "r")) {
+                FileChannel channel = file.getChannel();
+                for (; sequence >= first && entries.size() < limit; sequence--) {
+                    buffer.clear();
+                    if (channel.read(buffer, (sequence - first) * RECORD_SIZE) == RECORD_SIZE) {
+                        Entry entry = Entry.read(buffer);
+                        if (entry != null && entry.mSequence == sequence) {
+                            entries.add(entry);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Expired while reading, nothing older is left.
+                break;
+            }
+            sequence = first - 1;
+        }
+        return entries;
+    }
+
+    /**
+     * @return Every record older than {@code beforeSequence}, newest first, read page by page.
+     */
+    public Iterator<Entry> history(final long beforeSequence) {
+        return new Iterator<Entry>() {
+            private static final int PAGE = 64;
+            private List<Entry> mPage = page(beforeSequence, PAGE);
+            private int mIndex;
+
+            @Override
+            public boolean hasNext() {
+                if (mIndex == mPage.size() && mPage.size() == PAGE) {
+                    mPage = page(mPage.get(PAGE - 1).mSequence, PAGE);
+                    mIndex = 0;
+                }
+                return mIndex < mPage.size();
+            }
+
+            @Override
+            public Entry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return mPage.get(mIndex++);
+            }
+        };
+    }
+
+    /**
+     * Forces everything appended so far to disk. Called by the flusher, blocks on I/O.
+     */
+    public void flush() {
+        MappedByteBuffer[] buffers;
+        synchronized (this) {
+            if (mDirty && mActive != null) {
+                mUnflushed.add(mActive);
+            }
+            mDirty = false;
+            buffers = mUnflushed.toArray(new MappedByteBuffer[0]);
+            mUnflushed.clear();
+        }
+        for (MappedByteBuffer buffer : buffers) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Stops recording. The rest is flushed and the unused end of the last segment trimmed on
+     * the I/O executor.
+     */
+    @Override
+    public void close() {
+        final long first;
+        final int position;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            if (mFlushTask != null) {
+                mFlushTask.cancel();
+                mFlushTask = null;
+            }
+            if (mActive != null && mDirty) {
+                mUnflushed.add(mActive);
+            }
+            mDirty = false;
+            mActive = null;
+            mPrepared = null;
+            first = mActiveFirst;
+            position = mPosition;
+        }
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+                try (RandomAccessFile file = new RandomAccessFile(segmentFile(first), "rw")) {
+                    file.setLength((long) position * RECORD_SIZE);
+                } catch (IOException e) {
+                    // Only costs the space, the end reads as empty records.
+                }
+            }
+        });
+    }
+
+
+    // Continues in the newest segment that holds a record.
+    private void recover() throws IOException {
+        while (mSegments.size() > 1 && countRecords(mSegments.peekLast()) == 0) {
+            // Mapped ahead of time but never used.
+            delete(mSegments.pollLast());
+        }
+        Long last = mSegments.peekLast();
+        if (last == null) {
+            last = 0L;
+            mSegments.addLast(last);
+        }
+        mActiveFirst = last;
+        mActive = map(last);
+        mPosition = 0;
+        while (mPosition < mSegmentRecords && isComplete(mActive, mPosition, mActiveFirst + mPosition)) {
+            mPosition++;
+        }
+        mNextSequence = mActiveFirst + mPosition;
+        if (mPosition == mSegmentRecords) {
+            rotate();
+        } else {
+            prepareNext();
+        }
+    }
+
+    // Called with the lock held, the active segment is full.
+    private void rotate() {
+        mUnflushed.add(mActive);
+        long first = mActiveFirst + mSegmentRecords;
+        MappedByteBuffer next = mPreparedFirst == first ? mPrepared : null;
+        mPrepared = null;
+        mPreparedFirst = -1;
+        if (next == null) {
+            try {
+                next = map(first);
+            } catch (IOException e) {
+                mActive = null;
+                return;
+            }
+        }
+        mActive = next;
+        mActiveFirst = first;
+        mPosition = 0;
+        mSegments.addLast(first);
+        if (!mClosed) {
+            prepareNext();
+        }
+    }
+
+    // Maps the segment after the active one and expires old ones in the background.
+    private void prepareNext() {
+        final long first = mActiveFirst + mSegmentRecords;
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                MappedByteBuffer buffer = null;
+                try {
+                    buffer = map(first);
+                } catch (IOException e) {
+                    // Mapped again when it is needed.
+                }
+                synchronized (AuditJournal.this) {
+                    if (buffer != null && !mClosed && mActiveFirst + mSegmentRecords == first) {
+                        mPrepared = buffer;
+                        mPreparedFirst = first;
+                    }
+                }
+                expire();
+            }
+        });
+    }
+
+    // Drops the oldest full segments beyond the count or the age limit. Files are read and
+    // deleted outside the lock, only the I/O executor removes segments.
+    private void expire() {
+        while (true) {
+            long oldest;
+            boolean tooMany;
+            synchronized (this) {
+                if (mSegments.size() <= 1) {
+                    return;
+                }
+                oldest = mSegments.peekFirst();
+                tooMany = mSegments.size() > mMaxSegments;
+            }
+            if (!tooMany && newestTime(oldest) >= mClock.getAsLong() - mMaxAge) {
+                return;
+            }
+            synchronized (this) {
+                mSegments.pollFirst();
+            }
+            delete(oldest);
+        }
+    }
+
+    private long newestTime(long first) {
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(first), "r")) {
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+            file.getChannel().read(buffer, (long) (mSegmentRecords - 1) * RECORD_SIZE);
+            return buffer.getLong(TIME);
+        } catch (IOException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private int countRecords(long first) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(first), "r")) {
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+            int count = 0;
+            while (count < mSegmentRecords) {
+                buffer.clear();
+                if (file.getChannel().read(buffer, (long) count * RECORD_SIZE) < RECORD_SIZE
+                        || !isComplete(buffer, 0, first + count)) {
+                    break;
+                }
+                count++;
+            }
+            return count;
+        }
+    }
+
+    private static boolean isComplete(ByteBuffer buffer, int index, long sequence) {
+        int base = index * RECORD_SIZE;
+        return buffer.get(base + KIND) != 0 && buffer.getLong(base + SEQUENCE) == sequence;
+    }
+
+    private MappedByteBuffer map(long first) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(first), "rw")) {
+            long size = (long) mSegmentRecords * RECORD_SIZE;
+            if (file.length() < size) {
+                file.setLength(size);
+            }
+            // The mapping stays valid after the file is closed.
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private long[] listSegments() {
+        String[] names = mDirectory.list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] firsts = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                try {
+                    firsts[count++] = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()), 16);
+                } catch (NumberFormatException e) {
+                    // Not ours.
+                }
+            }
+        }
+        long[] sorted = Arrays.copyOf(firsts, count);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private File segmentFile(long first) {
+        return new File(mDirectory, String.format("%s%016x%s", PREFIX, first, SUFFIX));
+    }
+
+    private void delete(long first) {
+        File file = segmentFile(first);
+        if (!file.delete() && file.exists()) {
+            file.deleteOnExit();
+        }
+    }
+
+
+    /**
+     * One record read back from the journal.
+     */
+    public static final class Entry {
+
+        private final long mSequence;
+        private final long mTime;
+        private final long mAddress;
+        private final int mLatency;
+        private final int mValue;
+        private final int mCommand;
+        private final byte mKind;
+
+
+        private Entry(long sequence, long time, long address, int latency, int value, int command, byte kind) {
+            mSequence = sequence;
+            mTime = time;
+            mAddress = address;
+            mLatency = latency;
+            mValue = value;
+            mCommand = command;
+            mKind = kind;
+        }
+
+        static Entry read(ByteBuffer buffer) {
+            byte kind = buffer.get(KIND);
+            if (kind == 0) {
+                return null;
+            }
+            return new Entry(buffer.getLong(SEQUENCE), buffer.getLong(TIME), buffer.getLong(ADDRESS),
+                    buffer.getInt(LATENCY), buffer.getShort(VALUE), buffer.get(COMMAND), kind);
+        }
+
+        public long getSequence() {
+            return mSequence;
+        }
+
+        /**
+         * @return Wall clock time the record was appended at.
+         */
+        public long getTime() {
+            return mTime;
+        }
+
+        public String getAddress() {
+            StringBuilder out = new StringBuilder(17);
+            for (int shift = 40; shift >= 0; shift -= 8) {
+                out.append(Character.toUpperCase(Character.forDigit((int) (mAddress >>> (shift + 4)) & 0xF, 16)))
+                        .append(Character.toUpperCase(Character.forDigit((int) (mAddress >>> shift) & 0xF, 16)));
+                if (shift > 0) {
+                    out.append(':');
+                }
+            }
+            return out.toString();
+        }
+
+        public byte getKind() {
+            return mKind;
+        }
+
+        public int getCommand() {
+            return mCommand;
+        }
+
+        public int getValue() {
+            return mValue;
+        }
+
+        public long getLatencyMillis() {
+            return mLatency;
+        }
+
+        @Override
+        public String toString() {
+            return mSequence + " " + mTime + " " + getAddress() + " kind=" + mKind + " command=" + mCommand
+                    + " value=" + mValue + " latency=" + mLatency;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package cz.janvanura.gate_bt;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * LE scan for advertising gates. Implemented over
+ * {@code BluetoothLeScanner} by {@code AndroidBleScanner} and by fakes
+ * in tests.
+ */
+public interface BleScanner {
+
+    /**
+     * Starts scanning for devices advertising {@code serviceUuid}. The filter is offloaded to
+     * the controller where supported, results may still contain other devices.
+     *
+     * @param lowLatency True to scan continuously while someone waits, false to let the
+     *                   controller scan in short windows for long-running scans.
+     *
+     * @return Return true if the scan was started.
+     */
+    boolean start(UUID serviceUuid, boolean lowLatency, Callback callback);
+
+    void stop();
+
+
+    interface Callback {
+
+        /**
+         * @param serviceUuids Service UUIDs in the advertisement, may be null.
+         */
+        void onResult(String address, String name, int rssi, List<UUID> serviceUuids);
+
+        void onFailed(int errorCode);
+    }
+}
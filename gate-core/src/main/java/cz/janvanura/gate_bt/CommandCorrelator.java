@@ -0,0 +1,241 @@
+package cz.janvanura.gate_bt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Matches answers of the gate to the commands waiting for them.
+ *
+ * The protocol carries no request ids, but the gate answers strictly in order, so an answer
+ * belongs to the oldest waiting command that can produce it (see {@link GateCommand#accepts(int)}).
+ * Each command has a deadline, futures are completed on the given executor, never on the
+ * thread that delivered the answer.
+ *
+ * A v2 gate answers a motion command twice, an acknowledgement as soon as it is accepted and
+ * the result when the relay pulse is done. The acknowledgement marks the command and restarts
+ * its deadline, the result then goes to the oldest acknowledged command that accepts it.
+ */
+public class CommandCorrelator {
+
+    // The gate answers a motion command only after its 2 s relay pulse.
+    public static final long DEFAULT_DEADLINE = 10000;
+
+    public interface AckListener {
+        /**
+         * The gate accepted {@code command} after {@code latencyMillis}, called on the executor.
+         */
+        void onAcknowledged(GateCommand command, long latencyMillis);
+    }
+
+    private final Scheduler mScheduler;
+    private final Executor mExecutor;
+    private final ArrayDeque<Pending> mPending = new ArrayDeque<>();
+    private volatile AckListener mAckListener;
+
+
+    public CommandCorrelator(Scheduler scheduler, Executor executor) {
+        mScheduler = scheduler;
+        mExecutor = executor;
+    }
+
+    public void setAckListener(AckListener listener) {
+        mAckListener = listener;
+    }
+
+    public CompletableFuture<GateResponse> register(GateCommand command) {
+        return register(command, DEFAULT_DEADLINE);
+    }
+
+    /**
+     * Starts waiting for the answer to {@code command}. The future fails with
+     * {@link TimeoutException} when nothing arrives within {@code deadlineMillis}.
+     */
+    public synchronized CompletableFuture<GateResponse> register(GateCommand command, long deadlineMillis) {
+        Pending pending = new Pending(command, mScheduler.now(), deadlineMillis);
+        armDeadline(pending);
+        mPending.addLast(pending);
+        return pending.mFuture;
+    }
+
+    /**
+     * @return Return true if the answer completed a waiting command.
+     */
+    public boolean onAnswer(byte[] data, int offset, int length) {
+        if (data == null) {
+            return false;
+        }
+        int payloadOffset = GateCommandCodec.payloadOffset(data, offset, length);
+        length = GateCommandCodec.payloadLength(data, offset, length);
+        offset = payloadOffset;
+        int answer = GateCommandCodec.decodeAnswer(data, offset, length);
+        if (answer == GateCommandCodec.ANSWER_UNKNOWN) {
+            return false;
+        }
+
+        if (GateCommandCodec.isAck(answer)) {
+            return onAck(answer);
+        }
+
+        Pending pending;
+        synchronized (this) {
+            // A result follows its acknowledgement, an answer without one its command.
+            boolean done = GateCommandCodec.isDone(answer);
+            pending = take(answer, done);
+            if (pending == null) {
+                pending = take(answer, !done);
+            }
+        }
+        if (pending == null) {
+            return false;
+        }
+        pending.mDeadline.cancel();
+
+        String value = null;
+        int valueOffset = GateCommandCodec.answerValueOffset(answer);
+        if (valueOffset >= 0) {
+            value = new String(data, offset + valueOffset, length - valueOffset, StandardCharsets.UTF_8);
+        }
+        final CompletableFuture<GateResponse> future = pending.mFuture;
+        final GateResponse response = new GateResponse(pending.mCommand, answer, value,
+                mScheduler.now() - pending.mSentAt, pending.mAckLatency);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                future.complete(response);
+            }
+        });
+        return true;
+    }
+
+    public boolean onAnswer(byte[] data) {
+        return data != null && onAnswer(data, 0, data.length);
+    }
+
+    /**
+     * Fails the command whose future is {@code future}, e.g. because it could not be written.
+     */
+    public void fail(CompletableFuture<GateResponse> future, Throwable error) {
+        Pending pending = null;
+        synchronized (this) {
+            for (Pending candidate : mPending) {
+                if (candidate.mFuture == future) {
+                    pending = candidate;
+                    break;
+                }
+            }
+            if (pending == null || !mPending.remove(pending)) {
+                return;
+            }
+        }
+        pending.mDeadline.cancel();
+        completeExceptionally(pending, error);
+    }
+
+    /**
+     * Fails every waiting command, e.g. when the connection is lost.
+     */
+    public void failAll(Throwable error) {
+        Pending[] failed;
+        synchronized (this) {
+            failed = mPending.toArray(new Pending[0]);
+            mPending.clear();
+        }
+        for (Pending pending : failed) {
+            pending.mDeadline.cancel();
+            completeExceptionally(pending, error);
+        }
+    }
+
+    public synchronized int size() {
+        return mPending.size();
+    }
+
+
+    private boolean onAck(int answer) {
+        final Pending pending;
+        synchronized (this) {
+            Pending found = null;
+            for (Pending candidate : mPending) {
+                if (!candidate.mAcked && candidate.mCommand.accepts(answer)) {
+                    found = candidate;
+                    break;
+                }
+            }
+            if (found == null) {
+                return false;
+            }
+            pending = found;
+            pending.mAcked = true;
+            pending.mAckLatency = mScheduler.now() - pending.mSentAt;
+            pending.mDeadline.cancel();
+            armDeadline(pending);
+        }
+        final AckListener listener = mAckListener;
+        if (listener != null) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onAcknowledged(pending.mCommand, pending.mAckLatency);
+                }
+            });
+        }
+        return true;
+    }
+
+    // Removes the oldest command that accepts the answer and was acknowledged or not.
+    private Pending take(int answer, boolean acked) {
+        for (Iterator<Pending> it = mPending.iterator(); it.hasNext(); ) {
+            Pending candidate = it.next();
+            if (candidate.mAcked == acked && candidate.mCommand.accepts(answer)) {
+                it.remove();
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private void armDeadline(final Pending pending) {
+        pending.mDeadline = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (remove(pending)) {
+                    completeExceptionally(pending, new TimeoutException(pending.mCommand + " was not answered"));
+                }
+            }
+        }, pending.mDeadlineMillis);
+    }
+
+    private synchronized boolean remove(Pending pending) {
+        return mPending.remove(pending);
+    }
+
+    private void completeExceptionally(final Pending pending, final Throwable error) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                pending.mFuture.completeExceptionally(error);
+            }
+        });
+    }
+
+
+    private static final class Pending {
+        final GateCommand mCommand;
+        final long mSentAt;
+        final long mDeadlineMillis;
+        final CompletableFuture<GateResponse> mFuture = new CompletableFuture<>();
+        Scheduler.Cancellable mDeadline;
+        boolean mAcked;
+        long mAckLatency = -1;
+
+        Pending(GateCommand command, long sentAt, long deadlineMillis) {
+            mCommand = command;
+            mSentAt = sentAt;
+            mDeadlineMillis = deadlineMillis;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package cz.janvanura.gate_bt;
+
+/**
+ * Immutable view of a {@link GateConnection}, safe to hand to the UI thread while the
+ * connection itself stays on the GATT thread.
+ */
+public final class ConnectionSnapshot {
+
+    private final String mAddress;
+    private final int mState;
+    private final int mPhase;
+    private final long mPhaseSince;
+    private final long[] mDurations;
+    private final int mQueuedOperations;
+    private final int mPendingCommands;
+    private final long mTime;
+
+
+    /**
+     * @param phase One of the {@link ConnectionStateMachine} states.
+     * @param durations Last duration of every phase, see {@link ConnectionStateMachine#getLastDurations()}.
+     */
+    public ConnectionSnapshot(String address, int state, int phase, long phaseSince, long[] durations,
+                              int queuedOperations, int pendingCommands, long time) {
+        mAddress = address;
+        mState = state;
+        mPhase = phase;
+        mPhaseSince = phaseSince;
+        mDurations = durations.clone();
+        mQueuedOperations = queuedOperations;
+        mPendingCommands = pendingCommands;
+        mTime = time;
+    }
+
+    /**
+     * @return Snapshot of a gate nothing is known about.
+     */
+    public static ConnectionSnapshot disconnected(String address, long time) {
+        return new ConnectionSnapshot(address, GateConnection.STATE_DISCONNECTED, ConnectionStateMachine.IDLE, time,
+                new long[0], 0, 0, time);
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @return One of the {@code GateConnection.STATE_*} constants.
+     */
+    public int getState() {
+        return mState;
+    }
+
+    public boolean isConnected() {
+        return mState == GateConnection.STATE_CONNECTED;
+    }
+
+    /**
+     * @return One of the {@link ConnectionStateMachine} states.
+     */
+    public int getPhase() {
+        return mPhase;
+    }
+
+    /**
+     * @return Time the current phase was entered.
+     */
+    public long getPhaseSince() {
+        return mPhaseSince;
+    }
+
+    /**
+     * @return How long {@code phase} lasted the last time, -1 if it never ended.
+     */
+    public long getLastDuration(int phase) {
+        return phase < mDurations.length ? mDurations[phase] : -1;
+    }
+
+    /**
+     * @return GATT operations queued or in flight.
+     */
+    public int getQueuedOperations() {
+        return mQueuedOperations;
+    }
+
+    /**
+     * @return Commands waiting for an answer of the gate.
+     */
+    public int getPendingCommands() {
+        return mPendingCommands;
+    }
+
+    /**
+     * @return Time the snapshot was taken, see {@link Scheduler#now()}.
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    @Override
+    public String toString() {
+        return mAddress + " " + ConnectionStateMachine.name(mPhase) + " for " + (mTime - mPhaseSince) + " ms"
+                + " (scanning " + getLastDuration(ConnectionStateMachine.SCANNING)
+                + ", connecting " + getLastDuration(ConnectionStateMachine.CONNECTING)
+                + ", discovering " + getLastDuration(ConnectionStateMachine.DISCOVERING) + " ms)"
+                + " queued=" + mQueuedOperations + " pending=" + mPendingCommands;
+    }
+}
@@ -0,0 +1,180 @@
+package cz.janvanura.gate_bt;
+
+/**
+ * Lifecycle of a connection to one gate:
+ *
+ * <pre>
+ * IDLE -&gt; SCANNING -&gt; CONNECTING -&gt; DISCOVERING -&gt; READY -&gt; DISCONNECTING -&gt; IDLE
+ * </pre>
+ *
+ * plus the shortcuts a dropped or cancelled link takes. Transitions are atomic, one that is
+ * not allowed from the current state is refused. Every state records when it was entered and
+ * how long it lasted the last time, so connect time can be split into waiting for the gate,
+ * the radio and service discovery.
+ */
+public class ConnectionStateMachine {
+
+    /** Nothing going on. */
+    public static final int IDLE = 0;
+    /** Waiting for the gate to come into range. */
+    public static final int SCANNING = 1;
+    /** Link layer connection being set up. */
+    public static final int CONNECTING = 2;
+    /** Linked, resolving services and enabling notifications. */
+    public static final int DISCOVERING = 3;
+    /** Commands can go out. */
+    public static final int READY = 4;
+    /** Link being torn down on request. */
+    public static final int DISCONNECTING = 5;
+
+    private static final String[] NAMES = {
+            "IDLE", "SCANNING", "CONNECTING", "DISCOVERING", "READY", "DISCONNECTING"
+    };
+
+    // Bit mask of the states reachable from each state.
+    private static final int[] ALLOWED = {
+            /* IDLE */ bits(SCANNING, CONNECTING),
+            /* SCANNING */ bits(IDLE, CONNECTING, DISCOVERING),
+            /* CONNECTING */ bits(IDLE, SCANNING, DISCOVERING),
+            /* DISCOVERING */ bits(IDLE, SCANNING, CONNECTING, READY, DISCONNECTING),
+            /* READY */ bits(IDLE, SCANNING, CONNECTING, DISCOVERING, DISCONNECTING),
+            /* DISCONNECTING */ bits(IDLE, SCANNING, CONNECTING),
+    };
+
+    private final Scheduler mScheduler;
+    private final Listener mListener;
+    private volatile int mState = IDLE;
+    private final long[] mEnteredAt = new long[NAMES.length];
+    private final long[] mLastDuration = new long[NAMES.length];
+
+
+    public interface Listener {
+        /**
+         * Called after a transition, outside the lock of the state machine.
+         *
+         * @param elapsed Time spent in {@code from}.
+         */
+        void onTransition(int from, int to, long elapsed);
+    }
+
+
+    /**
+     * @param listener Listener of transitions, or null.
+     */
+    public ConnectionStateMachine(Scheduler scheduler, Listener listener) {
+        mScheduler = scheduler;
+        mListener = listener;
+        mEnteredAt[IDLE] = scheduler.now();
+        for (int i = 0; i < mLastDuration.length; i++) {
+            mLastDuration[i] = -1;
+        }
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public boolean is(int state) {
+        return mState == state;
+    }
+
+    /**
+     * @return Return true if the link layer connection is up and not being torn down.
+     */
+    public boolean isLinked() {
+        int state = mState;
+        return state == DISCOVERING || state == READY;
+    }
+
+    /**
+     * Moves to {@code to}. Staying in the current state is a no-op that succeeds.
+     *
+     * @return Return false if the transition is not allowed, the state is kept then.
+     */
+    public boolean moveTo(int to) {
+        int from;
+        long elapsed;
+        synchronized (this) {
+            from = mState;
+            if (from == to) {
+                return true;
+            }
+            if ((ALLOWED[from] & (1 << to)) == 0) {
+                return false;
+            }
+            elapsed = enter(from, to);
+        }
+        if (mListener != null) {
+            mListener.onTransition(from, to, elapsed);
+        }
+        return true;
+    }
+
+    /**
+     * Moves to {@code to} only if the current state is {@code from}.
+     *
+     * @return Return false if the state was a different one or the transition is not allowed.
+     */
+    public boolean moveTo(int from, int to) {
+        long elapsed;
+        synchronized (this) {
+            if (mState != from || from == to || (ALLOWED[from] & (1 << to)) == 0) {
+                return false;
+            }
+            elapsed = enter(from, to);
+        }
+        if (mListener != null) {
+            mListener.onTransition(from, to, elapsed);
+        }
+        return true;
+    }
+
+    /**
+     * @return Time the current state was entered, see {@link Scheduler#now()}.
+     */
+    public synchronized long getEnteredAt() {
+        return mEnteredAt[mState];
+    }
+
+    /**
+     * @return How long {@code state} lasted the last time it was left, -1 if it never was.
+     */
+    public synchronized long getLastDuration(int state) {
+        return mLastDuration[state];
+    }
+
+    /**
+     * @return Copy of the last durations of all states, indexed by state.
+     */
+    public synchronized long[] getLastDurations() {
+        return mLastDuration.clone();
+    }
+
+    public static String name(int state) {
+        return state >= 0 && state < NAMES.length ? NAMES[state] : Integer.toString(state);
+    }
+
+    @Override
+    public String toString() {
+        return name(mState);
+    }
+
+
+    // Called with the lock held.
+    private long enter(int from, int to) {
+        long now = mScheduler.now();
+        long elapsed = now - mEnteredAt[from];
+        mLastDuration[from] = elapsed;
+        mEnteredAt[to] = now;
+        mState = to;
+        return elapsed;
+    }
+
+    private static int bits(int... states) {
+        int mask = 0;
+        for (int state : states) {
+            mask |= 1 << state;
+        }
+        return mask;
+    }
+}
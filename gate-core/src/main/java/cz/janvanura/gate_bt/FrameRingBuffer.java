@@ -0,0 +1,70 @@
+package cz.janvanura.gate_bt;
+
+/**
+ * Fixed-size in-memory record of the most recent frames sent to and received from the gate.
+ * All storage is allocated up front, recording a frame only copies its bytes. Frames longer
+ * than {@code maxFrameSize} are truncated.
+ */
+public class FrameRingBuffer {
+
+    public static final byte DIRECTION_TX = 'T';
+    public static final byte DIRECTION_RX = 'R';
+
+    private final int mCapacity;
+    private final int mMaxFrameSize;
+    private final byte[] mData;
+    private final int[] mLengths;
+    private final long[] mTimes;
+    private final byte[] mDirections;
+    private long mCount;
+
+
+    public FrameRingBuffer(int capacity, int maxFrameSize) {
+        mCapacity = capacity;
+        mMaxFrameSize = maxFrameSize;
+        mData = new byte[capacity * maxFrameSize];
+        mLengths = new int[capacity];
+        mTimes = new long[capacity];
+        mDirections = new byte[capacity];
+    }
+
+    public synchronized void record(byte direction, long time, byte[] data, int offset, int length) {
+        int slot = (int) (mCount % mCapacity);
+        int stored = Math.min(length, mMaxFrameSize);
+        System.arraycopy(data, offset, mData, slot * mMaxFrameSize, stored);
+        mLengths[slot] = length;
+        mTimes[slot] = time;
+        mDirections[slot] = direction;
+        mCount++;
+    }
+
+    /**
+     * @return Number of frames recorded since creation, including overwritten ones.
+     */
+    public synchronized long count() {
+        return mCount;
+    }
+
+    public synchronized int size() {
+        return (int) Math.min(mCount, mCapacity);
+    }
+
+    /**
+     * Appends one line per frame, oldest first: time, direction, length and hex dump.
+     */
+    public synchronized void dump(StringBuilder out) {
+        long first = Math.max(0, mCount - mCapacity);
+        for (long i = first; i < mCount; i++) {
+            int slot = (int) (i % mCapacity);
+            int length = mLengths[slot];
+            out.append(mTimes[slot]).append(' ')
+                    .append((char) mDirections[slot]).append(' ')
+                    .append(length).append(' ');
+            GattTrace.appendHex(out, mData, slot * mMaxFrameSize, Math.min(length, mMaxFrameSize));
+            if (length > mMaxFrameSize) {
+                out.append(" ...");
+            }
+            out.append('\n');
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package cz.janvanura.gate_bt;
+
+/**
+ * Command sent to the gate, see {@link GattAttributes} for the protocol.
+ */
+public final class GateCommand {
+
+    public static final int TYPE_MOTION = 0;
+    public static final int TYPE_CHANGE_KEY = 1;
+    public static final int TYPE_VERSION = 2;
+    public static final int TYPE_HELLO = 3;
+
+    private final int mType;
+    private final String mKey;
+    private final boolean mOpen;
+    private final String mNewSecureKey;
+    private final byte[] mNonce;
+
+
+    private GateCommand(int type, String key, boolean open, String newSecureKey, byte[] nonce) {
+        mType = type;
+        mKey = key;
+        mOpen = open;
+        mNewSecureKey = newSecureKey;
+        mNonce = nonce;
+    }
+
+    private GateCommand(int type, String key, boolean open, String newSecureKey) {
+        this(type, key, open, newSecureKey, null);
+    }
+
+    public static GateCommand open(String secureKey) {
+        return new GateCommand(TYPE_MOTION, secureKey, true, null);
+    }
+
+    public static GateCommand close(String secureKey) {
+        return new GateCommand(TYPE_MOTION, secureKey, false, null);
+    }
+
+    public static GateCommand changeKey(String masterKey, String newSecureKey) {
+        return new GateCommand(TYPE_CHANGE_KEY, masterKey, false, newSecureKey);
+    }
+
+    /**
+     * @return Query of the protocol version, answered only by gates speaking protocol v2.
+     */
+    public static GateCommand version() {
+        return new GateCommand(TYPE_VERSION, null, false, null);
+    }
+
+    /**
+     * @return Start of a session with a v3 gate, see {@link GateSession}.
+     */
+    public static GateCommand hello(byte[] clientNonce) {
+        return new GateCommand(TYPE_HELLO, null, false, null, clientNonce.clone());
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    /**
+     * @return Return true if sending the command twice leaves the gate as sending it once,
+     *         so it may go out without a link layer acknowledgement.
+     */
+    public boolean isIdempotent() {
+        return mType == TYPE_MOTION;
+    }
+
+    /**
+     * @return Frame owned by {@code codec}.
+     */
+    public byte[] encode(GateCommandCodec codec) {
+        switch (mType) {
+            case TYPE_MOTION:
+                return codec.encodeMotion(mKey, mOpen);
+            case TYPE_CHANGE_KEY:
+                return codec.encodeChangeKey(mKey, mNewSecureKey);
+            case TYPE_HELLO:
+                return codec.encodeHello(mNonce);
+            default:
+                return codec.encodeVersionQuery();
+        }
+    }
+
+    /**
+     * @param answer One of the {@code GateCommandCodec.ANSWER_*} codes.
+     * @return Return true if the gate sends {@code answer} in reply to this command.
+     */
+    public boolean accepts(int answer) {
+        switch (answer) {
+            case GateCommandCodec.ANSWER_OK_OPEN:
+            case GateCommandCodec.ANSWER_ACK_OPEN:
+                return mType == TYPE_MOTION && mOpen;
+            case GateCommandCodec.ANSWER_OK_CLOSE:
+            case GateCommandCodec.ANSWER_ACK_CLOSE:
+                return mType == TYPE_MOTION && !mOpen;
+            case GateCommandCodec.ANSWER_ERR_MOTION:
+            case GateCommandCodec.ANSWER_ERR_SECURE:
+            case GateCommandCodec.ANSWER_ERR_BUSY:
+            case GateCommandCodec.ANSWER_ERR_SESSION:
+                return mType == TYPE_MOTION;
+            case GateCommandCodec.ANSWER_OK_CHANGE:
+            case GateCommandCodec.ANSWER_ERR_MASTER:
+            case GateCommandCodec.ANSWER_ERR_LENGTH:
+                return mType == TYPE_CHANGE_KEY;
+            case GateCommandCodec.ANSWER_OK_VERSION:
+                return mType == TYPE_VERSION;
+            case GateCommandCodec.ANSWER_OK_HELLO:
+                return mType == TYPE_HELLO;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        // Never print keys.
+        switch (mType) {
+            case TYPE_MOTION:
+                return mOpen ? "GateCommand{open}" : "GateCommand{close}";
+            case TYPE_CHANGE_KEY:
+                return "GateCommand{changeKey}";
+            case TYPE_HELLO:
+                return "GateCommand{hello}";
+            default:
+                return "GateCommand{version}";
+        }
+    }
+}
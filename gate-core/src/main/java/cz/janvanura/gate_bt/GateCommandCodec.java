@@ -0,0 +1,421 @@
+package cz.janvanura.gate_bt;
+
+import javax.crypto.Mac;
+
+/**
+ * Encodes gate commands and decodes gate answers without allocating on the hot path.
+ *
+ * Commands are written into a scratch buffer and copied into an exact-length frame that is
+ * cached per frame size, so after the first command of a given length no more arrays are
+ * created. Answers are matched byte by byte and reported as one of the {@code ANSWER_*} codes.
+ *
+ * Protocol v1 is the bare text command, the gate takes it as complete once the line goes
+ * quiet. Protocol v2 wraps the same text in {@link #FRAME_START} and {@link #FRAME_END}, so
+ * the gate handles it as soon as the frame is complete and answers in a frame as well.
+ * Answers of both protocols are decoded. A v2 gate acknowledges a motion command at once with
+ * {@code ack:m:value} and answers {@code ok:m:value} when the relay pulse is done. Protocol v3
+ * frames like v2 and adds the session handshake of {@link GateSession}, once a session key is
+ * set motion commands carry a counter and a tag instead of the key.
+ *
+ * An instance is not thread safe, use one codec per thread.
+ */
+public final class GateCommandCodec {
+
+    /** Largest frame the codec is able to produce. */
+    public static final int MAX_FRAME_SIZE = 64;
+
+    public static final int PROTOCOL_V1 = 1;
+    public static final int PROTOCOL_V2 = 2;
+    public static final int PROTOCOL_V3 = 3;
+
+    public static final byte FRAME_START = 0x02;
+    public static final byte FRAME_END = 0x03;
+
+    public static final int ANSWER_UNKNOWN = 0;
+    public static final int ANSWER_OK_OPEN = 1;
+    public static final int ANSWER_OK_CLOSE = 2;
+    public static final int ANSWER_OK_CHANGE = 3;
+    public static final int ANSWER_ERR_MOTION = 4;
+    public static final int ANSWER_ERR_SECURE = 5;
+    public static final int ANSWER_ERR_MASTER = 6;
+    public static final int ANSWER_ERR_LENGTH = 7;
+    public static final int ANSWER_OK_VERSION = 8;
+    public static final int ANSWER_ACK_OPEN = 9;
+    public static final int ANSWER_ACK_CLOSE = 10;
+    public static final int ANSWER_ERR_BUSY = 11;
+    /** Not an answer but a state change pushed by the gate, see {@link GateStatus}. */
+    public static final int ANSWER_STATUS = 12;
+    public static final int ANSWER_OK_HELLO = 13;
+    public static final int ANSWER_ERR_SESSION = 14;
+
+    private static final byte SEPARATOR = ':';
+    private static final byte CMD_MOTION = (byte) GattAttributes.CMD_MOTION.charAt(0);
+    private static final byte CMD_CHANGE = (byte) GattAttributes.CMD_CHANGE.charAt(0);
+    private static final byte CMD_VERSION = (byte) GattAttributes.CMD_VERSION.charAt(0);
+    private static final byte CMD_STATUS = (byte) GattAttributes.CMD_STATUS.charAt(0);
+    private static final byte CMD_HELLO = (byte) GattAttributes.CMD_HELLO.charAt(0);
+    private static final byte CMD_TOKEN = (byte) GattAttributes.CMD_TOKEN.charAt(0);
+    private static final byte VALUE_OPEN = (byte) GattAttributes.VALUE_OPEN.charAt(0);
+    private static final byte VALUE_CLOSE = (byte) GattAttributes.VALUE_CLOSE.charAt(0);
+
+    private static final byte[] OK_OPEN = ascii("ok:m:1");
+    private static final byte[] OK_CLOSE = ascii("ok:m:0");
+    private static final byte[] OK_CHANGE = ascii("ok:c:");
+    private static final byte[] ERR_MOTION = ascii("err:m:");
+    private static final byte[] ERR_SECURE = ascii("err:secure");
+    private static final byte[] ERR_MASTER = ascii("err:master");
+    private static final byte[] ERR_LENGTH = ascii("err:length");
+    private static final byte[] OK_VERSION = ascii("ok:v:");
+    private static final byte[] ACK_OPEN = ascii("ack:m:1");
+    private static final byte[] ACK_CLOSE = ascii("ack:m:0");
+    private static final byte[] ERR_BUSY = ascii("err:busy");
+    private static final byte[] STATUS = ascii("s:");
+    private static final byte[] OK_HELLO = ascii("ok:h:");
+    private static final byte[] ERR_SESSION = ascii("err:session");
+    private static final byte[] HEX = ascii("0123456789abcdef");
+
+    private final byte[] mScratch = new byte[MAX_FRAME_SIZE];
+    private final byte[][] mFrames = new byte[MAX_FRAME_SIZE + 1][];
+    private int mProtocol = PROTOCOL_V1;
+    private final byte[] mTag = new byte[GateSession.MAC_SIZE];
+    private Mac mSessionMac;
+    private int mSessionCounter;
+
+
+    /**
+     * @param protocol One of the {@code PROTOCOL_*} constants, used by the following commands.
+     */
+    public void setProtocol(int protocol) {
+        mProtocol = protocol;
+    }
+
+    public int getProtocol() {
+        return mProtocol;
+    }
+
+    /**
+     * @param sessionKey Key of the session agreed with a v3 gate, see {@link GateSession}, or
+     *                   null to end it. The counter of the motion commands starts again.
+     */
+    public void setSessionKey(byte[] sessionKey) {
+        mSessionMac = sessionKey == null ? null : GateSession.newMac(sessionKey);
+        mSessionCounter = 0;
+    }
+
+    /**
+     * @return Return true while motion commands are sent with a tag, false also once the
+     *         counter ran out and the session needs a new handshake.
+     */
+    public boolean hasSession() {
+        return mSessionMac != null && mProtocol >= PROTOCOL_V3 && mSessionCounter < GateSession.MAX_COUNTER;
+    }
+
+    /**
+     * Encodes {@code m:secure_key:1} or {@code m:secure_key:0}, or {@code t:counter tag:value}
+     * with the next counter within a session.
+     *
+     * @return Frame owned by the codec, valid until the next command of the same length.
+     */
+    public byte[] encodeMotion(CharSequence secureKey, boolean open) {
+        if (hasSession()) {
+            mSessionCounter++;
+            GateSession.tag(mSessionMac, mSessionCounter, open, mTag);
+            return frame(wrap(encodeSessionMotion(mScratch, 1, mSessionCounter, mTag, open)));
+        }
+        if (mProtocol >= PROTOCOL_V2) {
+            return frame(wrap(encodeMotion(mScratch, 1, secureKey, open)));
+        }
+        return frame(encodeMotion(mScratch, 0, secureKey, open));
+    }
+
+    /**
+     * Encodes {@code c:master_key:new_secure_key}.
+     *
+     * @return Frame owned by the codec, valid until the next command of the same length.
+     */
+    public byte[] encodeChangeKey(CharSequence masterKey, CharSequence newSecureKey) {
+        if (mProtocol >= PROTOCOL_V2) {
+            return frame(wrap(encodeChangeKey(mScratch, 1, masterKey, newSecureKey)));
+        }
+        return frame(encodeChangeKey(mScratch, 0, masterKey, newSecureKey));
+    }
+
+    /**
+     * Encodes the {@code v} query, always as a v2 frame. Gates speaking v2 answer
+     * {@code ok:v:version}, older ones ignore it.
+     *
+     * @return Frame owned by the codec, valid until the next command of the same length.
+     */
+    public byte[] encodeVersionQuery() {
+        mScratch[1] = CMD_VERSION;
+        return frame(wrap(1));
+    }
+
+    /**
+     * Encodes the {@code s} query, always as a v2 frame. The gate pushes its status in reply.
+     *
+     * @return Frame owned by the codec, valid until the next command of the same length.
+     */
+    public byte[] encodeStatusQuery() {
+        mScratch[1] = CMD_STATUS;
+        return frame(wrap(1));
+    }
+
+    /**
+     * Encodes {@code h:client_nonce}, always as a v2 frame. A v3 gate answers
+     * {@code ok:h:gate_nonce}.
+     *
+     * @return Frame owned by the codec, valid until the next command of the same length.
+     */
+    public byte[] encodeHello(byte[] clientNonce) {
+        int pos = put(mScratch, 1, CMD_HELLO);
+        pos = put(mScratch, pos, SEPARATOR);
+        pos = putHex(mScratch, pos, clientNonce);
+        return frame(wrap(pos - 1));
+    }
+
+    /**
+     * Writes a motion command of a session, {@code t:counter tag:value}, into {@code dst}
+     * starting at {@code offset}.
+     *
+     * @param tag The first {@link GateSession#TAG_SIZE} bytes are sent.
+     * @return Number of bytes written.
+     */
+    public static int encodeSessionMotion(byte[] dst, int offset, int counter, byte[] tag, boolean open) {
+        int pos = offset;
+        pos = put(dst, pos, CMD_TOKEN);
+        pos = put(dst, pos, SEPARATOR);
+        pos = putHex(dst, pos, (byte) (counter >> 8));
+        pos = putHex(dst, pos, (byte) counter);
+        for (int i = 0; i < GateSession.TAG_SIZE; i++) {
+            pos = putHex(dst, pos, tag[i]);
+        }
+        pos = put(dst, pos, SEPARATOR);
+        pos = put(dst, pos, open ? VALUE_OPEN : VALUE_CLOSE);
+        return pos - offset;
+    }
+
+    /**
+     * Writes a motion command into {@code dst} starting at {@code offset}.
+     *
+     * @return Number of bytes written.
+     */
+    public static int encodeMotion(byte[] dst, int offset, CharSequence secureKey, boolean open) {
+        int pos = offset;
+        pos = put(dst, pos, CMD_MOTION);
+        pos = put(dst, pos, SEPARATOR);
+        pos = putText(dst, pos, secureKey);
+        pos = put(dst, pos, SEPARATOR);
+        pos = put(dst, pos, open ? VALUE_OPEN : VALUE_CLOSE);
+        return pos - offset;
+    }
+
+    /**
+     * Writes a change key command into {@code dst} starting at {@code offset}.
+     *
+     * @return Number of bytes written.
+     */
+    public static int encodeChangeKey(byte[] dst, int offset, CharSequence masterKey, CharSequence newSecureKey) {
+        int pos = offset;
+        pos = put(dst, pos, CMD_CHANGE);
+        pos = put(dst, pos, SEPARATOR);
+        pos = putText(dst, pos, masterKey);
+        pos = put(dst, pos, SEPARATOR);
+        pos = putText(dst, pos, newSecureKey);
+        return pos - offset;
+    }
+
+    /**
+     * Decodes an answer sent by the gate.
+     *
+     * @return One of the {@code ANSWER_*} codes.
+     */
+    public static int decodeAnswer(byte[] data, int offset, int length) {
+        if (data == null || length <= 0) {
+            return ANSWER_UNKNOWN;
+        }
+        if (isFramed(data, offset, length)) {
+            offset++;
+            length -= 2;
+        }
+        if (equals(data, offset, length, OK_OPEN)) {
+            return ANSWER_OK_OPEN;
+        } else if (equals(data, offset, length, OK_CLOSE)) {
+            return ANSWER_OK_CLOSE;
+        } else if (startsWith(data, offset, length, OK_CHANGE)) {
+            return ANSWER_OK_CHANGE;
+        } else if (equals(data, offset, length, ERR_SECURE)) {
+            return ANSWER_ERR_SECURE;
+        } else if (equals(data, offset, length, ERR_MASTER)) {
+            return ANSWER_ERR_MASTER;
+        } else if (equals(data, offset, length, ERR_LENGTH)) {
+            return ANSWER_ERR_LENGTH;
+        } else if (startsWith(data, offset, length, ERR_MOTION)) {
+            return ANSWER_ERR_MOTION;
+        } else if (startsWith(data, offset, length, OK_VERSION)) {
+            return ANSWER_OK_VERSION;
+        } else if (equals(data, offset, length, ACK_OPEN)) {
+            return ANSWER_ACK_OPEN;
+        } else if (equals(data, offset, length, ACK_CLOSE)) {
+            return ANSWER_ACK_CLOSE;
+        } else if (equals(data, offset, length, ERR_BUSY)) {
+            return ANSWER_ERR_BUSY;
+        } else if (startsWith(data, offset, length, STATUS)) {
+            return ANSWER_STATUS;
+        } else if (startsWith(data, offset, length, OK_HELLO)) {
+            return ANSWER_OK_HELLO;
+        } else if (equals(data, offset, length, ERR_SESSION)) {
+            return ANSWER_ERR_SESSION;
+        }
+        return ANSWER_UNKNOWN;
+    }
+
+    public static int decodeAnswer(byte[] data) {
+        return data == null ? ANSWER_UNKNOWN : decodeAnswer(data, 0, data.length);
+    }
+
+    /**
+     * @return Return true if {@code answer} only acknowledges a command, its result follows.
+     */
+    public static boolean isAck(int answer) {
+        return answer == ANSWER_ACK_OPEN || answer == ANSWER_ACK_CLOSE;
+    }
+
+    /**
+     * @return Return true if {@code answer} may come after an acknowledgement.
+     */
+    public static boolean isDone(int answer) {
+        return answer == ANSWER_OK_OPEN || answer == ANSWER_OK_CLOSE;
+    }
+
+    /**
+     * @return Return true if the bytes are a whole v2 frame.
+     */
+    public static boolean isFramed(byte[] data, int offset, int length) {
+        return length >= 2 && data[offset] == FRAME_START && data[offset + length - 1] == FRAME_END;
+    }
+
+    /**
+     * @return Offset of the text of an answer, past {@link #FRAME_START} of a v2 frame.
+     */
+    public static int payloadOffset(byte[] data, int offset, int length) {
+        return isFramed(data, offset, length) ? offset + 1 : offset;
+    }
+
+    /**
+     * @return Length of the text of an answer, without the frame delimiters of a v2 frame.
+     */
+    public static int payloadLength(byte[] data, int offset, int length) {
+        return isFramed(data, offset, length) ? length - 2 : length;
+    }
+
+    /**
+     * Returns offset of the value part of {@code ok:c:value}, {@code err:m:value},
+     * {@code ok:v:version} and {@code ok:h:nonce} answers relative to the payload offset, or -1 when the answer
+     * carries no value.
+     */
+    public static int answerValueOffset(int answer) {
+        switch (answer) {
+            case ANSWER_OK_CHANGE:
+                return OK_CHANGE.length;
+            case ANSWER_ERR_MOTION:
+                return ERR_MOTION.length;
+            case ANSWER_OK_VERSION:
+                return OK_VERSION.length;
+            case ANSWER_OK_HELLO:
+                return OK_HELLO.length;
+            default:
+                return -1;
+        }
+    }
+
+
+    // The payload was written at offset 1 of the scratch buffer.
+    private int wrap(int payloadLength) {
+        mScratch[0] = FRAME_START;
+        put(mScratch, payloadLength + 1, FRAME_END);
+        return payloadLength + 2;
+    }
+
+    private byte[] frame(int length) {
+        byte[] frame = mFrames[length];
+        if (frame == null) {
+            frame = new byte[length];
+            mFrames[length] = frame;
+        }
+        System.arraycopy(mScratch, 0, frame, 0, length);
+        return frame;
+    }
+
+    private static int put(byte[] dst, int pos, byte b) {
+        if (pos >= dst.length) {
+            throw new IllegalArgumentException("Command does not fit into " + dst.length + " bytes");
+        }
+        dst[pos] = b;
+        return pos + 1;
+    }
+
+    private static int putHex(byte[] dst, int pos, byte[] bytes) {
+        for (byte b : bytes) {
+            pos = putHex(dst, pos, b);
+        }
+        return pos;
+    }
+
+    private static int putHex(byte[] dst, int pos, byte b) {
+        pos = put(dst, pos, HEX[(b >> 4) & 0x0F]);
+        return put(dst, pos, HEX[b & 0x0F]);
+    }
+
+    // UTF-8, the same bytes String.getBytes() produced for the old text commands.
+    private static int putText(byte[] dst, int pos, CharSequence text) {
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                pos = put(dst, pos, (byte) c);
+            } else if (c < 0x800) {
+                pos = put(dst, pos, (byte) (0xC0 | (c >> 6)));
+                pos = put(dst, pos, (byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, text.charAt(++i));
+                    pos = put(dst, pos, (byte) (0xF0 | (cp >> 18)));
+                    pos = put(dst, pos, (byte) (0x80 | ((cp >> 12) & 0x3F)));
+                    pos = put(dst, pos, (byte) (0x80 | ((cp >> 6) & 0x3F)));
+                    pos = put(dst, pos, (byte) (0x80 | (cp & 0x3F)));
+                } else {
+                    pos = put(dst, pos, (byte) '?');
+                }
+            } else {
+                pos = put(dst, pos, (byte) (0xE0 | (c >> 12)));
+                pos = put(dst, pos, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                pos = put(dst, pos, (byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        return pos;
+    }
+
+    private static boolean equals(byte[] data, int offset, int length, byte[] expected) {
+        return length == expected.length && startsWith(data, offset, length, expected);
+    }
+
+    private static boolean startsWith(byte[] data, int offset, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+}
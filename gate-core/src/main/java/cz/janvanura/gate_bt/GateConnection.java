@@ -0,0 +1,1162 @@
+package cz.janvanura.gate_bt;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * Connection to a single gate: its connection state, operation queue and the commands waiting
+ * for an answer. Plain Java, the radio is reached through {@link GattConnector}.
+ *
+ * A dropped link is brought back until {@link #disconnect()}: directly with backoff while
+ * someone waits for the gate, otherwise in the background through the old connection, which
+ * keeps its resolved services. The connection interval is shortened while commands are going
+ * out and relaxed again {@link #PRIORITY_LINGER} ms after the last one.
+ *
+ * The lifecycle is tracked by a {@link ConnectionStateMachine}, operations check it before
+ * touching the link. {@link #getState()} reduces it to the three states listeners care about.
+ *
+ * Every link starts by asking for a larger MTU, unless the gate is known to stay at the
+ * default. Idempotent commands that fit into one packet are written without response, the
+ * answer of the gate acknowledges them: when no answer at all comes within {@link #ANSWER_TIMEOUT}
+ * the command is written again with response. Everything else waits for the link layer response.
+ *
+ * A gate is asked once for its protocol before the connection is ready. Gates speaking v2 get
+ * framed commands, see {@link GateCommandCodec}, older ones the bare text they always got.
+ * A v2 gate is asked for its {@link GateStatus} once ready and pushes every change after that,
+ * the latest one is kept in {@link #getStatus()}.
+ *
+ * With a {@link GateKeyStore} set, a connection to a v3 gate starts a session once ready, see
+ * {@link GateSession}. Motion commands wait for the handshake and then carry a counter and a
+ * tag instead of the key. A gate that dropped the session answers {@code err:session}, the
+ * command fails with that answer and a new handshake starts. The key never goes to a v3 gate
+ * then, without a session motion commands fail and a new handshake starts as well.
+ */
+public class GateConnection implements GattClient.Callback {
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+
+    static final long PRIORITY_LINGER = 3000;
+    /** Fits the longest command into one packet and one LE data length extension PDU. */
+    static final int PREFERRED_MTU = 247;
+    /** Serial read timeout and relay pulse of the gate, with room for a busy link. */
+    static final long ANSWER_TIMEOUT = 5000;
+    /** Longer than the serial read timeout of older firmware, which ignores the query. */
+    static final long PROTOCOL_PROBE_TIMEOUT = 2000;
+    /** The gate answers the handshake at once. */
+    static final long SESSION_TIMEOUT = 2000;
+
+    private final String mAddress;
+    private final GattConnector mConnector;
+    private final Scheduler mScheduler;
+    private final GattEventBus mEventBus;
+    private final GattTrace mTrace;
+    private final GattMetrics mMetrics;
+    private final GateProfileCache mProfiles;
+    private final CommandCorrelator mCommandCorrelator;
+    private final GateCommandCodec mCommandCodec = new GateCommandCodec();
+    private final ReconnectScheduler mReconnectScheduler;
+
+    // Written under the connection lock, read without it. Queue callbacks run under the queue
+    // lock and must never wait for the connection lock.
+    private volatile GattClient mClient;
+    private volatile GattOperationQueue mOperationQueue;
+    private final ConnectionStateMachine mMachine;
+
+    // Guarded by the connection lock. Whether a dropped link is brought back, whether someone
+    // waits for it and whether the client is waiting for the gate in the background.
+    private boolean mWanted;
+    private boolean mUserWaiting;
+    private boolean mInBackground;
+    // Guarded by the connection lock, when an unexpectedly dropped link went down or -1.
+    private long mDroppedAt = -1;
+    // MTU of the current link and whether the gate refused a write without response on it.
+    private volatile int mMtu = GattClient.DEFAULT_MTU;
+    private volatile boolean mNoResponseRefused;
+    private volatile long mLastAnswerAt = -1;
+    private volatile GateStatus mStatus;
+    private volatile AuditJournal mJournal;
+    private volatile GateKeyStore mKeyStore;
+    private final SecureRandom mNonceRandom = new SecureRandom();
+    // Guarded by the connection lock. Commands sent before the link is ready wait for the first,
+    // only then the protocol of the gate is known. Motion commands then wait for the second,
+    // pending while a session handshake is going on.
+    private CompletableFuture<Void> mLinkReady = CompletableFuture.completedFuture(null);
+    private CompletableFuture<Void> mSession = CompletableFuture.completedFuture(null);
+    private final long mJournalAddress;
+
+    private final Object mPriorityLock = new Object();
+    private boolean mHighPriority;
+    private Scheduler.Cancellable mPriorityTask;
+
+
+    // Notifications are enabled only once the characteristic is known.
+    private final GattOperation.Callback mDiscoveryCallback = new GattOperation.Callback() {
+        @Override
+        public void onComplete(GattOperation operation, int status, byte[] value) {
+            if (status == GattClient.GATT_SUCCESS) {
+                enqueueFirst(GattOperation.notify(GattAttributes.UUID_CHAR, true).setCallback(mNotifyCallback));
+            } else {
+                mTrace.w("Service discovery failed: ", status);
+                mMetrics.countStatus(status);
+            }
+        }
+    };
+
+    // Ready once the gate can answer.
+    private final GattOperation.Callback mNotifyCallback = new GattOperation.Callback() {
+        @Override
+        public void onComplete(GattOperation operation, int status, byte[] value) {
+            if (status != GattClient.GATT_SUCCESS) {
+                if (status != GattOperation.STATUS_CANCELLED) {
+                    mTrace.w("Enabling notifications failed: ", status);
+                    mMetrics.countStatus(status);
+                }
+            } else if (mProfiles.getProtocol(mAddress) == GateProfileCache.PROTOCOL_UNKNOWN) {
+                probeProtocol();
+            } else {
+                mMachine.moveTo(ConnectionStateMachine.DISCOVERING, ConnectionStateMachine.READY);
+            }
+        }
+    };
+
+    // Completed on the callback executor, the result is handed back to the scheduler's thread,
+    // which owns the queue.
+    private final BiConsumer<GateResponse, Throwable> mProbeResult = new BiConsumer<GateResponse, Throwable>() {
+        @Override
+        public void accept(final GateResponse response, final Throwable error) {
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onProbeResult(response, error);
+                }
+            }, 0);
+        }
+    };
+
+    // A gate that refuses a larger MTU is not asked again.
+    private final GattOperation.Callback mMtuCallback = new GattOperation.Callback() {
+        @Override
+        public void onComplete(GattOperation operation, int status, byte[] value) {
+            if (status != GattClient.GATT_SUCCESS && status != GattOperation.STATUS_CANCELLED) {
+                mTrace.w("MTU exchange failed: ", status);
+                mMetrics.countStatus(status);
+                mProfiles.putMtu(mAddress, GattClient.DEFAULT_MTU);
+            }
+        }
+    };
+
+    private final ConnectionStateMachine.Listener mTransitionListener = new ConnectionStateMachine.Listener() {
+        @Override
+        public void onTransition(int from, int to, long elapsed) {
+            if (from == ConnectionStateMachine.CONNECTING && to == ConnectionStateMachine.DISCOVERING) {
+                mMetrics.record(GattMetrics.CONNECT, elapsed);
+            } else if (from == ConnectionStateMachine.DISCOVERING && to == ConnectionStateMachine.READY) {
+                mMetrics.record(GattMetrics.DISCOVERY, elapsed);
+                // Possibly under the queue lock here, which must not wait for the connection lock.
+                mScheduler.schedule(mLinkReadyTask, 0);
+            }
+            if (mTrace.isLoggable(GattTrace.LEVEL_INFO)) {
+                mTrace.i(ConnectionStateMachine.name(from) + " -> " + ConnectionStateMachine.name(to)
+                        + " after " + elapsed + " ms");
+            }
+        }
+    };
+
+    // Starts a session and lets the commands sent before the link was ready go out, unless it
+    // went down meanwhile, then asks a v2 gate for its status.
+    private final Runnable mLinkReadyTask = new Runnable() {
+        @Override
+        public void run() {
+            CompletableFuture<Void> linkReady;
+            synchronized (GateConnection.this) {
+                if (!mMachine.is(ConnectionStateMachine.READY)) {
+                    return;
+                }
+                linkReady = mLinkReady;
+            }
+            startSession();
+            linkReady.complete(null);
+            // Behind those commands, someone is waiting for them.
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    requestStatus();
+                }
+            }, 0);
+        }
+    };
+
+    private final Runnable mReconnectTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GateConnection.this) {
+                if (!mWanted || mMachine.isLinked() || connectDirect()) {
+                    return;
+                }
+                if (!scheduleReconnect(true)) {
+                    mMachine.moveTo(mInBackground ? ConnectionStateMachine.SCANNING : ConnectionStateMachine.IDLE);
+                    mEventBus.dispatchDisconnected(mAddress);
+                }
+            }
+        }
+    };
+
+    // Relaxes the connection interval once nothing is going on. Idleness is checked outside
+    // the priority lock, the queue lock must never be taken under it.
+    private final Runnable mPriorityTimeout = new Runnable() {
+        @Override
+        public void run() {
+            boolean idle = isIdle();
+            GattClient client = mClient;
+            synchronized (mPriorityLock) {
+                mPriorityTask = null;
+                if (!mHighPriority) {
+                    return;
+                }
+                if (!idle) {
+                    mPriorityTask = mScheduler.schedule(this, PRIORITY_LINGER);
+                    return;
+                }
+                mHighPriority = false;
+                if (client != null && mMachine.isLinked()) {
+                    client.requestConnectionPriority(GattClient.CONNECTION_PRIORITY_BALANCED);
+                }
+            }
+        }
+    };
+
+    // Answers and timeouts of commands, completed on the callback executor.
+    private final BiConsumer<GateResponse, Throwable> mRoundTripRecorder = new BiConsumer<GateResponse, Throwable>() {
+        @Override
+        public void accept(GateResponse response, Throwable error) {
+            if (response != null) {
+                mMetrics.record(GattMetrics.ROUND_TRIP, response.getLatencyMillis());
+            } else if (error instanceof TimeoutException) {
+                mMetrics.countCommandTimeout();
+            }
+        }
+    };
+
+    // The gate accepted a motion command, its result follows after the relay pulse.
+    private final CommandCorrelator.AckListener mAckListener = new CommandCorrelator.AckListener() {
+        @Override
+        public void onAcknowledged(GateCommand command, long latencyMillis) {
+            mMetrics.record(GattMetrics.ACK, latencyMillis);
+            AuditJournal journal = mJournal;
+            if (journal != null) {
+                journal.append(AuditJournal.KIND_ACK, mJournalAddress, command.getType(), command.isOpen() ? 1 : 0,
+                        latencyMillis);
+            }
+            mEventBus.dispatchCommandAcknowledged(mAddress, command);
+        }
+    };
+
+    // Queued operations only report failures, successful ones are dispatched by the callback.
+    private final GattOperation.Callback mFailureCallback = new GattOperation.Callback() {
+        @Override
+        public void onComplete(GattOperation operation, int status, byte[] value) {
+            if (status != GattClient.GATT_SUCCESS && status != GattOperation.STATUS_CANCELLED) {
+                if (mTrace.isLoggable(GattTrace.LEVEL_WARN)) {
+                    mTrace.w("Operation " + operation + " failed: " + status);
+                }
+                mMetrics.countStatus(status);
+            }
+        }
+    };
+
+
+    /**
+     * @param callbackExecutor Executor completing the futures returned by {@link #send(GateCommand)}.
+     * @param metrics Latencies and failures are recorded there, usually shared by all connections.
+     * @param profiles What is known about the gates, shared by all connections.
+     */
+    public GateConnection(String address, GattConnector connector, Scheduler scheduler, Executor callbackExecutor,
+                          GattEventBus eventBus, GattTrace trace, GattMetrics metrics, GateProfileCache profiles) {
+        mAddress = address;
+        mJournalAddress = AuditJournal.address(address);
+        mConnector = connector;
+        mScheduler = scheduler;
+        mEventBus = eventBus;
+        mTrace = trace;
+        mMetrics = metrics;
+        mProfiles = profiles;
+        mCommandCorrelator = new CommandCorrelator(scheduler, callbackExecutor);
+        mCommandCorrelator.setAckListener(mAckListener);
+        mReconnectScheduler = new ReconnectScheduler(scheduler, new Random());
+        mMachine = new ConnectionStateMachine(scheduler, mTransitionListener);
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @return One of the {@code STATE_*} constants. The link counts as connected from the
+     *         moment it is up until it is down again, discovery and disconnecting included.
+     */
+    public int getState() {
+        switch (mMachine.getState()) {
+            case ConnectionStateMachine.CONNECTING:
+                return STATE_CONNECTING;
+            case ConnectionStateMachine.DISCOVERING:
+            case ConnectionStateMachine.READY:
+            case ConnectionStateMachine.DISCONNECTING:
+                return STATE_CONNECTED;
+            default:
+                return STATE_DISCONNECTED;
+        }
+    }
+
+    /**
+     * @return Lifecycle of the connection, with the time spent in each state.
+     */
+    public ConnectionStateMachine getStateMachine() {
+        return mMachine;
+    }
+
+    /**
+     * @return Current state for threads other than the one driving the connection.
+     */
+    public ConnectionSnapshot snapshot() {
+        GattOperationQueue queue = mOperationQueue;
+        synchronized (mMachine) {
+            return new ConnectionSnapshot(mAddress, getState(), mMachine.getState(), mMachine.getEnteredAt(),
+                    mMachine.getLastDurations(), queue == null ? 0 : queue.size(), mCommandCorrelator.size(),
+                    mScheduler.now());
+        }
+    }
+
+    /**
+     * @return ATT MTU of the current link, {@link GattClient#DEFAULT_MTU} until negotiated.
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * @return Status last pushed by the gate, kept after the link went down, or null when a v2
+     *         gate never sent one.
+     */
+    public GateStatus getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * Records every command sent from now on with its answer or failure in {@code journal}.
+     */
+    public void setJournal(AuditJournal journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * Lets connections to v3 gates start a session with the key stored for this gate.
+     */
+    public void setKeyStore(GateKeyStore keyStore) {
+        mKeyStore = keyStore;
+    }
+
+    /**
+     * @return Return true if nothing is queued and no command waits for an answer.
+     */
+    public boolean isIdle() {
+        GattOperationQueue queue = mOperationQueue;
+        return (queue == null || queue.size() == 0) && mCommandCorrelator.size() == 0;
+    }
+
+    /**
+     * Connects directly, for when the user waits for the gate. Failed attempts are retried with
+     * backoff, after the last one the connection waits in the background.
+     *
+     * @return Return true if the connection is initiated successfully.
+     */
+    public synchronized boolean connect() {
+        mWanted = true;
+        if (mMachine.isLinked() || (mMachine.is(ConnectionStateMachine.CONNECTING) && mUserWaiting)) {
+            return true;
+        }
+        mUserWaiting = true;
+        if (mMachine.is(ConnectionStateMachine.DISCONNECTING)) {
+            // Reconnects directly once the old link is down.
+            mTrace.d("Connecting after disconnect of ", mAddress);
+            return true;
+        }
+        mReconnectScheduler.reset();
+        return connectDirect();
+    }
+
+    /**
+     * Connects whenever the gate comes into range, without a time limit. Reuses the existing
+     * connection, so its resolved services are kept.
+     *
+     * @return Return true if the connection is initiated successfully.
+     */
+    public synchronized boolean connectInBackground() {
+        mWanted = true;
+        if (!mMachine.is(ConnectionStateMachine.IDLE) || mInBackground || mReconnectScheduler.isScheduled()) {
+            return true;
+        }
+        if (mClient == null) {
+            mTrace.d("Waiting in the background for ", mAddress);
+            GattClient client = mConnector.open(mAddress, true, this);
+            if (client == null) {
+                return false;
+            }
+            attach(client);
+            mInBackground = true;
+        } else {
+            mTrace.d("Trying to use an existing connection to ", mAddress);
+            mInBackground = mClient.connect();
+        }
+        if (mInBackground) {
+            mMachine.moveTo(ConnectionStateMachine.SCANNING);
+        }
+        return mInBackground;
+    }
+
+    public synchronized void disconnect() {
+        mWanted = false;
+        mUserWaiting = false;
+        mInBackground = false;
+        mDroppedAt = -1;
+        mReconnectScheduler.reset();
+        if (mClient != null) {
+            mClient.disconnect();
+        }
+        if (mMachine.isLinked()) {
+            mMachine.moveTo(ConnectionStateMachine.DISCONNECTING);
+        } else if (mMachine.moveTo(ConnectionStateMachine.CONNECTING, ConnectionStateMachine.IDLE)) {
+            // Nothing to wait for when the link never came up.
+            mOperationQueue.clear();
+            mCommandCorrelator.failAll(new IOException("Connection to " + mAddress + " cancelled"));
+            mEventBus.dispatchDisconnected(mAddress);
+        } else {
+            mMachine.moveTo(ConnectionStateMachine.SCANNING, ConnectionStateMachine.IDLE);
+        }
+    }
+
+    /**
+     * Releases the connection, pending commands fail. A link that is up is disconnected first.
+     */
+    public synchronized void close() {
+        mWanted = false;
+        mUserWaiting = false;
+        mInBackground = false;
+        mDroppedAt = -1;
+        mReconnectScheduler.reset();
+        endPriorityBurst();
+        if (mClient == null) {
+            return;
+        }
+        boolean wasDisconnected = getState() == STATE_DISCONNECTED;
+        mOperationQueue.clear();
+        mCommandCorrelator.failAll(new IOException("Connection to " + mAddress + " closed"));
+        if (mMachine.isLinked()) {
+            mClient.disconnect();
+            mMachine.moveTo(ConnectionStateMachine.DISCONNECTING);
+        }
+        mClient.close();
+        mClient = null;
+        mOperationQueue = null;
+        // No callback comes after close, the link is down now.
+        mMachine.moveTo(ConnectionStateMachine.IDLE);
+        if (!wasDisconnected) {
+            mEventBus.dispatchDisconnected(mAddress);
+        }
+    }
+
+    /**
+     * Sends a command to the gate. Commands issued while connecting or discovering services
+     * are sent once the connection is ready, a command issued while disconnected connects
+     * directly. Commands are refused while the link is being torn down.
+     *
+     * @return Future completed with the answer of the gate, see {@link CommandCorrelator}.
+     */
+    public CompletableFuture<GateResponse> send(final GateCommand command) {
+        if (mMachine.is(ConnectionStateMachine.DISCONNECTING)) {
+            CompletableFuture<GateResponse> refused = new CompletableFuture<>();
+            refused.completeExceptionally(new IllegalStateException("Disconnecting from " + mAddress));
+            return refused;
+        }
+        final CompletableFuture<GateResponse> future = mCommandCorrelator.register(command);
+        future.whenComplete(mRoundTripRecorder);
+        AuditJournal journal = mJournal;
+        if (journal != null) {
+            journal(journal, command, future);
+        }
+        dispatch(command, future);
+        return future;
+    }
+
+    // Writes the command once the link is ready and, for motion commands, the handshake is over.
+    // Until then it waits, and comes back here on the scheduler's thread.
+    private void dispatch(final GateCommand command, final CompletableFuture<GateResponse> future) {
+        if (future.isDone()) {
+            return;
+        }
+        CompletableFuture<Void> wait;
+        synchronized (this) {
+            if (!mMachine.is(ConnectionStateMachine.READY) && mLinkReady.isDone()) {
+                mLinkReady = new CompletableFuture<>();
+            }
+            wait = !mLinkReady.isDone() ? mLinkReady
+                    : command.getType() == GateCommand.TYPE_MOTION && !mSession.isDone() ? mSession : null;
+        }
+        if (wait == null) {
+            writeCommand(command, future);
+            return;
+        }
+        wait.thenRun(new Runnable() {
+            @Override
+            public void run() {
+                mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatch(command, future);
+                    }
+                }, 0);
+            }
+        });
+        if (!mMachine.isLinked() && !connect()) {
+            mCommandCorrelator.fail(future, new IllegalStateException("Not connected to " + mAddress));
+        }
+    }
+
+    private void writeCommand(final GateCommand command, final CompletableFuture<GateResponse> future) {
+        byte[] data = encode(command);
+        if (data == null) {
+            failWithoutSession(future);
+            return;
+        }
+        mTrace.frame(FrameRingBuffer.DIRECTION_TX, data);
+        int writeType = writeTypeOf(command, data);
+        boolean queued = enqueue(GattOperation.write(GattAttributes.UUID_CHAR, data, writeType)
+                // A failed write without response is not retried but written with response.
+                .setRetries(writeType == GattClient.WRITE_TYPE_NO_RESPONSE ? 0 : GattOperation.DEFAULT_RETRIES)
+                .setCallback(new GattOperation.Callback() {
+                    // Times the local stack was busy when the write without response was started.
+                    private int mBusy;
+
+                    @Override
+                    public void onComplete(GattOperation operation, int status, byte[] value) {
+                        boolean noResponse = operation.getWriteType() == GattClient.WRITE_TYPE_NO_RESPONSE;
+                        if (noResponse && status == GattOperation.STATUS_NOT_DISPATCHED
+                                && mBusy++ < GattOperation.DEFAULT_RETRIES) {
+                            retryWithoutResponse(future, operation, this);
+                            return;
+                        }
+                        if (noResponse && status != GattClient.GATT_SUCCESS
+                                && status != GattOperation.STATUS_CANCELLED) {
+                            // The command goes out again with response. Only a GATT status comes
+                            // from the gate, the link keeps writing without response otherwise.
+                            mTrace.w("Write without response failed, writing with response: ", status);
+                            mMetrics.countStatus(status);
+                            if (status > GattClient.GATT_SUCCESS) {
+                                mNoResponseRefused = true;
+                            }
+                            if (enqueueFirst(GattOperation.write(GattAttributes.UUID_CHAR, operation.getValue(),
+                                    GattClient.WRITE_TYPE_DEFAULT).setCallback(this))) {
+                                return;
+                            }
+                        }
+                        mFailureCallback.onComplete(operation, status, value);
+                        if (status != GattClient.GATT_SUCCESS) {
+                            mCommandCorrelator.fail(future, new IOException("Write failed: " + status));
+                        } else if (noResponse) {
+                            awaitAnswer(command, future, this);
+                        } else {
+                            mMetrics.record(GattMetrics.WRITE_ACK, mScheduler.now() - operation.getStartedAt());
+                        }
+                    }
+                }));
+        if (!queued) {
+            mCommandCorrelator.fail(future, new IllegalStateException("Not connected to " + mAddress));
+        } else if (mMachine.isLinked()) {
+            beginPriorityBurst();
+        } else {
+            connect();
+        }
+    }
+
+    /**
+     * Queues a raw write of an encoded command while connecting or connected.
+     */
+    public boolean write(byte[] data) {
+        if (!canQueue()) {
+            return false;
+        }
+        mTrace.frame(FrameRingBuffer.DIRECTION_TX, data);
+        return enqueue(GattOperation.write(GattAttributes.UUID_CHAR, data, GattClient.WRITE_TYPE_DEFAULT)
+                .setCallback(mFailureCallback));
+    }
+
+    public boolean read() {
+        return canQueue() && enqueue(GattOperation.read(GattAttributes.UUID_CHAR).setCallback(mFailureCallback));
+    }
+
+
+    @Override
+    public void onConnectionStateChange(int status, int newState) {
+        mTrace.i("status ", newState);
+        if (status != GattClient.GATT_SUCCESS) {
+            mMetrics.countStatus(status);
+        }
+        if (newState == GattClient.STATE_CONNECTED) {
+            synchronized (this) {
+                if (mClient == null) {
+                    return;
+                }
+                if (!mWanted || !mMachine.moveTo(ConnectionStateMachine.DISCOVERING)) {
+                    // Raced a disconnect, the link is not wanted anymore.
+                    mTrace.w("Disconnecting, connected while ", mMachine);
+                    mClient.disconnect();
+                    return;
+                }
+                if (mDroppedAt >= 0) {
+                    mMetrics.record(GattMetrics.RECONNECT, mScheduler.now() - mDroppedAt);
+                    mDroppedAt = -1;
+                }
+                mEventBus.dispatchConnected(mAddress);
+                mTrace.i("Connected to GATT server.");
+                mUserWaiting = false;
+                mInBackground = false;
+                mReconnectScheduler.reset();
+                mMtu = GattClient.DEFAULT_MTU;
+                mNoResponseRefused = false;
+                int protocol = mProfiles.getProtocol(mAddress);
+                setProtocol(protocol == GateProfileCache.PROTOCOL_UNKNOWN ? GateCommandCodec.PROTOCOL_V1 : protocol);
+                setSessionKey(null);
+                // Attempts to discover services after successful connection, before anything
+                // that was queued while connecting. A reconnect through the same connection
+                // already knows the characteristic and only has to enable notifications again.
+                if (mClient.hasCachedServices()) {
+                    mTrace.i("Using cached services");
+                    mOperationQueue.enqueueFirst(GattOperation.notify(GattAttributes.UUID_CHAR, true)
+                            .setCallback(mNotifyCallback));
+                } else {
+                    mTrace.i("Attempting to start service discovery");
+                    mOperationQueue.enqueueFirst(GattOperation.discover().setCallback(mDiscoveryCallback));
+                }
+                // Android forgets the MTU with the link, it is exchanged first so the commands
+                // queued while connecting can already use it.
+                if (mProfiles.isMtuWorthRequesting(mAddress)) {
+                    mOperationQueue.enqueueFirst(GattOperation.mtu(PREFERRED_MTU).setRetries(0)
+                            .setCallback(mMtuCallback));
+                }
+                mOperationQueue.setReady(true);
+            }
+            // Setting up the connection and the first command are what the user waits for.
+            beginPriorityBurst();
+        } else if (newState == GattClient.STATE_CONNECTING) {
+            if (mMachine.moveTo(ConnectionStateMachine.CONNECTING)) {
+                mTrace.i("Connecting to GATT server.");
+                mEventBus.dispatchConnecting(mAddress);
+            }
+        } else if (newState == GattClient.STATE_DISCONNECTED) {
+            mTrace.i("Disconnected from GATT server.");
+            endPriorityBurst();
+            int state = getState();
+            boolean wasConnected = state == STATE_CONNECTED;
+            boolean wasDisconnected = state == STATE_DISCONNECTED;
+            boolean retrying;
+            synchronized (this) {
+                if (wasConnected && mWanted && mDroppedAt < 0) {
+                    mDroppedAt = mScheduler.now();
+                }
+                // Commands that were pending when the link dropped mean someone is waiting.
+                boolean userWaiting = mUserWaiting || (wasConnected && !isIdle());
+                if (mOperationQueue != null) {
+                    mOperationQueue.setReady(false);
+                }
+                mInBackground = false;
+                retrying = scheduleReconnect(userWaiting);
+                // Commands queued while connecting wait for the next direct attempt.
+                if (mOperationQueue != null && (wasConnected || !retrying)) {
+                    mOperationQueue.clear();
+                }
+                mMachine.moveTo(retrying ? ConnectionStateMachine.CONNECTING
+                        : mInBackground ? ConnectionStateMachine.SCANNING : ConnectionStateMachine.IDLE);
+            }
+            if (wasConnected || !retrying) {
+                mCommandCorrelator.failAll(new IOException("Disconnected from " + mAddress));
+            }
+            if (retrying) {
+                if (wasConnected) {
+                    mEventBus.dispatchConnecting(mAddress);
+                }
+            } else if (!wasDisconnected) {
+                mEventBus.dispatchDisconnected(mAddress);
+            }
+        }
+    }
+
+    @Override
+    public void onServicesDiscovered(int status) {
+        mTrace.i("Services discovered: ", status);
+        GattOperationQueue queue = queue();
+        if (queue != null) {
+            queue.onServicesDiscovered(status);
+        }
+    }
+
+    @Override
+    public void onServiceChanged() {
+        mTrace.i("Service changed, discovering again.");
+        mMachine.moveTo(ConnectionStateMachine.READY, ConnectionStateMachine.DISCOVERING);
+        enqueueFirst(GattOperation.discover().setCallback(mDiscoveryCallback));
+    }
+
+    @Override
+    public void onCharacteristicRead(UUID characteristic, byte[] value, int status) {
+        if (status == GattClient.GATT_SUCCESS) {
+            dispatchData(value);
+        }
+        GattOperationQueue queue = queue();
+        if (queue != null) {
+            queue.onCharacteristicRead(characteristic, value, status);
+        }
+    }
+
+    @Override
+    public void onCharacteristicWrite(UUID characteristic, int status) {
+        if (status == GattClient.GATT_SUCCESS) {
+            mEventBus.dispatchWrite(mAddress);
+        } else {
+            mTrace.w("Write Failed: ", status);
+        }
+        GattOperationQueue queue = queue();
+        if (queue != null) {
+            queue.onCharacteristicWrite(characteristic, status);
+        }
+    }
+
+    @Override
+    public void onDescriptorWrite(UUID characteristic, int status) {
+        GattOperationQueue queue = queue();
+        if (queue != null) {
+            queue.onDescriptorWrite(characteristic, status);
+        }
+    }
+
+    @Override
+    public void onCharacteristicChanged(UUID characteristic, byte[] value) {
+        mLastAnswerAt = mScheduler.now();
+        GateStatus status = GateStatus.parse(value, mLastAnswerAt);
+        if (status != null) {
+            mTrace.frame(FrameRingBuffer.DIRECTION_RX, value);
+            mStatus = status;
+            mEventBus.dispatchStatusChanged(mAddress, status);
+            return;
+        }
+        mCommandCorrelator.onAnswer(value);
+        dispatchData(value);
+        if (GateCommandCodec.decodeAnswer(value) == GateCommandCodec.ANSWER_ERR_SESSION) {
+            mTrace.w("Session dropped by the gate, starting a new one");
+            setSessionKey(null);
+            startSession();
+        }
+    }
+
+    @Override
+    public void onMtuChanged(int mtu, int status) {
+        mTrace.i("MTU changed: ", mtu);
+        if (status == GattClient.GATT_SUCCESS) {
+            mMtu = mtu;
+            mProfiles.putMtu(mAddress, mtu);
+        }
+        GattOperationQueue queue = queue();
+        if (queue != null) {
+            queue.onMtuChanged(status);
+        }
+    }
+
+
+    private void dispatchData(byte[] data) {
+        mTrace.frame(FrameRingBuffer.DIRECTION_RX, data);
+        if (data != null && data.length > 0) {
+            mEventBus.dispatchDataAvailable(mAddress, data);
+        }
+    }
+
+    // Called with the connection lock held.
+    private boolean connectDirect() {
+        mTrace.d("Trying to create a new connection to ", mAddress);
+        GattClient client = mConnector.open(mAddress, false, this);
+        if (client == null) {
+            return false;
+        }
+        if (mClient != null) {
+            // Background or failed attempt, a gate gets only one connection.
+            mClient.close();
+        }
+        mInBackground = false;
+        attach(client);
+        if (!mMachine.is(ConnectionStateMachine.CONNECTING)) {
+            mMachine.moveTo(ConnectionStateMachine.CONNECTING);
+            mEventBus.dispatchConnecting(mAddress);
+        }
+        return true;
+    }
+
+    /**
+     * Called with the connection lock held after the link went down.
+     *
+     * @return Return true if a direct attempt is scheduled, false if the connection waits in
+     *         the background or is not wanted anymore.
+     */
+    private boolean scheduleReconnect(boolean userWaiting) {
+        if (!mWanted || mClient == null) {
+            return false;
+        }
+        if (userWaiting && mReconnectScheduler.schedule(mReconnectTask)) {
+            mUserWaiting = true;
+            mTrace.i("Reconnecting directly, attempt ", mReconnectScheduler.getAttempts());
+            return true;
+        }
+        mUserWaiting = false;
+        mTrace.i("Reconnecting in the background.");
+        mInBackground = mClient.connect();
+        return false;
+    }
+
+    // Called with the connection lock held, the queue is never ready here.
+    private void attach(GattClient client) {
+        mClient = client;
+        if (mOperationQueue == null) {
+            mOperationQueue = new GattOperationQueue(client, mScheduler);
+        } else {
+            mOperationQueue.setClient(client);
+        }
+    }
+
+    private void beginPriorityBurst() {
+        GattClient client = mClient;
+        synchronized (mPriorityLock) {
+            if (!mHighPriority && client != null && mMachine.isLinked()) {
+                mHighPriority = client.requestConnectionPriority(GattClient.CONNECTION_PRIORITY_HIGH);
+            }
+            if (mHighPriority) {
+                if (mPriorityTask != null) {
+                    mPriorityTask.cancel();
+                }
+                mPriorityTask = mScheduler.schedule(mPriorityTimeout, PRIORITY_LINGER);
+            }
+        }
+    }
+
+    // A new link starts with balanced parameters.
+    private void endPriorityBurst() {
+        synchronized (mPriorityLock) {
+            if (mPriorityTask != null) {
+                mPriorityTask.cancel();
+                mPriorityTask = null;
+            }
+            mHighPriority = false;
+        }
+    }
+
+    // Runs in a queue callback, the query is the next operation. Older firmware collects serial
+    // input until the line goes quiet, anything written meanwhile would end up in the same
+    // command, so the queue waits for the result once the query is out.
+    private void probeProtocol() {
+        final CompletableFuture<GateResponse> answer =
+                mCommandCorrelator.register(GateCommand.version(), PROTOCOL_PROBE_TIMEOUT);
+        byte[] data;
+        synchronized (mCommandCodec) {
+            data = GateCommand.version().encode(mCommandCodec).clone();
+        }
+        mTrace.frame(FrameRingBuffer.DIRECTION_TX, data);
+        GattOperation query = GattOperation.write(GattAttributes.UUID_CHAR, data, GattClient.WRITE_TYPE_DEFAULT);
+        boolean queued = enqueueFirst(query.setCallback(new GattOperation.Callback() {
+                    @Override
+                    public void onComplete(GattOperation operation, int status, byte[] value) {
+                        mFailureCallback.onComplete(operation, status, value);
+                        GattOperationQueue queue = mOperationQueue;
+                        if (status != GattClient.GATT_SUCCESS) {
+                            mCommandCorrelator.fail(answer, new IOException("Write failed: " + status));
+                        } else if (!answer.isDone() && queue != null) {
+                            queue.setReady(false);
+                        }
+                    }
+                }));
+        if (!queued) {
+            mCommandCorrelator.fail(answer, new IllegalStateException("Not connected to " + mAddress));
+        }
+        answer.whenComplete(mProbeResult);
+    }
+
+    // The gate either told its protocol or ignored the query until the deadline.
+    private void onProbeResult(GateResponse response, Throwable error) {
+        int protocol = GateCommandCodec.PROTOCOL_V1;
+        if (response != null) {
+            int version = parseVersion(response.getValue());
+            protocol = version >= GateCommandCodec.PROTOCOL_V3 ? GateCommandCodec.PROTOCOL_V3
+                    : version >= GateCommandCodec.PROTOCOL_V2 ? GateCommandCodec.PROTOCOL_V2
+                    : GateCommandCodec.PROTOCOL_V1;
+            mProfiles.putProtocol(mAddress, protocol);
+        } else if (error instanceof TimeoutException) {
+            mProfiles.putProtocol(mAddress, protocol);
+        } else {
+            // The query did not go out, the gate is asked again on the next link.
+            mTrace.w("Protocol probe failed: ", error);
+        }
+        mTrace.i("Protocol ", protocol);
+        synchronized (this) {
+            setProtocol(protocol);
+            if (mOperationQueue != null
+                    && mMachine.moveTo(ConnectionStateMachine.DISCOVERING, ConnectionStateMachine.READY)) {
+                mOperationQueue.setReady(true);
+            }
+        }
+    }
+
+    private void journal(final AuditJournal journal, final GateCommand command,
+                         CompletableFuture<GateResponse> future) {
+        final long sentAt = mScheduler.now();
+        journal.append(AuditJournal.KIND_COMMAND, mJournalAddress, command.getType(), command.isOpen() ? 1 : 0, 0);
+        future.whenComplete(new BiConsumer<GateResponse, Throwable>() {
+            @Override
+            public void accept(GateResponse response, Throwable error) {
+                if (response != null) {
+                    journal.append(AuditJournal.KIND_ANSWER, mJournalAddress, command.getType(), response.getAnswer(),
+                            response.getLatencyMillis());
+                } else {
+                    int code = error instanceof TimeoutException ? AuditJournal.ERROR_TIMEOUT
+                            : error instanceof IOException ? AuditJournal.ERROR_IO : AuditJournal.ERROR_OTHER;
+                    journal.append(AuditJournal.KIND_ERROR, mJournalAddress, command.getType(), code,
+                            mScheduler.now() - sentAt);
+                }
+            }
+        });
+    }
+
+    // Runs on the scheduler's thread once a link is ready or the gate dropped the session, never
+    // under the queue lock. Motion commands wait for the handshake and fail when it does, a v3
+    // gate never gets the key, see writeCommand(). Commands waiting when the link drops wait for
+    // the handshake of the next one.
+    private void startSession() {
+        final GateKeyStore keyStore = mKeyStore;
+        final CompletableFuture<Void> session;
+        synchronized (this) {
+            boolean supported;
+            synchronized (mCommandCodec) {
+                supported = mCommandCodec.getProtocol() >= GateCommandCodec.PROTOCOL_V3;
+            }
+            if (!supported || keyStore == null) {
+                mSession.complete(null);
+                return;
+            }
+            if (mSession.isDone()) {
+                mSession = new CompletableFuture<>();
+            }
+            session = mSession;
+        }
+        final byte[] clientNonce = GateSession.newNonce(mNonceRandom);
+        GateCommand hello = GateCommand.hello(clientNonce);
+        final CompletableFuture<GateResponse> answer = mCommandCorrelator.register(hello, SESSION_TIMEOUT);
+        byte[] data;
+        synchronized (mCommandCodec) {
+            data = hello.encode(mCommandCodec).clone();
+        }
+        mTrace.frame(FrameRingBuffer.DIRECTION_TX, data);
+        boolean queued = enqueue(GattOperation.write(GattAttributes.UUID_CHAR, data, GattClient.WRITE_TYPE_DEFAULT)
+                .setCallback(new GattOperation.Callback() {
+                    @Override
+                    public void onComplete(GattOperation operation, int status, byte[] value) {
+                        mFailureCallback.onComplete(operation, status, value);
+                        if (status != GattClient.GATT_SUCCESS) {
+                            mCommandCorrelator.fail(answer, new IOException("Write failed: " + status));
+                        }
+                    }
+                }));
+        if (!queued) {
+            mCommandCorrelator.fail(answer, new IllegalStateException("Not connected to " + mAddress));
+        }
+        answer.whenComplete(new BiConsumer<GateResponse, Throwable>() {
+            @Override
+            public void accept(final GateResponse response, final Throwable error) {
+                mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        onHandshakeAnswer(session, keyStore, clientNonce, response, error);
+                    }
+                }, 0);
+            }
+        });
+    }
+
+    // Runs on the scheduler's thread, the parked commands go out from there.
+    private void onHandshakeAnswer(CompletableFuture<Void> session, GateKeyStore keyStore, byte[] clientNonce,
+                                   GateResponse response, Throwable error) {
+        byte[] sessionKey = null;
+        if (response != null && response.getAnswer() == GateCommandCodec.ANSWER_OK_HELLO) {
+            byte[] gateNonce = GateSession.parseHex(response.getValue(), GateSession.NONCE_SIZE);
+            String key = keyStore.get(mAddress);
+            if (gateNonce != null && !key.isEmpty()) {
+                sessionKey = GateSession.sessionKey(key, clientNonce, gateNonce);
+            }
+        }
+        if (sessionKey == null && error != null && !(error instanceof TimeoutException)) {
+            // The link is gone, the next one shakes hands again.
+            mTrace.w("Session handshake failed: ", error);
+            return;
+        }
+        if (sessionKey == null) {
+            // The parked motion commands fail, see writeCommand().
+            mTrace.w("No session with ", mAddress);
+        } else {
+            mTrace.i("Session started with ", mAddress);
+        }
+        setSessionKey(sessionKey);
+        session.complete(null);
+    }
+
+    // A v2 gate pushes every change of its status, only the current one is asked for.
+    private void requestStatus() {
+        byte[] data;
+        synchronized (mCommandCodec) {
+            if (mCommandCodec.getProtocol() < GateCommandCodec.PROTOCOL_V2) {
+                return;
+            }
+            data = mCommandCodec.encodeStatusQuery().clone();
+        }
+        mTrace.frame(FrameRingBuffer.DIRECTION_TX, data);
+        enqueue(GattOperation.write(GattAttributes.UUID_CHAR, data, GattClient.WRITE_TYPE_DEFAULT)
+                .setCallback(mFailureCallback));
+    }
+
+    private void setProtocol(int protocol) {
+        synchronized (mCommandCodec) {
+            mCommandCodec.setProtocol(protocol);
+        }
+    }
+
+    private void setSessionKey(byte[] sessionKey) {
+        synchronized (mCommandCodec) {
+            mCommandCodec.setSessionKey(sessionKey);
+        }
+    }
+
+    private static int parseVersion(String value) {
+        try {
+            return value == null ? 0 : Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Decided when the command is queued, the gate must allow writes without response.
+    private int writeTypeOf(GateCommand command, byte[] data) {
+        GattClient client = mClient;
+        if (command.isIdempotent() && !mNoResponseRefused && client != null
+                && data.length <= mMtu - GattClient.ATT_HEADER_SIZE
+                && (client.getProperties(GattAttributes.UUID_CHAR) & GattClient.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+            return GattClient.WRITE_TYPE_NO_RESPONSE;
+        }
+        return GattClient.WRITE_TYPE_DEFAULT;
+    }
+
+    // The stack refused to start the write while it was busy with something else, it is started
+    // again in a moment, still without response.
+    private void retryWithoutResponse(final CompletableFuture<GateResponse> future, final GattOperation operation,
+                                      final GattOperation.Callback callback) {
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+                if (!enqueueFirst(GattOperation.write(GattAttributes.UUID_CHAR, operation.getValue(),
+                        GattClient.WRITE_TYPE_NO_RESPONSE).setRetries(0).setCallback(callback))) {
+                    mCommandCorrelator.fail(future, new IllegalStateException("Not connected to " + mAddress));
+                }
+            }
+        }, GattOperationQueue.RETRY_DELAY);
+    }
+
+    // A write without response may be lost on the way. If the gate did not answer anything
+    // since, it did not get the command, which is written again with response. A gate still
+    // answering earlier commands is left to the command deadline. The command is encoded again,
+    // within a session with the next counter: the lost frame may have reached the gate after
+    // all, which takes its counter only once.
+    private void awaitAnswer(final GateCommand command, final CompletableFuture<GateResponse> future,
+                             final GattOperation.Callback callback) {
+        final long writtenAt = mScheduler.now();
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone() || mLastAnswerAt > writtenAt || !mMachine.isLinked()) {
+                    return;
+                }
+                byte[] data = encode(command);
+                if (data == null) {
+                    failWithoutSession(future);
+                    return;
+                }
+                mTrace.w("No answer to a write without response, writing with response");
+                mTrace.frame(FrameRingBuffer.DIRECTION_TX, data);
+                enqueue(GattOperation.write(GattAttributes.UUID_CHAR, data, GattClient.WRITE_TYPE_DEFAULT)
+                        .setCallback(callback));
+            }
+        }, ANSWER_TIMEOUT);
+    }
+
+    // Null for a motion command to a v3 gate without a session. Falling back to the key would
+    // let anyone who stops the handshake read it.
+    private byte[] encode(GateCommand command) {
+        synchronized (mCommandCodec) {
+            if (command.getType() == GateCommand.TYPE_MOTION && mKeyStore != null
+                    && mCommandCodec.getProtocol() >= GateCommandCodec.PROTOCOL_V3 && !mCommandCodec.hasSession()) {
+                return null;
+            }
+            // The codec reuses its frames, another thread may encode into this one next.
+            return command.encode(mCommandCodec).clone();
+        }
+    }
+
+    private void failWithoutSession(CompletableFuture<GateResponse> future) {
+        mCommandCorrelator.fail(future, new IllegalStateException("No session with " + mAddress));
+        boolean idle;
+        synchronized (this) {
+            idle = mSession.isDone();
+        }
+        if (idle) {
+            startSession();
+        }
+    }
+
+    // Raw operations only make sense while a link is wanted and not being torn down.
+    private boolean canQueue() {
+        int state = mMachine.getState();
+        return state == ConnectionStateMachine.CONNECTING || mMachine.isLinked();
+    }
+
+    private GattOperationQueue queue() {
+        return mOperationQueue;
+    }
+
+    private boolean enqueue(GattOperation operation) {
+        GattOperationQueue queue = mOperationQueue;
+        if (queue == null) {
+            return false;
+        }
+        queue.enqueue(operation);
+        return true;
+    }
+
+    private boolean enqueueFirst(GattOperation operation) {
+        GattOperationQueue queue = mOperationQueue;
+        if (queue == null) {
+            return false;
+        }
+        queue.enqueueFirst(operation);
+        return true;
+    }
+}
@@ -0,0 +1,239 @@
+package cz.janvanura.gate_bt;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Secure keys of all gates by address, kept in one properties file.
+ *
+ * The file is read once on the I/O executor into an immutable snapshot, {@link #get(String)}
+ * reads the snapshot without locking and never touches the disk. Changes replace the snapshot
+ * at once and are written together {@link #WRITE_DELAY} after the first of them, into a
+ * temporary file renamed over the old one, so a crash leaves either the old keys or the new.
+ * Changes made before the file was read are applied on top of what it holds.
+ */
+public class GateKeyStore {
+
+    public static final long WRITE_DELAY = 500;
+
+    private final File mFile;
+    private final String mDefaultKey;
+    private final Scheduler mScheduler;
+    private final Executor mIoExecutor;
+    private final CompletableFuture<GateKeyStore> mLoaded = new CompletableFuture<>();
+
+    private volatile Map<String, String> mKeys = Collections.emptyMap();
+    // Changes made before the file was read, a null key removes one.
+    private final Map<String, String> mEarlyChanges = new LinkedHashMap<>();
+    private boolean mDirty;
+    private Scheduler.Cancellable mWriteTask;
+
+    private final Runnable mWriteTrigger = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GateKeyStore.this) {
+                mWriteTask = null;
+            }
+            mIoExecutor.execute(mWrite);
+        }
+    };
+
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+
+    /**
+     * @param defaultKey Key of gates with none stored, the one the firmware starts with.
+     */
+    public GateKeyStore(File file, String defaultKey, Scheduler scheduler, Executor ioExecutor) {
+        mFile = file;
+        mDefaultKey = defaultKey;
+        mScheduler = scheduler;
+        mIoExecutor = ioExecutor;
+    }
+
+    /**
+     * Reads the file on the I/O executor, once.
+     *
+     * @return Completes when the keys were read, with the store even if reading failed.
+     */
+    public CompletableFuture<GateKeyStore> load() {
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Map<String, String> keys = read();
+                synchronized (GateKeyStore.this) {
+                    if (mLoaded.isDone()) {
+                        return;
+                    }
+                    keys.putAll(mEarlyChanges);
+                    keys.values().removeAll(Collections.singleton(null));
+                    mKeys = Collections.unmodifiableMap(keys);
+                    if (!mEarlyChanges.isEmpty()) {
+                        mEarlyChanges.clear();
+                        scheduleWrite();
+                    }
+                }
+                mLoaded.complete(GateKeyStore.this);
+            }
+        });
+        return mLoaded;
+    }
+
+    /**
+     * @return Completes once the keys were read, see {@link #load()}.
+     */
+    public CompletableFuture<GateKeyStore> whenLoaded() {
+        return mLoaded;
+    }
+
+    public boolean isLoaded() {
+        return mLoaded.isDone();
+    }
+
+    /**
+     * @return Key of the gate at {@code address}, the default key if none is stored or the keys
+     *         were not read yet.
+     */
+    public String get(String address) {
+        String key = mKeys.get(normalize(address));
+        return key == null ? mDefaultKey : key;
+    }
+
+    /**
+     * @return Return true if a key of its own is stored for {@code address}.
+     */
+    public boolean contains(String address) {
+        return mKeys.containsKey(normalize(address));
+    }
+
+    /**
+     * @return Immutable snapshot of all stored keys by address.
+     */
+    public Map<String, String> getAll() {
+        return mKeys;
+    }
+
+    /**
+     * Stores the key of one gate, null removes it.
+     */
+    public void put(String address, String key) {
+        putAll(Collections.singletonMap(address, key));
+    }
+
+    /**
+     * Stores keys of several gates at once, readers see all of them or none. Null keys remove
+     * the gate.
+     */
+    public synchronized void putAll(Map<String, String> keys) {
+        Map<String, String> next = new HashMap<>(mKeys);
+        for (Map.Entry<String, String> entry : keys.entrySet()) {
+            String address = normalize(entry.getKey());
+            if (entry.getValue() == null) {
+                next.remove(address);
+            } else {
+                next.put(address, entry.getValue());
+            }
+            if (!mLoaded.isDone()) {
+                mEarlyChanges.put(address, entry.getValue());
+            }
+        }
+        mKeys = Collections.unmodifiableMap(next);
+        if (mLoaded.isDone()) {
+            scheduleWrite();
+        }
+    }
+
+    /**
+     * Writes pending changes now instead of after {@link #WRITE_DELAY}, e.g. before the process
+     * may end.
+     */
+    public void flush() {
+        synchronized (this) {
+            if (!mDirty) {
+                return;
+            }
+            if (mWriteTask != null) {
+                mWriteTask.cancel();
+                mWriteTask = null;
+            }
+        }
+        mIoExecutor.execute(mWrite);
+    }
+
+
+    // Called with the lock held.
+    private void scheduleWrite() {
+        mDirty = true;
+        if (mWriteTask == null) {
+            mWriteTask = mScheduler.schedule(mWriteTrigger, WRITE_DELAY);
+        }
+    }
+
+    // Runs on the I/O executor, writes the newest snapshot once for any number of changes.
+    private void write() {
+        Map<String, String> keys;
+        synchronized (this) {
+            if (!mDirty) {
+                return;
+            }
+            mDirty = false;
+            keys = mKeys;
+        }
+        Properties properties = new Properties();
+        properties.putAll(keys);
+        File temp = new File(mFile.getPath() + ".tmp");
+        try {
+            File parent = mFile.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create " + parent);
+            }
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                properties.store(out, null);
+                out.getFD().sync();
+            }
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Cannot replace " + mFile);
+            }
+        } catch (IOException e) {
+            // Tried again with the next change or flush.
+            synchronized (this) {
+                mDirty = true;
+            }
+            temp.delete();
+        }
+    }
+
+    private Map<String, String> read() {
+        Map<String, String> keys = new HashMap<>();
+        Properties properties = new Properties();
+        try (FileInputStream in = new FileInputStream(mFile)) {
+            properties.load(in);
+        } catch (IOException | IllegalArgumentException e) {
+            // A missing or damaged file leaves every gate at the default key.
+            return keys;
+        }
+        for (String address : properties.stringPropertyNames()) {
+            keys.put(normalize(address), properties.getProperty(address));
+        }
+        return keys;
+    }
+
+    private static String normalize(String address) {
+        return address.toUpperCase(Locale.ROOT);
+    }
+}
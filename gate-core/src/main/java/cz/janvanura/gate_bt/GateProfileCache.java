@@ -0,0 +1,52 @@
+package cz.janvanura.gate_bt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What was learned about each gate on earlier links: the ATT MTU it agreed to and the protocol
+ * its firmware speaks. Android forgets the MTU with every connection, so it is requested again
+ * after each connect, except from gates known to stay at the default. The protocol is probed
+ * once per gate.
+ */
+public class GateProfileCache {
+
+    /** Protocol of a gate that was not probed yet. */
+    public static final int PROTOCOL_UNKNOWN = 0;
+
+    private final Map<String, Integer> mMtus = new HashMap<>();
+    private final Map<String, Integer> mProtocols = new HashMap<>();
+
+
+    /**
+     * @return Last MTU negotiated with {@code address}, {@link GattClient#DEFAULT_MTU} if unknown.
+     */
+    public synchronized int getMtu(String address) {
+        Integer mtu = mMtus.get(address);
+        return mtu == null ? GattClient.DEFAULT_MTU : mtu;
+    }
+
+    /**
+     * @return Return true if an MTU exchange with {@code address} may end above the default.
+     */
+    public synchronized boolean isMtuWorthRequesting(String address) {
+        Integer mtu = mMtus.get(address);
+        return mtu == null || mtu > GattClient.DEFAULT_MTU;
+    }
+
+    public synchronized void putMtu(String address, int mtu) {
+        mMtus.put(address, mtu);
+    }
+
+    /**
+     * @return One of the {@code GateCommandCodec.PROTOCOL_*} constants or {@link #PROTOCOL_UNKNOWN}.
+     */
+    public synchronized int getProtocol(String address) {
+        Integer protocol = mProtocols.get(address);
+        return protocol == null ? PROTOCOL_UNKNOWN : protocol;
+    }
+
+    public synchronized void putProtocol(String address, int protocol) {
+        mProtocols.put(address, protocol);
+    }
+}
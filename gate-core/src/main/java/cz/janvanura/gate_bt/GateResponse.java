@@ -0,0 +1,77 @@
+package cz.janvanura.gate_bt;
+
+/**
+ * Answer of the gate to a {@link GateCommand}.
+ */
+public final class GateResponse {
+
+    private final GateCommand mCommand;
+    private final int mAnswer;
+    private final String mValue;
+    private final long mLatency;
+    private final long mAckLatency;
+
+
+    public GateResponse(GateCommand command, int answer, String value, long latencyMillis) {
+        this(command, answer, value, latencyMillis, -1);
+    }
+
+    /**
+     * @param ackLatencyMillis Time until the gate acknowledged the command, -1 if it did not.
+     */
+    public GateResponse(GateCommand command, int answer, String value, long latencyMillis, long ackLatencyMillis) {
+        mCommand = command;
+        mAnswer = answer;
+        mValue = value;
+        mLatency = latencyMillis;
+        mAckLatency = ackLatencyMillis;
+    }
+
+    public GateCommand getCommand() {
+        return mCommand;
+    }
+
+    /**
+     * @return One of the {@code GateCommandCodec.ANSWER_*} codes.
+     */
+    public int getAnswer() {
+        return mAnswer;
+    }
+
+    /**
+     * @return Value of {@code ok:c:value} and {@code err:m:value} answers, null otherwise.
+     */
+    public String getValue() {
+        return mValue;
+    }
+
+    /**
+     * @return Time from sending the command to receiving the answer.
+     */
+    public long getLatencyMillis() {
+        return mLatency;
+    }
+
+    /**
+     * @return Time from sending the command to its acknowledgement, -1 if the gate answered
+     *         without one.
+     */
+    public long getAckLatencyMillis() {
+        return mAckLatency;
+    }
+
+    public boolean wasAcknowledged() {
+        return mAckLatency >= 0;
+    }
+
+    public boolean isOk() {
+        return mAnswer == GateCommandCodec.ANSWER_OK_OPEN
+                || mAnswer == GateCommandCodec.ANSWER_OK_CLOSE
+                || mAnswer == GateCommandCodec.ANSWER_OK_CHANGE;
+    }
+
+    @Override
+    public String toString() {
+        return "GateResponse{" + mCommand + ", answer=" + mAnswer + ", latency=" + mLatency + "ms}";
+    }
+}
@@ -0,0 +1,142 @@
+package cz.janvanura.gate_bt;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Scans for gates in bounded windows and keeps what it sees in a {@link ScanResultCache}.
+ *
+ * A window lasts {@link #SCAN_WINDOW} ms. Android blocks apps that start more than five scans
+ * in 30 seconds, so starts closer than {@link #MIN_START_INTERVAL} ms apart are refused. Results
+ * not advertising the gate service are dropped, the hardware filter is not available
+ * everywhere. A window that finds no gate ends with {@link GattEventBus.Listener#onNothingFound}.
+ */
+public class GateScanner {
+
+    public static final long SCAN_WINDOW = 10000;
+    public static final long MIN_START_INTERVAL = 6000;
+
+    private final BleScanner mScanner;
+    private final Scheduler mScheduler;
+    private final ScanResultCache mCache;
+    private final GattEventBus mEventBus;
+    private final GattTrace mTrace;
+
+    private boolean mScanning;
+    private boolean mFoundAny;
+    private long mLastStart = Long.MIN_VALUE / 2;
+    private Scheduler.Cancellable mStopTask;
+
+
+    private final BleScanner.Callback mCallback = new BleScanner.Callback() {
+        @Override
+        public void onResult(String address, String name, int rssi, List<UUID> serviceUuids) {
+            if (serviceUuids == null || !serviceUuids.contains(GattAttributes.UUID_SERVICE)) {
+                return;
+            }
+            boolean added;
+            synchronized (GateScanner.this) {
+                if (!mScanning) {
+                    return;
+                }
+                mFoundAny = true;
+                added = mCache.put(address, name, rssi, mScheduler.now());
+            }
+            if (added) {
+                mTrace.i("Found gate ", address);
+                mEventBus.dispatchGateFound(address, rssi);
+            }
+        }
+
+        @Override
+        public void onFailed(int errorCode) {
+            mTrace.w("Scan failed: ", errorCode);
+            synchronized (GateScanner.this) {
+                finish();
+            }
+            mEventBus.dispatchNothingFound(null);
+        }
+    };
+
+    private final Runnable mWindowEnd = new Runnable() {
+        @Override
+        public void run() {
+            boolean foundAny;
+            synchronized (GateScanner.this) {
+                if (!mScanning) {
+                    return;
+                }
+                mStopTask = null;
+                foundAny = mFoundAny;
+                stopScanner();
+            }
+            if (!foundAny) {
+                mEventBus.dispatchNothingFound(null);
+            }
+        }
+    };
+
+
+    public GateScanner(BleScanner scanner, Scheduler scheduler, ScanResultCache cache, GattEventBus eventBus,
+                       GattTrace trace) {
+        mScanner = scanner;
+        mScheduler = scheduler;
+        mCache = cache;
+        mEventBus = eventBus;
+        mTrace = trace;
+    }
+
+    /**
+     * Starts a scan window, or keeps the running one.
+     *
+     * @return Return false if the scan could not be started, e.g. right after the previous one.
+     */
+    public synchronized boolean start() {
+        if (mScanning) {
+            return true;
+        }
+        long now = mScheduler.now();
+        if (now - mLastStart < MIN_START_INTERVAL) {
+            mTrace.i("Scan throttled");
+            return false;
+        }
+        // The user is usually waiting in front of the gate, the window itself is short.
+        if (!mScanner.start(GattAttributes.UUID_SERVICE, true, mCallback)) {
+            return false;
+        }
+        mLastStart = now;
+        mScanning = true;
+        mFoundAny = false;
+        mStopTask = mScheduler.schedule(mWindowEnd, SCAN_WINDOW);
+        return true;
+    }
+
+    public synchronized void stop() {
+        if (mScanning) {
+            stopScanner();
+        }
+        finish();
+    }
+
+    public synchronized boolean isScanning() {
+        return mScanning;
+    }
+
+    public ScanResultCache getCache() {
+        return mCache;
+    }
+
+
+    private void stopScanner() {
+        mScanner.stop();
+        mScanning = false;
+    }
+
+    private void finish() {
+        mScanning = false;
+        if (mStopTask != null) {
+            mStopTask.cancel();
+            mStopTask = null;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package cz.janvanura.gate_bt;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Session handshake of protocol v3, the reference for both the app and the sketch.
+ *
+ * Once per connection the app sends {@code h:client_nonce} and the gate answers
+ * {@code ok:h:gate_nonce}, both nonces {@link #NONCE_SIZE} random bytes in hex. Each side
+ * derives the session key as the first {@link #KEY_SIZE} bytes of
+ * {@code HMAC-SHA256(secure_key, "gate-bt" client_nonce gate_nonce)}, which never goes over
+ * the air. Motion commands then carry {@code t:counter tag:value} instead of the key, the
+ * counter as two bytes and the tag as the first {@link #TAG_SIZE} bytes of
+ * {@code HMAC-SHA256(session_key, counter value)}, all in hex. The counter starts at 1 and
+ * grows with every command, the gate takes each one once, so a recorded command cannot be
+ * played again, not even within its session. The gate drops the session on a wrong tag or a
+ * used counter, on a new handshake, when the link drops and on restart, answering
+ * {@code err:session}.
+ *
+ * Sessions keep the key off the air, they do not make motion frames shorter. A framed
+ * {@code t:0001a1b2c3d4:1} is 18 bytes whatever the key, a framed {@code m:key:1} 10 to 15.
+ * A token short enough to save bytes could be recorded and sent again, the counter and tag are
+ * what make a recorded frame useless. Both fit one write at the default MTU. The key
+ * derivation runs once per connection, every motion command costs one HMAC over three bytes on
+ * either side.
+ */
+public final class GateSession {
+
+    // The framed answer {@code ok:h:gate_nonce} has to fit one notification at the default MTU.
+    public static final int NONCE_SIZE = 6;
+    public static final int KEY_SIZE = 16;
+    public static final int COUNTER_SIZE = 2;
+    public static final int TAG_SIZE = 4;
+    /** The last command of a session, a new handshake follows. */
+    public static final int MAX_COUNTER = 0xFFFF;
+    /** Size of the buffer {@link #tag(Mac, int, boolean, byte[])} writes into. */
+    public static final int MAC_SIZE = 32;
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final byte[] LABEL = "gate-bt".getBytes(StandardCharsets.US_ASCII);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+
+    private GateSession() {
+    }
+
+    public static byte[] newNonce(Random random) {
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * Derives the key of a session, once per connection.
+     *
+     * @param secureKey Key of the gate, in the same UTF-8 the {@code m} command carries it in.
+     */
+    public static byte[] sessionKey(String secureKey, byte[] clientNonce, byte[] gateNonce) {
+        byte[] key = secureKey.getBytes(StandardCharsets.UTF_8);
+        if (key.length == 0) {
+            throw new IllegalArgumentException("Empty secure key");
+        }
+        Mac mac = newMac(key);
+        mac.update(LABEL);
+        mac.update(clientNonce);
+        mac.update(gateNonce);
+        byte[] sessionKey = new byte[KEY_SIZE];
+        System.arraycopy(mac.doFinal(), 0, sessionKey, 0, KEY_SIZE);
+        return sessionKey;
+    }
+
+    /**
+     * @return HMAC-SHA256 keyed with {@code key}, reused for every command of a session.
+     */
+    public static Mac newMac(byte[] key) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key, ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            // Every Java and Android runtime has HMAC-SHA256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Computes the tag of the motion command {@code counter} without allocating.
+     *
+     * @param mac Result of {@link #newMac(byte[])} with the session key.
+     * @param out At least {@link #MAC_SIZE} bytes, the tag are the first {@link #TAG_SIZE}.
+     */
+    public static void tag(Mac mac, int counter, boolean open, byte[] out) {
+        mac.update((byte) (counter >> 8));
+        mac.update((byte) counter);
+        mac.update((byte) (open ? GattAttributes.VALUE_OPEN : GattAttributes.VALUE_CLOSE).charAt(0));
+        try {
+            mac.doFinal(out, 0);
+        } catch (ShortBufferException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * The gate's side of {@link #tag(Mac, int, boolean, byte[])}.
+     *
+     * @param field {@code counter tag} of the command in hex.
+     * @return The counter of the command, or -1 when the field is malformed or the tag wrong.
+     */
+    public static int verify(Mac mac, CharSequence field, boolean open) {
+        byte[] bytes = parseHex(field, COUNTER_SIZE + TAG_SIZE);
+        if (mac == null || bytes == null) {
+            return -1;
+        }
+        int counter = (bytes[0] & 0xFF) << 8 | bytes[1] & 0xFF;
+        byte[] expected = new byte[MAC_SIZE];
+        tag(mac, counter, open, expected);
+        byte[] tag = new byte[TAG_SIZE];
+        System.arraycopy(bytes, COUNTER_SIZE, tag, 0, TAG_SIZE);
+        return matches(Arrays.copyOf(expected, TAG_SIZE), tag) ? counter : -1;
+    }
+
+    /**
+     * @return Return true if {@code actual} is {@code expected}, in time independent of where
+     *         they differ.
+     */
+    public static boolean matches(byte[] expected, byte[] actual) {
+        return expected != null && actual != null && MessageDigest.isEqual(expected, actual);
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0x0F];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @return The bytes of {@code hex}, or null when it is not exactly {@code size} bytes in hex.
+     */
+    public static byte[] parseHex(CharSequence hex, int size) {
+        if (hex == null || hex.length() != size * 2) {
+            return null;
+        }
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,779 @@
+package cz.janvanura.gate_bt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import javax.crypto.Mac;
+
+/**
+ * Gate controller in plain Java, behaving like {@code arduino/gateBt/gateBt.ino} behind an
+ * HM-10 module. Clients reach it through {@link #connector()}, the same {@link GattConnector}
+ * abstraction the service uses, so connections, the operation queue and command correlation
+ * can be run against it for thousands of cycles in virtual time.
+ *
+ * Like the sketch it keeps the secure key in EEPROM and switches the relays by the rules of
+ * {@link RelayScheduler}, reading on while the gate moves. A framed motion command is
+ * acknowledged at once with {@code ack:m:value}, every motion command is answered when its
+ * pulse is done. Every switch of a relay and every queued pulse pushes a {@link GateStatus}
+ * frame. A v2 frame is handled as soon as it is complete, bare text once the line was
+ * quiet for {@link #LEGACY_TIMEOUT}. With {@link #setFirmwareProtocol(int)} set to v1 it
+ * behaves like the sketch before protocol v2, which read with {@code readString()}, answered
+ * only after the serial read timeout and read nothing during the relay pulse.
+ * Also like the sketch, a changed secure key is written to EEPROM and used at once, the app
+ * shakes hands with it as soon as it sees {@code ok:c}. The v3 firmware starts a {@link GateSession} on {@code h} and takes motion
+ * commands with a tag and a counter it has not seen yet, the session ends with the next
+ * handshake, a wrong tag, a used counter, the end of the link or a restart.
+ *
+ * The link is shaped by latency, MTU, packet loss and notification jitter. Like the HM-10's
+ * characteristic it takes writes with and without response. All timing goes through the
+ * {@link Scheduler}, randomness through the given {@link Random}.
+ */
+public class GateSimulator {
+
+    public static final String MASTER_KEY = "12345";
+    public static final String DEFAULT_SECURE_KEY = "0000";
+    public static final long RELAY_PULSE = RelayScheduler.PULSE;
+    // Stream.readString() returns only after no byte arrived for this long.
+    public static final long DEFAULT_SERIAL_READ_TIMEOUT = 1000;
+    // Bare text of protocol v1 is complete once no byte arrived for this long.
+    public static final long LEGACY_TIMEOUT = 100;
+    public static final int DEFAULT_MTU = GattClient.DEFAULT_MTU;
+
+    // Status Android reports when a connection attempt fails.
+    public static final int STATUS_CONNECTION_FAILED = 133;
+
+    static final int MAX_SECURE_KEY_SIZE = 10;
+    static final int EEPROM_SIZE = 1024;
+    // SoftwareSerial drops what does not fit.
+    static final int SERIAL_BUFFER_SIZE = 64;
+    // Input buffer of the parser, longer input is dropped.
+    static final int MAX_INPUT_SIZE = 32;
+
+    private static final int PARSER_WAIT = 0;
+    private static final int PARSER_TEXT = 1;
+    private static final int PARSER_FRAME = 2;
+    private static final int PARSER_SKIP = 3;
+
+    private final Scheduler mScheduler;
+    private final Random mRandom;
+    private final byte[] mEeprom = new byte[EEPROM_SIZE];
+    private String mSecureKey;
+    private Mac mSessionMac;
+    private int mSessionCounter;
+
+    private long mLinkLatency;
+    private int mMtu = DEFAULT_MTU;
+    private float mPacketLoss;
+    private long mNotificationJitter;
+    private long mSerialReadTimeout = DEFAULT_SERIAL_READ_TIMEOUT;
+    private int mFirmwareProtocol = GateCommandCodec.PROTOCOL_V3;
+    private int mParserState = PARSER_WAIT;
+
+    private final StringBuilder mSerialBuffer = new StringBuilder();
+    private long mLastByteTime;
+    private long mBusyUntil;
+    private long mLastNotificationTime;
+    private Scheduler.Cancellable mReadTask;
+    private SimulatedClient mLink;
+    // Waiters are whether the command was framed.
+    private final RelayScheduler<Boolean> mRelay;
+
+    private int mOpenPulses;
+    private int mClosePulses;
+    private long mStartedAt;
+    private int mRelayOn = GateStatus.RELAY_IDLE;
+    private int mLastPulse = GateStatus.LAST_NONE;
+
+
+    public GateSimulator(Scheduler scheduler, Random random) {
+        mScheduler = scheduler;
+        mRandom = random;
+        // Erased EEPROM reads 0xFF.
+        Arrays.fill(mEeprom, (byte) 0xFF);
+        mRelay = new RelayScheduler<>(scheduler, new RelayScheduler.Listener<Boolean>() {
+            @Override
+            public void onRelay(boolean open, boolean on) {
+                switchRelay(open, on);
+            }
+
+            @Override
+            public void onDone(boolean open, List<Boolean> waiters) {
+                answerPulse(open, waiters);
+            }
+        });
+        restart();
+    }
+
+    /**
+     * One way delay of every packet, in ms.
+     */
+    public synchronized GateSimulator setLinkLatency(long latency) {
+        mLinkLatency = latency;
+        return this;
+    }
+
+    /**
+     * Largest MTU the module agrees to in an MTU exchange, every link starts at {@link #DEFAULT_MTU}.
+     * Writes longer than the link's {@code mtu - 3} fail, answers are split into notifications
+     * of that size.
+     */
+    public synchronized GateSimulator setMtu(int mtu) {
+        mMtu = mtu;
+        return this;
+    }
+
+    /**
+     * Probability, between 0 and 1, that a write or a notification is lost.
+     */
+    public synchronized GateSimulator setPacketLoss(float packetLoss) {
+        mPacketLoss = packetLoss;
+        return this;
+    }
+
+    /**
+     * Upper bound of a random delay added to every notification, in ms.
+     */
+    public synchronized GateSimulator setNotificationJitter(long jitter) {
+        mNotificationJitter = jitter;
+        return this;
+    }
+
+    /**
+     * Serial read timeout of the v1 firmware.
+     */
+    public synchronized GateSimulator setSerialReadTimeout(long timeout) {
+        mSerialReadTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * @param protocol {@code GateCommandCodec.PROTOCOL_V3} for the current sketch, the default,
+     *                 {@code PROTOCOL_V2} for the one without sessions or {@code PROTOCOL_V1} for
+     *                 the sketch before framing.
+     */
+    public synchronized GateSimulator setFirmwareProtocol(int protocol) {
+        mFirmwareProtocol = protocol;
+        return this;
+    }
+
+    /**
+     * Power cycle, {@code setup()} of the sketch: the secure key is loaded from EEPROM, or the
+     * default one is stored when EEPROM holds none.
+     */
+    public synchronized void restart() {
+        String secureKey = readStringFromEeprom(0);
+        if (secureKey.isEmpty() || secureKey.length() + 1 > MAX_SECURE_KEY_SIZE) {
+            changeSecureKey(DEFAULT_SECURE_KEY);
+        } else {
+            mSecureKey = secureKey;
+        }
+        mSerialBuffer.setLength(0);
+        mParserState = PARSER_WAIT;
+        mSessionMac = null;
+        mStartedAt = mScheduler.now();
+    }
+
+    /**
+     * @return The key open and close commands are checked against.
+     */
+    public synchronized String getSecureKey() {
+        return mSecureKey;
+    }
+
+    /**
+     * @return The key stored in EEPROM, loaded again on {@link #restart()}.
+     */
+    public synchronized String getStoredSecureKey() {
+        return readStringFromEeprom(0);
+    }
+
+    public synchronized int getOpenPulses() {
+        return mOpenPulses;
+    }
+
+    public synchronized int getClosePulses() {
+        return mClosePulses;
+    }
+
+    /**
+     * @return Return true while a relay pulse of the v2 firmware runs or waits.
+     */
+    public boolean isRelayBusy() {
+        return mRelay.isBusy();
+    }
+
+    /**
+     * Handles one serial input like {@code loop()} of the sketch, without any timing: a motion
+     * command is answered as if its pulse was already done.
+     *
+     * @return The answer printed to the serial line, or null when there is none.
+     */
+    public synchronized String process(String input) {
+        String cmd;
+        String key;
+        String value;
+        if (mFirmwareProtocol == GateCommandCodec.PROTOCOL_V1) {
+            cmd = split(input, ':', 0);
+            key = split(input, ':', 1);
+            value = split(input, ':', 2);
+        } else {
+            cmd = field(input, 0);
+            key = field(input, 1);
+            value = field(input, 2);
+        }
+
+        String answer = null;
+        if (cmd.equals(GattAttributes.CMD_VERSION) && mFirmwareProtocol >= GateCommandCodec.PROTOCOL_V2) {
+            answer = "ok:v:" + mFirmwareProtocol;
+        }
+        if (cmd.equals(GattAttributes.CMD_STATUS) && mFirmwareProtocol >= GateCommandCodec.PROTOCOL_V2) {
+            answer = status();
+        }
+        if (cmd.equals(GattAttributes.CMD_HELLO) && mFirmwareProtocol >= GateCommandCodec.PROTOCOL_V3) {
+            answer = startSession(key);
+        }
+        if (cmd.equals(GattAttributes.CMD_CHANGE)) {
+            if (key.equals(MASTER_KEY)) {
+                answer = changeSecureKey(value) ? "ok:c:" + value : "err:length";
+            } else {
+                answer = "err:master";
+            }
+        }
+
+        boolean session = cmd.equals(GattAttributes.CMD_TOKEN) && mFirmwareProtocol >= GateCommandCodec.PROTOCOL_V3;
+        if (cmd.equals(GattAttributes.CMD_MOTION) || session) {
+            if (session && !acceptSessionMotion(key, value)) {
+                return "err:session";
+            }
+            if (!session && !key.equals(mSecureKey)) {
+                return "err:secure";
+            }
+            if (value.equals(GattAttributes.VALUE_OPEN)) {
+                mOpenPulses++;
+                answer = "ok:m:" + value;
+            } else if (value.equals(GattAttributes.VALUE_CLOSE)) {
+                mClosePulses++;
+                answer = "ok:m:" + value;
+            } else {
+                answer = "err:m:" + value;
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * @return Connector to this gate. The HM-10 takes one connection at a time, further ones fail.
+     */
+    public GattConnector connector() {
+        return new GattConnector() {
+            @Override
+            public GattClient open(String address, boolean autoConnect, GattClient.Callback callback) {
+                SimulatedClient client = new SimulatedClient(address, callback);
+                client.connect();
+                return client;
+            }
+        };
+    }
+
+
+    // Bytes written by the client arrive at the serial port of the controller.
+    private synchronized void receive(final byte[] data) {
+        if (mFirmwareProtocol == GateCommandCodec.PROTOCOL_V1) {
+            receiveText(data);
+            return;
+        }
+        parse(data);
+    }
+
+    // parse() of the sketch, one byte at a time.
+    private void parse(byte[] data) {
+        mLastByteTime = mScheduler.now();
+        for (byte b : data) {
+            if (b == GateCommandCodec.FRAME_START) {
+                // Drops whatever was not finished.
+                mParserState = PARSER_FRAME;
+                mSerialBuffer.setLength(0);
+            } else if (mParserState == PARSER_FRAME && b == GateCommandCodec.FRAME_END) {
+                String input = mSerialBuffer.toString();
+                mParserState = PARSER_WAIT;
+                mSerialBuffer.setLength(0);
+                handle(input, true);
+            } else if (mParserState != PARSER_SKIP) {
+                if (mParserState == PARSER_WAIT) {
+                    mParserState = PARSER_TEXT;
+                }
+                if (mSerialBuffer.length() >= MAX_INPUT_SIZE) {
+                    mParserState = PARSER_SKIP;
+                    mSerialBuffer.setLength(0);
+                } else {
+                    mSerialBuffer.append((char) (b & 0xFF));
+                }
+            }
+        }
+        if (mParserState == PARSER_TEXT || mParserState == PARSER_SKIP) {
+            if (mReadTask != null) {
+                mReadTask.cancel();
+            }
+            mReadTask = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    endText();
+                }
+            }, LEGACY_TIMEOUT);
+        }
+    }
+
+    // Bare text has no end marker, a quiet line ends it.
+    private synchronized void endText() {
+        mReadTask = null;
+        String input = mSerialBuffer.toString();
+        boolean skipped = mParserState == PARSER_SKIP;
+        mParserState = PARSER_WAIT;
+        mSerialBuffer.setLength(0);
+        if (!skipped) {
+            handle(input, false);
+        }
+    }
+
+    // readString() of the sketch before protocol v2.
+    private void receiveText(byte[] data) {
+        int room = SERIAL_BUFFER_SIZE - mSerialBuffer.length();
+        mSerialBuffer.append(new String(data, 0, Math.min(room, data.length), StandardCharsets.ISO_8859_1));
+        mLastByteTime = mScheduler.now();
+        if (mReadTask != null) {
+            mReadTask.cancel();
+        }
+        // readString() starts once the loop is free and returns after the line went quiet.
+        long done = Math.max(mBusyUntil, mLastByteTime) + mSerialReadTimeout;
+        mReadTask = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                readInput();
+            }
+        }, done - mScheduler.now());
+    }
+
+    private synchronized void readInput() {
+        mReadTask = null;
+        String input = mSerialBuffer.toString();
+        mSerialBuffer.setLength(0);
+        handle(input, false);
+    }
+
+    // A framed command gets a framed answer.
+    private void handle(String input, boolean framed) {
+        if (mFirmwareProtocol >= GateCommandCodec.PROTOCOL_V2 && isMotion(input)) {
+            String value = field(input, 2);
+            int result = mRelay.request(value.equals(GattAttributes.VALUE_OPEN), framed);
+            if (result == RelayScheduler.BUSY) {
+                print("err:busy", framed, mScheduler.now());
+                return;
+            }
+            if (result == RelayScheduler.QUEUED) {
+                print(status(), true, mScheduler.now());
+            }
+            if (framed) {
+                print("ack:m:" + value, true, mScheduler.now());
+            }
+            return;
+        }
+        int pulses = mOpenPulses + mClosePulses;
+        String answer = process(input);
+        // delay() of the relay pulse blocks the loop before the answer is printed.
+        long printTime = mScheduler.now() + (mOpenPulses + mClosePulses > pulses ? RELAY_PULSE : 0);
+        mBusyUntil = printTime;
+        if (answer != null) {
+            print(answer, framed, printTime);
+        }
+    }
+
+    // A motion command with the right key, what the v2 firmware hands to the relays. Session
+    // commands too, unless they are refused, then process() answers err:session.
+    private boolean isMotion(String input) {
+        String cmd = field(input, 0);
+        String value = field(input, 2);
+        if (!value.equals(GattAttributes.VALUE_OPEN) && !value.equals(GattAttributes.VALUE_CLOSE)) {
+            return false;
+        }
+        if (cmd.equals(GattAttributes.CMD_TOKEN) && mFirmwareProtocol >= GateCommandCodec.PROTOCOL_V3) {
+            return acceptSessionMotion(field(input, 1), value);
+        }
+        return cmd.equals(GattAttributes.CMD_MOTION) && field(input, 1).equals(mSecureKey);
+    }
+
+    // A new handshake ends the old session whether it succeeds or not.
+    private String startSession(String clientNonceHex) {
+        mSessionMac = null;
+        byte[] clientNonce = GateSession.parseHex(clientNonceHex, GateSession.NONCE_SIZE);
+        if (clientNonce == null) {
+            return "err:session";
+        }
+        byte[] gateNonce = GateSession.newNonce(mRandom);
+        mSessionMac = GateSession.newMac(GateSession.sessionKey(mSecureKey, clientNonce, gateNonce));
+        mSessionCounter = 0;
+        return "ok:h:" + GateSession.toHex(gateNonce);
+    }
+
+    // Takes each counter once, anything else ends the session.
+    private boolean acceptSessionMotion(String field, String value) {
+        int counter = GateSession.verify(mSessionMac, field, value.equals(GattAttributes.VALUE_OPEN));
+        if (counter <= mSessionCounter) {
+            mSessionMac = null;
+            return false;
+        }
+        mSessionCounter = counter;
+        return true;
+    }
+
+    private synchronized void switchRelay(boolean open, boolean on) {
+        if (on) {
+            if (open) {
+                mOpenPulses++;
+            } else {
+                mClosePulses++;
+            }
+            mRelayOn = open ? GateStatus.RELAY_OPEN : GateStatus.RELAY_CLOSE;
+            mLastPulse = open ? GateStatus.LAST_OPEN : GateStatus.LAST_CLOSE;
+        } else {
+            mRelayOn = GateStatus.RELAY_IDLE;
+        }
+        print(status(), true, mScheduler.now());
+    }
+
+    // s:relay:queued:last:uptime
+    private String status() {
+        int queued = Math.max(0, mRelay.size() - (mRelayOn == GateStatus.RELAY_IDLE ? 0 : 1));
+        return "s:" + "ioc".charAt(mRelayOn) + ":" + queued + ":" + "-10".charAt(mLastPulse)
+                + ":" + (mScheduler.now() - mStartedAt) / 1000;
+    }
+
+    // Everyone who asked for the pulse learns it is done.
+    private synchronized void answerPulse(boolean open, List<Boolean> waiters) {
+        String answer = "ok:m:" + (open ? GattAttributes.VALUE_OPEN : GattAttributes.VALUE_CLOSE);
+        for (Boolean framed : waiters) {
+            print(answer, framed, mScheduler.now());
+        }
+    }
+
+    private void print(String answer, boolean framed, long printTime) {
+        if (framed) {
+            answer = (char) GateCommandCodec.FRAME_START + answer + (char) GateCommandCodec.FRAME_END;
+        }
+        print(answer.getBytes(StandardCharsets.ISO_8859_1), printTime);
+    }
+
+    // The HM-10 forwards serial output as notifications of at most mtu - 3 bytes.
+    private void print(byte[] answer, long printTime) {
+        int chunkSize = (mLink == null ? DEFAULT_MTU : mLink.mLinkMtu) - GattClient.ATT_HEADER_SIZE;
+        for (int offset = 0; offset < answer.length; offset += chunkSize) {
+            final byte[] chunk = Arrays.copyOfRange(answer, offset, Math.min(answer.length, offset + chunkSize));
+            long jitter = mNotificationJitter > 0 ? (long) (mRandom.nextDouble() * mNotificationJitter) : 0;
+            // Notifications never overtake each other.
+            long arrival = Math.max(mLastNotificationTime, printTime + mLinkLatency + jitter);
+            mLastNotificationTime = arrival;
+            if (isLost()) {
+                continue;
+            }
+            final SimulatedClient link = mLink;
+            if (link == null) {
+                return;
+            }
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    link.notifyChanged(chunk);
+                }
+            }, arrival - mScheduler.now());
+        }
+    }
+
+    private boolean isLost() {
+        return mPacketLoss > 0 && mRandom.nextFloat() < mPacketLoss;
+    }
+
+    private boolean changeSecureKey(String key) {
+        if (key.isEmpty() || key.length() + 1 > MAX_SECURE_KEY_SIZE) {
+            return false;
+        }
+        writeStringToEeprom(0, key);
+        mSecureKey = key;
+        return true;
+    }
+
+    private void writeStringToEeprom(int offset, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        mEeprom[offset] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, mEeprom, offset + 1, bytes.length);
+    }
+
+    private String readStringFromEeprom(int offset) {
+        int length = mEeprom[offset] & 0xFF;
+        return new String(mEeprom, offset + 1, Math.min(length, EEPROM_SIZE - offset - 1), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * {@code nextField()} of the sketch: fields end at ':', the last one takes the rest.
+     */
+    static String field(String data, int index) {
+        String[] fields = data.split(":", 3);
+        return index < fields.length ? fields[index] : "";
+    }
+
+    /**
+     * {@code split()} of the sketch before protocol v2, including its handling of the last character.
+     */
+    static String split(String data, char separator, int index) {
+        int found = 0;
+        int start = 0;
+        int end = -1;
+        int maxIndex = data.length() - 1;
+
+        for (int i = 0; i <= maxIndex && found <= index; i++) {
+            if (data.charAt(i) == separator || i == maxIndex) {
+                found++;
+                start = end + 1;
+                end = (i == maxIndex) ? i + 1 : i;
+            }
+        }
+        return found > index ? data.substring(start, end) : "";
+    }
+
+
+    /**
+     * Client end of the link to the simulated HM-10.
+     */
+    private final class SimulatedClient implements GattClient {
+
+        private final String mAddress;
+        private final GattClient.Callback mCallback;
+        // Written under the simulator lock or on the scheduler thread.
+        private volatile boolean mConnected;
+        private volatile boolean mClosed;
+        private volatile boolean mDiscovered;
+        private volatile boolean mNotifying;
+        private volatile int mLinkMtu = DEFAULT_MTU;
+
+
+        SimulatedClient(String address, GattClient.Callback callback) {
+            mAddress = address;
+            mCallback = callback;
+        }
+
+        @Override
+        public String getAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public boolean connect() {
+            synchronized (GateSimulator.this) {
+                if (mClosed) {
+                    return false;
+                }
+                final boolean accepted = mLink == null || mLink == this;
+                if (accepted) {
+                    mLink = this;
+                }
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (accepted) {
+                            mConnected = true;
+                            mLinkMtu = DEFAULT_MTU;
+                            mCallback.onConnectionStateChange(GATT_SUCCESS, STATE_CONNECTED);
+                        } else {
+                            mCallback.onConnectionStateChange(STATUS_CONNECTION_FAILED, STATE_DISCONNECTED);
+                        }
+                    }
+                });
+                return true;
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            synchronized (GateSimulator.this) {
+                if (mLink == this) {
+                    mLink = null;
+                    mSessionMac = null;
+                }
+                mNotifying = false;
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        mConnected = false;
+                        mCallback.onConnectionStateChange(GATT_SUCCESS, STATE_DISCONNECTED);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            return !mClosed;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            if (!mConnected) {
+                return false;
+            }
+            final int agreed;
+            synchronized (GateSimulator.this) {
+                agreed = Math.max(DEFAULT_MTU, Math.min(mtu, mMtu));
+            }
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    mLinkMtu = agreed;
+                    mCallback.onMtuChanged(agreed, GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public void close() {
+            synchronized (GateSimulator.this) {
+                if (mLink == this) {
+                    mLink = null;
+                    mSessionMac = null;
+                }
+                mClosed = true;
+            }
+        }
+
+        @Override
+        public boolean hasCachedServices() {
+            return mDiscovered;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            if (!mConnected) {
+                return false;
+            }
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    mDiscovered = true;
+                    mCallback.onServicesDiscovered(GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public int getProperties(UUID characteristic) {
+            return mDiscovered ? PROPERTY_READ | PROPERTY_WRITE_NO_RESPONSE | PROPERTY_WRITE | PROPERTY_NOTIFY : 0;
+        }
+
+        @Override
+        public boolean readCharacteristic(final UUID characteristic) {
+            if (!mConnected || !mDiscovered) {
+                return false;
+            }
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onCharacteristicRead(characteristic, new byte[0], GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean writeCharacteristic(final UUID characteristic, byte[] value, int writeType) {
+            if (!mConnected || !mDiscovered) {
+                return false;
+            }
+            synchronized (GateSimulator.this) {
+                if (value.length > mLinkMtu - ATT_HEADER_SIZE) {
+                    deliver(new Runnable() {
+                        @Override
+                        public void run() {
+                            // GATT_INVALID_ATTRIBUTE_LENGTH
+                            mCallback.onCharacteristicWrite(characteristic, 13);
+                        }
+                    });
+                    return true;
+                }
+                final byte[] data = value.clone();
+                if (writeType == WRITE_TYPE_NO_RESPONSE) {
+                    // Done once the phone sent it, whether it arrives or not.
+                    deliver(new Runnable() {
+                        @Override
+                        public void run() {
+                            mCallback.onCharacteristicWrite(characteristic, GATT_SUCCESS);
+                        }
+                    }, 0);
+                    if (!isLost()) {
+                        deliver(new Runnable() {
+                            @Override
+                            public void run() {
+                                receive(data);
+                            }
+                        });
+                    }
+                    return true;
+                }
+                if (isLost()) {
+                    // Never acknowledged, the client has to time out.
+                    return true;
+                }
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        receive(data);
+                        mCallback.onCharacteristicWrite(characteristic, GATT_SUCCESS);
+                    }
+                });
+                return true;
+            }
+        }
+
+        @Override
+        public boolean setCharacteristicNotification(final UUID characteristic, final boolean enable) {
+            if (!mConnected || !mDiscovered) {
+                return false;
+            }
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    mNotifying = enable;
+                    mCallback.onDescriptorWrite(characteristic, GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        void notifyChanged(byte[] value) {
+            if (mNotifying && !mClosed) {
+                mCallback.onCharacteristicChanged(GattAttributes.UUID_CHAR, value);
+            }
+        }
+
+        // Runs after one link latency, unless the client was closed meanwhile.
+        private void deliver(Runnable event) {
+            long latency;
+            synchronized (GateSimulator.this) {
+                latency = mLinkLatency;
+            }
+            deliver(event, latency);
+        }
+
+        private void deliver(final Runnable event, long delay) {
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mClosed) {
+                        event.run();
+                    }
+                }
+            }, delay);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package cz.janvanura.gate_bt;
+
+/**
+ * State of the gate as last pushed by it, see {@link GateCommandCodec#ANSWER_STATUS}.
+ *
+ * The gate sends {@code s:relay:queued:last:uptime} whenever a relay is switched and when
+ * asked with {@code s}: the relay switched on ({@code o}, {@code c} or {@code i} when idle),
+ * pulses waiting behind it, the direction of the last pulse ({@code 1}, {@code 0} or
+ * {@code -} when there was none) and seconds since the controller started.
+ */
+public final class GateStatus {
+
+    public static final int RELAY_IDLE = 0;
+    public static final int RELAY_OPEN = 1;
+    public static final int RELAY_CLOSE = 2;
+
+    public static final int LAST_NONE = 0;
+    public static final int LAST_OPEN = 1;
+    public static final int LAST_CLOSE = 2;
+
+    private final int mRelay;
+    private final int mQueued;
+    private final int mLast;
+    private final long mUptime;
+    private final long mReceivedAt;
+
+
+    public GateStatus(int relay, int queued, int last, long uptimeSeconds, long receivedAt) {
+        mRelay = relay;
+        mQueued = queued;
+        mLast = last;
+        mUptime = uptimeSeconds;
+        mReceivedAt = receivedAt;
+    }
+
+    /**
+     * Parses a status frame, framed or not.
+     *
+     * @param receivedAt Time the frame arrived, in {@link Scheduler#now()} units.
+     * @return The status, or null when {@code data} is not a well formed status frame.
+     */
+    public static GateStatus parse(byte[] data, int offset, int length, long receivedAt) {
+        if (data == null) {
+            return null;
+        }
+        int payloadOffset = GateCommandCodec.payloadOffset(data, offset, length);
+        length = GateCommandCodec.payloadLength(data, offset, length);
+        offset = payloadOffset;
+        if (GateCommandCodec.decodeAnswer(data, offset, length) != GateCommandCodec.ANSWER_STATUS) {
+            return null;
+        }
+        // s:r:q:l:u, everything but the uptime is a single character.
+        int end = offset + length;
+        if (length < 9 || data[offset + 3] != ':' || data[offset + 5] != ':' || data[offset + 7] != ':') {
+            return null;
+        }
+        int relay;
+        switch (data[offset + 2]) {
+            case 'i':
+                relay = RELAY_IDLE;
+                break;
+            case 'o':
+                relay = RELAY_OPEN;
+                break;
+            case 'c':
+                relay = RELAY_CLOSE;
+                break;
+            default:
+                return null;
+        }
+        int queued = data[offset + 4] - '0';
+        if (queued < 0 || queued > 9) {
+            return null;
+        }
+        int last;
+        switch (data[offset + 6]) {
+            case '-':
+                last = LAST_NONE;
+                break;
+            case '1':
+                last = LAST_OPEN;
+                break;
+            case '0':
+                last = LAST_CLOSE;
+                break;
+            default:
+                return null;
+        }
+        long uptime = 0;
+        for (int i = offset + 8; i < end; i++) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9 || uptime > Long.MAX_VALUE / 10) {
+                return null;
+            }
+            uptime = uptime * 10 + digit;
+        }
+        return new GateStatus(relay, queued, last, uptime, receivedAt);
+    }
+
+    public static GateStatus parse(byte[] data, long receivedAt) {
+        return data == null ? null : parse(data, 0, data.length, receivedAt);
+    }
+
+    /**
+     * @return One of the {@code RELAY_*} constants.
+     */
+    public int getRelay() {
+        return mRelay;
+    }
+
+    /**
+     * @return Return true while a relay is switched or pulses wait for their turn.
+     */
+    public boolean isMoving() {
+        return mRelay != RELAY_IDLE || mQueued > 0;
+    }
+
+    /**
+     * @return Pulses waiting behind the running one.
+     */
+    public int getQueued() {
+        return mQueued;
+    }
+
+    /**
+     * @return One of the {@code LAST_*} constants.
+     */
+    public int getLast() {
+        return mLast;
+    }
+
+    public long getUptimeSeconds() {
+        return mUptime;
+    }
+
+    public long getReceivedAt() {
+        return mReceivedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "GateStatus{relay=" + mRelay + ", queued=" + mQueued + ", last=" + mLast + ", uptime=" + mUptime + "}";
+    }
+}
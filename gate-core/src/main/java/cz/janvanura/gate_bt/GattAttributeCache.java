@@ -0,0 +1,65 @@
+package cz.janvanura.gate_bt;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+
+/**
+ * Characteristics of one gate, resolved once per service discovery so that commands are a
+ * direct lookup instead of a scan over every service.
+ *
+ * The entries stay valid as long as the connection they came from is not closed and the peer
+ * does not report a service change, so a reconnect through the same connection can skip
+ * service discovery. Entries marked stale keep serving the live link, only the next connect
+ * discovers the services again.
+ *
+ * @param <C> Characteristic type, {@code BluetoothGattCharacteristic} on the device.
+ */
+public class GattAttributeCache<C> {
+
+    private final Map<UUID, C> mCharacteristics = new HashMap<>();
+    private String mAddress;
+    private boolean mStale;
+
+
+    /**
+     * Starts filling the cache with the services of {@code address}, see {@link #put}.
+     */
+    public synchronized void reset(String address) {
+        mCharacteristics.clear();
+        mAddress = address;
+        mStale = false;
+    }
+
+    public synchronized void put(UUID service, UUID uuid, C characteristic) {
+        // The gate service wins if another service reuses the UUID.
+        if (GattAttributes.UUID_SERVICE.equals(service) || !mCharacteristics.containsKey(uuid)) {
+            mCharacteristics.put(uuid, characteristic);
+        }
+    }
+
+    public synchronized C get(UUID uuid) {
+        return mCharacteristics.get(uuid);
+    }
+
+    /**
+     * @return Return true if the gate characteristic of {@code address} is cached.
+     */
+    public synchronized boolean isValidFor(String address) {
+        return !mStale && address != null && address.equals(mAddress)
+                && mCharacteristics.containsKey(GattAttributes.UUID_CHAR);
+    }
+
+    /**
+     * Keeps the entries for the link they came from, but lets the next connect discover again.
+     */
+    public synchronized void markStale() {
+        mStale = true;
+    }
+
+    public synchronized void invalidate() {
+        mCharacteristics.clear();
+        mAddress = null;
+    }
+}
@@ -25,6 +25,14 @@ import java.util.UUID;
  *  m:secure_key:1                   -> open gate
  *  m:secure_key:0                   -> close gate
  *  c:master_key:new_secure_key      -> change secure key
+ *  v                                -> protocol version, v2 frames only
+ *  s                                -> push the status now, v2 frames only
+ *  h:client_nonce                   -> start a session, v3 only, see GateSession
+ *  t:counter_tag:1                  -> open gate within a session, v3 only
+ *  t:counter_tag:0                  -> close gate within a session, v3 only
+ *
+ * Protocol v2 frames a command as 0x02 command 0x03 and gets a framed answer. Bare commands
+ * of protocol v1 are still understood.
  *
  * Answers:
  *  ok:m:1                           -> open gate ok
@@ -33,21 +41,37 @@ import java.util.UUID;
  *  err:secure                       -> wrong secure key
  *  err:master                       -> wrong master key
  *  err:length                       -> length of secure key is equal to 0 or greater than 10
+ *  ok:v:3                           -> protocol version
+ *  ack:m:1                          -> open gate accepted, ok:m:1 follows, v2 frames only
+ *  ack:m:0                          -> close gate accepted, ok:m:0 follows, v2 frames only
+ *  err:busy                         -> too many relay pulses waiting
+ *  ok:h:gate_nonce                  -> session started, its key is derived from both nonces
+ *  err:session                      -> no session, a wrong tag or a used counter, the session is dropped
+ *
+ * Status, pushed in a v2 frame whenever a relay is switched and in reply to s:
+ *  s:relay:queued:last:uptime       -> e.g. s:o:1:0:3605, see GateStatus
  */
 public class GattAttributes {
 
     public static final String GATT_CHAR = "0000ffe1-0000-1000-8000-00805f9b34fb";
     public static final String GATT_SERVICE = "0000ffe0-0000-1000-8000-00805f9b34fb";
+    public static final String GATT_CLIENT_CONFIG = "00002902-0000-1000-8000-00805f9b34fb";
+    // Gate the app controls by default.
     public final static String MAC_ADDRESS = "00:15:83:00:C3:F7";
     public final static String NAME = "Gate BT";
 
     public static final UUID UUID_CHAR = UUID.fromString(GATT_CHAR);
     public static final UUID UUID_SERVICE = UUID.fromString(GATT_SERVICE);
+    public static final UUID UUID_CLIENT_CONFIG = UUID.fromString(GATT_CLIENT_CONFIG);
 
     public static final String SECURE_KEY = "0000";
 
     public static final String CMD_MOTION = "m";
     public static final String CMD_CHANGE = "c";
+    public static final String CMD_VERSION = "v";
+    public static final String CMD_STATUS = "s";
+    public static final String CMD_HELLO = "h";
+    public static final String CMD_TOKEN = "t";
     public final static String VALUE_OPEN = "1";
     public final static String VALUE_CLOSE = "0";
 }
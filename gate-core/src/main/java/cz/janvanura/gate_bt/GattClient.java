@@ -0,0 +1,113 @@
+package cz.janvanura.gate_bt;
+
+import java.util.UUID;
+
+/**
+ * One GATT connection to a gate, addressed by characteristic UUID. Implemented over
+ * {@code BluetoothGatt} by {@code AndroidGattClient} and by fakes in tests.
+ *
+ * Every operation only starts, its result is reported back through {@link Callback}.
+ */
+public interface GattClient {
+
+    // Same values as BluetoothGatt, BluetoothProfile and BluetoothGattCharacteristic.
+    int GATT_SUCCESS = 0;
+    int CONNECTION_PRIORITY_BALANCED = 0;
+    int CONNECTION_PRIORITY_HIGH = 1;
+    int CONNECTION_PRIORITY_LOW_POWER = 2;
+    int STATE_DISCONNECTED = 0;
+    int STATE_CONNECTING = 1;
+    int STATE_CONNECTED = 2;
+    int WRITE_TYPE_NO_RESPONSE = 1;
+    int WRITE_TYPE_DEFAULT = 2;
+    int PROPERTY_READ = 0x02;
+    int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    int PROPERTY_WRITE = 0x08;
+    int PROPERTY_NOTIFY = 0x10;
+
+    /** ATT MTU every link starts with. */
+    int DEFAULT_MTU = 23;
+    /** Bytes of every packet taken by the ATT header, a write carries at most {@code mtu - 3}. */
+    int ATT_HEADER_SIZE = 3;
+
+    String getAddress();
+
+    /**
+     * Reconnects after a disconnect. The attempt does not time out, the connection is
+     * established whenever the gate comes into range.
+     *
+     * @return Return true if the connection attempt was started.
+     */
+    boolean connect();
+
+    void disconnect();
+
+    /**
+     * Asks for a shorter or longer connection interval, see
+     * {@code BluetoothGatt.requestConnectionPriority(int)}.
+     */
+    boolean requestConnectionPriority(int priority);
+
+    /**
+     * Asks the peer for a larger ATT MTU, the outcome is reported through
+     * {@link Callback#onMtuChanged(int, int)}.
+     */
+    boolean requestMtu(int mtu);
+
+    /**
+     * Releases the connection, no callback is delivered afterwards.
+     */
+    void close();
+
+    /**
+     * @return Return true if the services resolved by an earlier discovery are still valid,
+     *         so discovery can be skipped after a reconnect.
+     */
+    boolean hasCachedServices();
+
+    /**
+     * @return Return true if the operation was started.
+     */
+    boolean discoverServices();
+
+    /**
+     * @return {@code PROPERTY_*} bits of a discovered characteristic, 0 if it is not known.
+     */
+    int getProperties(UUID characteristic);
+
+    boolean readCharacteristic(UUID characteristic);
+
+    boolean writeCharacteristic(UUID characteristic, byte[] value, int writeType);
+
+    /**
+     * Enables or disables notifications locally and writes the client characteristic
+     * configuration descriptor of the characteristic.
+     */
+    boolean setCharacteristicNotification(UUID characteristic, boolean enable);
+
+
+    /**
+     * {@code BluetoothGattCallback} in plain types.
+     */
+    interface Callback {
+
+        void onConnectionStateChange(int status, int newState);
+
+        void onServicesDiscovered(int status);
+
+        void onServiceChanged();
+
+        void onCharacteristicRead(UUID characteristic, byte[] value, int status);
+
+        void onCharacteristicWrite(UUID characteristic, int status);
+
+        void onDescriptorWrite(UUID characteristic, int status);
+
+        void onCharacteristicChanged(UUID characteristic, byte[] value);
+
+        /**
+         * Called when an MTU exchange finished, requested by either side.
+         */
+        void onMtuChanged(int mtu, int status);
+    }
+}
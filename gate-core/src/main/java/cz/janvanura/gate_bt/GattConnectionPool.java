@@ -0,0 +1,108 @@
+package cz.janvanura.gate_bt;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Connections to several gates at once, keyed by device address.
+ *
+ * The Bluetooth controller supports only a few simultaneous links, so the pool holds at most
+ * {@code maxConnections}. When a new gate is needed and all slots are taken, the least recently
+ * used connection that has nothing in flight is closed to make room, disconnected ones first.
+ */
+public class GattConnectionPool {
+
+    // Android's default limit of simultaneous LE links (GATT_MAX_PHY_CHANNEL).
+    public static final int DEFAULT_MAX_CONNECTIONS = 7;
+
+    private final Factory mFactory;
+    private final int mMaxConnections;
+    // Access order, the eldest entry is the least recently used one.
+    private final LinkedHashMap<String, GateConnection> mConnections = new LinkedHashMap<>(16, 0.75f, true);
+
+
+    public interface Factory {
+        GateConnection create(String address);
+    }
+
+
+    public GattConnectionPool(Factory factory, int maxConnections) {
+        mFactory = factory;
+        mMaxConnections = maxConnections;
+    }
+
+    /**
+     * Returns the connection to {@code address}, creating it when there is none. The connection
+     * is not started, call {@link GateConnection#connect()}.
+     *
+     * @throws IllegalStateException When all slots are taken by busy connections.
+     */
+    public synchronized GateConnection obtain(String address) {
+        GateConnection connection = mConnections.get(address);
+        if (connection != null) {
+            return connection;
+        }
+        if (mConnections.size() >= mMaxConnections && !evict()) {
+            throw new IllegalStateException("All " + mMaxConnections + " connection slots are busy");
+        }
+        connection = mFactory.create(address);
+        mConnections.put(address, connection);
+        return connection;
+    }
+
+    /**
+     * @return The connection to {@code address}, or null.
+     */
+    public synchronized GateConnection get(String address) {
+        return mConnections.get(address);
+    }
+
+    public synchronized void close(String address) {
+        GateConnection connection = mConnections.remove(address);
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    public synchronized void closeAll() {
+        for (GateConnection connection : mConnections.values()) {
+            connection.close();
+        }
+        mConnections.clear();
+    }
+
+    public synchronized List<GateConnection> connections() {
+        return new ArrayList<>(mConnections.values());
+    }
+
+    public synchronized int size() {
+        return mConnections.size();
+    }
+
+    public int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+
+    private boolean evict() {
+        GateConnection victim = null;
+        for (GateConnection connection : mConnections.values()) {
+            if (connection.isIdle()) {
+                if (connection.getState() == GateConnection.STATE_DISCONNECTED) {
+                    victim = connection;
+                    break;
+                }
+                if (victim == null) {
+                    victim = connection;
+                }
+            }
+        }
+        if (victim == null) {
+            return false;
+        }
+        mConnections.remove(victim.getAddress());
+        victim.close();
+        return true;
+    }
+}
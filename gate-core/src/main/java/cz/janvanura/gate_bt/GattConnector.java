@@ -0,0 +1,17 @@
+package cz.janvanura.gate_bt;
+
+/**
+ * Opens GATT connections, over the Bluetooth adapter on the device and to fakes in tests.
+ */
+public interface GattConnector {
+
+    /**
+     * Starts connecting to {@code address}.
+     *
+     * @param autoConnect False to connect directly, which is fast but gives up after about
+     *                    30 seconds. True to wait in the background until the gate is in range.
+     *
+     * @return The new connection, or null when it could not be started.
+     */
+    GattClient open(String address, boolean autoConnect, GattClient.Callback callback);
+}
@@ -0,0 +1,199 @@
+package cz.janvanura.gate_bt;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * In-process delivery of connection and data events from {@code BluetoothLeService} to its
+ * clients. Replaces system broadcasts, so no event leaves the process and no other app can
+ * inject a gate answer.
+ *
+ * Registration is copy-on-write, dispatching never takes a lock. Every listener gets its
+ * events on the executor it registered with, in the order they were dispatched.
+ */
+public class GattEventBus {
+
+    /**
+     * Every event carries the address of the gate it belongs to.
+     */
+    public interface Listener {
+
+        default void onConnecting(String address) {
+        }
+
+        default void onConnected(String address) {
+        }
+
+        default void onDisconnected(String address) {
+        }
+
+        /**
+         * @param address Gate that was looked for, null when any gate would do.
+         */
+        default void onNothingFound(String address) {
+        }
+
+        /**
+         * A scan saw a gate that was not seen recently.
+         */
+        default void onGateFound(String address, int rssi) {
+        }
+
+        default void onWrite(String address) {
+        }
+
+        /**
+         * The gate accepted {@code command}, its answer follows once the gate is done.
+         */
+        default void onCommandAcknowledged(String address, GateCommand command) {
+        }
+
+        /**
+         * The gate pushed its status, also kept by the connection.
+         */
+        default void onStatusChanged(String address, GateStatus status) {
+        }
+
+        /**
+         * @param data Value of the characteristic, must not be modified.
+         */
+        default void onDataAvailable(String address, byte[] data) {
+        }
+    }
+
+
+    private final CopyOnWriteArrayList<Registration> mRegistrations = new CopyOnWriteArrayList<>();
+
+
+    public void register(Listener listener, Executor executor) {
+        mRegistrations.addIfAbsent(new Registration(listener, executor));
+    }
+
+    public void unregister(Listener listener) {
+        for (Registration registration : mRegistrations) {
+            if (registration.mListener == listener) {
+                mRegistrations.remove(registration);
+            }
+        }
+    }
+
+    public void dispatchConnecting(final String address) {
+        for (final Registration registration : mRegistrations) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.mListener.onConnecting(address);
+                }
+            });
+        }
+    }
+
+    public void dispatchConnected(final String address) {
+        for (final Registration registration : mRegistrations) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.mListener.onConnected(address);
+                }
+            });
+        }
+    }
+
+    public void dispatchDisconnected(final String address) {
+        for (final Registration registration : mRegistrations) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.mListener.onDisconnected(address);
+                }
+            });
+        }
+    }
+
+    public void dispatchNothingFound(final String address) {
+        for (final Registration registration : mRegistrations) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.mListener.onNothingFound(address);
+                }
+            });
+        }
+    }
+
+    public void dispatchGateFound(final String address, final int rssi) {
+        for (final Registration registration : mRegistrations) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.mListener.onGateFound(address, rssi);
+                }
+            });
+        }
+    }
+
+    public void dispatchWrite(final String address) {
+        for (final Registration registration : mRegistrations) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.mListener.onWrite(address);
+                }
+            });
+        }
+    }
+
+    public void dispatchCommandAcknowledged(final String address, final GateCommand command) {
+        for (final Registration registration : mRegistrations) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.mListener.onCommandAcknowledged(address, command);
+                }
+            });
+        }
+    }
+
+    public void dispatchStatusChanged(final String address, final GateStatus status) {
+        for (final Registration registration : mRegistrations) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.mListener.onStatusChanged(address, status);
+                }
+            });
+        }
+    }
+
+    public void dispatchDataAvailable(final String address, final byte[] data) {
+        for (final Registration registration : mRegistrations) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.mListener.onDataAvailable(address, data);
+                }
+            });
+        }
+    }
+
+
+    private static final class Registration {
+        final Listener mListener;
+        final Executor mExecutor;
+
+        Registration(Listener listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Registration && ((Registration) o).mListener == mListener;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(mListener);
+        }
+    }
+}
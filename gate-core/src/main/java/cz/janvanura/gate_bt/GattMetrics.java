@@ -0,0 +1,186 @@
+package cz.janvanura.gate_bt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and error counters of all gate connections, kept for the lifetime of
+ * the service and exported as JSON or CSV to compare phones and gates.
+ *
+ * Recording is lock-free and allocation-free, the memory is fixed when the metrics are created.
+ */
+public class GattMetrics {
+
+    /** Link layer connection, from starting to connect until the link is up. */
+    public static final int CONNECT = 0;
+    /** Service discovery and enabling notifications, from link up until ready. */
+    public static final int DISCOVERY = 1;
+    /** Write of a command, from starting the write until the gate acknowledged it. */
+    public static final int WRITE_ACK = 2;
+    /** Command, from sending until the gate answered. */
+    public static final int ROUND_TRIP = 3;
+    /** Dropped link, from the drop until the link is up again. */
+    public static final int RECONNECT = 4;
+    /** Motion command, from sending until the gate accepted it and started the relay pulse. */
+    public static final int ACK = 5;
+    /** Tap on the tile or widget over a ready connection, until the gate started the relay pulse. */
+    public static final int TAP_WARM = 6;
+    /** Tap on the tile or widget that had to connect first, until the gate started the relay pulse. */
+    public static final int TAP_COLD = 7;
+
+    private static final String[] NAMES = {"connect", "discovery", "write_ack", "round_trip", "reconnect", "ack",
+            "tap_warm", "tap_cold"};
+    private static final double[] PERCENTILES = {50, 90, 99};
+    private static final int STATUSES = 256;
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[NAMES.length];
+    private final AtomicLong mOperationTimeouts = new AtomicLong();
+    private final AtomicLong mCommandTimeouts = new AtomicLong();
+    private final AtomicLongArray mStatuses = new AtomicLongArray(STATUSES);
+
+
+    public GattMetrics() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param metric One of {@link #CONNECT}, {@link #DISCOVERY}, {@link #WRITE_ACK},
+     *               {@link #ROUND_TRIP}, {@link #RECONNECT}, {@link #ACK}, {@link #TAP_WARM} or
+     *               {@link #TAP_COLD}.
+     */
+    public void record(int metric, long millis) {
+        mHistograms[metric].record(millis);
+    }
+
+    public LatencyHistogram get(int metric) {
+        return mHistograms[metric];
+    }
+
+    /**
+     * Counts a failed GATT operation or connection attempt, {@link GattOperation#STATUS_TIMEOUT}
+     * is counted as an operation timeout.
+     */
+    public void countStatus(int status) {
+        if (status == GattOperation.STATUS_TIMEOUT) {
+            mOperationTimeouts.incrementAndGet();
+        } else if (status > 0 && status < STATUSES) {
+            mStatuses.incrementAndGet(status);
+        }
+    }
+
+    public void countCommandTimeout() {
+        mCommandTimeouts.incrementAndGet();
+    }
+
+    public long getStatusCount(int status) {
+        return status > 0 && status < STATUSES ? mStatuses.get(status) : 0;
+    }
+
+    public long getOperationTimeouts() {
+        return mOperationTimeouts.get();
+    }
+
+    public long getCommandTimeouts() {
+        return mCommandTimeouts.get();
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        mOperationTimeouts.set(0);
+        mCommandTimeouts.set(0);
+        for (int i = 0; i < STATUSES; i++) {
+            mStatuses.set(i, 0);
+        }
+    }
+
+    /**
+     * Appends a JSON object with a summary and the non-empty buckets of every histogram and
+     * the error counters.
+     */
+    public void toJson(StringBuilder out) {
+        out.append("{\"histograms\":{");
+        for (int i = 0; i < mHistograms.length; i++) {
+            LatencyHistogram histogram = mHistograms[i];
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append('"').append(NAMES[i]).append("\":{\"count\":").append(histogram.getCount())
+                    .append(",\"mean\":").append(Math.round(histogram.getMean()))
+                    .append(",\"max\":").append(histogram.getMax());
+            for (double percentile : PERCENTILES) {
+                out.append(",\"p").append((int) percentile).append("\":")
+                        .append(histogram.getValueAtPercentile(percentile));
+            }
+            out.append(",\"buckets\":[");
+            long[] counts = histogram.getCounts();
+            boolean first = true;
+            for (int b = 0; b < counts.length; b++) {
+                if (counts[b] == 0) {
+                    continue;
+                }
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                out.append('[').append(LatencyHistogram.lowerBound(b)).append(',').append(counts[b]).append(']');
+            }
+            out.append("]}");
+        }
+        out.append("},\"timeouts\":{\"operation\":").append(mOperationTimeouts.get())
+                .append(",\"command\":").append(mCommandTimeouts.get())
+                .append("},\"statuses\":{");
+        boolean first = true;
+        for (int status = 0; status < STATUSES; status++) {
+            long count = mStatuses.get(status);
+            if (count == 0) {
+                continue;
+            }
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            out.append('"').append(status).append("\":").append(count);
+        }
+        out.append("}}");
+    }
+
+    /**
+     * Appends CSV rows {@code kind,name,key,value}: histogram summaries, non-empty buckets keyed
+     * by their lower bound, timeouts and counts of GATT statuses.
+     */
+    public void toCsv(StringBuilder out) {
+        out.append("kind,name,key,value\n");
+        for (int i = 0; i < mHistograms.length; i++) {
+            LatencyHistogram histogram = mHistograms[i];
+            row(out, "summary", NAMES[i], "count", histogram.getCount());
+            row(out, "summary", NAMES[i], "mean", Math.round(histogram.getMean()));
+            row(out, "summary", NAMES[i], "max", histogram.getMax());
+            for (double percentile : PERCENTILES) {
+                row(out, "summary", NAMES[i], "p" + (int) percentile, histogram.getValueAtPercentile(percentile));
+            }
+            long[] counts = histogram.getCounts();
+            for (int b = 0; b < counts.length; b++) {
+                if (counts[b] != 0) {
+                    row(out, "bucket", NAMES[i], Long.toString(LatencyHistogram.lowerBound(b)), counts[b]);
+                }
+            }
+        }
+        row(out, "timeout", "operation", "", mOperationTimeouts.get());
+        row(out, "timeout", "command", "", mCommandTimeouts.get());
+        for (int status = 0; status < STATUSES; status++) {
+            long count = mStatuses.get(status);
+            if (count != 0) {
+                row(out, "status", "gatt", Integer.toString(status), count);
+            }
+        }
+    }
+
+
+    private static void row(StringBuilder out, String kind, String name, String key, long value) {
+        out.append(kind).append(',').append(name).append(',').append(key).append(',').append(value).append('\n');
+    }
+}
@@ -0,0 +1,123 @@
+package cz.janvanura.gate_bt;
+
+import java.util.UUID;
+
+/**
+ * Single GATT operation waiting in a {@link GattOperationQueue}.
+ */
+public final class GattOperation {
+
+    public static final int TYPE_DISCOVER = 0;
+    public static final int TYPE_READ = 1;
+    public static final int TYPE_WRITE = 2;
+    public static final int TYPE_NOTIFY = 3;
+    public static final int TYPE_MTU = 4;
+
+    // Negative so they never clash with GATT status codes.
+    public static final int STATUS_TIMEOUT = -1;
+    public static final int STATUS_NOT_DISPATCHED = -2;
+    public static final int STATUS_CANCELLED = -3;
+
+    public static final long DEFAULT_TIMEOUT = 5000;
+    public static final int DEFAULT_RETRIES = 2;
+
+    final int mType;
+    final UUID mUuid;
+    final byte[] mValue;
+    final int mWriteType;
+    final boolean mEnable;
+    final int mMtu;
+    long mTimeout = DEFAULT_TIMEOUT;
+    int mRetries = DEFAULT_RETRIES;
+    Callback mCallback;
+
+    // Owned by the queue.
+    int mAttempt;
+    long mStartedAt;
+    Scheduler.Cancellable mTimeoutTask;
+
+
+    public interface Callback {
+        /**
+         * @param status GATT status or one of the {@code STATUS_*} codes.
+         * @param value Value read by a read operation, null otherwise.
+         */
+        void onComplete(GattOperation operation, int status, byte[] value);
+    }
+
+
+    private GattOperation(int type, UUID uuid, byte[] value, int writeType, boolean enable, int mtu) {
+        mType = type;
+        mUuid = uuid;
+        mValue = value;
+        mWriteType = writeType;
+        mEnable = enable;
+        mMtu = mtu;
+    }
+
+    public static GattOperation discover() {
+        return new GattOperation(TYPE_DISCOVER, null, null, 0, false, 0);
+    }
+
+    public static GattOperation read(UUID characteristic) {
+        return new GattOperation(TYPE_READ, characteristic, null, 0, false, 0);
+    }
+
+    /**
+     * The value is copied, so frames reused by {@link GateCommandCodec} can be passed in.
+     */
+    public static GattOperation write(UUID characteristic, byte[] value, int writeType) {
+        return new GattOperation(TYPE_WRITE, characteristic, value.clone(), writeType, false, 0);
+    }
+
+    public static GattOperation notify(UUID characteristic, boolean enable) {
+        return new GattOperation(TYPE_NOTIFY, characteristic, null, 0, enable, 0);
+    }
+
+    public static GattOperation mtu(int mtu) {
+        return new GattOperation(TYPE_MTU, null, null, 0, false, mtu);
+    }
+
+    public GattOperation setTimeout(long timeoutMillis) {
+        mTimeout = timeoutMillis;
+        return this;
+    }
+
+    public GattOperation setRetries(int retries) {
+        mRetries = retries;
+        return this;
+    }
+
+    public GattOperation setCallback(Callback callback) {
+        mCallback = callback;
+        return this;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    public int getWriteType() {
+        return mWriteType;
+    }
+
+    /**
+     * @return Time the last attempt was started, see {@link Scheduler#now()}.
+     */
+    public long getStartedAt() {
+        return mStartedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "GattOperation{type=" + mType + ", uuid=" + mUuid + ", attempt=" + mAttempt + "}";
+    }
+}
@@ -0,0 +1,224 @@
+package cz.janvanura.gate_bt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Serializes GATT operations. Android allows only one outstanding operation per connection,
+ * anything started while another one is running is refused by the stack.
+ *
+ * The next operation is dispatched straight from the completion callback of the previous one.
+ * Writes without response wait for their callback too, {@code BluetoothGatt} refuses to start
+ * anything before it. Every operation has its own timeout and is retried when it cannot be
+ * started, fails or times out.
+ *
+ * Nothing is dispatched until the queue is marked ready by {@link #setReady(boolean)}.
+ */
+public class GattOperationQueue {
+
+    static final long RETRY_DELAY = 50;
+
+    private GattClient mClient;
+    private final Scheduler mScheduler;
+
+    private final ArrayDeque<GattOperation> mPending = new ArrayDeque<>();
+    private GattOperation mCurrent;
+    private Scheduler.Cancellable mRetryTask;
+    private boolean mReady;
+
+
+    public GattOperationQueue(GattClient client, Scheduler scheduler) {
+        mClient = client;
+        mScheduler = scheduler;
+    }
+
+    public synchronized void enqueue(GattOperation operation) {
+        mPending.addLast(operation);
+        dispatchNext();
+    }
+
+    /**
+     * Puts the operation in front of everything that is waiting, e.g. service discovery
+     * after a connect.
+     */
+    public synchronized void enqueueFirst(GattOperation operation) {
+        mPending.addFirst(operation);
+        dispatchNext();
+    }
+
+    /**
+     * Moves waiting operations over to a new connection to the same gate. Only allowed while
+     * the queue is not ready, running operations are cancelled.
+     */
+    public synchronized void setClient(GattClient client) {
+        if (mReady) {
+            throw new IllegalStateException("Queue is ready");
+        }
+        mClient = client;
+        if (mRetryTask != null) {
+            mRetryTask.cancel();
+            mRetryTask = null;
+        }
+        GattOperation cancelled = mCurrent;
+        mCurrent = null;
+        if (cancelled != null) {
+            finish(cancelled, GattOperation.STATUS_CANCELLED, null);
+        }
+    }
+
+    public synchronized void setReady(boolean ready) {
+        mReady = ready;
+        dispatchNext();
+    }
+
+    /**
+     * Completes every waiting and running operation with {@link GattOperation#STATUS_CANCELLED}.
+     */
+    public synchronized void clear() {
+        if (mRetryTask != null) {
+            mRetryTask.cancel();
+            mRetryTask = null;
+        }
+        List<GattOperation> cancelled = new ArrayList<>();
+        if (mCurrent != null) {
+            cancelled.add(mCurrent);
+        }
+        cancelled.addAll(mPending);
+        mCurrent = null;
+        mPending.clear();
+        for (GattOperation operation : cancelled) {
+            finish(operation, GattOperation.STATUS_CANCELLED, null);
+        }
+    }
+
+    /**
+     * @return Number of waiting and running operations.
+     */
+    public synchronized int size() {
+        return mPending.size() + (mCurrent != null ? 1 : 0);
+    }
+
+
+    public void onServicesDiscovered(int status) {
+        complete(GattOperation.TYPE_DISCOVER, null, status, null);
+    }
+
+    public void onCharacteristicRead(UUID characteristic, byte[] value, int status) {
+        complete(GattOperation.TYPE_READ, characteristic, status, value);
+    }
+
+    public void onCharacteristicWrite(UUID characteristic, int status) {
+        complete(GattOperation.TYPE_WRITE, characteristic, status, null);
+    }
+
+    public void onDescriptorWrite(UUID characteristic, int status) {
+        complete(GattOperation.TYPE_NOTIFY, characteristic, status, null);
+    }
+
+    public void onMtuChanged(int status) {
+        complete(GattOperation.TYPE_MTU, null, status, null);
+    }
+
+
+    private synchronized void complete(int type, UUID uuid, int status, byte[] value) {
+        GattOperation operation = mCurrent;
+        if (operation == null || operation.mType != type || (uuid != null && !uuid.equals(operation.mUuid))) {
+            // Late answer to an operation that already timed out.
+            return;
+        }
+        mCurrent = null;
+        cancelTimeout(operation);
+
+        if (status != GattClient.GATT_SUCCESS && operation.mAttempt <= operation.mRetries) {
+            mPending.addFirst(operation);
+        } else {
+            finish(operation, status, value);
+        }
+        dispatchNext();
+    }
+
+    private synchronized void onTimeout(GattOperation operation) {
+        if (mCurrent != operation) {
+            return;
+        }
+        mCurrent = null;
+        operation.mTimeoutTask = null;
+
+        if (operation.mAttempt <= operation.mRetries) {
+            mPending.addFirst(operation);
+        } else {
+            finish(operation, GattOperation.STATUS_TIMEOUT, null);
+        }
+        dispatchNext();
+    }
+
+    private void dispatchNext() {
+        while (mReady && mCurrent == null && mRetryTask == null && !mPending.isEmpty()) {
+            final GattOperation operation = mPending.pollFirst();
+            operation.mAttempt++;
+            operation.mStartedAt = mScheduler.now();
+
+            if (start(operation)) {
+                mCurrent = operation;
+                operation.mTimeoutTask = mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTimeout(operation);
+                    }
+                }, operation.mTimeout);
+            } else if (operation.mAttempt <= operation.mRetries) {
+                // The stack is busy, give it a moment.
+                mPending.addFirst(operation);
+                scheduleRetry();
+                return;
+            } else {
+                finish(operation, GattOperation.STATUS_NOT_DISPATCHED, null);
+            }
+        }
+    }
+
+    private boolean start(GattOperation operation) {
+        switch (operation.mType) {
+            case GattOperation.TYPE_DISCOVER:
+                return mClient.discoverServices();
+            case GattOperation.TYPE_READ:
+                return mClient.readCharacteristic(operation.mUuid);
+            case GattOperation.TYPE_WRITE:
+                return mClient.writeCharacteristic(operation.mUuid, operation.mValue, operation.mWriteType);
+            case GattOperation.TYPE_NOTIFY:
+                return mClient.setCharacteristicNotification(operation.mUuid, operation.mEnable);
+            case GattOperation.TYPE_MTU:
+                return mClient.requestMtu(operation.mMtu);
+            default:
+                return false;
+        }
+    }
+
+    private void scheduleRetry() {
+        mRetryTask = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (GattOperationQueue.this) {
+                    mRetryTask = null;
+                    dispatchNext();
+                }
+            }
+        }, RETRY_DELAY);
+    }
+
+    private void cancelTimeout(GattOperation operation) {
+        if (operation.mTimeoutTask != null) {
+            operation.mTimeoutTask.cancel();
+            operation.mTimeoutTask = null;
+        }
+    }
+
+    private void finish(GattOperation operation, int status, byte[] value) {
+        cancelTimeout(operation);
+        if (operation.mCallback != null) {
+            operation.mCallback.onComplete(operation, status, value);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package cz.janvanura.gate_bt;
+
+/**
+ * Tracing of the GATT layer with a level fixed when the service starts. Messages are only
+ * built when their level is enabled, frames are formatted through a precomputed hex table and
+ * can additionally be kept in a {@link FrameRingBuffer} that is dumped on demand.
+ *
+ * With {@link #LEVEL_NONE} and no ring buffer every call is a single comparison.
+ */
+public class GattTrace {
+
+    public static final int LEVEL_NONE = 0;
+    public static final int LEVEL_WARN = 1;
+    public static final int LEVEL_INFO = 2;
+    public static final int LEVEL_DEBUG = 3;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final int mLevel;
+    private final Sink mSink;
+    private final FrameRingBuffer mFrames;
+    private final Scheduler mScheduler;
+
+
+    public interface Sink {
+        void log(int level, String message);
+    }
+
+
+    /**
+     * @param frames Ring buffer for recent frames, or null to keep none.
+     */
+    public GattTrace(int level, Sink sink, FrameRingBuffer frames, Scheduler scheduler) {
+        mLevel = level;
+        mSink = sink;
+        mFrames = frames;
+        mScheduler = scheduler;
+    }
+
+    public boolean isLoggable(int level) {
+        return level <= mLevel;
+    }
+
+    public void w(String message) {
+        if (LEVEL_WARN <= mLevel) {
+            mSink.log(LEVEL_WARN, message);
+        }
+    }
+
+    public void w(String message, int arg) {
+        if (LEVEL_WARN <= mLevel) {
+            mSink.log(LEVEL_WARN, message + arg);
+        }
+    }
+
+    public void w(String message, Object arg) {
+        if (LEVEL_WARN <= mLevel) {
+            mSink.log(LEVEL_WARN, message + arg);
+        }
+    }
+
+    public void i(String message) {
+        if (LEVEL_INFO <= mLevel) {
+            mSink.log(LEVEL_INFO, message);
+        }
+    }
+
+    public void i(String message, int arg) {
+        if (LEVEL_INFO <= mLevel) {
+            mSink.log(LEVEL_INFO, message + arg);
+        }
+    }
+
+    public void i(String message, Object arg) {
+        if (LEVEL_INFO <= mLevel) {
+            mSink.log(LEVEL_INFO, message + arg);
+        }
+    }
+
+    public void d(String message) {
+        if (LEVEL_DEBUG <= mLevel) {
+            mSink.log(LEVEL_DEBUG, message);
+        }
+    }
+
+    public void d(String message, Object arg) {
+        if (LEVEL_DEBUG <= mLevel) {
+            mSink.log(LEVEL_DEBUG, message + arg);
+        }
+    }
+
+    /**
+     * Records a frame into the ring buffer and logs it in hex at debug level.
+     *
+     * @param direction {@link FrameRingBuffer#DIRECTION_TX} or {@link FrameRingBuffer#DIRECTION_RX}.
+     */
+    public void frame(byte direction, byte[] data) {
+        if (data == null) {
+            return;
+        }
+        if (mFrames != null) {
+            mFrames.record(direction, mScheduler.now(), data, 0, data.length);
+        }
+        if (LEVEL_DEBUG <= mLevel) {
+            StringBuilder message = new StringBuilder(4 + data.length * 3);
+            message.append((char) direction).append(' ').append(data.length).append(": ");
+            appendHex(message, data, 0, data.length);
+            mSink.log(LEVEL_DEBUG, message.toString());
+        }
+    }
+
+    /**
+     * Appends the frames of the ring buffer, see {@link FrameRingBuffer#dump(StringBuilder)}.
+     */
+    public void dumpFrames(StringBuilder out) {
+        if (mFrames == null) {
+            out.append("Frame recording disabled\n");
+        } else {
+            mFrames.dump(out);
+        }
+    }
+
+    public static void appendHex(StringBuilder out, byte[] data, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            int b = data[offset + i] & 0xFF;
+            if (i > 0) {
+                out.append(' ');
+            }
+            out.append(HEX[b >>> 4]).append(HEX[b & 0x0F]);
+        }
+    }
+}
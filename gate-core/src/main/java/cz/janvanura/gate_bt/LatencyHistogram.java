@@ -0,0 +1,133 @@
+package cz.janvanura.gate_bt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in milliseconds with a fixed number of buckets, recorded without
+ * locks so it can sit on the GATT thread's hot path.
+ *
+ * Buckets are laid out like HdrHistogram's: the first {@value #SUB_BUCKETS} are one
+ * millisecond wide, after that every power of two is split into {@value #SUB_BUCKETS}
+ * equal buckets, which keeps the error of any percentile under 1/{@value #SUB_BUCKETS}.
+ * Values above {@link #MAX_VALUE} end up in the last bucket.
+ */
+public class LatencyHistogram {
+
+    static final int SUB_BUCKETS = 16;
+    private static final int SUB_BITS = 4;
+    private static final int MAX_EXPONENT = 24;
+
+    /** Largest value told apart from larger ones, a little over four hours. */
+    public static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+
+    public void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        mCounts.incrementAndGet(bucketOf(millis));
+        mTotal.incrementAndGet();
+        mSum.addAndGet(millis);
+        long max;
+        while (millis > (max = mMax.get()) && !mMax.compareAndSet(max, millis)) {
+            // Lost the race to another recorder, try again.
+        }
+    }
+
+    public long getCount() {
+        return mTotal.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public double getMean() {
+        long count = mTotal.get();
+        return count == 0 ? 0 : (double) mSum.get() / count;
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @return Upper bound of the bucket holding the percentile, 0 when nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] counts = getCounts();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @return Copy of the bucket counts, see {@link #lowerBound(int)} and {@link #upperBound(int)}.
+     */
+    public long[] getCounts() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return counts;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotal.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        if (value > MAX_VALUE) {
+            return BUCKETS - 1;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return Smallest value counted in {@code bucket}.
+     */
+    public static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+
+    /**
+     * @return Largest value counted in {@code bucket}.
+     */
+    public static long upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowerBound(bucket + 1) - 1;
+    }
+}
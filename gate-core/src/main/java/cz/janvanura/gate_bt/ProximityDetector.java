@@ -0,0 +1,122 @@
+package cz.janvanura.gate_bt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides from advertisement RSSI whether a gate is near. Single readings jump by 10 dB and
+ * more, so they are smoothed by an exponential moving average. A gate becomes near when the
+ * average reaches {@code nearRssi} and away only when it falls below the lower
+ * {@code awayRssi} or nothing was heard for {@code absenceTimeout} ms, so a user standing at
+ * the edge does not connect and disconnect over and over.
+ */
+public class ProximityDetector {
+
+    public static final int TRANSITION_NONE = 0;
+    public static final int TRANSITION_NEAR = 1;
+    public static final int TRANSITION_AWAY = 2;
+
+    public static final int DEFAULT_NEAR_RSSI = -75;
+    public static final int DEFAULT_AWAY_RSSI = -85;
+    public static final float DEFAULT_SMOOTHING = 0.25f;
+    public static final long DEFAULT_ABSENCE_TIMEOUT = 20000;
+
+    private final int mNearRssi;
+    private final int mAwayRssi;
+    private final float mSmoothing;
+    private final long mAbsenceTimeout;
+    private final HashMap<String, State> mStates = new HashMap<>();
+
+
+    private static final class State {
+        float mAverage;
+        long mLastSeen;
+        boolean mNear;
+    }
+
+
+    public ProximityDetector() {
+        this(DEFAULT_NEAR_RSSI, DEFAULT_AWAY_RSSI, DEFAULT_SMOOTHING, DEFAULT_ABSENCE_TIMEOUT);
+    }
+
+    /**
+     * @param smoothing Weight of a new reading in the average, between 0 and 1.
+     */
+    public ProximityDetector(int nearRssi, int awayRssi, float smoothing, long absenceTimeout) {
+        if (awayRssi > nearRssi) {
+            throw new IllegalArgumentException("awayRssi must not be above nearRssi");
+        }
+        mNearRssi = nearRssi;
+        mAwayRssi = awayRssi;
+        mSmoothing = smoothing;
+        mAbsenceTimeout = absenceTimeout;
+    }
+
+    /**
+     * Adds a reading of {@code address}.
+     *
+     * @return {@link #TRANSITION_NEAR} or {@link #TRANSITION_AWAY} when the gate crossed
+     *         a threshold, {@link #TRANSITION_NONE} otherwise.
+     */
+    public synchronized int onSighting(String address, int rssi, long now) {
+        State state = mStates.get(address);
+        if (state == null) {
+            state = new State();
+            state.mAverage = rssi;
+            mStates.put(address, state);
+        } else {
+            state.mAverage += mSmoothing * (rssi - state.mAverage);
+        }
+        state.mLastSeen = now;
+
+        if (!state.mNear && state.mAverage >= mNearRssi) {
+            state.mNear = true;
+            return TRANSITION_NEAR;
+        }
+        if (state.mNear && state.mAverage < mAwayRssi) {
+            state.mNear = false;
+            return TRANSITION_AWAY;
+        }
+        return TRANSITION_NONE;
+    }
+
+    /**
+     * Forgets gates not heard for the absence timeout.
+     *
+     * @return Addresses of forgotten gates that were near.
+     */
+    public synchronized List<String> expire(long now) {
+        List<String> away = new ArrayList<>();
+        Iterator<Map.Entry<String, State>> iterator = mStates.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, State> entry = iterator.next();
+            if (now - entry.getValue().mLastSeen >= mAbsenceTimeout) {
+                if (entry.getValue().mNear) {
+                    away.add(entry.getKey());
+                }
+                iterator.remove();
+            }
+        }
+        return away;
+    }
+
+    public synchronized boolean isNear(String address) {
+        State state = mStates.get(address);
+        return state != null && state.mNear;
+    }
+
+    /**
+     * @return Smoothed RSSI of {@code address}, or {@link Integer#MIN_VALUE} if unknown.
+     */
+    public synchronized int getRssi(String address) {
+        State state = mStates.get(address);
+        return state == null ? Integer.MIN_VALUE : Math.round(state.mAverage);
+    }
+
+    public synchronized void clear() {
+        mStates.clear();
+    }
+}
@@ -0,0 +1,148 @@
+package cz.janvanura.gate_bt;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Watches advertisements of known gates with a long-running low power scan and reports when
+ * one comes near or goes away, see {@link ProximityDetector}. Lets the connection be set up
+ * while the user is still walking to the gate.
+ */
+public class ProximityWatcher {
+
+    static final long EXPIRE_INTERVAL = 5000;
+    // Android turns scans running for 30 minutes into opportunistic ones.
+    static final long SCAN_RESTART_INTERVAL = 25 * 60 * 1000;
+
+    private final BleScanner mScanner;
+    private final Scheduler mScheduler;
+    private final ProximityDetector mDetector;
+    private final Listener mListener;
+    private final GattTrace mTrace;
+
+    private final HashSet<String> mWatched = new HashSet<>();
+    private boolean mWatching;
+    private long mStarted;
+    private Scheduler.Cancellable mExpireTask;
+
+
+    /**
+     * Called on the scanner and scheduler threads.
+     */
+    public interface Listener {
+
+        void onNear(String address);
+
+        void onAway(String address);
+    }
+
+
+    private final BleScanner.Callback mCallback = new BleScanner.Callback() {
+        @Override
+        public void onResult(String address, String name, int rssi, List<UUID> serviceUuids) {
+            int transition;
+            synchronized (ProximityWatcher.this) {
+                if (!mWatching || !mWatched.contains(address)) {
+                    return;
+                }
+                transition = mDetector.onSighting(address, rssi, mScheduler.now());
+            }
+            if (transition == ProximityDetector.TRANSITION_NEAR) {
+                mTrace.i("Gate near: ", address);
+                mListener.onNear(address);
+            } else if (transition == ProximityDetector.TRANSITION_AWAY) {
+                mTrace.i("Gate away: ", address);
+                mListener.onAway(address);
+            }
+        }
+
+        @Override
+        public void onFailed(int errorCode) {
+            mTrace.w("Proximity scan failed: ", errorCode);
+        }
+    };
+
+    // Gates that stopped advertising go away, the scan is renewed before Android degrades it.
+    private final Runnable mExpire = new Runnable() {
+        @Override
+        public void run() {
+            List<String> away;
+            synchronized (ProximityWatcher.this) {
+                if (!mWatching) {
+                    return;
+                }
+                long now = mScheduler.now();
+                away = mDetector.expire(now);
+                if (now - mStarted >= SCAN_RESTART_INTERVAL) {
+                    mScanner.stop();
+                    mWatching = mScanner.start(GattAttributes.UUID_SERVICE, false, mCallback);
+                    mStarted = now;
+                }
+                mExpireTask = mWatching ? mScheduler.schedule(this, EXPIRE_INTERVAL) : null;
+            }
+            for (String address : away) {
+                mTrace.i("Gate gone: ", address);
+                mListener.onAway(address);
+            }
+        }
+    };
+
+
+    public ProximityWatcher(BleScanner scanner, Scheduler scheduler, ProximityDetector detector, Listener listener,
+                            GattTrace trace) {
+        mScanner = scanner;
+        mScheduler = scheduler;
+        mDetector = detector;
+        mListener = listener;
+        mTrace = trace;
+    }
+
+    public synchronized void watch(String address) {
+        mWatched.add(address);
+    }
+
+    public synchronized void unwatch(String address) {
+        mWatched.remove(address);
+    }
+
+    /**
+     * @return Return true if watching, false if the scan could not be started.
+     */
+    public synchronized boolean start() {
+        if (mWatching) {
+            return true;
+        }
+        if (!mScanner.start(GattAttributes.UUID_SERVICE, false, mCallback)) {
+            return false;
+        }
+        mWatching = true;
+        mStarted = mScheduler.now();
+        mExpireTask = mScheduler.schedule(mExpire, EXPIRE_INTERVAL);
+        return true;
+    }
+
+    /**
+     * Stops watching. Gates that are near are forgotten without being reported away.
+     */
+    public synchronized void stop() {
+        if (!mWatching) {
+            return;
+        }
+        mWatching = false;
+        mScanner.stop();
+        if (mExpireTask != null) {
+            mExpireTask.cancel();
+            mExpireTask = null;
+        }
+        mDetector.clear();
+    }
+
+    public synchronized boolean isWatching() {
+        return mWatching;
+    }
+
+    public synchronized boolean isNear(String address) {
+        return mDetector.isNear(address);
+    }
+}
@@ -0,0 +1,143 @@
+package cz.janvanura.gate_bt;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Motion commands from the Quick Settings tile and the widget, sent without the activity.
+ *
+ * A ready connection to the gate is reused as it is. Otherwise the command connects, waits for
+ * the link and disconnects again once the gate answered, unless {@code keepConnections} says
+ * someone else wants the link meanwhile. The time from the tap until the gate started the
+ * relay pulse is recorded as {@link GattMetrics#TAP_WARM} or {@link GattMetrics#TAP_COLD}.
+ *
+ * Runs on the scheduler's thread, the GATT thread on the device.
+ */
+public class QuickCommand {
+
+    private final GattConnectionPool mPool;
+    private final GateKeyStore mKeyStore;
+    private final GattMetrics mMetrics;
+    private final Scheduler mScheduler;
+    private final BooleanSupplier mKeepConnections;
+
+    // Commands waiting for an answer by address, and addresses whose link a command opened.
+    private final HashMap<String, Integer> mInFlight = new HashMap<>();
+    private final HashSet<String> mOpened = new HashSet<>();
+
+
+    /**
+     * @param keepConnections Tells whether a link opened here has to stay up, e.g. while the
+     *                        activity is bound.
+     */
+    public QuickCommand(GattConnectionPool pool, GateKeyStore keyStore, GattMetrics metrics, Scheduler scheduler,
+                        BooleanSupplier keepConnections) {
+        mPool = pool;
+        mKeyStore = keyStore;
+        mMetrics = metrics;
+        mScheduler = scheduler;
+        mKeepConnections = keepConnections;
+    }
+
+    /**
+     * Sends {@code m:key:value} with the stored key of the gate, once the keys were read.
+     *
+     * @param tappedAt Scheduler time of the tap.
+     * @return Future completed with the answer of the gate, see {@link GateConnection#send(GateCommand)}.
+     */
+    public CompletableFuture<GateResponse> send(final String address, final boolean open, final long tappedAt) {
+        final CompletableFuture<GateResponse> future = new CompletableFuture<>();
+        if (mKeyStore.isLoaded()) {
+            sendNow(address, open, tappedAt, future);
+            return future;
+        }
+        mKeyStore.whenLoaded().thenRun(new Runnable() {
+            @Override
+            public void run() {
+                mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendNow(address, open, tappedAt, future);
+                    }
+                }, 0);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @return Return true while a command waits for its answer.
+     */
+    public boolean isBusy() {
+        return !mInFlight.isEmpty();
+    }
+
+
+    private void sendNow(final String address, boolean open, final long tappedAt,
+                         final CompletableFuture<GateResponse> future) {
+        GateConnection connection;
+        try {
+            connection = mPool.obtain(address);
+        } catch (IllegalStateException e) {
+            future.completeExceptionally(e);
+            return;
+        }
+        final boolean warm = connection.getStateMachine().is(ConnectionStateMachine.READY);
+        if (connection.getState() == GateConnection.STATE_DISCONNECTED) {
+            if (!connection.connect()) {
+                future.completeExceptionally(new IllegalStateException("Unable to connect to " + address));
+                return;
+            }
+            mOpened.add(address);
+        }
+        Integer inFlight = mInFlight.get(address);
+        mInFlight.put(address, inFlight == null ? 1 : inFlight + 1);
+
+        String key = mKeyStore.get(address);
+        final long sentAt = mScheduler.now();
+        connection.send(open ? GateCommand.open(key) : GateCommand.close(key))
+                .whenComplete(new BiConsumer<GateResponse, Throwable>() {
+                    @Override
+                    public void accept(final GateResponse response, final Throwable error) {
+                        final long answeredAt = mScheduler.now();
+                        mScheduler.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (response != null && response.isOk()) {
+                                    // Older gates answer only when the pulse is over.
+                                    long relayAt = response.wasAcknowledged()
+                                            ? sentAt + response.getAckLatencyMillis() : answeredAt;
+                                    mMetrics.record(warm ? GattMetrics.TAP_WARM : GattMetrics.TAP_COLD,
+                                            relayAt - tappedAt);
+                                }
+                                finish(address);
+                                if (error == null) {
+                                    future.complete(response);
+                                } else {
+                                    future.completeExceptionally(error);
+                                }
+                            }
+                        }, 0);
+                    }
+                });
+    }
+
+    // The last answer takes down a link a command opened, unless it is wanted meanwhile.
+    private void finish(String address) {
+        int inFlight = mInFlight.get(address) - 1;
+        if (inFlight > 0) {
+            mInFlight.put(address, inFlight);
+            return;
+        }
+        mInFlight.remove(address);
+        if (mOpened.remove(address) && !mKeepConnections.getAsBoolean()) {
+            GateConnection connection = mPool.get(address);
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package cz.janvanura.gate_bt;
+
+import java.util.Random;
+
+/**
+ * Schedules direct reconnect attempts with exponential backoff and jitter. A gate that is just
+ * at the edge of range is retried quickly, one that is gone is not hammered, and gates that
+ * dropped at the same moment do not retry in lockstep.
+ *
+ * The n-th delay is drawn from the upper half of {@code min(maxDelay, initialDelay * 2^n)}.
+ */
+public class ReconnectScheduler {
+
+    public static final long DEFAULT_INITIAL_DELAY = 250;
+    public static final long DEFAULT_MAX_DELAY = 8000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 6;
+
+    private final Scheduler mScheduler;
+    private final Random mRandom;
+    private final long mInitialDelay;
+    private final long mMaxDelay;
+    private final int mMaxAttempts;
+
+    private Scheduler.Cancellable mTask;
+    private int mAttempts;
+
+
+    public ReconnectScheduler(Scheduler scheduler, Random random) {
+        this(scheduler, random, DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    public ReconnectScheduler(Scheduler scheduler, Random random, long initialDelay, long maxDelay, int maxAttempts) {
+        mScheduler = scheduler;
+        mRandom = random;
+        mInitialDelay = initialDelay;
+        mMaxDelay = maxDelay;
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * Schedules the next attempt, replacing one that is still waiting.
+     *
+     * @return Return false when all attempts were used up, nothing is scheduled then.
+     */
+    public synchronized boolean schedule(final Runnable attempt) {
+        cancel();
+        if (mAttempts >= mMaxAttempts) {
+            return false;
+        }
+        long delay = nextDelay();
+        mAttempts++;
+        mTask = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ReconnectScheduler.this) {
+                    mTask = null;
+                }
+                attempt.run();
+            }
+        }, delay);
+        return true;
+    }
+
+    /**
+     * Cancels the waiting attempt, the attempt count is kept.
+     */
+    public synchronized void cancel() {
+        if (mTask != null) {
+            mTask.cancel();
+            mTask = null;
+        }
+    }
+
+    /**
+     * Cancels the waiting attempt and starts over from the initial delay.
+     */
+    public synchronized void reset() {
+        cancel();
+        mAttempts = 0;
+    }
+
+    public synchronized boolean isScheduled() {
+        return mTask != null;
+    }
+
+    public synchronized int getAttempts() {
+        return mAttempts;
+    }
+
+
+    private long nextDelay() {
+        long ceiling = mInitialDelay << Math.min(mAttempts, 30);
+        if (ceiling <= 0 || ceiling > mMaxDelay) {
+            ceiling = mMaxDelay;
+        }
+        long half = ceiling / 2;
+        return half + (long) (mRandom.nextDouble() * (ceiling - half));
+    }
+}
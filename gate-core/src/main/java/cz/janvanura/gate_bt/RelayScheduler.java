@@ -0,0 +1,160 @@
+package cz.janvanura.gate_bt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Relay pulses of the gate driven by time instead of {@code delay()}, the rules the sketch
+ * follows so it keeps reading commands while the gate moves.
+ *
+ * A request while idle starts a pulse at once. A request while busy joins the last pulse in
+ * line if it moves the same way, the gate cannot tell two pulses apart anyway, otherwise it
+ * queues behind it. Pulses follow each other after {@link #PULSE_GAP}, so both relays are
+ * never switched at the same time. When {@link #MAX_PULSES} are in line further requests
+ * are refused. Everyone waiting for a pulse is told once it ended.
+ *
+ * @param <T> Whatever identifies a request to the listener, e.g. how to answer it.
+ */
+public class RelayScheduler<T> {
+
+    public static final long PULSE = 2000;
+    /** Pause between two pulses, the relay contacts settle. */
+    public static final long PULSE_GAP = 250;
+    public static final int MAX_PULSES = 4;
+
+    public static final int STARTED = 0;
+    public static final int JOINED = 1;
+    public static final int QUEUED = 2;
+    public static final int BUSY = 3;
+
+    public interface Listener<T> {
+        /**
+         * The relay of {@code open} was switched on or off.
+         */
+        void onRelay(boolean open, boolean on);
+
+        /**
+         * The pulse of {@code open} ended, {@code waiters} asked for it in request order.
+         */
+        void onDone(boolean open, List<T> waiters);
+    }
+
+    private final Scheduler mScheduler;
+    private final Listener<T> mListener;
+    private final ArrayDeque<Pulse<T>> mPulses = new ArrayDeque<>();
+    // Whether the first pulse in line is running, otherwise it waits for the gap.
+    private boolean mRunning;
+    private long mLastEnd = Long.MIN_VALUE / 2;
+
+    private final Runnable mEndTask = new Runnable() {
+        @Override
+        public void run() {
+            endPulse();
+        }
+    };
+
+    private final Runnable mStartTask = new Runnable() {
+        @Override
+        public void run() {
+            startPulse();
+        }
+    };
+
+
+    public RelayScheduler(Scheduler scheduler, Listener<T> listener) {
+        mScheduler = scheduler;
+        mListener = listener;
+    }
+
+    /**
+     * @return {@link #STARTED}, {@link #JOINED}, {@link #QUEUED} or {@link #BUSY} when the
+     *         request was refused.
+     */
+    public int request(boolean open, T waiter) {
+        boolean start;
+        synchronized (this) {
+            Pulse<T> last = mPulses.peekLast();
+            if (last != null && last.mOpen == open) {
+                last.mWaiters.add(waiter);
+                return JOINED;
+            }
+            if (mPulses.size() >= MAX_PULSES) {
+                return BUSY;
+            }
+            Pulse<T> pulse = new Pulse<>(open);
+            pulse.mWaiters.add(waiter);
+            mPulses.addLast(pulse);
+            if (last != null) {
+                return QUEUED;
+            }
+            long wait = mLastEnd + PULSE_GAP - mScheduler.now();
+            start = wait <= 0;
+            if (!start) {
+                mScheduler.schedule(mStartTask, wait);
+            }
+        }
+        if (start) {
+            startPulse();
+            return STARTED;
+        }
+        return QUEUED;
+    }
+
+    /**
+     * @return Return true while a pulse runs or waits for its turn.
+     */
+    public synchronized boolean isBusy() {
+        return !mPulses.isEmpty();
+    }
+
+    /**
+     * @return Pulses running or waiting, the running one included.
+     */
+    public synchronized int size() {
+        return mPulses.size();
+    }
+
+
+    private void startPulse() {
+        boolean open;
+        synchronized (this) {
+            Pulse<T> pulse = mPulses.peekFirst();
+            if (pulse == null || mRunning) {
+                return;
+            }
+            mRunning = true;
+            open = pulse.mOpen;
+            mScheduler.schedule(mEndTask, PULSE);
+        }
+        mListener.onRelay(open, true);
+    }
+
+    private void endPulse() {
+        Pulse<T> pulse;
+        boolean next;
+        synchronized (this) {
+            pulse = mPulses.pollFirst();
+            mRunning = false;
+            mLastEnd = mScheduler.now();
+            next = !mPulses.isEmpty();
+            if (next) {
+                mScheduler.schedule(mStartTask, PULSE_GAP);
+            }
+        }
+        if (pulse != null) {
+            mListener.onRelay(pulse.mOpen, false);
+            mListener.onDone(pulse.mOpen, pulse.mWaiters);
+        }
+    }
+
+
+    private static final class Pulse<T> {
+        final boolean mOpen;
+        final List<T> mWaiters = new ArrayList<>();
+
+        Pulse(boolean open) {
+            mOpen = open;
+        }
+    }
+}
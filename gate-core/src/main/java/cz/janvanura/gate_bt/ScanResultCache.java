@@ -0,0 +1,171 @@
+package cz.janvanura.gate_bt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Gates seen by recent scans, one entry per address. An entry expires {@code ttl} ms after the
+ * gate was last seen, so a connect can start from a cached result while it is fresh instead of
+ * scanning again.
+ */
+public class ScanResultCache {
+
+    public static final long DEFAULT_TTL = 30000;
+    public static final int DEFAULT_MAX_ENTRIES = 32;
+
+    // Strongest first.
+    private static final Comparator<Entry> BY_RSSI = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return Integer.compare(b.mRssi, a.mRssi);
+        }
+    };
+
+    private final long mTtl;
+    private final int mMaxEntries;
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+
+
+    public static final class Entry {
+        private final String mAddress;
+        private String mName;
+        private int mRssi;
+        private long mLastSeen;
+
+        Entry(String address) {
+            mAddress = address;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getRssi() {
+            return mRssi;
+        }
+
+        public long getLastSeen() {
+            return mLastSeen;
+        }
+
+        @Override
+        public String toString() {
+            return mAddress + " " + mRssi + " dBm";
+        }
+    }
+
+
+    public ScanResultCache() {
+        this(DEFAULT_TTL, DEFAULT_MAX_ENTRIES);
+    }
+
+    public ScanResultCache(long ttl, int maxEntries) {
+        mTtl = ttl;
+        mMaxEntries = maxEntries;
+    }
+
+    /**
+     * Records a sighting of {@code address}, replacing the previous one.
+     *
+     * @return Return true if the gate was not in the cache or its entry had expired.
+     */
+    public synchronized boolean put(String address, String name, int rssi, long now) {
+        Entry entry = mEntries.get(address);
+        boolean added = entry == null || isExpired(entry, now);
+        if (entry == null) {
+            if (mEntries.size() >= mMaxEntries) {
+                evict(now);
+                if (mEntries.size() >= mMaxEntries) {
+                    removeOldest();
+                }
+            }
+            entry = new Entry(address);
+            mEntries.put(address, entry);
+        }
+        if (name != null) {
+            entry.mName = name;
+        }
+        entry.mRssi = rssi;
+        entry.mLastSeen = now;
+        return added;
+    }
+
+    /**
+     * @return The fresh entry of {@code address}, or null.
+     */
+    public synchronized Entry get(String address, long now) {
+        Entry entry = mEntries.get(address);
+        if (entry == null || isExpired(entry, now)) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @return The strongest fresh entry, or null.
+     */
+    public synchronized Entry strongest(long now) {
+        Entry best = null;
+        for (Entry entry : mEntries.values()) {
+            if (!isExpired(entry, now) && (best == null || entry.mRssi > best.mRssi)) {
+                best = entry;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return Fresh entries, strongest first.
+     */
+    public synchronized List<Entry> entries(long now) {
+        evict(now);
+        List<Entry> entries = new ArrayList<>(mEntries.values());
+        Collections.sort(entries, BY_RSSI);
+        return entries;
+    }
+
+    /**
+     * Drops expired entries.
+     */
+    public synchronized void evict(long now) {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            if (isExpired(iterator.next(), now)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.mLastSeen >= mTtl;
+    }
+
+    private void removeOldest() {
+        Entry oldest = null;
+        for (Entry entry : mEntries.values()) {
+            if (oldest == null || entry.mLastSeen < oldest.mLastSeen) {
+                oldest = entry;
+            }
+        }
+        if (oldest != null) {
+            mEntries.remove(oldest.mAddress);
+        }
+    }
+}
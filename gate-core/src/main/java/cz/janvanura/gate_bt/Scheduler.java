@@ -0,0 +1,23 @@
+package cz.janvanura.gate_bt;
+
+/**
+ * Source of time and delayed execution. Backed by a {@code Handler} on the device
+ * and by a manually advanced clock in unit tests.
+ */
+public interface Scheduler {
+
+    /**
+     * @return Monotonic time in milliseconds.
+     */
+    long now();
+
+    /**
+     * Runs {@code task} after {@code delayMillis}.
+     */
+    Cancellable schedule(Runnable task, long delayMillis);
+
+
+    interface Cancellable {
+        void cancel();
+    }
+}
@@ -0,0 +1,170 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.*;
+
+public class AuditJournalTest {
+
+    private static final long ADDRESS = AuditJournal.address("00:15:83:00:C3:F7");
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private long mTime = 1000000;
+    private final LongSupplier mClock = new LongSupplier() {
+        @Override
+        public long getAsLong() {
+            return mTime;
+        }
+    };
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+
+    @Test
+    public void pagesBackNewestFirst() throws IOException {
+        AuditJournal journal = open(8, 4);
+        journal.append(AuditJournal.KIND_COMMAND, ADDRESS, GateCommand.TYPE_MOTION, 1, 0);
+        mTime += 40;
+        journal.append(AuditJournal.KIND_ACK, ADDRESS, GateCommand.TYPE_MOTION, 1, 40);
+        mTime += 2000;
+        journal.append(AuditJournal.KIND_ANSWER, ADDRESS, GateCommand.TYPE_MOTION, GateCommandCodec.ANSWER_OK_OPEN,
+                2040);
+
+        List<AuditJournal.Entry> page = journal.page(Long.MAX_VALUE, 2);
+        assertEquals(2, page.size());
+        AuditJournal.Entry answer = page.get(0);
+        assertEquals(2, answer.getSequence());
+        assertEquals(AuditJournal.KIND_ANSWER, answer.getKind());
+        assertEquals(GateCommandCodec.ANSWER_OK_OPEN, answer.getValue());
+        assertEquals(2040, answer.getLatencyMillis());
+        assertEquals(mTime, answer.getTime());
+        assertEquals("00:15:83:00:C3:F7", answer.getAddress());
+
+        List<AuditJournal.Entry> older = journal.page(page.get(1).getSequence(), 2);
+        assertEquals(1, older.size());
+        assertEquals(AuditJournal.KIND_COMMAND, older.get(0).getKind());
+    }
+
+    @Test
+    public void historyCrossesSegments() throws IOException {
+        AuditJournal journal = open(8, 100);
+        for (int i = 0; i < 100; i++) {
+            journal.append(AuditJournal.KIND_COMMAND, ADDRESS, GateCommand.TYPE_MOTION, i % 2, 0);
+        }
+        // Thirteen segments in use and the next one mapped ahead.
+        assertEquals(14, segments().length);
+
+        long expected = 99;
+        for (Iterator<AuditJournal.Entry> it = journal.history(Long.MAX_VALUE); it.hasNext(); expected--) {
+            assertEquals(expected, it.next().getSequence());
+        }
+        assertEquals(-1, expected);
+    }
+
+    @Test
+    public void reopenedJournalContinuesAfterLastRecord() throws IOException {
+        AuditJournal journal = open(8, 4);
+        for (int i = 0; i < 10; i++) {
+            journal.append(AuditJournal.KIND_COMMAND, ADDRESS, GateCommand.TYPE_MOTION, 1, 0);
+        }
+        journal.close();
+
+        AuditJournal reopened = open(8, 4);
+        assertEquals(10, reopened.getNextSequence());
+        reopened.append(AuditJournal.KIND_ERROR, ADDRESS, GateCommand.TYPE_MOTION, AuditJournal.ERROR_TIMEOUT, 10000);
+        List<AuditJournal.Entry> page = reopened.page(Long.MAX_VALUE, 20);
+        assertEquals(11, page.size());
+        assertEquals(10, page.get(0).getSequence());
+        assertEquals(AuditJournal.ERROR_TIMEOUT, page.get(0).getValue());
+    }
+
+    @Test
+    public void tornRecordEndsTheJournal() throws IOException {
+        AuditJournal journal = open(8, 4);
+        for (int i = 0; i < 3; i++) {
+            journal.append(AuditJournal.KIND_COMMAND, ADDRESS, GateCommand.TYPE_MOTION, 1, 0);
+        }
+        journal.flush();
+        // The kind of the last record never made it.
+        try (RandomAccessFile file = new RandomAccessFile(segments()[0], "rw")) {
+            file.seek(2 * AuditJournal.RECORD_SIZE + AuditJournal.RECORD_SIZE - 1);
+            file.write(0);
+        }
+
+        assertEquals(2, open(8, 4).getNextSequence());
+    }
+
+    @Test
+    public void expiresSegmentsBeyondCountAndAge() throws IOException {
+        AuditJournal journal = open(4, 3);
+        for (int i = 0; i < 20; i++) {
+            journal.append(AuditJournal.KIND_COMMAND, ADDRESS, GateCommand.TYPE_MOTION, 1, 0);
+        }
+        // Three segments kept, the newest of them is empty yet.
+        List<AuditJournal.Entry> kept = journal.page(Long.MAX_VALUE, 100);
+        assertEquals(8, kept.size());
+        assertEquals(12, kept.get(7).getSequence());
+
+        mTime += AuditJournal.DEFAULT_MAX_AGE + 1;
+        for (int i = 0; i < 4; i++) {
+            journal.append(AuditJournal.KIND_COMMAND, ADDRESS, GateCommand.TYPE_MOTION, 1, 0);
+        }
+        // Only the segment with fresh records and the active one are left.
+        List<AuditJournal.Entry> left = journal.page(Long.MAX_VALUE, 100);
+        assertEquals(4, left.size());
+        assertEquals(20, left.get(3).getSequence());
+    }
+
+    @Test
+    public void flusherRunsPeriodicallyUntilClosed() throws IOException {
+        AuditJournal journal = open(8, 4);
+        assertEquals(1, mScheduler.pendingTasks());
+        mScheduler.advance(AuditJournal.FLUSH_INTERVAL);
+        assertEquals(1, mScheduler.pendingTasks());
+
+        journal.append(AuditJournal.KIND_COMMAND, ADDRESS, GateCommand.TYPE_MOTION, 1, 0);
+        journal.close();
+        assertEquals(0, mScheduler.pendingTasks());
+        assertFalse(journal.isOpen());
+        journal.append(AuditJournal.KIND_COMMAND, ADDRESS, GateCommand.TYPE_MOTION, 1, 0);
+        // The unused end of the segment was trimmed.
+        assertEquals(AuditJournal.RECORD_SIZE, segments()[0].length());
+    }
+
+    @Test
+    public void packsOnlyMacAddresses() {
+        assertEquals(0x001583_00C3F7L, ADDRESS);
+        assertEquals(0, AuditJournal.address("other"));
+        assertEquals(0, AuditJournal.address("00-15-83-00-C3-F7"));
+    }
+
+
+    private AuditJournal open(int segmentRecords, int maxSegments) throws IOException {
+        return new AuditJournal(new File(mFolder.getRoot(), "audit"), segmentRecords, maxSegments,
+                AuditJournal.DEFAULT_MAX_AGE, mScheduler, mExecutor, mClock);
+    }
+
+    private File[] segments() {
+        File[] files = new File(mFolder.getRoot(), "audit").listFiles();
+        Arrays.sort(files);
+        return files;
+    }
+}
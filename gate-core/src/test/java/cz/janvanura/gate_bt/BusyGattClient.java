@@ -0,0 +1,30 @@
+package cz.janvanura.gate_bt;
+
+import java.util.UUID;
+
+/**
+ * {@link FakeGattClient} refusing writes while one is outstanding, like {@code BluetoothGatt}
+ * does for writes without response too. Tests complete the outstanding write through
+ * {@link #completeWrite(GattOperationQueue, int)}.
+ */
+public class BusyGattClient extends FakeGattClient {
+
+    public int mRefused;
+    private boolean mBusy;
+
+
+    @Override
+    public boolean writeCharacteristic(UUID characteristic, byte[] value, int writeType) {
+        if (mBusy) {
+            mRefused++;
+            return false;
+        }
+        mBusy = super.writeCharacteristic(characteristic, value, writeType);
+        return mBusy;
+    }
+
+    public void completeWrite(GattOperationQueue queue, int status) {
+        mBusy = false;
+        queue.onCharacteristicWrite(GattAttributes.UUID_CHAR, status);
+    }
+}
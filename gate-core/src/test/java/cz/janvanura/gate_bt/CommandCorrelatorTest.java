@@ -0,0 +1,171 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class CommandCorrelatorTest {
+
+    private FakeScheduler mScheduler;
+    private CommandCorrelator mCorrelator;
+
+    @Before
+    public void setUp() {
+        mScheduler = new FakeScheduler();
+        mCorrelator = new CommandCorrelator(mScheduler, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    @Test
+    public void answerCompletesMatchingCommandWithLatency() throws Exception {
+        CompletableFuture<GateResponse> open = mCorrelator.register(GateCommand.open("0000"));
+        mScheduler.advance(120);
+
+        assertTrue(mCorrelator.onAnswer(utf8("ok:m:1")));
+        GateResponse response = open.get();
+        assertEquals(GateCommandCodec.ANSWER_OK_OPEN, response.getAnswer());
+        assertEquals(120, response.getLatencyMillis());
+        assertTrue(response.isOk());
+        assertEquals(0, mCorrelator.size());
+    }
+
+    @Test
+    public void framedAnswerCarriesValueWithoutDelimiters() throws Exception {
+        CompletableFuture<GateResponse> change = mCorrelator.register(GateCommand.changeKey("12345", "abc"));
+        assertTrue(mCorrelator.onAnswer(utf8("\u0002ok:c:abc\u0003")));
+        assertEquals("abc", change.get().getValue());
+    }
+
+    @Test
+    public void answersGoToOldestCommandOfMatchingKind() throws Exception {
+        CompletableFuture<GateResponse> change = mCorrelator.register(GateCommand.changeKey("12345", "abc"));
+        CompletableFuture<GateResponse> open = mCorrelator.register(GateCommand.open("0000"));
+        CompletableFuture<GateResponse> close = mCorrelator.register(GateCommand.close("0000"));
+
+        mCorrelator.onAnswer(utf8("ok:m:0"));
+        assertTrue(close.isDone());
+        assertFalse(open.isDone());
+
+        mCorrelator.onAnswer(utf8("err:secure"));
+        assertEquals(GateCommandCodec.ANSWER_ERR_SECURE, open.get().getAnswer());
+
+        mCorrelator.onAnswer(utf8("ok:c:abc"));
+        assertEquals("abc", change.get().getValue());
+    }
+
+    @Test
+    public void unknownOrUnexpectedAnswerIsNotConsumed() {
+        mCorrelator.register(GateCommand.open("0000"));
+        assertFalse(mCorrelator.onAnswer(utf8("hello")));
+        assertFalse(mCorrelator.onAnswer(utf8("err:master")));
+        assertEquals(1, mCorrelator.size());
+    }
+
+    @Test
+    public void missingAnswerTimesOut() {
+        CompletableFuture<GateResponse> open = mCorrelator.register(GateCommand.open("0000"), 1000);
+        mScheduler.advance(999);
+        assertFalse(open.isDone());
+
+        mScheduler.advance(1);
+        assertCause(TimeoutException.class, open);
+        // A late answer is not matched to anything.
+        assertFalse(mCorrelator.onAnswer(utf8("ok:m:1")));
+    }
+
+    @Test
+    public void acknowledgementRestartsDeadlineAndResultCompletes() throws Exception {
+        final GateCommand[] acknowledged = new GateCommand[1];
+        mCorrelator.setAckListener(new CommandCorrelator.AckListener() {
+            @Override
+            public void onAcknowledged(GateCommand command, long latencyMillis) {
+                acknowledged[0] = command;
+            }
+        });
+        GateCommand command = GateCommand.open("0000");
+        CompletableFuture<GateResponse> open = mCorrelator.register(command, 1000);
+        mScheduler.advance(40);
+
+        assertTrue(mCorrelator.onAnswer(utf8("\u0002ack:m:1\u0003")));
+        assertSame(command, acknowledged[0]);
+        mScheduler.advance(999);
+        assertFalse(open.isDone());
+
+        assertTrue(mCorrelator.onAnswer(utf8("\u0002ok:m:1\u0003")));
+        GateResponse response = open.get();
+        assertEquals(GateCommandCodec.ANSWER_OK_OPEN, response.getAnswer());
+        assertEquals(40, response.getAckLatencyMillis());
+        assertEquals(1039, response.getLatencyMillis());
+    }
+
+    @Test
+    public void refusalGoesToCommandNotAcknowledged() throws Exception {
+        CompletableFuture<GateResponse> first = mCorrelator.register(GateCommand.open("0000"));
+        CompletableFuture<GateResponse> second = mCorrelator.register(GateCommand.open("0000"));
+
+        assertTrue(mCorrelator.onAnswer(utf8("ack:m:1")));
+        // Nothing left to acknowledge.
+        mCorrelator.onAnswer(utf8("ack:m:1"));
+        assertFalse(mCorrelator.onAnswer(utf8("ack:m:1")));
+
+        CompletableFuture<GateResponse> third = mCorrelator.register(GateCommand.open("0000"));
+        mCorrelator.onAnswer(utf8("err:busy"));
+        assertEquals(GateCommandCodec.ANSWER_ERR_BUSY, third.get().getAnswer());
+        assertFalse(first.isDone());
+
+        mCorrelator.onAnswer(utf8("ok:m:1"));
+        mCorrelator.onAnswer(utf8("ok:m:1"));
+        assertTrue(first.get().wasAcknowledged());
+        assertTrue(second.get().wasAcknowledged());
+    }
+
+    @Test
+    public void failCompletesOnlyThatCommand() {
+        CompletableFuture<GateResponse> open = mCorrelator.register(GateCommand.open("0000"));
+        CompletableFuture<GateResponse> close = mCorrelator.register(GateCommand.close("0000"));
+        mCorrelator.fail(open, new IOException("write failed"));
+
+        assertCause(IOException.class, open);
+        assertFalse(close.isDone());
+        assertEquals(1, mScheduler.pendingTasks());
+    }
+
+    @Test
+    public void failAllCompletesEverything() {
+        CompletableFuture<GateResponse> open = mCorrelator.register(GateCommand.open("0000"));
+        CompletableFuture<GateResponse> close = mCorrelator.register(GateCommand.close("0000"));
+        mCorrelator.failAll(new IOException("disconnected"));
+
+        assertCause(IOException.class, open);
+        assertCause(IOException.class, close);
+        assertEquals(0, mScheduler.pendingTasks());
+    }
+
+
+    private static void assertCause(Class<? extends Throwable> expected, CompletableFuture<GateResponse> future) {
+        try {
+            future.get();
+            fail("Expected " + expected.getSimpleName());
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), expected.isInstance(e.getCause()));
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,69 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static cz.janvanura.gate_bt.ConnectionStateMachine.*;
+import static org.junit.Assert.*;
+
+public class ConnectionStateMachineTest {
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final List<String> mTransitions = new ArrayList<>();
+
+    private final ConnectionStateMachine mMachine = new ConnectionStateMachine(mScheduler,
+            new ConnectionStateMachine.Listener() {
+                @Override
+                public void onTransition(int from, int to, long elapsed) {
+                    mTransitions.add(name(from) + ">" + name(to) + "@" + elapsed);
+                }
+            });
+
+
+    @Test
+    public void recordsTimeOfEveryPhase() {
+        assertTrue(mMachine.moveTo(SCANNING));
+        mScheduler.advance(4000);
+        assertTrue(mMachine.moveTo(CONNECTING));
+        mScheduler.advance(700);
+        assertTrue(mMachine.moveTo(DISCOVERING));
+        mScheduler.advance(300);
+        assertTrue(mMachine.moveTo(READY));
+
+        assertEquals(4000, mMachine.getLastDuration(SCANNING));
+        assertEquals(700, mMachine.getLastDuration(CONNECTING));
+        assertEquals(300, mMachine.getLastDuration(DISCOVERING));
+        assertEquals(-1, mMachine.getLastDuration(READY));
+        assertEquals(5000, mMachine.getEnteredAt());
+        assertEquals("CONNECTING>DISCOVERING@700", mTransitions.get(2));
+    }
+
+    @Test
+    public void refusesIllegalTransitions() {
+        assertFalse(mMachine.moveTo(READY));
+        assertFalse(mMachine.moveTo(DISCONNECTING));
+        assertTrue(mMachine.is(IDLE));
+
+        mMachine.moveTo(CONNECTING);
+        mMachine.moveTo(DISCOVERING);
+        mMachine.moveTo(DISCONNECTING);
+        // The old link has to be down before anything else comes up.
+        assertFalse(mMachine.moveTo(DISCOVERING));
+        assertFalse(mMachine.moveTo(READY));
+        assertTrue(mMachine.is(DISCONNECTING));
+        assertTrue(mMachine.moveTo(IDLE));
+    }
+
+    @Test
+    public void conditionalTransitionChecksCurrentState() {
+        mMachine.moveTo(CONNECTING);
+        assertFalse(mMachine.moveTo(DISCOVERING, READY));
+        assertTrue(mMachine.moveTo(CONNECTING, DISCOVERING));
+        assertTrue(mMachine.isLinked());
+        // Staying put is not reported.
+        assertTrue(mMachine.moveTo(DISCOVERING));
+        assertEquals(2, mTransitions.size());
+    }
+}
@@ -0,0 +1,48 @@
+package cz.janvanura.gate_bt;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * {@link BleScanner} fed by the test through {@link #advertise}.
+ */
+public class FakeBleScanner implements BleScanner {
+
+    public static final List<UUID> GATE_SERVICES = Collections.singletonList(GattAttributes.UUID_SERVICE);
+
+    public Callback mCallback;
+    public int mStarts;
+    public boolean mAccept = true;
+    public boolean mLowLatency;
+
+
+    @Override
+    public boolean start(UUID serviceUuid, boolean lowLatency, Callback callback) {
+        if (!mAccept) {
+            return false;
+        }
+        mLowLatency = lowLatency;
+        mCallback = callback;
+        mStarts++;
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        mCallback = null;
+    }
+
+    public boolean isScanning() {
+        return mCallback != null;
+    }
+
+    /**
+     * Delivers an advertisement while scanning, like the controller would.
+     */
+    public void advertise(String address, int rssi, List<UUID> serviceUuids) {
+        if (mCallback != null) {
+            mCallback.onResult(address, null, rssi, serviceUuids);
+        }
+    }
+}
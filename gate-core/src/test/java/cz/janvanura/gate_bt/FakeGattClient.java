@@ -0,0 +1,95 @@
+package cz.janvanura.gate_bt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * {@link GattClient} recording every started operation. Tests complete them by calling the
+ * queue callbacks themselves.
+ */
+public class FakeGattClient implements GattClient {
+
+    public final List<String> mStarted = new ArrayList<>();
+    public final List<byte[]> mWritten = new ArrayList<>();
+    public final List<Integer> mWriteTypes = new ArrayList<>();
+    public boolean mAccept = true;
+    public boolean mCachedServices;
+    public boolean mClosed;
+    public String mAddress = "00:00:00:00:00:00";
+    public boolean mAutoConnect;
+    public int mPriority = CONNECTION_PRIORITY_BALANCED;
+    public int mProperties;
+    public int mRequestedMtu;
+
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public boolean connect() {
+        mStarted.add("connect");
+        return mAccept;
+    }
+
+    @Override
+    public void disconnect() {
+        mStarted.add("disconnect");
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+        mPriority = priority;
+        return mAccept;
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        mStarted.add("mtu");
+        mRequestedMtu = mtu;
+        return mAccept;
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+    }
+
+    @Override
+    public boolean hasCachedServices() {
+        return mCachedServices;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        mStarted.add("discover");
+        return mAccept;
+    }
+
+    @Override
+    public int getProperties(UUID characteristic) {
+        return mProperties;
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID characteristic) {
+        mStarted.add("read");
+        return mAccept;
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID characteristic, byte[] value, int writeType) {
+        mStarted.add("write");
+        mWritten.add(value);
+        mWriteTypes.add(writeType);
+        return mAccept;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(UUID characteristic, boolean enable) {
+        mStarted.add("notify");
+        return mAccept;
+    }
+}
@@ -0,0 +1,83 @@
+package cz.janvanura.gate_bt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link Scheduler} with a clock that only moves when a test advances it.
+ */
+public class FakeScheduler implements Scheduler {
+
+    private final List<Task> mTasks = new ArrayList<>();
+    private long mNow;
+
+
+    @Override
+    public synchronized long now() {
+        return mNow;
+    }
+
+    @Override
+    public synchronized Cancellable schedule(Runnable task, long delayMillis) {
+        final Task scheduled = new Task(task, mNow + Math.max(0, delayMillis));
+        mTasks.add(scheduled);
+        return new Cancellable() {
+            @Override
+            public void cancel() {
+                synchronized (FakeScheduler.this) {
+                    mTasks.remove(scheduled);
+                }
+            }
+        };
+    }
+
+    /**
+     * Moves the clock forward, running every task that becomes due in order.
+     */
+    public void advance(long millis) {
+        long target;
+        synchronized (this) {
+            target = mNow + millis;
+        }
+        while (true) {
+            Task next;
+            synchronized (this) {
+                next = null;
+                for (Task task : mTasks) {
+                    if (task.mTime <= target && (next == null || task.mTime < next.mTime)) {
+                        next = task;
+                    }
+                }
+                if (next == null) {
+                    mNow = target;
+                    return;
+                }
+                mTasks.remove(next);
+                mNow = next.mTime;
+            }
+            next.mRunnable.run();
+        }
+    }
+
+    /**
+     * Runs tasks that are due now.
+     */
+    public void runPending() {
+        advance(0);
+    }
+
+    public synchronized int pendingTasks() {
+        return mTasks.size();
+    }
+
+
+    private static class Task {
+        final Runnable mRunnable;
+        final long mTime;
+
+        Task(Runnable runnable, long time) {
+            mRunnable = runnable;
+            mTime = time;
+        }
+    }
+}
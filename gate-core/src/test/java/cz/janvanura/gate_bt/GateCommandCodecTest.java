@@ -0,0 +1,174 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class GateCommandCodecTest {
+
+    private static final int WARMUP = 20_000;
+    private static final int ITERATIONS = 200_000;
+
+    @Test
+    public void encodeMotion_matchesTextProtocol() {
+        GateCommandCodec codec = new GateCommandCodec();
+        assertArrayEquals(utf8("m:0000:1"), codec.encodeMotion("0000", true));
+        assertArrayEquals(utf8("m:0000:0"), codec.encodeMotion("0000", false));
+        assertArrayEquals(utf8("m:kl\u00ed\u010d:1"), codec.encodeMotion("kl\u00ed\u010d", true));
+    }
+
+    @Test
+    public void encodeChangeKey_matchesTextProtocol() {
+        GateCommandCodec codec = new GateCommandCodec();
+        assertArrayEquals(utf8("c:12345:abcdefghi"), codec.encodeChangeKey("12345", "abcdefghi"));
+    }
+
+    @Test
+    public void encode_reusesFrameOfSameLength() {
+        GateCommandCodec codec = new GateCommandCodec();
+        byte[] first = codec.encodeMotion("0000", true);
+        byte[] second = codec.encodeMotion("1111", false);
+        assertSame(first, second);
+        assertArrayEquals(utf8("m:1111:0"), second);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encode_rejectsOversizedCommand() {
+        new GateCommandCodec().encodeMotion(new String(new char[GateCommandCodec.MAX_FRAME_SIZE]), true);
+    }
+
+    @Test
+    public void decodeAnswer_recognisesAllAnswers() {
+        assertEquals(GateCommandCodec.ANSWER_OK_OPEN, GateCommandCodec.decodeAnswer(utf8("ok:m:1")));
+        assertEquals(GateCommandCodec.ANSWER_OK_CLOSE, GateCommandCodec.decodeAnswer(utf8("ok:m:0")));
+        assertEquals(GateCommandCodec.ANSWER_OK_CHANGE, GateCommandCodec.decodeAnswer(utf8("ok:c:abc")));
+        assertEquals(GateCommandCodec.ANSWER_ERR_MOTION, GateCommandCodec.decodeAnswer(utf8("err:m:7")));
+        assertEquals(GateCommandCodec.ANSWER_ERR_SECURE, GateCommandCodec.decodeAnswer(utf8("err:secure")));
+        assertEquals(GateCommandCodec.ANSWER_ERR_MASTER, GateCommandCodec.decodeAnswer(utf8("err:master")));
+        assertEquals(GateCommandCodec.ANSWER_ERR_LENGTH, GateCommandCodec.decodeAnswer(utf8("err:length")));
+        assertEquals(GateCommandCodec.ANSWER_ACK_OPEN, GateCommandCodec.decodeAnswer(utf8("ack:m:1")));
+        assertEquals(GateCommandCodec.ANSWER_ACK_CLOSE, GateCommandCodec.decodeAnswer(utf8("ack:m:0")));
+        assertEquals(GateCommandCodec.ANSWER_ERR_BUSY, GateCommandCodec.decodeAnswer(utf8("err:busy")));
+        assertEquals(GateCommandCodec.ANSWER_STATUS, GateCommandCodec.decodeAnswer(utf8("s:i:0:-:0")));
+        assertEquals(GateCommandCodec.ANSWER_UNKNOWN, GateCommandCodec.decodeAnswer(utf8("ok:m:10")));
+        assertEquals(GateCommandCodec.ANSWER_UNKNOWN, GateCommandCodec.decodeAnswer(new byte[0]));
+        assertEquals(GateCommandCodec.ANSWER_UNKNOWN, GateCommandCodec.decodeAnswer(null));
+    }
+
+    @Test
+    public void answerValueOffset_pointsAtValue() {
+        byte[] answer = utf8("ok:c:abc");
+        int offset = GateCommandCodec.answerValueOffset(GateCommandCodec.decodeAnswer(answer));
+        assertEquals("abc", new String(answer, offset, answer.length - offset, StandardCharsets.UTF_8));
+        assertEquals(-1, GateCommandCodec.answerValueOffset(GateCommandCodec.ANSWER_OK_OPEN));
+    }
+
+    @Test
+    public void protocolV2_framesCommandsAndAnswers() {
+        GateCommandCodec codec = new GateCommandCodec();
+        codec.setProtocol(GateCommandCodec.PROTOCOL_V2);
+        assertArrayEquals(utf8("\u0002m:0000:1\u0003"), codec.encodeMotion("0000", true));
+        assertArrayEquals(utf8("\u0002c:12345:abc\u0003"), codec.encodeChangeKey("12345", "abc"));
+        assertArrayEquals(utf8("\u0002v\u0003"), codec.encodeVersionQuery());
+
+        assertEquals(GateCommandCodec.ANSWER_OK_OPEN, GateCommandCodec.decodeAnswer(utf8("\u0002ok:m:1\u0003")));
+        byte[] answer = utf8("\u0002ok:v:2\u0003");
+        assertEquals(GateCommandCodec.ANSWER_OK_VERSION, GateCommandCodec.decodeAnswer(answer));
+        int offset = GateCommandCodec.payloadOffset(answer, 0, answer.length);
+        int length = GateCommandCodec.payloadLength(answer, 0, answer.length);
+        assertEquals("ok:v:2", new String(answer, offset, length, StandardCharsets.UTF_8));
+        // An unfinished frame is no answer.
+        assertEquals(GateCommandCodec.ANSWER_UNKNOWN, GateCommandCodec.decodeAnswer(utf8("\u0002ok:m:1")));
+    }
+
+    @Test
+    public void protocolV3_sessionEndsWhenTheCounterRunsOut() {
+        GateCommandCodec codec = new GateCommandCodec();
+        codec.setProtocol(GateCommandCodec.PROTOCOL_V3);
+        codec.setSessionKey(new byte[GateSession.KEY_SIZE]);
+        for (int i = 1; i < GateSession.MAX_COUNTER; i++) {
+            codec.encodeMotion("0000", true);
+        }
+        assertTrue(codec.hasSession());
+        assertEquals("\u0002t:ffff", new String(codec.encodeMotion("0000", true), 0, 7, StandardCharsets.UTF_8));
+        assertFalse(codec.hasSession());
+
+        codec.setSessionKey(new byte[GateSession.KEY_SIZE]);
+        assertEquals("\u0002t:0001", new String(codec.encodeMotion("0000", true), 0, 7, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void protocolV3_sendsCounterAndTagWithinSession() {
+        GateCommandCodec codec = new GateCommandCodec();
+        codec.setProtocol(GateCommandCodec.PROTOCOL_V3);
+        assertArrayEquals(utf8("\u0002h:00017f80ff10\u0003"),
+                codec.encodeHello(new byte[]{0x00, 0x01, 0x7f, (byte) 0x80, (byte) 0xff, 0x10}));
+        assertArrayEquals(utf8("\u0002m:0000:1\u0003"), codec.encodeMotion("0000", true));
+
+        byte[] sessionKey = new byte[GateSession.KEY_SIZE];
+        codec.setSessionKey(sessionKey);
+        assertTrue(codec.hasSession());
+        assertArrayEquals(utf8("\u0002t:0001" + tag(sessionKey, 1, false) + ":0\u0003"),
+                codec.encodeMotion("0000", false));
+        assertArrayEquals(utf8("\u0002t:0002" + tag(sessionKey, 2, true) + ":1\u0003"),
+                codec.encodeMotion("0000", true));
+        // The size GateSession documents.
+        assertEquals(18, codec.encodeMotion("0000", true).length);
+        // A gate that turns out older gets the key.
+        codec.setProtocol(GateCommandCodec.PROTOCOL_V2);
+        assertArrayEquals(utf8("\u0002m:0000:0\u0003"), codec.encodeMotion("0000", false));
+
+        byte[] hello = utf8("\u0002ok:h:a1b2c3d4e5f6\u0003");
+        assertEquals(GateCommandCodec.ANSWER_OK_HELLO, GateCommandCodec.decodeAnswer(hello));
+        int offset = GateCommandCodec.answerValueOffset(GateCommandCodec.ANSWER_OK_HELLO);
+        assertEquals("a1b2c3d4e5f6", new String(hello, 1 + offset, 12, StandardCharsets.UTF_8));
+        assertEquals(GateCommandCodec.ANSWER_ERR_SESSION, GateCommandCodec.decodeAnswer(utf8("err:session")));
+    }
+
+    @Test
+    public void encodeAndDecode_doNotAllocate() {
+        com.sun.management.ThreadMXBean bean = threadMXBean();
+        GateCommandCodec codec = new GateCommandCodec();
+        byte[] answer = utf8("err:secure");
+        String key = "123456789";
+
+        int sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += codec.encodeMotion(key, (i & 1) == 0).length + GateCommandCodec.decodeAnswer(answer);
+        }
+
+        long tid = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += codec.encodeMotion(key, (i & 1) == 0).length + GateCommandCodec.decodeAnswer(answer);
+        }
+        long allocated = bean.getThreadAllocatedBytes(tid) - before;
+
+        assertTrue(sink > 0);
+        // Anything proportional to the iteration count would be megabytes.
+        assertTrue("allocated " + allocated + " bytes", allocated < 4096);
+    }
+
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled());
+        return bean;
+    }
+
+    private static String tag(byte[] sessionKey, int counter, boolean open) {
+        byte[] tag = new byte[GateSession.MAC_SIZE];
+        GateSession.tag(GateSession.newMac(sessionKey), counter, open, tag);
+        return GateSession.toHex(Arrays.copyOf(tag, GateSession.TAG_SIZE));
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
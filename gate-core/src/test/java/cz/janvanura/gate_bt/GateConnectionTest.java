@@ -0,0 +1,537 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class GateConnectionTest {
+
+    private static final String ADDRESS = "00:15:83:00:C3:F7";
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final GattTrace mTrace = new GattTrace(GattTrace.LEVEL_NONE, null, null, mScheduler);
+    private final List<FakeGattClient> mOpened = new ArrayList<>();
+    private final List<String> mEvents = new ArrayList<>();
+    private final GattMetrics mMetrics = new GattMetrics();
+    private final GateProfileCache mProfiles = new GateProfileCache();
+
+    private final GattConnector mConnector = new GattConnector() {
+        @Override
+        public GattClient open(String address, boolean autoConnect, GattClient.Callback callback) {
+            FakeGattClient client = new FakeGattClient();
+            client.mAddress = address;
+            client.mAutoConnect = autoConnect;
+            mOpened.add(client);
+            return client;
+        }
+    };
+
+    private final GateConnection mConnection = newConnection();
+
+
+    @Test
+    public void droppedIdleLinkReconnectsInBackgroundWithCachedServices() {
+        mConnection.connect();
+        FakeGattClient client = last();
+        assertFalse(client.mAutoConnect);
+        connectFully();
+
+        client.mStarted.clear();
+        client.mCachedServices = true;
+        mConnection.onConnectionStateChange(8, GattClient.STATE_DISCONNECTED);
+        assertEquals(GateConnection.STATE_DISCONNECTED, mConnection.getState());
+        assertEquals(1, mOpened.size());
+        assertEquals("connect", client.mStarted.get(0));
+
+        // Back in range: only notifications are enabled again.
+        mConnection.onConnectionStateChange(GattClient.GATT_SUCCESS, GattClient.STATE_CONNECTED);
+        assertEquals("notify", client.mStarted.get(1));
+    }
+
+    @Test
+    public void failedDirectConnectRetriesWithBackoffThenWaitsInBackground() {
+        mConnection.connect();
+        for (int attempt = 1; attempt <= ReconnectScheduler.DEFAULT_MAX_ATTEMPTS; attempt++) {
+            mConnection.onConnectionStateChange(133, GattClient.STATE_DISCONNECTED);
+            assertEquals(GateConnection.STATE_CONNECTING, mConnection.getState());
+            mScheduler.advance(ReconnectScheduler.DEFAULT_MAX_DELAY);
+            assertEquals(attempt + 1, mOpened.size());
+            assertFalse(last().mAutoConnect);
+            // Only one connection per gate.
+            assertTrue(mOpened.get(attempt - 1).mClosed);
+        }
+        mConnection.onConnectionStateChange(133, GattClient.STATE_DISCONNECTED);
+        assertEquals(GateConnection.STATE_DISCONNECTED, mConnection.getState());
+        assertEquals("connect", last().mStarted.get(0));
+        assertEquals("disconnected", mEvents.get(mEvents.size() - 1));
+    }
+
+    @Test
+    public void commandWhileDisconnectedConnectsDirectly() {
+        mConnection.connectInBackground();
+        FakeGattClient background = last();
+        assertTrue(background.mAutoConnect);
+
+        CompletableFuture<GateResponse> open = mConnection.send(GateCommand.open("0000"));
+        assertEquals(2, mOpened.size());
+        assertTrue(background.mClosed);
+        assertFalse(last().mAutoConnect);
+
+        // The command survives the switch and goes out once connected.
+        connectFully();
+        assertTrue(last().mStarted.contains("write"));
+        assertFalse(open.isDone());
+    }
+
+    @Test
+    public void highPriorityDuringBurstThenBalanced() {
+        mConnection.connect();
+        connectFully();
+        FakeGattClient client = last();
+        assertEquals(GattClient.CONNECTION_PRIORITY_HIGH, client.mPriority);
+
+        mScheduler.advance(GateConnection.PRIORITY_LINGER);
+        assertEquals(GattClient.CONNECTION_PRIORITY_BALANCED, client.mPriority);
+
+        mConnection.send(GateCommand.open("0000"));
+        assertEquals(GattClient.CONNECTION_PRIORITY_HIGH, client.mPriority);
+        // Still waiting for the answer.
+        mScheduler.advance(GateConnection.PRIORITY_LINGER);
+        assertEquals(GattClient.CONNECTION_PRIORITY_HIGH, client.mPriority);
+
+        mConnection.onCharacteristicWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        mConnection.onCharacteristicChanged(GattAttributes.UUID_CHAR, "ok:m:1".getBytes());
+        mScheduler.advance(GateConnection.PRIORITY_LINGER);
+        assertEquals(GattClient.CONNECTION_PRIORITY_BALANCED, client.mPriority);
+    }
+
+    @Test
+    public void disconnectStopsReconnecting() {
+        mConnection.connect();
+        connectFully();
+        mConnection.disconnect();
+        mConnection.onConnectionStateChange(GattClient.GATT_SUCCESS, GattClient.STATE_DISCONNECTED);
+
+        mScheduler.advance(ReconnectScheduler.DEFAULT_MAX_DELAY);
+        assertEquals(1, mOpened.size());
+        assertFalse(last().mStarted.contains("connect"));
+        assertEquals(GateConnection.STATE_DISCONNECTED, mConnection.getState());
+    }
+
+    @Test
+    public void snapshotDoesNotFollowConnection() {
+        mConnection.connect();
+        connectFully();
+        mConnection.send(GateCommand.open("0000"));
+
+        ConnectionSnapshot snapshot = mConnection.snapshot();
+        assertEquals(ADDRESS, snapshot.getAddress());
+        assertTrue(snapshot.isConnected());
+        assertEquals(1, snapshot.getQueuedOperations());
+        assertEquals(1, snapshot.getPendingCommands());
+
+        mConnection.close();
+        assertTrue(snapshot.isConnected());
+        assertEquals(GateConnection.STATE_DISCONNECTED, mConnection.snapshot().getState());
+        assertEquals(0, mConnection.snapshot().getPendingCommands());
+    }
+
+    @Test
+    public void connectWhileDisconnectingWaitsForTheOldLink() {
+        mConnection.connect();
+        connectFully();
+        mConnection.disconnect();
+        assertTrue(mConnection.getStateMachine().is(ConnectionStateMachine.DISCONNECTING));
+        assertTrue(mConnection.connect());
+        assertEquals(1, mOpened.size());
+        assertTrue(mConnection.send(GateCommand.open("0000")).isCompletedExceptionally());
+
+        mConnection.onConnectionStateChange(GattClient.GATT_SUCCESS, GattClient.STATE_DISCONNECTED);
+        assertTrue(mConnection.getStateMachine().is(ConnectionStateMachine.CONNECTING));
+        mScheduler.advance(ReconnectScheduler.DEFAULT_MAX_DELAY);
+        assertEquals(2, mOpened.size());
+        assertFalse(last().mAutoConnect);
+    }
+
+    @Test
+    public void closeDisconnectsLinkFirst() {
+        mConnection.connect();
+        connectFully();
+        FakeGattClient client = last();
+        mConnection.close();
+
+        assertTrue(client.mStarted.contains("disconnect"));
+        assertTrue(client.mClosed);
+        assertTrue(mConnection.getStateMachine().is(ConnectionStateMachine.IDLE));
+        assertEquals("disconnected", mEvents.get(mEvents.size() - 1));
+    }
+
+    @Test
+    public void readyOnlyOnceNotificationsAreEnabled() {
+        mConnection.connect();
+        mScheduler.advance(600);
+        mConnection.onConnectionStateChange(GattClient.GATT_SUCCESS, GattClient.STATE_CONNECTED);
+        mConnection.onMtuChanged(GattClient.DEFAULT_MTU, GattClient.GATT_SUCCESS);
+        mScheduler.advance(250);
+        mConnection.onServicesDiscovered(GattClient.GATT_SUCCESS);
+        assertTrue(mConnection.getStateMachine().is(ConnectionStateMachine.DISCOVERING));
+        mScheduler.advance(50);
+        mConnection.onDescriptorWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+
+        ConnectionSnapshot snapshot = mConnection.snapshot();
+        assertEquals(ConnectionStateMachine.READY, snapshot.getPhase());
+        assertEquals(600, snapshot.getLastDuration(ConnectionStateMachine.CONNECTING));
+        assertEquals(300, snapshot.getLastDuration(ConnectionStateMachine.DISCOVERING));
+
+        mConnection.onServiceChanged();
+        assertTrue(mConnection.getStateMachine().is(ConnectionStateMachine.DISCOVERING));
+    }
+
+
+    @Test
+    public void recordsLatenciesOfConnectionAndCommands() {
+        mConnection.connect();
+        mScheduler.advance(700);
+        connectFully();
+        assertEquals(1, mMetrics.get(GattMetrics.CONNECT).getCount());
+        assertEquals(700, mMetrics.get(GattMetrics.CONNECT).getMax());
+        assertEquals(1, mMetrics.get(GattMetrics.DISCOVERY).getCount());
+
+        mConnection.send(GateCommand.open("0000"));
+        mScheduler.advance(40);
+        mConnection.onCharacteristicWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        mScheduler.advance(60);
+        mConnection.onCharacteristicChanged(GattAttributes.UUID_CHAR, "ok:m:1".getBytes());
+        assertEquals(40, mMetrics.get(GattMetrics.WRITE_ACK).getMax());
+        assertEquals(100, mMetrics.get(GattMetrics.ROUND_TRIP).getMax());
+
+        // A drop while idle comes back in the background.
+        mConnection.onConnectionStateChange(8, GattClient.STATE_DISCONNECTED);
+        mScheduler.advance(5000);
+        mConnection.onConnectionStateChange(GattClient.GATT_SUCCESS, GattClient.STATE_CONNECTED);
+        assertEquals(5000, mMetrics.get(GattMetrics.RECONNECT).getMax());
+        assertEquals(1, mMetrics.getStatusCount(8));
+    }
+
+    @Test
+    public void negotiatesMtuFirstAndRemembersGatesStayingAtDefault() {
+        mConnection.connect();
+        FakeGattClient client = last();
+        mConnection.onConnectionStateChange(GattClient.GATT_SUCCESS, GattClient.STATE_CONNECTED);
+        assertEquals("mtu", client.mStarted.get(0));
+        assertEquals(GateConnection.PREFERRED_MTU, client.mRequestedMtu);
+        mConnection.onMtuChanged(GateConnection.PREFERRED_MTU, GattClient.GATT_SUCCESS);
+        assertEquals("discover", client.mStarted.get(1));
+        assertEquals(GateConnection.PREFERRED_MTU, mConnection.getMtu());
+        assertEquals(GateConnection.PREFERRED_MTU, mProfiles.getMtu(ADDRESS));
+
+        // The next link starts at the default and asks again, until the gate refuses.
+        mConnection.onConnectionStateChange(8, GattClient.STATE_DISCONNECTED);
+        client.mStarted.clear();
+        mConnection.onConnectionStateChange(GattClient.GATT_SUCCESS, GattClient.STATE_CONNECTED);
+        assertEquals(GattClient.DEFAULT_MTU, mConnection.getMtu());
+        assertEquals("mtu", client.mStarted.get(0));
+        mConnection.onMtuChanged(GattClient.DEFAULT_MTU, 6);
+        assertFalse(mProfiles.isMtuWorthRequesting(ADDRESS));
+
+        mConnection.onConnectionStateChange(8, GattClient.STATE_DISCONNECTED);
+        client.mStarted.clear();
+        mConnection.onConnectionStateChange(GattClient.GATT_SUCCESS, GattClient.STATE_CONNECTED);
+        assertFalse(client.mStarted.contains("mtu"));
+    }
+
+    @Test
+    public void shortMotionCommandsGoOutWithoutResponse() {
+        mConnection.connect();
+        FakeGattClient client = last();
+        client.mProperties = GattClient.PROPERTY_WRITE | GattClient.PROPERTY_WRITE_NO_RESPONSE;
+        connectFully();
+
+        CompletableFuture<GateResponse> open = mConnection.send(GateCommand.open("0000"));
+        mConnection.onCharacteristicWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        // Changing the key twice is not the same as once.
+        mConnection.send(GateCommand.changeKey("12345", "abcdefghi"));
+        assertEquals(Integer.valueOf(GattClient.WRITE_TYPE_NO_RESPONSE), client.mWriteTypes.get(0));
+        assertEquals(Integer.valueOf(GattClient.WRITE_TYPE_DEFAULT), client.mWriteTypes.get(1));
+
+        // The answer acknowledges the command, no write_ack is recorded for it.
+        mConnection.onCharacteristicChanged(GattAttributes.UUID_CHAR, "ok:m:1".getBytes());
+        assertTrue(open.isDone());
+        assertEquals(0, mMetrics.get(GattMetrics.WRITE_ACK).getCount());
+    }
+
+    @Test
+    public void unansweredWriteWithoutResponseIsWrittenAgainWithResponse() {
+        mConnection.connect();
+        FakeGattClient client = last();
+        client.mProperties = GattClient.PROPERTY_WRITE_NO_RESPONSE;
+        connectFully();
+
+        CompletableFuture<GateResponse> open = mConnection.send(GateCommand.open("0000"));
+        mConnection.onCharacteristicWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        mScheduler.advance(GateConnection.ANSWER_TIMEOUT);
+        assertEquals(2, client.mWriteTypes.size());
+        assertEquals(Integer.valueOf(GattClient.WRITE_TYPE_DEFAULT), client.mWriteTypes.get(1));
+        assertArrayEquals(client.mWritten.get(0), client.mWritten.get(1));
+
+        mConnection.onCharacteristicWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        mConnection.onCharacteristicChanged(GattAttributes.UUID_CHAR, "ok:m:1".getBytes());
+        assertTrue(open.isDone());
+        assertFalse(open.isCompletedExceptionally());
+    }
+
+    @Test
+    public void busyStackDoesNotTurnOffWritesWithoutResponse() {
+        mConnection.connect();
+        FakeGattClient client = last();
+        client.mProperties = GattClient.PROPERTY_WRITE_NO_RESPONSE;
+        connectFully();
+
+        client.mAccept = false;
+        CompletableFuture<GateResponse> open = mConnection.send(GateCommand.open("0000"));
+        client.mAccept = true;
+        mScheduler.advance(GattOperationQueue.RETRY_DELAY);
+        assertEquals(2, client.mWriteTypes.size());
+        assertEquals(Integer.valueOf(GattClient.WRITE_TYPE_NO_RESPONSE), client.mWriteTypes.get(1));
+
+        mConnection.onCharacteristicWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        mConnection.onCharacteristicChanged(GattAttributes.UUID_CHAR, "ok:m:1".getBytes());
+        assertFalse(open.isCompletedExceptionally());
+        mConnection.send(GateCommand.close("0000"));
+        assertEquals(Integer.valueOf(GattClient.WRITE_TYPE_NO_RESPONSE), client.mWriteTypes.get(2));
+    }
+
+    @Test
+    public void refusedWriteWithoutResponseFallsBackForTheLink() {
+        mConnection.connect();
+        FakeGattClient client = last();
+        client.mProperties = GattClient.PROPERTY_WRITE_NO_RESPONSE;
+        connectFully();
+
+        CompletableFuture<GateResponse> open = mConnection.send(GateCommand.open("0000"));
+        mConnection.onCharacteristicWrite(GattAttributes.UUID_CHAR, 3);
+        assertFalse(open.isDone());
+        assertEquals(Integer.valueOf(GattClient.WRITE_TYPE_DEFAULT), client.mWriteTypes.get(1));
+
+        mConnection.onCharacteristicWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        mConnection.send(GateCommand.close("0000"));
+        assertEquals(Integer.valueOf(GattClient.WRITE_TYPE_DEFAULT), client.mWriteTypes.get(2));
+    }
+
+
+    @Test
+    public void probesProtocolOnceAndHoldsCommandsUntilAnswered() {
+        GateConnection connection = newConnection(new GateProfileCache());
+        connection.connect();
+        FakeGattClient client = last();
+        connection.onConnectionStateChange(GattClient.GATT_SUCCESS, GattClient.STATE_CONNECTED);
+        connection.onMtuChanged(GattClient.DEFAULT_MTU, GattClient.GATT_SUCCESS);
+        connection.send(GateCommand.open("0000"));
+        connection.onServicesDiscovered(GattClient.GATT_SUCCESS);
+        connection.onDescriptorWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        assertArrayEquals("\u0002v\u0003".getBytes(), client.mWritten.get(0));
+
+        // The command queued while connecting waits for the answer.
+        connection.onCharacteristicWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        assertEquals(1, client.mWritten.size());
+        assertTrue(connection.getStateMachine().is(ConnectionStateMachine.DISCOVERING));
+
+        connection.onCharacteristicChanged(GattAttributes.UUID_CHAR, "\u0002ok:v:2\u0003".getBytes());
+        // The answer is handled on the scheduler's thread.
+        assertTrue(connection.getStateMachine().is(ConnectionStateMachine.DISCOVERING));
+        mScheduler.runPending();
+        assertTrue(connection.getStateMachine().is(ConnectionStateMachine.READY));
+        assertEquals(2, client.mWritten.size());
+        // It was encoded once the gate was known to speak v2.
+        assertArrayEquals("\u0002m:0000:1\u0003".getBytes(), client.mWritten.get(1));
+
+        connection.onCharacteristicWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        // A v2 gate is asked for its status once ready.
+        assertArrayEquals("\u0002s\u0003".getBytes(), client.mWritten.get(2));
+        connection.onCharacteristicWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        connection.send(GateCommand.close("0000"));
+        assertArrayEquals("\u0002m:0000:0\u0003".getBytes(), client.mWritten.get(3));
+    }
+
+    @Test
+    public void commandSentWhileConnectingIsEncodedForTheGate() {
+        GateProfileCache profiles = new GateProfileCache();
+        profiles.putProtocol(ADDRESS, GateCommandCodec.PROTOCOL_V2);
+        GateConnection connection = newConnection(profiles);
+        CompletableFuture<GateResponse> open = connection.send(GateCommand.open("0000"));
+        FakeGattClient client = last();
+        assertTrue(client.mWritten.isEmpty());
+
+        connection.onConnectionStateChange(GattClient.GATT_SUCCESS, GattClient.STATE_CONNECTED);
+        connection.onMtuChanged(GattClient.DEFAULT_MTU, GattClient.GATT_SUCCESS);
+        connection.onServicesDiscovered(GattClient.GATT_SUCCESS);
+        connection.onDescriptorWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        mScheduler.runPending();
+        // Framed for the v2 gate, not the bare text of a link whose protocol is not set yet.
+        assertArrayEquals("\u0002m:0000:1\u0003".getBytes(), client.mWritten.get(0));
+        assertFalse(open.isDone());
+
+        // The status query comes behind it.
+        connection.onCharacteristicWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        assertArrayEquals("\u0002s\u0003".getBytes(), client.mWritten.get(1));
+    }
+
+    @Test
+    public void v3GateWithoutSessionNeverGetsTheKey() throws Exception {
+        GateProfileCache profiles = new GateProfileCache();
+        profiles.putProtocol(ADDRESS, GateCommandCodec.PROTOCOL_V3);
+        GateConnection connection = newConnection(profiles);
+        connection.setKeyStore(new GateKeyStore(new File("keys.properties"), "0000", mScheduler, Runnable::run));
+        CompletableFuture<GateResponse> open = connection.send(GateCommand.open("0000"));
+        FakeGattClient client = last();
+        connection.onConnectionStateChange(GattClient.GATT_SUCCESS, GattClient.STATE_CONNECTED);
+        connection.onMtuChanged(GattClient.DEFAULT_MTU, GattClient.GATT_SUCCESS);
+        connection.onServicesDiscovered(GattClient.GATT_SUCCESS);
+        connection.onDescriptorWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        mScheduler.runPending();
+        assertTrue(new String(client.mWritten.get(0)).startsWith("\u0002h:"));
+        connection.onCharacteristicWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        connection.onCharacteristicWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+
+        // Whoever kept the gate from answering the handshake does not get the key instead.
+        mScheduler.advance(GateConnection.SESSION_TIMEOUT);
+        assertTrue(open.isCompletedExceptionally());
+        try {
+            open.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals("No session with " + ADDRESS, e.getCause().getMessage());
+        }
+        for (byte[] written : client.mWritten) {
+            assertFalse(new String(written).contains("0000"));
+        }
+        // The next command gets a new handshake.
+        assertTrue(new String(client.mWritten.get(client.mWritten.size() - 1)).startsWith("\u0002h:"));
+    }
+
+    @Test(timeout = 5000)
+    public void readyTransitionDoesNotWaitForTheConnectionLock() throws InterruptedException {
+        mConnection.connect();
+        mConnection.onConnectionStateChange(GattClient.GATT_SUCCESS, GattClient.STATE_CONNECTED);
+        mConnection.onMtuChanged(GattClient.DEFAULT_MTU, GattClient.GATT_SUCCESS);
+        mConnection.onServicesDiscovered(GattClient.GATT_SUCCESS);
+
+        // Another thread holds the connection lock, as close() does while clearing the queue.
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mConnection) {
+                    locked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+        });
+        holder.start();
+        locked.await();
+        // Runs in the queue callback, under the queue lock.
+        mConnection.onDescriptorWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        release.countDown();
+        holder.join();
+
+        mScheduler.runPending();
+        assertTrue(mConnection.getStateMachine().is(ConnectionStateMachine.READY));
+    }
+
+    @Test
+    public void pushedStatusIsKeptAndPublished() {
+        mConnection.connect();
+        connectFully();
+        CompletableFuture<GateResponse> open = mConnection.send(GateCommand.open("0000"));
+        assertNull(mConnection.getStatus());
+
+        mScheduler.advance(30);
+        mConnection.onCharacteristicChanged(GattAttributes.UUID_CHAR, "\u0002s:o:0:1:42\u0003".getBytes());
+        GateStatus status = mConnection.getStatus();
+        assertEquals(GateStatus.RELAY_OPEN, status.getRelay());
+        assertEquals(42, status.getUptimeSeconds());
+        assertEquals(mScheduler.now(), status.getReceivedAt());
+        assertEquals("status", mEvents.get(mEvents.size() - 1));
+        // Not taken for the answer of the command.
+        assertFalse(open.isDone());
+    }
+
+    @Test
+    public void gateIgnoringTheProbeKeepsTextProtocol() {
+        GateProfileCache profiles = new GateProfileCache();
+        GateConnection connection = newConnection(profiles);
+        connection.connect();
+        FakeGattClient client = last();
+        connection.onConnectionStateChange(GattClient.GATT_SUCCESS, GattClient.STATE_CONNECTED);
+        connection.onMtuChanged(GattClient.DEFAULT_MTU, GattClient.GATT_SUCCESS);
+        connection.onServicesDiscovered(GattClient.GATT_SUCCESS);
+        connection.onDescriptorWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        connection.onCharacteristicWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+
+        mScheduler.advance(GateConnection.PROTOCOL_PROBE_TIMEOUT);
+        assertTrue(connection.getStateMachine().is(ConnectionStateMachine.READY));
+        assertEquals(GateCommandCodec.PROTOCOL_V1, profiles.getProtocol(ADDRESS));
+        connection.send(GateCommand.open("0000"));
+        assertArrayEquals("m:0000:1".getBytes(), client.mWritten.get(1));
+    }
+
+
+    private GateConnection newConnection() {
+        // Most tests are not about the protocol probe.
+        mProfiles.putProtocol(ADDRESS, GateCommandCodec.PROTOCOL_V1);
+        return newConnection(mProfiles);
+    }
+
+    private GateConnection newConnection(GateProfileCache profiles) {
+        GattEventBus bus = new GattEventBus();
+        bus.register(new GattEventBus.Listener() {
+            @Override
+            public void onConnecting(String address) {
+                mEvents.add("connecting");
+            }
+
+            @Override
+            public void onConnected(String address) {
+                mEvents.add("connected");
+            }
+
+            @Override
+            public void onDisconnected(String address) {
+                mEvents.add("disconnected");
+            }
+
+            @Override
+            public void onStatusChanged(String address, GateStatus status) {
+                mEvents.add("status");
+            }
+        }, Runnable::run);
+        return new GateConnection(ADDRESS, mConnector, mScheduler, Runnable::run, bus, mTrace, mMetrics, profiles);
+    }
+
+    private FakeGattClient last() {
+        return mOpened.get(mOpened.size() - 1);
+    }
+
+    // Completes connection, MTU exchange when asked, discovery and enabling notifications, and
+    // runs what the connection handed to the scheduler's thread.
+    private void connectFully() {
+        mConnection.onConnectionStateChange(GattClient.GATT_SUCCESS, GattClient.STATE_CONNECTED);
+        if (last().mStarted.contains("mtu")) {
+            mConnection.onMtuChanged(GattClient.DEFAULT_MTU, GattClient.GATT_SUCCESS);
+        }
+        mConnection.onServicesDiscovered(GattClient.GATT_SUCCESS);
+        mConnection.onDescriptorWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        mScheduler.runPending();
+    }
+}
@@ -0,0 +1,164 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class GateKeyStoreTest {
+
+    private static final String GATE = "00:15:83:00:C3:F7";
+    private static final String OTHER_GATE = "00:15:83:00:AA:01";
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    // Runs disk work only when the test says so.
+    private final List<Runnable> mIoTasks = new ArrayList<>();
+    private final Executor mIoExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mIoTasks.add(command);
+        }
+    };
+    private File mFile;
+
+
+    @Before
+    public void setUp() {
+        mFile = new File(mFolder.getRoot(), "keys.properties");
+    }
+
+    @Test
+    public void readsDefaultKeyUntilLoaded() {
+        GateKeyStore store = open();
+        store.load();
+        assertFalse(store.isLoaded());
+        assertEquals(GattAttributes.SECURE_KEY, store.get(GATE));
+
+        runIo();
+        assertTrue(store.isLoaded());
+        assertTrue(store.whenLoaded().isDone());
+        assertEquals(GattAttributes.SECURE_KEY, store.get(GATE));
+        assertFalse(store.contains(GATE));
+    }
+
+    @Test
+    public void keysSurviveReopenAndIgnoreAddressCase() {
+        GateKeyStore store = loaded();
+        store.put(GATE, "1234");
+        store.put(OTHER_GATE.toLowerCase(), "ab:=c");
+        assertEquals("1234", store.get(GATE));
+        assertFalse(mFile.exists());
+
+        mScheduler.advance(GateKeyStore.WRITE_DELAY);
+        runIo();
+        assertTrue(mFile.exists());
+
+        GateKeyStore reopened = loaded();
+        assertEquals("1234", reopened.get(GATE.toLowerCase()));
+        assertEquals("ab:=c", reopened.get(OTHER_GATE));
+        assertEquals(2, reopened.getAll().size());
+    }
+
+    @Test
+    public void changesAreWrittenTogether() {
+        GateKeyStore store = loaded();
+        store.put(GATE, "1");
+        mScheduler.advance(GateKeyStore.WRITE_DELAY / 2);
+        store.put(GATE, "2");
+        store.put(OTHER_GATE, "3");
+        mScheduler.advance(GateKeyStore.WRITE_DELAY / 2);
+        assertEquals(1, mIoTasks.size());
+        runIo();
+
+        GateKeyStore reopened = loaded();
+        assertEquals("2", reopened.get(GATE));
+        assertEquals("3", reopened.get(OTHER_GATE));
+    }
+
+    @Test
+    public void putAllReplacesTheSnapshotAtOnce() {
+        GateKeyStore store = loaded();
+        store.put(GATE, "1");
+        Map<String, String> before = store.getAll();
+
+        Map<String, String> keys = new HashMap<>();
+        keys.put(GATE, null);
+        keys.put(OTHER_GATE, "2");
+        store.putAll(keys);
+
+        assertEquals("1", before.get(GATE));
+        assertFalse(store.contains(GATE));
+        assertEquals("2", store.get(OTHER_GATE));
+        try {
+            store.getAll().put(GATE, "3");
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // Snapshots are immutable.
+        }
+    }
+
+    @Test
+    public void changesBeforeLoadWinOverTheFile() {
+        GateKeyStore store = loaded();
+        store.put(GATE, "old");
+        store.put(OTHER_GATE, "kept");
+        store.flush();
+        runIo();
+
+        GateKeyStore reopened = open();
+        reopened.load();
+        reopened.put(GATE, "new");
+        runIo();
+        assertEquals("new", reopened.get(GATE));
+        assertEquals("kept", reopened.get(OTHER_GATE));
+
+        // The early change is written as well.
+        mScheduler.advance(GateKeyStore.WRITE_DELAY);
+        runIo();
+        assertEquals("new", loaded().get(GATE));
+    }
+
+    @Test
+    public void flushWritesWithoutWaiting() {
+        GateKeyStore store = loaded();
+        store.flush();
+        assertTrue(mIoTasks.isEmpty());
+
+        store.put(GATE, "1");
+        store.flush();
+        runIo();
+        assertEquals("1", loaded().get(GATE));
+        // The delayed write was cancelled.
+        assertEquals(0, mScheduler.pendingTasks());
+    }
+
+
+    private GateKeyStore open() {
+        return new GateKeyStore(mFile, GattAttributes.SECURE_KEY, mScheduler, mIoExecutor);
+    }
+
+    private GateKeyStore loaded() {
+        GateKeyStore store = open();
+        store.load();
+        runIo();
+        return store;
+    }
+
+    private void runIo() {
+        while (!mIoTasks.isEmpty()) {
+            mIoTasks.remove(0).run();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class GateScannerTest {
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final FakeBleScanner mBleScanner = new FakeBleScanner();
+    private final ScanResultCache mCache = new ScanResultCache();
+    private final List<String> mEvents = new ArrayList<>();
+    private final GateScanner mScanner = newScanner();
+
+
+    @Test
+    public void streamOfResultsIsFilteredAndDeduplicated() {
+        assertTrue(mScanner.start());
+        List<UUID> other = Collections.singletonList(UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb"));
+        for (int i = 0; i < 100; i++) {
+            mBleScanner.advertise("A", -70 + i % 5, FakeBleScanner.GATE_SERVICES);
+            mBleScanner.advertise("B", -60, FakeBleScanner.GATE_SERVICES);
+            mBleScanner.advertise("HRM", -40, other);
+            mBleScanner.advertise("NONE", -40, null);
+            mScheduler.advance(10);
+        }
+
+        assertEquals(2, mCache.size());
+        assertEquals("B", mCache.strongest(mScheduler.now()).getAddress());
+        assertEquals(-66, mCache.get("A", mScheduler.now()).getRssi());
+        assertEquals(2, mEvents.size());
+        assertTrue(mEvents.contains("found A"));
+        assertTrue(mEvents.contains("found B"));
+    }
+
+    @Test
+    public void windowEndsAndReportsNothingFound() {
+        mScanner.start();
+        mScheduler.advance(GateScanner.SCAN_WINDOW);
+        assertFalse(mScanner.isScanning());
+        assertFalse(mBleScanner.isScanning());
+        assertEquals(Collections.singletonList("nothing"), mEvents);
+    }
+
+    @Test
+    public void windowWithGateDoesNotReportNothingFound() {
+        mScanner.start();
+        mBleScanner.advertise("A", -70, FakeBleScanner.GATE_SERVICES);
+        mScheduler.advance(GateScanner.SCAN_WINDOW);
+        assertEquals(Collections.singletonList("found A"), mEvents);
+    }
+
+    @Test
+    public void startsAreThrottled() {
+        assertTrue(mScanner.start());
+        mScanner.stop();
+        assertFalse(mScanner.start());
+
+        mScheduler.advance(GateScanner.MIN_START_INTERVAL);
+        assertTrue(mScanner.start());
+        assertEquals(2, mBleScanner.mStarts);
+    }
+
+    @Test
+    public void resultsAfterStopAreIgnored() {
+        mScanner.start();
+        BleScanner.Callback callback = mBleScanner.mCallback;
+        mScanner.stop();
+        callback.onResult("A", null, -50, FakeBleScanner.GATE_SERVICES);
+        assertEquals(0, mCache.size());
+    }
+
+
+    private GateScanner newScanner() {
+        GattEventBus bus = new GattEventBus();
+        bus.register(new GattEventBus.Listener() {
+            @Override
+            public void onGateFound(String address, int rssi) {
+                mEvents.add("found " + address);
+            }
+
+            @Override
+            public void onNothingFound(String address) {
+                mEvents.add("nothing");
+            }
+        }, Runnable::run);
+        GattTrace trace = new GattTrace(GattTrace.LEVEL_NONE, null, null, mScheduler);
+        return new GateScanner(mBleScanner, mScheduler, mCache, bus, trace);
+    }
+}
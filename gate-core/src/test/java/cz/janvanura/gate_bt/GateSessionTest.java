@@ -0,0 +1,66 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Mac;
+
+import static org.junit.Assert.*;
+
+public class GateSessionTest {
+
+    private static final byte[] CLIENT_NONCE = {1, 2, 3, 4, 5, 6};
+    private static final byte[] GATE_NONCE = {6, 5, 4, 3, 2, 1};
+
+
+    @Test
+    public void sessionKeyDependsOnKeyAndBothNonces() {
+        byte[] key = GateSession.sessionKey("0000", CLIENT_NONCE, GATE_NONCE);
+        assertEquals(GateSession.KEY_SIZE, key.length);
+        assertArrayEquals(key, GateSession.sessionKey("0000", CLIENT_NONCE.clone(), GATE_NONCE.clone()));
+
+        assertFalse(GateSession.matches(key, GateSession.sessionKey("0001", CLIENT_NONCE, GATE_NONCE)));
+        assertFalse(GateSession.matches(key, GateSession.sessionKey("0000", GATE_NONCE, CLIENT_NONCE)));
+        assertTrue(GateSession.matches(key, key.clone()));
+        assertFalse(GateSession.matches(null, key));
+        assertFalse(GateSession.matches(key, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyKeyHasNoSession() {
+        GateSession.sessionKey("", CLIENT_NONCE, GATE_NONCE);
+    }
+
+    @Test
+    public void tagBindsCounterAndValue() {
+        Mac mac = GateSession.newMac(GateSession.sessionKey("0000", CLIENT_NONCE, GATE_NONCE));
+        byte[] tag = new byte[GateSession.MAC_SIZE];
+        GateSession.tag(mac, 0x0102, true, tag);
+        String field = "0102" + GateSession.toHex(Arrays.copyOf(tag, GateSession.TAG_SIZE));
+
+        assertEquals(0x0102, GateSession.verify(mac, field, true));
+        assertEquals(-1, GateSession.verify(mac, field, false));
+        assertEquals(-1, GateSession.verify(mac, "0103" + field.substring(4), true));
+        assertEquals(-1, GateSession.verify(mac, field.substring(2), true));
+        assertEquals(-1, GateSession.verify(null, field, true));
+        Mac other = GateSession.newMac(GateSession.sessionKey("0000", GATE_NONCE, CLIENT_NONCE));
+        assertEquals(-1, GateSession.verify(other, field, true));
+    }
+
+    @Test
+    public void hexRoundTrips() {
+        byte[] nonce = GateSession.newNonce(new Random(3));
+        assertEquals(GateSession.NONCE_SIZE, nonce.length);
+        String hex = GateSession.toHex(nonce);
+        assertEquals(2 * GateSession.NONCE_SIZE, hex.length());
+        assertArrayEquals(nonce, GateSession.parseHex(hex, GateSession.NONCE_SIZE));
+        assertArrayEquals(nonce, GateSession.parseHex(hex.toUpperCase(), GateSession.NONCE_SIZE));
+
+        assertEquals("00ff7f80", GateSession.toHex(new byte[]{0, -1, 127, -128}));
+        assertNull(GateSession.parseHex("00ff7f", GateSession.TAG_SIZE));
+        assertNull(GateSession.parseHex("00ff7fxx", GateSession.TAG_SIZE));
+        assertNull(GateSession.parseHex(null, GateSession.TAG_SIZE));
+    }
+}
@@ -0,0 +1,70 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Thousands of open and close cycles against {@link GateSimulator} over a lossy, jittery link
+ * in virtual time, with bounds on throughput and latency percentiles.
+ */
+public class GateSimulatorLoadTest {
+
+    private static final int CYCLES = 2000;
+
+    @Test
+    public void openCloseCyclesOverLossyLink() {
+        FakeScheduler scheduler = new FakeScheduler();
+        GateSimulator gate = new GateSimulator(scheduler, new Random(42))
+                .setLinkLatency(15)
+                .setNotificationJitter(30)
+                .setPacketLoss(0.01f);
+        GateConnection connection = new GateConnection("00:15:83:00:C3:F7", gate.connector(), scheduler,
+                Runnable::run, new GattEventBus(), new GattTrace(GattTrace.LEVEL_NONE, null, null, scheduler),
+                new GattMetrics(), new GateProfileCache());
+        connection.connect();
+        scheduler.advance(1000);
+
+        long[] latencies = new long[CYCLES];
+        int answered = 0;
+        int failed = 0;
+        long start = scheduler.now();
+        for (int i = 0; i < CYCLES; i++) {
+            GateCommand command = i % 2 == 0 ? GateCommand.open("0000") : GateCommand.close("0000");
+            long sent = scheduler.now();
+            CompletableFuture<GateResponse> future = connection.send(command);
+            while (!future.isDone()) {
+                scheduler.advance(5);
+            }
+            latencies[i] = scheduler.now() - sent;
+            try {
+                assertTrue(future.get().isOk());
+                answered++;
+            } catch (ExecutionException | InterruptedException e) {
+                failed++;
+            }
+        }
+        long elapsed = scheduler.now() - start;
+
+        Arrays.sort(latencies);
+        assertEquals(CYCLES, answered + failed);
+        // Motion commands go out without response and again when not even the acknowledgement
+        // came. Once acknowledged they are not sent again, losing the result fails them.
+        assertTrue(failed < CYCLES / 50);
+        // A command whose answer was lost is executed again, which is safe for motion.
+        int pulses = gate.getOpenPulses() + gate.getClosePulses();
+        assertTrue(pulses >= CYCLES && pulses < CYCLES + CYCLES / 20);
+        // Framed commands do not wait for the serial read timeout, only for the pulse and the
+        // gap after the previous one.
+        assertTrue(latencies[CYCLES / 2] >= GateSimulator.RELAY_PULSE);
+        assertTrue(latencies[CYCLES / 2] < GateSimulator.DEFAULT_SERIAL_READ_TIMEOUT + GateSimulator.RELAY_PULSE);
+        assertTrue(elapsed < CYCLES * (GateSimulator.DEFAULT_SERIAL_READ_TIMEOUT + GateSimulator.RELAY_PULSE));
+        // A lost packet costs one answer timeout and the command sent again.
+        assertTrue(latencies[CYCLES * 99 / 100] < 2 * GateConnection.ANSWER_TIMEOUT);
+    }
+}
@@ -0,0 +1,381 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import javax.crypto.Mac;
+
+import static org.junit.Assert.*;
+
+public class GateSimulatorTest {
+
+    private static final String ADDRESS = "00:15:83:00:C3:F7";
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final GateSimulator mGate = new GateSimulator(mScheduler, new Random(7));
+
+
+    @Test
+    public void answersLikeTheSketch() {
+        assertEquals("ok:m:1", mGate.process("m:0000:1"));
+        assertEquals("ok:m:0", mGate.process("m:0000:0"));
+        assertEquals("err:m:2", mGate.process("m:0000:2"));
+        assertEquals("err:secure", mGate.process("m:1111:1"));
+        assertEquals("err:master", mGate.process("c:54321:abc"));
+        assertEquals("err:length", mGate.process("c:12345:0123456789"));
+        assertEquals("ok:c:012345678", mGate.process("c:12345:012345678"));
+        assertNull(mGate.process("x:0000:1"));
+        assertEquals(1, mGate.getOpenPulses());
+        assertEquals(1, mGate.getClosePulses());
+    }
+
+    @Test
+    public void splitKeepsTheSketchQuirks() {
+        assertEquals("m", GateSimulator.split("m:0000:1", ':', 0));
+        assertEquals("1", GateSimulator.split("m:0000:1", ':', 2));
+        // A trailing separator ends up in the last part.
+        assertEquals("12345:", GateSimulator.split("c:12345:", ':', 1));
+        assertEquals("", GateSimulator.split("c:12345:", ':', 2));
+        assertEquals("", GateSimulator.split("m", ':', 1));
+    }
+
+    @Test
+    public void changedKeyTakesEffectAtOnce() {
+        assertEquals("ok:c:abc", mGate.process("c:12345:abc"));
+        assertEquals("abc", mGate.getStoredSecureKey());
+        assertEquals("ok:m:1", mGate.process("m:abc:1"));
+        assertEquals("err:secure", mGate.process("m:" + GattAttributes.SECURE_KEY + ":1"));
+
+        // The app shakes hands with the new key right after ok:c.
+        Mac mac = handshake("abc");
+        assertEquals("ok:m:0", mGate.process("t:" + motion(mac, 1, false) + ":0"));
+
+        mGate.restart();
+        assertEquals("ok:m:1", mGate.process("m:abc:1"));
+    }
+
+    @Test
+    public void frameIsAnsweredAfterRelayPulseOnly() throws Exception {
+        mGate.setLinkLatency(10);
+        GateConnection connection = connect();
+
+        long start = mScheduler.now();
+        CompletableFuture<GateResponse> open = connection.send(GateCommand.open("0000"));
+        runUntilDone(open);
+        assertEquals(GateCommandCodec.ANSWER_OK_OPEN, open.get().getAnswer());
+        // write + relay pulse + notification
+        assertEquals(10 + GateSimulator.RELAY_PULSE + 10, mScheduler.now() - start);
+        // The acknowledgement did not wait for the pulse.
+        assertEquals(10 + 10, open.get().getAckLatencyMillis());
+    }
+
+    @Test
+    public void commandsAreTakenWhileTheGateMoves() throws Exception {
+        mGate.setLinkLatency(10);
+        GateConnection connection = connect();
+
+        long start = mScheduler.now();
+        CompletableFuture<GateResponse> open = connection.send(GateCommand.open("0000"));
+        mScheduler.advance(500);
+        CompletableFuture<GateResponse> close = connection.send(GateCommand.close("0000"));
+        runUntilDone(close);
+
+        assertEquals(GateCommandCodec.ANSWER_OK_OPEN, open.get().getAnswer());
+        assertEquals(GateCommandCodec.ANSWER_OK_CLOSE, close.get().getAnswer());
+        assertEquals(10 + 10, close.get().getAckLatencyMillis());
+        // The close pulse follows the open pulse after the gap.
+        assertEquals(10 + 2 * GateSimulator.RELAY_PULSE + RelayScheduler.PULSE_GAP + 10, mScheduler.now() - start);
+        assertEquals(1, mGate.getOpenPulses());
+        assertEquals(1, mGate.getClosePulses());
+    }
+
+    @Test
+    public void sameDirectionJoinsTheRunningPulse() throws Exception {
+        GateConnection connection = connect();
+        CompletableFuture<GateResponse> first = connection.send(GateCommand.open("0000"));
+        mScheduler.advance(500);
+        CompletableFuture<GateResponse> second = connection.send(GateCommand.open("0000"));
+        runUntilDone(second);
+
+        assertTrue(first.isDone());
+        assertEquals(GateCommandCodec.ANSWER_OK_OPEN, second.get().getAnswer());
+        assertEquals(1, mGate.getOpenPulses());
+    }
+
+    @Test
+    public void relaySwitchesArePushedAsStatus() throws Exception {
+        GateConnection connection = connect();
+        GateStatus initial = connection.getStatus();
+        assertFalse(initial.isMoving());
+        assertEquals(GateStatus.LAST_NONE, initial.getLast());
+
+        CompletableFuture<GateResponse> open = connection.send(GateCommand.open("0000"));
+        connection.send(GateCommand.close("0000"));
+        mScheduler.advance(100);
+        GateStatus moving = connection.getStatus();
+        assertEquals(GateStatus.RELAY_OPEN, moving.getRelay());
+        assertEquals(1, moving.getQueued());
+
+        runUntilDone(open);
+        mScheduler.advance(GateSimulator.RELAY_PULSE);
+        assertEquals(GateStatus.RELAY_CLOSE, connection.getStatus().getRelay());
+        assertEquals(GateStatus.LAST_CLOSE, connection.getStatus().getLast());
+        assertTrue(connection.getStatus().getUptimeSeconds() > initial.getUptimeSeconds());
+    }
+
+    @Test
+    public void fullRelayQueueIsBusy() throws Exception {
+        GateConnection connection = connect();
+        CompletableFuture<GateResponse> last = null;
+        for (int i = 0; i <= RelayScheduler.MAX_PULSES; i++) {
+            last = connection.send(i % 2 == 0 ? GateCommand.open("0000") : GateCommand.close("0000"));
+            mScheduler.advance(10);
+        }
+        runUntilDone(last);
+        assertEquals(GateCommandCodec.ANSWER_ERR_BUSY, last.get().getAnswer());
+        assertTrue(mGate.isRelayBusy());
+    }
+
+    @Test
+    public void bareTextIsStillUnderstood() throws Exception {
+        GateProfileCache profiles = new GateProfileCache();
+        profiles.putProtocol(ADDRESS, GateCommandCodec.PROTOCOL_V1);
+        GateConnection connection = connect(profiles);
+
+        long start = mScheduler.now();
+        CompletableFuture<GateResponse> open = connection.send(GateCommand.open("9999"));
+        runUntilDone(open);
+        assertEquals(GateCommandCodec.ANSWER_ERR_SECURE, open.get().getAnswer());
+        assertEquals(GateSimulator.LEGACY_TIMEOUT, mScheduler.now() - start);
+    }
+
+    @Test
+    public void fieldsOfV2EndAtSeparatorsExceptTheLast() {
+        assertEquals("1", GateSimulator.field("m:0000:1", 2));
+        assertEquals("ab:c", GateSimulator.field("c:12345:ab:c", 2));
+        assertEquals("", GateSimulator.field("v", 1));
+    }
+
+    @Test
+    public void answerWaitsForReadTimeoutAndRelayPulse() throws Exception {
+        mGate.setFirmwareProtocol(GateCommandCodec.PROTOCOL_V1);
+        mGate.setLinkLatency(10);
+        GateConnection connection = connect();
+
+        long start = mScheduler.now();
+        CompletableFuture<GateResponse> open = connection.send(GateCommand.open("0000"));
+        runUntilDone(open);
+        assertEquals(GateCommandCodec.ANSWER_OK_OPEN, open.get().getAnswer());
+        // write + serial read timeout + relay pulse + notification
+        assertEquals(10 + GateSimulator.DEFAULT_SERIAL_READ_TIMEOUT + GateSimulator.RELAY_PULSE + 10,
+                mScheduler.now() - start);
+    }
+
+    @Test
+    public void wrongKeyIsAnsweredWithoutPulse() throws Exception {
+        mGate.setFirmwareProtocol(GateCommandCodec.PROTOCOL_V1);
+        GateConnection connection = connect();
+        long start = mScheduler.now();
+        CompletableFuture<GateResponse> open = connection.send(GateCommand.open("9999"));
+        runUntilDone(open);
+        assertEquals(GateCommandCodec.ANSWER_ERR_SECURE, open.get().getAnswer());
+        assertEquals(GateSimulator.DEFAULT_SERIAL_READ_TIMEOUT, mScheduler.now() - start);
+        assertEquals(0, mGate.getOpenPulses());
+    }
+
+    @Test
+    public void sessionStandsInForTheKey() throws Exception {
+        GateConnection connection = connect(new GateProfileCache(), keyStore());
+
+        // A wrong key in the command does not matter, it does not go over the air.
+        CompletableFuture<GateResponse> open = connection.send(GateCommand.open("9999"));
+        runUntilDone(open);
+        assertEquals(GateCommandCodec.ANSWER_OK_OPEN, open.get().getAnswer());
+        assertEquals(1, mGate.getOpenPulses());
+    }
+
+    @Test
+    public void lostSessionWriteIsSentAgainWithTheNextCounter() throws Exception {
+        mGate.setLinkLatency(10);
+        GateConnection connection = connect(new GateProfileCache(), keyStore());
+        mGate.setPacketLoss(1f);
+        CompletableFuture<GateResponse> open = connection.send(GateCommand.open("0000"));
+        // The write without response goes out, and is lost.
+        mScheduler.runPending();
+        mGate.setPacketLoss(0f);
+        runUntilDone(open);
+        assertEquals(GateCommandCodec.ANSWER_OK_OPEN, open.get().getAnswer());
+        assertEquals(1, mGate.getOpenPulses());
+
+        // Every answer to the write without response is lost, not the write itself.
+        CompletableFuture<GateResponse> close = connection.send(GateCommand.close("0000"));
+        mScheduler.runPending();
+        mGate.setPacketLoss(1f);
+        // Until the pulse, after the gap behind the last one, is over.
+        mScheduler.advance(2 * GateSimulator.RELAY_PULSE);
+        mGate.setPacketLoss(0f);
+        runUntilDone(close);
+        // Like any motion command whose answer was lost it ran twice, it was not refused.
+        assertEquals(GateCommandCodec.ANSWER_OK_CLOSE, close.get().getAnswer());
+        assertEquals(2, mGate.getClosePulses());
+
+        CompletableFuture<GateResponse> next = connection.send(GateCommand.open("0000"));
+        runUntilDone(next);
+        assertEquals(GateCommandCodec.ANSWER_OK_OPEN, next.get().getAnswer());
+    }
+
+    @Test
+    public void droppedSessionIsShakenAgain() throws Exception {
+        GateConnection connection = connect(new GateProfileCache(), keyStore());
+        // Someone else shook hands, the session of the connection is stale.
+        assertTrue(mGate.process("h:001122334455").startsWith("ok:h:"));
+
+        CompletableFuture<GateResponse> stale = connection.send(GateCommand.open("0000"));
+        runUntilDone(stale);
+        assertEquals(GateCommandCodec.ANSWER_ERR_SESSION, stale.get().getAnswer());
+        assertEquals(0, mGate.getOpenPulses());
+
+        CompletableFuture<GateResponse> open = connection.send(GateCommand.open("0000"));
+        runUntilDone(open);
+        assertEquals(GateCommandCodec.ANSWER_OK_OPEN, open.get().getAnswer());
+    }
+
+    @Test
+    public void sessionTakesEachCounterOnce() {
+        Mac mac = handshake();
+        assertEquals("ok:m:1", mGate.process("t:" + motion(mac, 1, true) + ":1"));
+        assertEquals("ok:m:0", mGate.process("t:" + motion(mac, 3, false) + ":0"));
+        // A recorded command played again, or one with an older counter, ends the session.
+        assertEquals("err:session", mGate.process("t:" + motion(mac, 2, true) + ":1"));
+        assertEquals("err:session", mGate.process("t:" + motion(mac, 4, true) + ":1"));
+        assertEquals(1, mGate.getOpenPulses());
+        assertEquals(1, mGate.getClosePulses());
+    }
+
+    @Test
+    public void wrongTagEndsTheSession() {
+        Mac mac = handshake();
+        // Tagged for close but sent as open.
+        assertEquals("err:session", mGate.process("t:" + motion(mac, 1, false) + ":1"));
+        assertEquals("err:session", mGate.process("t:" + motion(mac, 2, true) + ":1"));
+        assertEquals("err:session", mGate.process("t:00000000:1"));
+        assertEquals("err:session", mGate.process("h:xyz"));
+        assertEquals(0, mGate.getOpenPulses());
+    }
+
+    @Test
+    public void endOfLinkEndsTheSession() {
+        Mac mac = handshake();
+        GateConnection connection = connect();
+        connection.disconnect();
+        mScheduler.advance(100);
+        assertEquals("err:session", mGate.process("t:" + motion(mac, 1, true) + ":1"));
+        assertEquals(0, mGate.getOpenPulses());
+    }
+
+    @Test
+    public void secondConnectionIsRefused() {
+        connect();
+        final int[] status = {-1};
+        mGate.connector().open("other", false, new GattClientCallbackAdapter() {
+            @Override
+            public void onConnectionStateChange(int s, int newState) {
+                status[0] = s;
+            }
+        });
+        mScheduler.advance(100);
+        assertEquals(GateSimulator.STATUS_CONNECTION_FAILED, status[0]);
+    }
+
+
+    private GateConnection connect() {
+        return connect(new GateProfileCache());
+    }
+
+    private GateConnection connect(GateProfileCache profiles) {
+        return connect(profiles, null);
+    }
+
+    // Ready once an older gate let the protocol probe time out, with a session if there are keys.
+    private GateConnection connect(GateProfileCache profiles, GateKeyStore keyStore) {
+        GateConnection connection = new GateConnection(ADDRESS, mGate.connector(), mScheduler, Runnable::run,
+                new GattEventBus(), new GattTrace(GattTrace.LEVEL_NONE, null, null, mScheduler),
+                new GattMetrics(), profiles);
+        connection.setKeyStore(keyStore);
+        assertTrue(connection.connect());
+        mScheduler.advance(1000 + GateConnection.PROTOCOL_PROBE_TIMEOUT);
+        assertEquals(GateConnection.STATE_CONNECTED, connection.getState());
+        assertTrue(connection.isIdle());
+        return connection;
+    }
+
+    // Never loaded nor changed, so it reads the default key and leaves the disk alone.
+    private GateKeyStore keyStore() {
+        return new GateKeyStore(new File("keys.properties"), GattAttributes.SECURE_KEY, mScheduler, Runnable::run);
+    }
+
+    private Mac handshake() {
+        return handshake(GattAttributes.SECURE_KEY);
+    }
+
+    private Mac handshake(String secureKey) {
+        String answer = mGate.process("h:001122334455");
+        byte[] gateNonce = GateSession.parseHex(answer.substring("ok:h:".length()), GateSession.NONCE_SIZE);
+        return GateSession.newMac(GateSession.sessionKey(secureKey,
+                GateSession.parseHex("001122334455", GateSession.NONCE_SIZE), gateNonce));
+    }
+
+    // The key field of {@code t:counter tag:value}.
+    private static String motion(Mac mac, int counter, boolean open) {
+        byte[] tag = new byte[GateSession.MAC_SIZE];
+        GateSession.tag(mac, counter, open, tag);
+        return GateSession.toHex(new byte[]{(byte) (counter >> 8), (byte) counter})
+                + GateSession.toHex(Arrays.copyOf(tag, GateSession.TAG_SIZE));
+    }
+
+    private void runUntilDone(CompletableFuture<?> future) {
+        for (int i = 0; i < 100000 && !future.isDone(); i++) {
+            mScheduler.advance(1);
+        }
+    }
+
+
+    private static class GattClientCallbackAdapter implements GattClient.Callback {
+        @Override
+        public void onConnectionStateChange(int status, int newState) {
+        }
+
+        @Override
+        public void onServicesDiscovered(int status) {
+        }
+
+        @Override
+        public void onServiceChanged() {
+        }
+
+        @Override
+        public void onCharacteristicRead(UUID characteristic, byte[] value, int status) {
+        }
+
+        @Override
+        public void onCharacteristicWrite(UUID characteristic, int status) {
+        }
+
+        @Override
+        public void onMtuChanged(int mtu, int status) {
+        }
+
+        @Override
+        public void onDescriptorWrite(UUID characteristic, int status) {
+        }
+
+        @Override
+        public void onCharacteristicChanged(UUID characteristic, byte[] value) {
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class GateStatusTest {
+
+    @Test
+    public void parsesFramedAndBareStatus() {
+        GateStatus status = GateStatus.parse(ascii("\u0002s:c:2:1:86400\u0003"), 77);
+        assertEquals(GateStatus.RELAY_CLOSE, status.getRelay());
+        assertEquals(2, status.getQueued());
+        assertEquals(GateStatus.LAST_OPEN, status.getLast());
+        assertEquals(86400, status.getUptimeSeconds());
+        assertEquals(77, status.getReceivedAt());
+        assertTrue(status.isMoving());
+
+        GateStatus idle = GateStatus.parse(ascii("s:i:0:-:0"), 0);
+        assertFalse(idle.isMoving());
+        assertEquals(GateStatus.LAST_NONE, idle.getLast());
+    }
+
+    @Test
+    public void rejectsAnythingElse() {
+        assertNull(GateStatus.parse(ascii("ok:m:1"), 0));
+        assertNull(GateStatus.parse(ascii("s:x:0:-:0"), 0));
+        assertNull(GateStatus.parse(ascii("s:i:0:-:"), 0));
+        assertNull(GateStatus.parse(ascii("s:i:0:-:12a"), 0));
+        assertNull(GateStatus.parse(ascii("s:i:0"), 0));
+        assertNull(GateStatus.parse(null, 0));
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,77 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class GattAttributeCacheTest {
+
+    private static final UUID OTHER_SERVICE = UUID.fromString("00001800-0000-1000-8000-00805f9b34fb");
+
+    @Test
+    public void validOnlyForFilledAddress() {
+        GattAttributeCache<String> cache = new GattAttributeCache<>();
+        assertFalse(cache.isValidFor("A"));
+
+        cache.reset("A");
+        assertFalse(cache.isValidFor("A"));
+        cache.put(GattAttributes.UUID_SERVICE, GattAttributes.UUID_CHAR, "gate");
+
+        assertTrue(cache.isValidFor("A"));
+        assertFalse(cache.isValidFor("B"));
+        assertEquals("gate", cache.get(GattAttributes.UUID_CHAR));
+    }
+
+    @Test
+    public void unknownCharacteristicIsAMiss() {
+        GattAttributeCache<String> cache = new GattAttributeCache<>();
+        assertNull(cache.get(GattAttributes.UUID_CHAR));
+
+        cache.reset("A");
+        cache.put(OTHER_SERVICE, UUID.fromString("00002a00-0000-1000-8000-00805f9b34fb"), "name");
+        assertNull(cache.get(GattAttributes.UUID_CHAR));
+        assertFalse(cache.isValidFor("A"));
+    }
+
+    @Test
+    public void gateServiceWinsOnDuplicateUuid() {
+        GattAttributeCache<String> cache = new GattAttributeCache<>();
+        cache.reset("A");
+        cache.put(OTHER_SERVICE, GattAttributes.UUID_CHAR, "other");
+        cache.put(GattAttributes.UUID_SERVICE, GattAttributes.UUID_CHAR, "gate");
+        cache.put(OTHER_SERVICE, GattAttributes.UUID_CHAR, "late");
+
+        assertEquals("gate", cache.get(GattAttributes.UUID_CHAR));
+    }
+
+    @Test
+    public void invalidateAndResetDropEntries() {
+        GattAttributeCache<String> cache = new GattAttributeCache<>();
+        cache.reset("A");
+        cache.put(GattAttributes.UUID_SERVICE, GattAttributes.UUID_CHAR, "gate");
+        cache.invalidate();
+        assertFalse(cache.isValidFor("A"));
+        assertNull(cache.get(GattAttributes.UUID_CHAR));
+
+        cache.reset("A");
+        cache.put(GattAttributes.UUID_SERVICE, GattAttributes.UUID_CHAR, "gate");
+        cache.reset("B");
+        assertFalse(cache.isValidFor("B"));
+    }
+
+    @Test
+    public void staleEntriesServeTheLinkButNotTheNextConnect() {
+        GattAttributeCache<String> cache = new GattAttributeCache<>();
+        cache.reset("A");
+        cache.put(GattAttributes.UUID_SERVICE, GattAttributes.UUID_CHAR, "gate");
+        cache.markStale();
+        assertFalse(cache.isValidFor("A"));
+        assertEquals("gate", cache.get(GattAttributes.UUID_CHAR));
+
+        cache.reset("A");
+        cache.put(GattAttributes.UUID_SERVICE, GattAttributes.UUID_CHAR, "gate");
+        assertTrue(cache.isValidFor("A"));
+    }
+}
@@ -0,0 +1,163 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class GattConnectionPoolTest {
+
+    private static final int MAX = GattConnectionPool.DEFAULT_MAX_CONNECTIONS;
+    private static final byte[] FRAMED_VERSION = "\u0002ok:v:2\u0003".getBytes(StandardCharsets.US_ASCII);
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final GattEventBus mEventBus = new GattEventBus();
+    private final GattTrace mTrace = new GattTrace(GattTrace.LEVEL_NONE, null, null, mScheduler);
+    // Simulated gates, one client per address.
+    private final Map<String, FakeGattClient> mClients = new HashMap<>();
+    private GattConnectionPool mPool;
+
+    private final GattConnector mConnector = new GattConnector() {
+        @Override
+        public GattClient open(String address, boolean autoConnect, GattClient.Callback callback) {
+            FakeGattClient client = new FakeGattClient();
+            client.mAddress = address;
+            client.mAutoConnect = autoConnect;
+            mClients.put(address, client);
+            return client;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mPool = new GattConnectionPool(new GattConnectionPool.Factory() {
+            @Override
+            public GateConnection create(String address) {
+                return new GateConnection(address, mConnector, mScheduler, Runnable::run, mEventBus, mTrace,
+                        new GattMetrics(), new GateProfileCache());
+            }
+        }, MAX);
+    }
+
+    @Test
+    public void obtainReusesConnection() {
+        GateConnection connection = mPool.obtain(address(1));
+        assertSame(connection, mPool.obtain(address(1)));
+        assertSame(connection, mPool.get(address(1)));
+        assertNull(mPool.get(address(2)));
+        assertEquals(1, mPool.size());
+    }
+
+    @Test
+    public void dozensOfGatesNeverExceedTheCap() {
+        for (int i = 0; i < 40; i++) {
+            GateConnection connection = mPool.obtain(address(i));
+            assertTrue(connection.connect());
+            connectFully(connection);
+            assertTrue(mPool.size() <= MAX);
+        }
+        assertEquals(MAX, mPool.size());
+        // Every evicted gate had its connection released.
+        int closed = 0;
+        for (FakeGattClient client : mClients.values()) {
+            if (client.mClosed) {
+                closed++;
+            }
+        }
+        assertEquals(40 - MAX, closed);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedIdleConnection() {
+        for (int i = 0; i < MAX; i++) {
+            GateConnection connection = mPool.obtain(address(i));
+            connection.connect();
+            connectFully(connection);
+        }
+        mPool.get(address(0));
+
+        mPool.obtain(address(MAX));
+        assertNotNull(mPool.get(address(0)));
+        assertNull(mPool.get(address(1)));
+        assertTrue(mClients.get(address(1)).mClosed);
+    }
+
+    @Test
+    public void prefersDisconnectedConnection() {
+        for (int i = 0; i < MAX; i++) {
+            GateConnection connection = mPool.obtain(address(i));
+            connection.connect();
+            connectFully(connection);
+        }
+        mPool.get(address(3)).onConnectionStateChange(GattClient.GATT_SUCCESS, GattClient.STATE_DISCONNECTED);
+
+        mPool.obtain(address(MAX));
+        assertNull(mPool.get(address(3)));
+        assertNotNull(mPool.get(address(0)));
+    }
+
+    @Test
+    public void busyConnectionsAreNotEvicted() throws Exception {
+        for (int i = 0; i < MAX; i++) {
+            GateConnection connection = mPool.obtain(address(i));
+            connection.connect();
+            connectFully(connection);
+            connection.send(GateCommand.open("0000"));
+        }
+        try {
+            mPool.obtain(address(MAX));
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(MAX, mPool.size());
+
+        // Once written and answered, the connection can be evicted again.
+        GateConnection first = mPool.get(address(0));
+        first.onCharacteristicWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        first.onCharacteristicChanged(GattAttributes.UUID_CHAR, "ok:m:1".getBytes("UTF-8"));
+        assertTrue(first.isIdle());
+        mPool.obtain(address(MAX));
+        assertNull(mPool.get(address(0)));
+    }
+
+    @Test
+    public void closeFailsPendingCommands() throws Exception {
+        GateConnection connection = mPool.obtain(address(1));
+        connection.connect();
+        connectFully(connection);
+        CompletableFuture<GateResponse> open = connection.send(GateCommand.open("0000"));
+
+        mPool.closeAll();
+        assertEquals(0, mPool.size());
+        assertTrue(mClients.get(address(1)).mClosed);
+        try {
+            open.get();
+            fail("Expected failure");
+        } catch (ExecutionException expected) {
+        }
+    }
+
+
+    // Completes connection, MTU exchange, discovery, enabling notifications, the protocol probe
+    // and the status query.
+    private void connectFully(GateConnection connection) {
+        connection.onConnectionStateChange(GattClient.GATT_SUCCESS, GattClient.STATE_CONNECTED);
+        connection.onMtuChanged(GattClient.DEFAULT_MTU, GattClient.GATT_SUCCESS);
+        connection.onServicesDiscovered(GattClient.GATT_SUCCESS);
+        connection.onDescriptorWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        connection.onCharacteristicWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        connection.onCharacteristicChanged(GattAttributes.UUID_CHAR, FRAMED_VERSION);
+        connection.onCharacteristicWrite(GattAttributes.UUID_CHAR, GattClient.GATT_SUCCESS);
+        assertTrue(connection.isIdle());
+    }
+
+    private static String address(int i) {
+        return String.format("00:15:83:00:%02X:%02X", i / 256, i % 256);
+    }
+}
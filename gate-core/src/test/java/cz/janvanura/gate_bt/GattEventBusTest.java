@@ -0,0 +1,79 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class GattEventBusTest {
+
+    private static final String ADDRESS = "00:15:83:00:C3:F7";
+
+    private final List<Runnable> mQueued = new ArrayList<>();
+    private final Executor mQueuedExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mQueued.add(command);
+        }
+    };
+
+    @Test
+    public void eventsAreDeliveredOnListenerExecutorInOrder() {
+        GattEventBus bus = new GattEventBus();
+        RecordingListener listener = new RecordingListener();
+        bus.register(listener, mQueuedExecutor);
+
+        bus.dispatchConnecting(ADDRESS);
+        bus.dispatchConnected(ADDRESS);
+        bus.dispatchDataAvailable(ADDRESS, new byte[]{1});
+        assertTrue(listener.mEvents.isEmpty());
+
+        for (Runnable runnable : mQueued) {
+            runnable.run();
+        }
+        assertEquals(Arrays.asList("connecting", "connected", "data " + ADDRESS), listener.mEvents);
+    }
+
+    @Test
+    public void unregisteredListenerGetsNothing() {
+        GattEventBus bus = new GattEventBus();
+        RecordingListener listener = new RecordingListener();
+        bus.register(listener, Runnable::run);
+        bus.register(listener, Runnable::run);
+        bus.dispatchDisconnected(ADDRESS);
+        assertEquals(Arrays.asList("disconnected"), listener.mEvents);
+
+        bus.unregister(listener);
+        bus.dispatchDisconnected(ADDRESS);
+        assertEquals(1, listener.mEvents.size());
+    }
+
+
+    private static class RecordingListener implements GattEventBus.Listener {
+        final List<String> mEvents = new ArrayList<>();
+
+        @Override
+        public void onConnecting(String address) {
+            mEvents.add("connecting");
+        }
+
+        @Override
+        public void onConnected(String address) {
+            mEvents.add("connected");
+        }
+
+        @Override
+        public void onDisconnected(String address) {
+            mEvents.add("disconnected");
+        }
+
+        @Override
+        public void onDataAvailable(String address, byte[] data) {
+            mEvents.add("data " + address);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GattMetricsTest {
+
+    @Test
+    public void countsStatusesAndTimeouts() {
+        GattMetrics metrics = new GattMetrics();
+        metrics.countStatus(133);
+        metrics.countStatus(133);
+        metrics.countStatus(GattOperation.STATUS_TIMEOUT);
+        metrics.countStatus(GattOperation.STATUS_CANCELLED);
+        metrics.countCommandTimeout();
+
+        assertEquals(2, metrics.getStatusCount(133));
+        assertEquals(1, metrics.getOperationTimeouts());
+        assertEquals(1, metrics.getCommandTimeouts());
+    }
+
+    @Test
+    public void exportsJsonAndCsv() {
+        GattMetrics metrics = new GattMetrics();
+        metrics.record(GattMetrics.ROUND_TRIP, 120);
+        metrics.record(GattMetrics.ROUND_TRIP, 3);
+        metrics.countStatus(8);
+
+        StringBuilder json = new StringBuilder();
+        metrics.toJson(json);
+        assertTrue(json.toString(), json.toString().startsWith("{\"histograms\":{\"connect\":{\"count\":0,"));
+        assertTrue(json.toString(), json.toString().contains(
+                "\"round_trip\":{\"count\":2,\"mean\":62,\"max\":120,\"p50\":3,\"p90\":120,\"p99\":120,"
+                        + "\"buckets\":[[3,1],[120,1]]}"));
+        assertTrue(json.toString(), json.toString().endsWith(
+                "\"timeouts\":{\"operation\":0,\"command\":0},\"statuses\":{\"8\":1}}"));
+
+        StringBuilder csv = new StringBuilder();
+        metrics.toCsv(csv);
+        assertTrue(csv.toString().startsWith("kind,name,key,value\n"));
+        assertTrue(csv.toString().contains("summary,round_trip,p50,3\n"));
+        assertTrue(csv.toString().contains("bucket,round_trip,120,1\n"));
+        assertTrue(csv.toString().endsWith("status,gatt,8,1\n"));
+    }
+}
@@ -0,0 +1,174 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class GattOperationQueueTest {
+
+    private static final UUID CHAR = GattAttributes.UUID_CHAR;
+
+    private FakeGattClient mClient;
+    private FakeScheduler mScheduler;
+    private GattOperationQueue mQueue;
+    private final List<Integer> mStatuses = new ArrayList<>();
+    private final GattOperation.Callback mCallback = new GattOperation.Callback() {
+        @Override
+        public void onComplete(GattOperation operation, int status, byte[] value) {
+            mStatuses.add(status);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mClient = new FakeGattClient();
+        mScheduler = new FakeScheduler();
+        mQueue = new GattOperationQueue(mClient, mScheduler);
+    }
+
+    @Test
+    public void nothingIsDispatchedUntilReady() {
+        mQueue.enqueue(write(1));
+        assertTrue(mClient.mStarted.isEmpty());
+
+        mQueue.setReady(true);
+        assertEquals(Arrays.asList("write"), mClient.mStarted);
+    }
+
+    @Test
+    public void operationsRunOneAtATime() {
+        mQueue.setReady(true);
+        mQueue.enqueue(GattOperation.discover().setCallback(mCallback));
+        mQueue.enqueue(write(1));
+        mQueue.enqueue(GattOperation.read(CHAR).setCallback(mCallback));
+        assertEquals(Arrays.asList("discover"), mClient.mStarted);
+
+        mQueue.onServicesDiscovered(GattClient.GATT_SUCCESS);
+        assertEquals(Arrays.asList("discover", "write"), mClient.mStarted);
+
+        mQueue.onCharacteristicWrite(CHAR, GattClient.GATT_SUCCESS);
+        mQueue.onCharacteristicRead(CHAR, new byte[]{1}, GattClient.GATT_SUCCESS);
+        assertEquals(Arrays.asList("discover", "write", "read"), mClient.mStarted);
+        assertEquals(Arrays.asList(0, 0, 0), mStatuses);
+        assertEquals(0, mQueue.size());
+    }
+
+    @Test
+    public void enqueueFirstJumpsTheQueue() {
+        mQueue.enqueue(write(1));
+        mQueue.enqueueFirst(GattOperation.discover());
+        mQueue.setReady(true);
+        assertEquals(Arrays.asList("discover"), mClient.mStarted);
+    }
+
+    @Test
+    public void writesWithoutResponseWaitForABusyClient() {
+        BusyGattClient client = new BusyGattClient();
+        GattOperationQueue queue = new GattOperationQueue(client, mScheduler);
+        queue.setReady(true);
+        for (int i = 0; i < 3; i++) {
+            queue.enqueue(GattOperation.write(CHAR, new byte[]{(byte) i}, GattClient.WRITE_TYPE_NO_RESPONSE)
+                    .setRetries(0).setCallback(mCallback));
+        }
+        assertEquals(1, client.mStarted.size());
+
+        client.completeWrite(queue, GattClient.GATT_SUCCESS);
+        client.completeWrite(queue, GattClient.GATT_SUCCESS);
+        client.completeWrite(queue, GattClient.GATT_SUCCESS);
+        assertEquals(0, client.mRefused);
+        assertEquals(Arrays.asList(0, 0, 0), mStatuses);
+    }
+
+    @Test
+    public void writesWithResponseWaitForEachOther() {
+        mQueue.setReady(true);
+        mQueue.enqueue(write(1));
+        mQueue.enqueue(write(2));
+        assertEquals(1, mClient.mStarted.size());
+    }
+
+    @Test
+    public void failedOperationIsRetried() {
+        mQueue.setReady(true);
+        mQueue.enqueue(write(1).setRetries(1));
+
+        mQueue.onCharacteristicWrite(CHAR, 133);
+        assertEquals(2, mClient.mStarted.size());
+        assertTrue(mStatuses.isEmpty());
+
+        mQueue.onCharacteristicWrite(CHAR, 133);
+        assertEquals(Arrays.asList(133), mStatuses);
+    }
+
+    @Test
+    public void timedOutOperationIsRetriedThenFailed() {
+        mQueue.setReady(true);
+        mQueue.enqueue(write(1).setTimeout(1000).setRetries(1));
+        mQueue.enqueue(write(2));
+
+        mScheduler.advance(1000);
+        assertEquals(2, mClient.mStarted.size());
+        mScheduler.advance(1000);
+        assertEquals(Arrays.asList(GattOperation.STATUS_TIMEOUT), mStatuses);
+        // The next operation is not blocked by the lost one.
+        assertEquals(3, mClient.mStarted.size());
+
+        // A late answer to the timed out write must not complete the next one.
+        mQueue.onCharacteristicRead(CHAR, null, GattClient.GATT_SUCCESS);
+        assertEquals(1, mStatuses.size());
+    }
+
+    @Test
+    public void busyStackIsRetriedAfterDelay() {
+        mQueue.setReady(true);
+        mClient.mAccept = false;
+        mQueue.enqueue(write(1).setRetries(1));
+        assertEquals(1, mClient.mStarted.size());
+
+        mClient.mAccept = true;
+        mScheduler.advance(GattOperationQueue.RETRY_DELAY);
+        assertEquals(2, mClient.mStarted.size());
+        mQueue.onCharacteristicWrite(CHAR, GattClient.GATT_SUCCESS);
+        assertEquals(Arrays.asList(GattClient.GATT_SUCCESS), mStatuses);
+    }
+
+    @Test
+    public void notDispatchedWhenRetriesRunOut() {
+        mQueue.setReady(true);
+        mClient.mAccept = false;
+        mQueue.enqueue(write(1).setRetries(0));
+        assertEquals(Arrays.asList(GattOperation.STATUS_NOT_DISPATCHED), mStatuses);
+    }
+
+    @Test
+    public void clearCancelsEverything() {
+        mQueue.setReady(true);
+        mQueue.enqueue(write(1));
+        mQueue.enqueue(write(2));
+        mQueue.clear();
+
+        assertEquals(Arrays.asList(GattOperation.STATUS_CANCELLED, GattOperation.STATUS_CANCELLED), mStatuses);
+        assertEquals(0, mQueue.size());
+        assertEquals(0, mScheduler.pendingTasks());
+    }
+
+    @Test
+    public void writeCopiesValue() {
+        byte[] value = {1, 2};
+        mQueue.enqueue(GattOperation.write(CHAR, value, GattClient.WRITE_TYPE_DEFAULT));
+        value[0] = 9;
+        mQueue.setReady(true);
+        assertArrayEquals(new byte[]{1, 2}, mClient.mWritten.get(0));
+    }
+
+
+    private GattOperation write(int value) {
+        return GattOperation.write(CHAR, new byte[]{(byte) value}, GattClient.WRITE_TYPE_DEFAULT).setCallback(mCallback);
+    }
+}
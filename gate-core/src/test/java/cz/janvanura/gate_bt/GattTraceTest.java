@@ -0,0 +1,84 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GattTraceTest {
+
+    private final List<String> mLogged = new ArrayList<>();
+    private final GattTrace.Sink mSink = new GattTrace.Sink() {
+        @Override
+        public void log(int level, String message) {
+            mLogged.add(message);
+        }
+    };
+
+    @Test
+    public void appendHex_formatsBytes() {
+        StringBuilder out = new StringBuilder();
+        GattTrace.appendHex(out, new byte[]{0x00, 0x6D, (byte) 0xFF}, 0, 3);
+        assertEquals("00 6D FF", out.toString());
+    }
+
+    @Test
+    public void disabledLevelsBuildNothing() {
+        GattTrace trace = new GattTrace(GattTrace.LEVEL_INFO, mSink, null, new FakeScheduler());
+        trace.d("debug ", new Object() {
+            @Override
+            public String toString() {
+                throw new AssertionError("message built");
+            }
+        });
+        trace.frame(FrameRingBuffer.DIRECTION_TX, new byte[]{1});
+        trace.i("info ", 1);
+        assertEquals(1, mLogged.size());
+        assertEquals("info 1", mLogged.get(0));
+    }
+
+    @Test
+    public void noneBuildsNoWarning() {
+        GattTrace trace = new GattTrace(GattTrace.LEVEL_NONE, mSink, null, new FakeScheduler());
+        trace.w("warn ", new Object() {
+            @Override
+            public String toString() {
+                throw new AssertionError("message built");
+            }
+        });
+        assertTrue(mLogged.isEmpty());
+
+        trace = new GattTrace(GattTrace.LEVEL_WARN, mSink, null, new FakeScheduler());
+        trace.w("failed: ", 133);
+        assertEquals("failed: 133", mLogged.get(0));
+    }
+
+    @Test
+    public void framesAreLoggedAtDebug() {
+        GattTrace trace = new GattTrace(GattTrace.LEVEL_DEBUG, mSink, null, new FakeScheduler());
+        trace.frame(FrameRingBuffer.DIRECTION_RX, "ok".getBytes());
+        assertEquals("R 2: 6F 6B", mLogged.get(0));
+    }
+
+    @Test
+    public void ringBufferKeepsMostRecentFrames() {
+        FakeScheduler scheduler = new FakeScheduler();
+        FrameRingBuffer frames = new FrameRingBuffer(2, 4);
+        GattTrace trace = new GattTrace(GattTrace.LEVEL_NONE, mSink, frames, scheduler);
+
+        trace.frame(FrameRingBuffer.DIRECTION_TX, new byte[]{1});
+        scheduler.advance(10);
+        trace.frame(FrameRingBuffer.DIRECTION_RX, new byte[]{2, 3});
+        scheduler.advance(10);
+        trace.frame(FrameRingBuffer.DIRECTION_TX, new byte[]{4, 5, 6, 7, 8});
+
+        assertTrue(mLogged.isEmpty());
+        assertEquals(3, frames.count());
+        assertEquals(2, frames.size());
+        StringBuilder out = new StringBuilder();
+        trace.dumpFrames(out);
+        assertEquals("10 R 2 02 03\n20 T 5 04 05 06 07 ...\n", out.toString());
+    }
+}
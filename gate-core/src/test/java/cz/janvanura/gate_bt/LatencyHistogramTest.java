@@ -0,0 +1,62 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverValuesWithoutGaps() {
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKETS - 1; bucket++) {
+            long lower = LatencyHistogram.lowerBound(bucket);
+            assertEquals(bucket, LatencyHistogram.bucketOf(lower));
+            assertEquals(bucket, LatencyHistogram.bucketOf(LatencyHistogram.upperBound(bucket)));
+            assertEquals(LatencyHistogram.upperBound(bucket) + 1, LatencyHistogram.lowerBound(bucket + 1));
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesStayWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        assertEquals(500, histogram.getValueAtPercentile(50), 500 / LatencyHistogram.SUB_BUCKETS);
+        assertEquals(990, histogram.getValueAtPercentile(99), 990 / LatencyHistogram.SUB_BUCKETS);
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+        // Small values are exact.
+        assertEquals(1, histogram.getValueAtPercentile(0.1));
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        histogram.record(i % 100 + offset);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, histogram.getCount());
+        assertEquals(102, histogram.getMax());
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+}
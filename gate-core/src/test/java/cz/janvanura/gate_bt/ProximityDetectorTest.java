@@ -0,0 +1,72 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ProximityDetectorTest {
+
+    private final ProximityDetector mDetector = new ProximityDetector(-75, -85, 0.25f, 10000);
+
+    @Test
+    public void singleStrongReadingDoesNotMakeGateNear() {
+        mDetector.onSighting("A", -90, 0);
+        assertEquals(ProximityDetector.TRANSITION_NONE, mDetector.onSighting("A", -60, 100));
+        assertFalse(mDetector.isNear("A"));
+        assertEquals(-82, mDetector.getRssi("A"));
+    }
+
+    @Test
+    public void approachingGateBecomesNearOnce() {
+        int transitions = 0;
+        for (int rssi = -95; rssi <= -55; rssi += 2) {
+            if (mDetector.onSighting("A", rssi, 0) == ProximityDetector.TRANSITION_NEAR) {
+                transitions++;
+            }
+        }
+        assertEquals(1, transitions);
+        assertTrue(mDetector.isNear("A"));
+    }
+
+    @Test
+    public void noiseBetweenThresholdsDoesNotFlap() {
+        for (int i = 0; i < 20; i++) {
+            mDetector.onSighting("A", -65, 0);
+        }
+        assertTrue(mDetector.isNear("A"));
+        // Hovering at the edge, readings jumping around -80 dBm.
+        for (int i = 0; i < 200; i++) {
+            int rssi = i % 2 == 0 ? -72 : -88;
+            assertEquals(ProximityDetector.TRANSITION_NONE, mDetector.onSighting("A", rssi, i));
+        }
+        assertTrue(mDetector.isNear("A"));
+    }
+
+    @Test
+    public void walkingAwayReportsAway() {
+        for (int i = 0; i < 20; i++) {
+            mDetector.onSighting("A", -65, 0);
+        }
+        int last = ProximityDetector.TRANSITION_NONE;
+        for (int i = 0; i < 20 && last == ProximityDetector.TRANSITION_NONE; i++) {
+            last = mDetector.onSighting("A", -95, 0);
+        }
+        assertEquals(ProximityDetector.TRANSITION_AWAY, last);
+        assertFalse(mDetector.isNear("A"));
+    }
+
+    @Test
+    public void silentGateExpires() {
+        for (int i = 0; i < 20; i++) {
+            mDetector.onSighting("A", -65, 0);
+        }
+        mDetector.onSighting("B", -90, 5000);
+        assertTrue(mDetector.expire(9999).isEmpty());
+        assertEquals(Collections.singletonList("A"), mDetector.expire(10000));
+        // B was never near, it is forgotten quietly.
+        assertTrue(mDetector.expire(15000).isEmpty());
+        assertEquals(Integer.MIN_VALUE, mDetector.getRssi("B"));
+    }
+}
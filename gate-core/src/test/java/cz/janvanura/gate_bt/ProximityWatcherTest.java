@@ -0,0 +1,70 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ProximityWatcherTest {
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final FakeBleScanner mBleScanner = new FakeBleScanner();
+    private final List<String> mEvents = new ArrayList<>();
+
+    private final ProximityWatcher mWatcher = new ProximityWatcher(mBleScanner, mScheduler,
+            new ProximityDetector(-75, -85, 0.5f, 10000),
+            new ProximityWatcher.Listener() {
+                @Override
+                public void onNear(String address) {
+                    mEvents.add("near " + address);
+                }
+
+                @Override
+                public void onAway(String address) {
+                    mEvents.add("away " + address);
+                }
+            },
+            new GattTrace(GattTrace.LEVEL_NONE, null, null, mScheduler));
+
+
+    @Test
+    public void watchedGateComingNearAndGoingSilent() {
+        mWatcher.watch("A");
+        assertTrue(mWatcher.start());
+        assertFalse(mBleScanner.mLowLatency);
+
+        for (int i = 0; i < 5; i++) {
+            mBleScanner.advertise("A", -60, FakeBleScanner.GATE_SERVICES);
+            mBleScanner.advertise("B", -50, FakeBleScanner.GATE_SERVICES);
+            mScheduler.advance(1000);
+        }
+        assertEquals(Arrays.asList("near A"), mEvents);
+
+        mScheduler.advance(15000);
+        assertEquals(Arrays.asList("near A", "away A"), mEvents);
+    }
+
+    @Test
+    public void longScanIsRestarted() {
+        mWatcher.start();
+        mScheduler.advance(ProximityWatcher.SCAN_RESTART_INTERVAL + ProximityWatcher.EXPIRE_INTERVAL);
+        assertEquals(2, mBleScanner.mStarts);
+        assertTrue(mWatcher.isWatching());
+    }
+
+    @Test
+    public void stopForgetsEverything() {
+        mWatcher.watch("A");
+        mWatcher.start();
+        mBleScanner.advertise("A", -60, FakeBleScanner.GATE_SERVICES);
+        assertTrue(mWatcher.isNear("A"));
+
+        mWatcher.stop();
+        assertFalse(mBleScanner.isScanning());
+        assertFalse(mWatcher.isNear("A"));
+        assertEquals(0, mScheduler.pendingTasks());
+    }
+}
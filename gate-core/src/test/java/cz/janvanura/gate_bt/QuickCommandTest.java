@@ -0,0 +1,134 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class QuickCommandTest {
+
+    private static final String ADDRESS = "00:15:83:00:C3:F7";
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private final GateSimulator mGate = new GateSimulator(mScheduler, new Random(5));
+    private final GattMetrics mMetrics = new GattMetrics();
+    private final List<Runnable> mIoTasks = new ArrayList<>();
+    private final Executor mIoExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mIoTasks.add(command);
+        }
+    };
+    private boolean mKeepConnections;
+    private GattConnectionPool mPool;
+    private GateKeyStore mKeyStore;
+    private QuickCommand mQuickCommand;
+
+
+    @Before
+    public void setUp() {
+        mGate.setLinkLatency(10);
+        mPool = new GattConnectionPool(new GattConnectionPool.Factory() {
+            @Override
+            public GateConnection create(String address) {
+                return new GateConnection(address, mGate.connector(), mScheduler, Runnable::run, new GattEventBus(),
+                        new GattTrace(GattTrace.LEVEL_NONE, null, null, mScheduler), mMetrics,
+                        new GateProfileCache());
+            }
+        }, GattConnectionPool.DEFAULT_MAX_CONNECTIONS);
+        // Nothing is ever written, the file stays missing.
+        mKeyStore = new GateKeyStore(new File("keys.properties"), GattAttributes.SECURE_KEY, mScheduler, mIoExecutor);
+        mQuickCommand = new QuickCommand(mPool, mKeyStore, mMetrics, mScheduler, new BooleanSupplier() {
+            @Override
+            public boolean getAsBoolean() {
+                return mKeepConnections;
+            }
+        });
+    }
+
+    @Test
+    public void coldTapConnectsOnceKeysAreReadAndDisconnects() throws Exception {
+        mKeyStore.load();
+        long tappedAt = mScheduler.now();
+        CompletableFuture<GateResponse> open = mQuickCommand.send(ADDRESS, true, tappedAt);
+        mScheduler.advance(1000);
+        assertNull(mPool.get(ADDRESS));
+
+        runIo();
+        runUntilDone(open);
+        assertEquals(GateCommandCodec.ANSWER_OK_OPEN, open.get().getAnswer());
+        assertEquals(1, mGate.getOpenPulses());
+        assertEquals(1, mMetrics.get(GattMetrics.TAP_COLD).getCount());
+        assertEquals(0, mMetrics.get(GattMetrics.TAP_WARM).getCount());
+        // Measured to the acknowledgement of the relay, not to the answer after the pulse.
+        assertEquals(mScheduler.now() - tappedAt - GateSimulator.RELAY_PULSE,
+                mMetrics.get(GattMetrics.TAP_COLD).getMax());
+        assertFalse(mQuickCommand.isBusy());
+
+        mScheduler.advance(1000);
+        assertEquals(GateConnection.STATE_DISCONNECTED, mPool.get(ADDRESS).getState());
+    }
+
+    @Test
+    public void warmTapReusesTheConnection() throws Exception {
+        loadKeys();
+        GateConnection connection = mPool.obtain(ADDRESS);
+        assertTrue(connection.connect());
+        mScheduler.advance(3000);
+
+        CompletableFuture<GateResponse> close = mQuickCommand.send(ADDRESS, false, mScheduler.now());
+        runUntilDone(close);
+        assertEquals(GateCommandCodec.ANSWER_OK_CLOSE, close.get().getAnswer());
+        assertEquals(1, mMetrics.get(GattMetrics.TAP_WARM).getCount());
+        // Two link latencies, the write and the acknowledgement.
+        assertEquals(20, mMetrics.get(GattMetrics.TAP_WARM).getMax());
+
+        mScheduler.advance(1000);
+        assertEquals(GateConnection.STATE_CONNECTED, connection.getState());
+    }
+
+    @Test
+    public void openedLinkStaysWhileWantedOrBusy() throws Exception {
+        loadKeys();
+        CompletableFuture<GateResponse> first = mQuickCommand.send(ADDRESS, true, mScheduler.now());
+        mScheduler.advance(500);
+        CompletableFuture<GateResponse> second = mQuickCommand.send(ADDRESS, false, mScheduler.now());
+        runUntilDone(first);
+        mScheduler.advance(1);
+        // The second command still waits for its pulse.
+        assertTrue(mQuickCommand.isBusy());
+        assertEquals(GateConnection.STATE_CONNECTED, mPool.get(ADDRESS).getState());
+
+        mKeepConnections = true;
+        runUntilDone(second);
+        assertEquals(GateCommandCodec.ANSWER_OK_CLOSE, second.get().getAnswer());
+        mScheduler.advance(1000);
+        assertEquals(GateConnection.STATE_CONNECTED, mPool.get(ADDRESS).getState());
+    }
+
+
+    private void loadKeys() {
+        mKeyStore.load();
+        runIo();
+    }
+
+    private void runIo() {
+        while (!mIoTasks.isEmpty()) {
+            mIoTasks.remove(0).run();
+        }
+    }
+
+    private void runUntilDone(CompletableFuture<?> future) {
+        for (int i = 0; i < 100000 && !future.isDone(); i++) {
+            mScheduler.advance(1);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReconnectSchedulerTest {
+
+    private final FakeScheduler mScheduler = new FakeScheduler();
+    private int mRuns;
+    private final Runnable mAttempt = new Runnable() {
+        @Override
+        public void run() {
+            mRuns++;
+        }
+    };
+
+    @Test
+    public void delaysGrowExponentiallyWithJitterUpToMax() {
+        ReconnectScheduler reconnect = new ReconnectScheduler(mScheduler, new Random(1), 100, 1000, 10);
+        long[] ceilings = {100, 200, 400, 800, 1000, 1000};
+        for (long ceiling : ceilings) {
+            long start = mScheduler.now();
+            assertTrue(reconnect.schedule(mAttempt));
+            mScheduler.advance(ceiling / 2 - 1);
+            assertTrue("fired before half of " + ceiling, reconnect.isScheduled());
+            mScheduler.advance(ceiling - ceiling / 2 + 1);
+            assertFalse("not fired by " + ceiling, reconnect.isScheduled());
+            assertTrue(mScheduler.now() - start <= ceiling);
+        }
+        assertEquals(ceilings.length, mRuns);
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() {
+        ReconnectScheduler reconnect = new ReconnectScheduler(mScheduler, new Random(1), 100, 1000, 2);
+        assertTrue(reconnect.schedule(mAttempt));
+        mScheduler.advance(1000);
+        assertTrue(reconnect.schedule(mAttempt));
+        mScheduler.advance(1000);
+        assertFalse(reconnect.schedule(mAttempt));
+        assertEquals(2, mRuns);
+
+        reconnect.reset();
+        assertTrue(reconnect.schedule(mAttempt));
+    }
+
+    @Test
+    public void cancelDropsWaitingAttempt() {
+        ReconnectScheduler reconnect = new ReconnectScheduler(mScheduler, new Random(1));
+        reconnect.schedule(mAttempt);
+        reconnect.cancel();
+        mScheduler.advance(ReconnectScheduler.DEFAULT_MAX_DELAY);
+        assertEquals(0, mRuns);
+        assertEquals(1, reconnect.getAttempts());
+    }
+}
@@ -0,0 +1,87 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RelaySchedulerTest {
+
+    private FakeScheduler mScheduler;
+    private RelayScheduler<String> mRelay;
+    private final List<String> mEvents = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mScheduler = new FakeScheduler();
+        mRelay = new RelayScheduler<>(mScheduler, new RelayScheduler.Listener<String>() {
+            @Override
+            public void onRelay(boolean open, boolean on) {
+                mEvents.add(mScheduler.now() + " " + (open ? "open" : "close") + (on ? " on" : " off"));
+            }
+
+            @Override
+            public void onDone(boolean open, List<String> waiters) {
+                mEvents.add(mScheduler.now() + " done " + waiters);
+            }
+        });
+    }
+
+    @Test
+    public void idleRequestStartsAtOnce() {
+        assertEquals(RelayScheduler.STARTED, mRelay.request(true, "a"));
+        assertTrue(mRelay.isBusy());
+        mScheduler.advance(RelayScheduler.PULSE);
+
+        assertEquals(Arrays.asList("0 open on", "2000 open off", "2000 done [a]"), mEvents);
+        assertFalse(mRelay.isBusy());
+    }
+
+    @Test
+    public void sameDirectionJoinsLastPulse() {
+        mRelay.request(true, "a");
+        mScheduler.advance(500);
+        assertEquals(RelayScheduler.JOINED, mRelay.request(true, "b"));
+        mScheduler.advance(RelayScheduler.PULSE);
+
+        assertEquals(Arrays.asList("0 open on", "2000 open off", "2000 done [a, b]"), mEvents);
+    }
+
+    @Test
+    public void oppositeDirectionFollowsAfterGap() {
+        mRelay.request(true, "a");
+        assertEquals(RelayScheduler.QUEUED, mRelay.request(false, "b"));
+        // Joins the close pulse, not the running open one.
+        assertEquals(RelayScheduler.QUEUED, mRelay.request(true, "c"));
+        assertEquals(3, mRelay.size());
+        mScheduler.advance(3 * RelayScheduler.PULSE + 2 * RelayScheduler.PULSE_GAP);
+
+        assertEquals(Arrays.asList("0 open on", "2000 open off", "2000 done [a]",
+                "2250 close on", "4250 close off", "4250 done [b]",
+                "4500 open on", "6500 open off", "6500 done [c]"), mEvents);
+    }
+
+    @Test
+    public void requestRightAfterPulseWaitsForGap() {
+        mRelay.request(true, "a");
+        mScheduler.advance(RelayScheduler.PULSE);
+        assertEquals(RelayScheduler.QUEUED, mRelay.request(false, "b"));
+        mScheduler.advance(RelayScheduler.PULSE_GAP);
+
+        assertEquals("2250 close on", mEvents.get(3));
+    }
+
+    @Test
+    public void fullQueueIsBusy() {
+        for (int i = 0; i < RelayScheduler.MAX_PULSES; i++) {
+            mRelay.request(i % 2 == 0, "r" + i);
+        }
+        assertEquals(RelayScheduler.BUSY, mRelay.request(true, "x"));
+        // Joining the last pulse still works.
+        assertEquals(RelayScheduler.JOINED, mRelay.request(false, "y"));
+    }
+}
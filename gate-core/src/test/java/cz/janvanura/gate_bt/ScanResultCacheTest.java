@@ -0,0 +1,62 @@
+package cz.janvanura.gate_bt;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScanResultCacheTest {
+
+    @Test
+    public void sightingsOfSameGateAreDeduplicated() {
+        ScanResultCache cache = new ScanResultCache(1000, 8);
+        assertTrue(cache.put("A", "Gate", -70, 0));
+        assertFalse(cache.put("A", null, -60, 100));
+
+        assertEquals(1, cache.size());
+        ScanResultCache.Entry entry = cache.get("A", 100);
+        assertEquals(-60, entry.getRssi());
+        assertEquals("Gate", entry.getName());
+        assertEquals(100, entry.getLastSeen());
+    }
+
+    @Test
+    public void entriesAreOrderedByRssi() {
+        ScanResultCache cache = new ScanResultCache(1000, 8);
+        cache.put("A", null, -80, 0);
+        cache.put("B", null, -50, 0);
+        cache.put("C", null, -65, 0);
+
+        List<ScanResultCache.Entry> entries = cache.entries(0);
+        assertEquals("B", entries.get(0).getAddress());
+        assertEquals("C", entries.get(1).getAddress());
+        assertEquals("A", entries.get(2).getAddress());
+        assertEquals("B", cache.strongest(0).getAddress());
+    }
+
+    @Test
+    public void entriesExpireAfterTtl() {
+        ScanResultCache cache = new ScanResultCache(1000, 8);
+        cache.put("A", null, -50, 0);
+        cache.put("B", null, -80, 500);
+
+        assertNull(cache.get("A", 1000));
+        assertEquals("B", cache.strongest(1000).getAddress());
+        assertEquals(1, cache.entries(1000).size());
+        // Seen again after expiring counts as new.
+        assertTrue(cache.put("A", null, -50, 1200));
+    }
+
+    @Test
+    public void sizeIsBounded() {
+        ScanResultCache cache = new ScanResultCache(100000, 4);
+        for (int i = 0; i < 10; i++) {
+            cache.put("G" + i, null, -50, i);
+        }
+        assertEquals(4, cache.size());
+        // The oldest sightings made room.
+        assertNull(cache.get("G5", 10));
+        assertNotNull(cache.get("G9", 10));
+    }
+}
@@ -0,0 +1,52 @@
+import com.android.build.api.dsl.ManagedVirtualDevice
+
+// Startup and time-to-connected macrobenchmarks of :app, and the generator of its Baseline Profile.
+// Both run against a simulated gate, an emulator without Bluetooth is enough.
+//
+//   ./gradlew :macrobenchmark:pixel6Api34BenchmarkReleaseAndroidTest   benchmarks on a managed emulator
+//   ./gradlew :macrobenchmark:connectedBenchmarkReleaseAndroidTest     benchmarks on a connected device
+//   ./gradlew :app:generateBaselineProfile                             regenerates the packaged profile
+plugins {
+    alias(libs.plugins.android.test)
+    alias(libs.plugins.baselineprofile)
+}
+
+android {
+    namespace = "cz.janvanura.gate_bt.macrobenchmark"
+    compileSdk = 34
+
+    defaultConfig {
+        // Baseline Profiles are collected on API 28 and newer.
+        minSdk = 28
+        targetSdk = 34
+        testInstrumentationRunner = "androidx.test.runner.AndroidJUnitRunner"
+        // Emulator numbers show trends, absolute ones come from a device.
+        testInstrumentationRunnerArguments["androidx.benchmark.suppressErrors"] = "EMULATOR"
+    }
+
+    compileOptions {
+        sourceCompatibility = JavaVersion.VERSION_11
+        targetCompatibility = JavaVersion.VERSION_11
+    }
+
+    targetProjectPath = ":app"
+
+    testOptions.managedDevices.devices {
+        create<ManagedVirtualDevice>("pixel6Api34") {
+            device = "Pixel 6"
+            apiLevel = 34
+            systemImageSource = "aosp"
+        }
+    }
+}
+
+baselineProfile {
+    managedDevices += "pixel6Api34"
+    useConnectedDevices = false
+}
+
+dependencies {
+    implementation(libs.ext.junit)
+    implementation(libs.uiautomator)
+    implementation(libs.benchmark.macro.junit4)
+}
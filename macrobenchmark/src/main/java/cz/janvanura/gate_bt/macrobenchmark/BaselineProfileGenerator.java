@@ -0,0 +1,55 @@
+package cz.janvanura.gate_bt.macrobenchmark;
+
+import androidx.benchmark.macro.MacrobenchmarkScope;
+import androidx.benchmark.macro.junit4.BaselineProfileRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.uiautomator.By;
+import androidx.test.uiautomator.UiObject2;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import kotlin.Unit;
+import kotlin.jvm.functions.Function1;
+
+/**
+ * Collects the Baseline Profile packaged into the app: start, connect to the simulated gate
+ * and open it, the path a user takes on every visit. Run with
+ * {@code ./gradlew :app:generateBaselineProfile}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BaselineProfileGenerator {
+
+    private static final int MAX_ITERATIONS = 15;
+    private static final int STABLE_ITERATIONS = 3;
+
+    @Rule
+    public final BaselineProfileRule mRule = new BaselineProfileRule();
+
+
+    @Test
+    public void generate() {
+        mRule.collect(SimulatedGate.PACKAGE, MAX_ITERATIONS, STABLE_ITERATIONS, null, true, false,
+                new Function1<String, Boolean>() {
+                    @Override
+                    public Boolean invoke(String rule) {
+                        return true;
+                    }
+                },
+                new Function1<MacrobenchmarkScope, Unit>() {
+                    @Override
+                    public Unit invoke(MacrobenchmarkScope scope) {
+                        scope.pressHome();
+                        scope.startActivityAndWait(SimulatedGate.launchIntent());
+                        SimulatedGate.awaitConnected(scope);
+                        UiObject2 open = scope.getDevice().findObject(By.res(SimulatedGate.PACKAGE, "btn_open"));
+                        if (open != null) {
+                            open.click();
+                            scope.getDevice().waitForIdle();
+                        }
+                        return Unit.INSTANCE;
+                    }
+                });
+    }
+}
@@ -0,0 +1,83 @@
+package cz.janvanura.gate_bt.macrobenchmark;
+
+import android.os.RemoteException;
+
+import androidx.annotation.OptIn;
+import androidx.benchmark.macro.BaselineProfileMode;
+import androidx.benchmark.macro.CompilationMode;
+import androidx.benchmark.macro.ExperimentalMetricApi;
+import androidx.benchmark.macro.FrameTimingMetric;
+import androidx.benchmark.macro.MacrobenchmarkScope;
+import androidx.benchmark.macro.Metric;
+import androidx.benchmark.macro.TraceSectionMetric;
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.uiautomator.UiDevice;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import kotlin.Unit;
+import kotlin.jvm.functions.Function1;
+
+/**
+ * Rotating {@code DeviceControlActivity} while it is connected to the simulated gate. The
+ * service keeps the link while the activity is recreated, so the time to connected of the new
+ * activity is only binding to the service, without a reconnect and discovery.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RotationBenchmark {
+
+    private static final int ITERATIONS = 10;
+    // DeviceControlActivity.TRACE_TIME_TO_CONNECTED
+    private static final String TRACE_TIME_TO_CONNECTED = "timeToConnected";
+
+    @Rule
+    public final MacrobenchmarkRule mRule = new MacrobenchmarkRule();
+
+    private final Function1<MacrobenchmarkScope, Unit> mSetUp = new Function1<MacrobenchmarkScope, Unit>() {
+        @Override
+        public Unit invoke(MacrobenchmarkScope scope) {
+            rotate(scope.getDevice(), false);
+            scope.startActivityAndWait(SimulatedGate.launchIntent());
+            SimulatedGate.awaitConnected(scope);
+            return Unit.INSTANCE;
+        }
+    };
+
+    private final Function1<MacrobenchmarkScope, Unit> mRotate = new Function1<MacrobenchmarkScope, Unit>() {
+        @Override
+        public Unit invoke(MacrobenchmarkScope scope) {
+            rotate(scope.getDevice(), true);
+            scope.getDevice().waitForIdle();
+            SimulatedGate.awaitConnected(scope);
+            return Unit.INSTANCE;
+        }
+    };
+
+
+    @Test
+    @OptIn(markerClass = ExperimentalMetricApi.class)
+    public void rotateWhileConnected() {
+        mRule.measureRepeated(SimulatedGate.PACKAGE,
+                Arrays.<Metric>asList(new FrameTimingMetric(), new TraceSectionMetric(TRACE_TIME_TO_CONNECTED,
+                        TraceSectionMetric.Mode.First.INSTANCE, TRACE_TIME_TO_CONNECTED, true)),
+                new CompilationMode.Partial(BaselineProfileMode.Require, 0), null, ITERATIONS, mSetUp, mRotate);
+    }
+
+
+    private static void rotate(UiDevice device, boolean landscape) {
+        try {
+            if (landscape) {
+                device.setOrientationLeft();
+            } else {
+                device.setOrientationNatural();
+            }
+        } catch (RemoteException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
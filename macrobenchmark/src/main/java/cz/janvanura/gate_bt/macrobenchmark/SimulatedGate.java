@@ -0,0 +1,39 @@
+package cz.janvanura.gate_bt.macrobenchmark;
+
+import android.content.Intent;
+
+import androidx.benchmark.macro.MacrobenchmarkScope;
+import androidx.test.uiautomator.By;
+import androidx.test.uiautomator.Until;
+
+/**
+ * Launches the app against the simulated gate of its benchmark builds and waits for the link.
+ */
+final class SimulatedGate {
+
+    static final String PACKAGE = "cz.janvanura.gate_bt";
+    // Same as BluetoothLeService.EXTRA_SIMULATED_GATE, the app is not on the classpath.
+    private static final String EXTRA_SIMULATED_GATE = "cz.janvanura.gate_bt.SIMULATED_GATE";
+    private static final long CONNECT_TIMEOUT = 10000;
+
+
+    private SimulatedGate() {
+    }
+
+    static Intent launchIntent() {
+        return new Intent(Intent.ACTION_MAIN)
+                .addCategory(Intent.CATEGORY_LAUNCHER)
+                .setClassName(PACKAGE, PACKAGE + ".DeviceControlActivity")
+                .putExtra(EXTRA_SIMULATED_GATE, true);
+    }
+
+    /**
+     * Waits until the activity shows the gate as connected, the disconnect button is only
+     * visible then.
+     */
+    static void awaitConnected(MacrobenchmarkScope scope) {
+        if (!scope.getDevice().wait(Until.hasObject(By.res(PACKAGE, "btn_disconnect")), CONNECT_TIMEOUT)) {
+            throw new AssertionError("Gate not connected within " + CONNECT_TIMEOUT + " ms");
+        }
+    }
+}
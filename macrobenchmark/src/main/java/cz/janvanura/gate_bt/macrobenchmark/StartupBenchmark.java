@@ -0,0 +1,97 @@
+package cz.janvanura.gate_bt.macrobenchmark;
+
+import androidx.annotation.OptIn;
+import androidx.benchmark.macro.BaselineProfileMode;
+import androidx.benchmark.macro.CompilationMode;
+import androidx.benchmark.macro.ExperimentalMetricApi;
+import androidx.benchmark.macro.MacrobenchmarkScope;
+import androidx.benchmark.macro.Metric;
+import androidx.benchmark.macro.StartupMode;
+import androidx.benchmark.macro.StartupTimingMetric;
+import androidx.benchmark.macro.TraceSectionMetric;
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import kotlin.Unit;
+import kotlin.jvm.functions.Function1;
+
+/**
+ * Cold, warm and hot start of {@code DeviceControlActivity}, and the time from its creation
+ * until the simulated gate is connected. Compiled with the packaged Baseline Profile, the cold
+ * start also without it to show what it saves.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmark {
+
+    private static final int ITERATIONS = 10;
+    // DeviceControlActivity.TRACE_TIME_TO_CONNECTED
+    private static final String TRACE_TIME_TO_CONNECTED = "timeToConnected";
+
+    @Rule
+    public final MacrobenchmarkRule mRule = new MacrobenchmarkRule();
+
+    private final Function1<MacrobenchmarkScope, Unit> mSetUp = new Function1<MacrobenchmarkScope, Unit>() {
+        @Override
+        public Unit invoke(MacrobenchmarkScope scope) {
+            scope.pressHome();
+            return Unit.INSTANCE;
+        }
+    };
+
+    private final Function1<MacrobenchmarkScope, Unit> mStartAndConnect = new Function1<MacrobenchmarkScope, Unit>() {
+        @Override
+        public Unit invoke(MacrobenchmarkScope scope) {
+            scope.startActivityAndWait(SimulatedGate.launchIntent());
+            SimulatedGate.awaitConnected(scope);
+            return Unit.INSTANCE;
+        }
+    };
+
+
+    @Test
+    public void coldStart() {
+        measure(Collections.<Metric>singletonList(new StartupTimingMetric()), withProfile(), StartupMode.COLD);
+    }
+
+    @Test
+    public void coldStartWithoutProfile() {
+        measure(Collections.<Metric>singletonList(new StartupTimingMetric()), new CompilationMode.None(),
+                StartupMode.COLD);
+    }
+
+    @Test
+    public void warmStart() {
+        measure(Collections.<Metric>singletonList(new StartupTimingMetric()), withProfile(), StartupMode.WARM);
+    }
+
+    @Test
+    public void hotStart() {
+        measure(Collections.<Metric>singletonList(new StartupTimingMetric()), withProfile(), StartupMode.HOT);
+    }
+
+    @Test
+    @OptIn(markerClass = ExperimentalMetricApi.class)
+    public void timeToConnected() {
+        measure(Arrays.<Metric>asList(new StartupTimingMetric(), new TraceSectionMetric(TRACE_TIME_TO_CONNECTED,
+                TraceSectionMetric.Mode.First.INSTANCE, TRACE_TIME_TO_CONNECTED, true)),
+                withProfile(), StartupMode.COLD);
+    }
+
+
+    private static CompilationMode withProfile() {
+        return new CompilationMode.Partial(BaselineProfileMode.Require, 0);
+    }
+
+    private void measure(List<Metric> metrics, CompilationMode compilationMode, StartupMode startupMode) {
+        mRule.measureRepeated(SimulatedGate.PACKAGE, metrics, compilationMode, startupMode, ITERATIONS, mSetUp,
+                mStartAndConnect);
+    }
+}
@@ -21,4 +21,7 @@ dependencyResolutionManagement {
 
 rootProject.name = "GateBt"
 include(":app")
+include(":gate-core")
+include(":benchmark")
+include(":macrobenchmark")
  
\ No newline at end of file